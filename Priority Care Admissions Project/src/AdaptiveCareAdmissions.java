@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Priority queue of PatientRecords that picks its own representation from the workload it
+ * observes. Small or quiet queues are kept in a compact PriorityCareAdmissions array-heap; large
+ * queues under heavy admission and dispatch traffic move to a TriageBucketAdmissions queue, whose
+ * operations take constant time instead of logarithmic time.<BR/>
+ * <BR/>
+ * The queue counts its operations, its size and the admissions arriving out of order over
+ * windows of WINDOW_OPERATIONS operations. At the end of each window it decides whether to keep
+ * its backend or to migrate to the other one. Migrating moves every waiting PatientRecord to the
+ * new backend in a single bulk load, so the dispatch order is unchanged. The thresholds for
+ * switching back are lower than those for switching away, so that a workload near a threshold
+ * does not cause a migration at every window.<BR/>
+ * <BR/>
+ * Both backends order PatientRecords as PatientRecord.compareTo() does, which is the
+ * PriorityPolicy.STANDARD order. All the public operations of this queue are thread-safe.
+ *
+ */
+public class AdaptiveCareAdmissions implements AdmissionsQueue {
+
+  /**
+   * Representations an AdaptiveCareAdmissions queue can use
+   */
+  public enum Backend {
+    /**
+     * A PriorityCareAdmissions array-heap
+     */
+    ARRAY_HEAP,
+    /**
+     * A TriageBucketAdmissions queue of one FIFO per triage level
+     */
+    TRIAGE_BUCKETS
+  }
+
+  /**
+   * Number of operations observed before each decision to keep or change the backend
+   */
+  public static final int WINDOW_OPERATIONS = 1 << 10;
+  // average size from which the triage buckets are worth their overhead
+  private static final int BUCKETS_MIN_SIZE = 512;
+  // average size below which the triage buckets are given up for the array-heap
+  private static final int HEAP_MAX_SIZE = 128;
+  // minimum share of admissions and dispatches among the operations to use the triage buckets
+  private static final double BUCKETS_MIN_TRAFFIC = 0.5;
+  // maximum share of out-of-order admissions to move to the triage buckets
+  private static final double BUCKETS_MAX_DISORDER = 0.01;
+  // share of out-of-order admissions above which the triage buckets are given up
+  private static final double HEAP_MIN_DISORDER = 0.05;
+
+  private AdmissionsQueue backend; // current representation of this queue
+  private Backend activeBackend; // kind of the current representation
+  private String reason; // why the current representation was chosen
+  private int migrations; // number of migrations so far
+  private final int[] lastArrival; // latest order of arrival admitted, per triage ordinal
+
+  // statistics of the current window
+  private int operations; // operations observed
+  private int admissions; // admissions
+  private int dispatches; // dispatches
+  private int outOfOrder; // admissions older than the latest one of their triage level
+  private long sizeSum; // sum of the sizes observed at each operation
+
+  /**
+   * Creates a new empty AdaptiveCareAdmissions queue with the given capacity, starting with an
+   * array-heap
+   *
+   * @param capacity Capacity of this AdaptiveCareAdmissions queue
+   * @throws IllegalArgumentException with a descriptive error message if the capacity is not a
+   *                                  positive integer
+   */
+  public AdaptiveCareAdmissions(int capacity) throws IllegalArgumentException {
+    this.backend = new PriorityCareAdmissions(capacity);
+    this.activeBackend = Backend.ARRAY_HEAP;
+    this.reason = "initial backend";
+    this.lastArrival = new int[TriageLevel.values().length];
+  }
+
+  /**
+   * Returns the representation currently used by this queue
+   *
+   * @return the active backend
+   */
+  public synchronized Backend activeBackend() {
+    return this.activeBackend;
+  }
+
+  /**
+   * Returns why the current representation was chosen, along with the statistics of the window
+   * that led to that decision
+   *
+   * @return a human-readable reason
+   */
+  public synchronized String reason() {
+    return this.reason;
+  }
+
+  /**
+   * Returns the number of times this queue changed its representation
+   *
+   * @return the number of migrations
+   */
+  public synchronized int migrations() {
+    return this.migrations;
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return this.backend.isEmpty();
+  }
+
+  @Override
+  public synchronized int size() {
+    return this.backend.size();
+  }
+
+  @Override
+  public synchronized int capacity() {
+    return this.backend.capacity();
+  }
+
+  @Override
+  public synchronized void clear() {
+    this.backend.clear();
+    this.observe(0, 0, 0);
+  }
+
+  @Override
+  public synchronized PatientRecord peek() throws NoSuchElementException {
+    PatientRecord best = this.backend.peek();
+    this.observe(0, 0, 0);
+    return best;
+  }
+
+  @Override
+  public synchronized PatientRecord peekOrNull() {
+    PatientRecord best = this.backend.peekOrNull();
+    this.observe(0, 0, 0);
+    return best;
+  }
+
+  @Override
+  public synchronized void addPatient(PatientRecord p)
+      throws NullPointerException, IllegalStateException {
+    this.backend.addPatient(p);
+    this.observe(1, 0, this.isOutOfOrder(p) ? 1 : 0);
+  }
+
+  @Override
+  public synchronized AdmissionStatus offer(PatientRecord p) {
+    AdmissionStatus status = this.backend.offer(p);
+    boolean admitted = status == AdmissionStatus.ADMITTED;
+    this.observe(admitted ? 1 : 0, 0, admitted && this.isOutOfOrder(p) ? 1 : 0);
+    return status;
+  }
+
+  @Override
+  public synchronized void addAll(PatientRecord[] records)
+      throws NullPointerException, IllegalStateException {
+    this.backend.addAll(records);
+    int disordered = 0;
+    for (PatientRecord p : records) {
+      disordered += this.isOutOfOrder(p) ? 1 : 0;
+    }
+    this.observe(records.length, 0, disordered);
+  }
+
+  @Override
+  public synchronized PatientRecord removeBestRecord() throws NoSuchElementException {
+    PatientRecord best = this.backend.removeBestRecord();
+    this.observe(0, 1, 0);
+    return best;
+  }
+
+  @Override
+  public synchronized PatientRecord poll() {
+    PatientRecord best = this.backend.poll();
+    this.observe(0, best == null ? 0 : 1, 0);
+    return best;
+  }
+
+  @Override
+  public synchronized boolean cancel(int arrivalOrder) {
+    boolean cancelled = this.backend.cancel(arrivalOrder);
+    this.observe(0, 0, 0);
+    return cancelled;
+  }
+
+  @Override
+  public synchronized PatientRecord[] toArray() {
+    return this.backend.toArray();
+  }
+
+  @Override
+  public synchronized StringBuilder formatTo(StringBuilder sb) {
+    return this.backend.formatTo(sb);
+  }
+
+  @Override
+  public synchronized void writeTo(ByteBuffer buffer, WritableByteChannel out)
+      throws IOException {
+    this.backend.writeTo(buffer, out);
+  }
+
+  /**
+   * Returns a String representing this AdaptiveCareAdmissions queue, where each PatientRecord is
+   * listed on a separate line, in order from smallest to greatest
+   *
+   * @return a String representing this queue, and an empty String "" if this queue is empty
+   */
+  @Override
+  public synchronized String toString() {
+    return this.backend.toString();
+  }
+
+  /**
+   * Checks whether the given admitted PatientRecord is older than the latest one admitted with the
+   * same triage level, and records its order of arrival otherwise
+   */
+  private boolean isOutOfOrder(PatientRecord p) {
+    int triage = p.getTriage().ordinal();
+    if (p.getArrivalOrder() < this.lastArrival[triage]) {
+      return true;
+    }
+    this.lastArrival[triage] = p.getArrivalOrder();
+    return false;
+  }
+
+  /**
+   * Records one operation in the statistics of the current window, and decides whether to migrate
+   * at the end of the window
+   *
+   * @param admitted   number of PatientRecords admitted by the operation
+   * @param dispatched number of PatientRecords dispatched by the operation
+   * @param disordered number of admitted PatientRecords that arrived out of order
+   */
+  private void observe(int admitted, int dispatched, int disordered) {
+    this.operations++;
+    this.admissions += admitted;
+    this.dispatches += dispatched;
+    this.outOfOrder += disordered;
+    this.sizeSum += this.backend.size();
+    if (this.operations < WINDOW_OPERATIONS) {
+      return;
+    }
+
+    long averageSize = this.sizeSum / this.operations;
+    double traffic = (double) (this.admissions + this.dispatches) / this.operations;
+    double disorder = (double) this.outOfOrder / Math.max(1, this.admissions);
+    String statistics = String.format("average size %d, %.0f%% admissions and dispatches, "
+        + "%.1f%% out-of-order admissions", averageSize, 100 * traffic, 100 * disorder);
+
+    if (this.activeBackend == Backend.ARRAY_HEAP && averageSize >= BUCKETS_MIN_SIZE
+        && traffic >= BUCKETS_MIN_TRAFFIC && disorder <= BUCKETS_MAX_DISORDER) {
+      this.migrate(Backend.TRIAGE_BUCKETS, new TriageBucketAdmissions(this.capacity()),
+          statistics + ": large queue under heavy traffic");
+    } else if (this.activeBackend == Backend.TRIAGE_BUCKETS && averageSize < HEAP_MAX_SIZE) {
+      this.migrate(Backend.ARRAY_HEAP, new PriorityCareAdmissions(this.capacity()),
+          statistics + ": small queue");
+    } else if (this.activeBackend == Backend.TRIAGE_BUCKETS && disorder > HEAP_MIN_DISORDER) {
+      this.migrate(Backend.ARRAY_HEAP, new PriorityCareAdmissions(this.capacity()),
+          statistics + ": too many out-of-order admissions");
+    }
+
+    this.operations = 0;
+    this.admissions = 0;
+    this.dispatches = 0;
+    this.outOfOrder = 0;
+    this.sizeSum = 0;
+  }
+
+  /**
+   * Moves every waiting PatientRecord to the given empty backend with a single bulk load, then
+   * makes it the active one
+   */
+  private void migrate(Backend kind, AdmissionsQueue target, String why) {
+    target.addAll(this.backend.toArray());
+    this.backend = target;
+    this.activeBackend = kind;
+    this.reason = why;
+    this.migrations++;
+  }
+}
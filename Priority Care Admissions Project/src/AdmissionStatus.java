@@ -0,0 +1,24 @@
+/**
+ * This enumeration defines the possible outcomes of offering a PatientRecord to a
+ * PriorityCareAdmissions queue with PriorityCareAdmissions.offer().
+ *
+ */
+public enum AdmissionStatus {
+  /**
+   * The patient was added to the queue
+   */
+  ADMITTED,
+  /**
+   * The queue was full; a less urgent patient was evicted to make room, and the patient was added
+   * to the queue
+   */
+  ADMITTED_AFTER_EVICTION,
+  /**
+   * The queue was full; the patient was handed to an overflow destination instead
+   */
+  DIVERTED,
+  /**
+   * The queue was full, or the patient was null; the patient was not added
+   */
+  REJECTED;
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Utility class exporting the unseen PatientRecords of a PriorityCareAdmissions queue, in priority
+ * order, to a CSV or JSON file.<BR/>
+ * <BR/>
+ * The exporter takes a snapshot of the backing array of the queue along with the precomputed
+ * priority keys, sorts it with a parallel merge sort on the keys, then formats fixed-size chunks
+ * of records in parallel. Only a bounded window of formatted chunks is held in memory at a time,
+ * and chunks are written in order through a FileChannel.
+ *
+ */
+public class AdmissionsExporter {
+
+  /**
+   * Supported output formats
+   */
+  public enum Format {
+    /**
+     * One header line, then one comma-separated line per PatientRecord
+     */
+    CSV,
+    /**
+     * A JSON array holding one object per PatientRecord
+     */
+    JSON
+  }
+
+  // number of records formatted together in one chunk
+  private static final int CHUNK_RECORDS = 1 << 16;
+  // ranges no longer than this are sorted sequentially, without creating fork/join tasks
+  private static final int SORT_THRESHOLD = 1 << 13;
+  // ranges no longer than this are sorted by insertion
+  private static final int INSERTION_THRESHOLD = 32;
+  private static final String CSV_HEADER = "rank,case_number,age,gender,triage,arrival_order\n";
+
+  /**
+   * Private constructor: this utility class is not meant to be instantiated
+   */
+  private AdmissionsExporter() {
+  }
+
+  /**
+   * Writes the waiting PatientRecords of the given queue to the given file in priority order. The
+   * file is created, or truncated if it already exists. The queue itself is not modified.
+   * 
+   * @param queue  queue to export
+   * @param file   path of the file to write
+   * @param format format of the file
+   * @return the number of PatientRecords exported
+   * @throws IOException if the file cannot be written
+   */
+  public static int export(PriorityCareAdmissions queue, Path file, Format format)
+      throws IOException {
+    PriorityCareAdmissions.Snapshot snapshot = queue.snapshot();
+    PatientRecord[] records = snapshot.records;
+    sort(records, snapshot.keys);
+
+    int window = 2 * ForkJoinPool.getCommonPoolParallelism(); // chunks formatted ahead of writing
+    ArrayDeque<CompletableFuture<ByteBuffer>> pending =
+        new ArrayDeque<CompletableFuture<ByteBuffer>>();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(channel, encode(format == Format.CSV ? CSV_HEADER : "["));
+
+      for (int from = 0; from < records.length; from += CHUNK_RECORDS) {
+        int start = from;
+        int end = Math.min(records.length, from + CHUNK_RECORDS);
+        pending.add(CompletableFuture.supplyAsync(() -> format(records, start, end, format)));
+
+        // Keep a bounded number of formatted chunks in memory
+        if (pending.size() >= window) {
+          write(channel, pending.poll().join());
+        }
+      }
+      while (!pending.isEmpty()) {
+        write(channel, pending.poll().join());
+      }
+
+      if (format == Format.JSON) {
+        write(channel, encode(records.length == 0 ? "]\n" : "\n]\n"));
+      }
+    }
+    return records.length;
+  }
+
+  /**
+   * Formats records[start..end-1] in the given format, prefixing each JSON object but the first
+   * with a separating comma
+   */
+  private static ByteBuffer format(PatientRecord[] records, int start, int end, Format format) {
+    StringBuilder sb = new StringBuilder((end - start) * 64);
+    for (int i = start; i < end; i++) {
+      PatientRecord p = records[i];
+      if (format == Format.CSV) {
+        sb.append(i + 1).append(',').append(p.CASE_NUMBER).append(',').append(p.getAge())
+            .append(',');
+        appendCsvChar(sb, p.getGender());
+        sb.append(',').append(p.getTriage().name()).append(',').append(p.getArrivalOrder())
+            .append('\n');
+      } else {
+        sb.append(i == 0 ? "\n" : ",\n").append("{\"rank\":").append(i + 1)
+            .append(",\"caseNumber\":").append(p.CASE_NUMBER).append(",\"age\":")
+            .append(p.getAge()).append(",\"gender\":\"");
+        appendJsonChar(sb, p.getGender());
+        sb.append("\",\"triage\":\"").append(p.getTriage().name()).append("\",\"arrivalOrder\":")
+            .append(p.getArrivalOrder()).append('}');
+      }
+    }
+    return encode(sb);
+  }
+
+  /**
+   * Appends the given character as a CSV field, quoting it if it is a separator, a quote or a
+   * control character such as a line break, and doubling it if it is a quote
+   */
+  private static void appendCsvChar(StringBuilder sb, char c) {
+    if (c == ',' || c == '"' || c < 0x20) {
+      sb.append('"').append(c);
+      if (c == '"') {
+        sb.append('"');
+      }
+      sb.append('"');
+    } else {
+      sb.append(c);
+    }
+  }
+
+  /**
+   * Appends the given character to a JSON string literal, escaping it if needed
+   */
+  private static void appendJsonChar(StringBuilder sb, char c) {
+    if (c == '"' || c == '\\') {
+      sb.append('\\').append(c);
+    } else if (c < 0x20) {
+      sb.append(String.format("\\u%04x", (int) c));
+    } else {
+      sb.append(c);
+    }
+  }
+
+  /**
+   * Encodes the given characters as UTF-8 bytes
+   */
+  private static ByteBuffer encode(CharSequence text) {
+    return StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+  }
+
+  /**
+   * Writes all the remaining bytes of the buffer to the channel
+   */
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Sorts the records by increasing key, in parallel, moving the keys along with them
+   * 
+   * @param records records to sort
+   * @param keys    keys[i] is the priority key of records[i]
+   */
+  static void sort(PatientRecord[] records, long[] keys) {
+    ForkJoinPool.commonPool().invoke(new MergeSort(records, keys,
+        new PatientRecord[records.length], new long[keys.length], 0, records.length));
+  }
+
+  /**
+   * Parallel top-down merge sort of a range of records by their keys. Ranges larger than
+   * SORT_THRESHOLD are split into two fork/join tasks; smaller ones are sorted sequentially.
+   */
+  private static class MergeSort extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final PatientRecord[] records; // records to sort
+    private final long[] keys; // keys of the records
+    private final PatientRecord[] recordsBuffer; // scratch space for merging records
+    private final long[] keysBuffer; // scratch space for merging keys
+    private final int from; // first index of the range to sort
+    private final int to; // index past the end of the range to sort
+
+    /**
+     * Creates a task sorting records[from..to-1]
+     */
+    private MergeSort(PatientRecord[] records, long[] keys, PatientRecord[] recordsBuffer,
+        long[] keysBuffer, int from, int to) {
+      this.records = records;
+      this.keys = keys;
+      this.recordsBuffer = recordsBuffer;
+      this.keysBuffer = keysBuffer;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= SORT_THRESHOLD) {
+        sortSequentially(this.records, this.keys, this.recordsBuffer, this.keysBuffer, this.from,
+            this.to);
+        return;
+      }
+      int middle = (this.from + this.to) >>> 1;
+      invokeAll(
+          new MergeSort(this.records, this.keys, this.recordsBuffer, this.keysBuffer, this.from,
+              middle),
+          new MergeSort(this.records, this.keys, this.recordsBuffer, this.keysBuffer, middle,
+              this.to));
+      merge(this.records, this.keys, this.recordsBuffer, this.keysBuffer, this.from, middle,
+          this.to);
+    }
+  }
+
+  /**
+   * Sorts records[from..to-1] by their keys in the calling thread, without creating any task
+   */
+  private static void sortSequentially(PatientRecord[] records, long[] keys,
+      PatientRecord[] recordsBuffer, long[] keysBuffer, int from, int to) {
+    if (to - from <= INSERTION_THRESHOLD) {
+      for (int i = from + 1; i < to; i++) {
+        PatientRecord record = records[i];
+        long key = keys[i];
+        int j = i - 1;
+        while (j >= from && keys[j] > key) {
+          records[j + 1] = records[j];
+          keys[j + 1] = keys[j--];
+        }
+        records[j + 1] = record;
+        keys[j + 1] = key;
+      }
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    sortSequentially(records, keys, recordsBuffer, keysBuffer, from, middle);
+    sortSequentially(records, keys, recordsBuffer, keysBuffer, middle, to);
+    merge(records, keys, recordsBuffer, keysBuffer, from, middle, to);
+  }
+
+  /**
+   * Merges the sorted ranges records[from..middle-1] and records[middle..to-1], keeping records
+   * with equal keys in their original order
+   */
+  private static void merge(PatientRecord[] records, long[] keys, PatientRecord[] recordsBuffer,
+      long[] keysBuffer, int from, int middle, int to) {
+    // Skip the merge if both halves are already in order
+    if (keys[middle - 1] <= keys[middle]) {
+      return;
+    }
+    System.arraycopy(records, from, recordsBuffer, from, to - from);
+    System.arraycopy(keys, from, keysBuffer, from, to - from);
+    int i = from;
+    int j = middle;
+    for (int k = from; k < to; k++) {
+      if (j >= to || (i < middle && keysBuffer[i] <= keysBuffer[j])) {
+        records[k] = recordsBuffer[i];
+        keys[k] = keysBuffer[i++];
+      } else {
+        records[k] = recordsBuffer[j];
+        keys[k] = keysBuffer[j++];
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Common API of the priority queues of PatientRecords waiting at an urgent care service. Whatever
+ * their representation, implementations dequeue the PatientRecords in the order defined by
+ * PatientRecord.compareTo(): by triage level, then by order of arrival.
+ *
+ */
+public interface AdmissionsQueue {
+
+  /**
+   * Checks whether this queue is empty
+   *
+   * @return {@code true} if no PatientRecord is waiting in this queue
+   */
+  boolean isEmpty();
+
+  /**
+   * Returns the size of this queue
+   *
+   * @return the number of PatientRecords waiting in this queue, not counting cancelled ones
+   */
+  int size();
+
+  /**
+   * Returns the capacity of this queue
+   *
+   * @return the maximum number of PatientRecords this queue can hold
+   */
+  int capacity();
+
+  /**
+   * Removes all the elements from this queue
+   */
+  void clear();
+
+  /**
+   * Returns the PatientRecord having the highest priority, without removing it
+   *
+   * @return the PatientRecord having the highest priority
+   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
+   *                                if this queue is empty
+   */
+  PatientRecord peek() throws NoSuchElementException;
+
+  /**
+   * Returns the PatientRecord having the highest priority, without removing it, or null if this
+   * queue is empty
+   *
+   * @return the PatientRecord having the highest priority, or null if this queue is empty
+   */
+  PatientRecord peekOrNull();
+
+  /**
+   * Adds the given PatientRecord to this queue
+   *
+   * @param p PatientRecord to add
+   * @throws NullPointerException  if the given PatientRecord is null
+   * @throws IllegalStateException with a the exact error message "Warning: Full Admissions Queue!"
+   *                               if this queue is full
+   */
+  void addPatient(PatientRecord p) throws NullPointerException, IllegalStateException;
+
+  /**
+   * Offers the given PatientRecord to this queue, reporting the outcome as a status instead of
+   * throwing
+   *
+   * @param p PatientRecord to offer
+   * @return the outcome of the offer; REJECTED if p is null
+   */
+  AdmissionStatus offer(PatientRecord p);
+
+  /**
+   * Adds all the given PatientRecords to this queue at once
+   *
+   * @param records PatientRecords to add
+   * @throws NullPointerException  if the given array or any of its elements is null
+   * @throws IllegalStateException with a the exact error message "Warning: Full Admissions Queue!"
+   *                               if the records do not all fit in this queue; in that case, none
+   *                               of them is added
+   */
+  void addAll(PatientRecord[] records) throws NullPointerException, IllegalStateException;
+
+  /**
+   * Removes and returns the PatientRecord having the highest priority
+   *
+   * @return the PatientRecord having the highest priority
+   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
+   *                                if this queue is empty
+   */
+  PatientRecord removeBestRecord() throws NoSuchElementException;
+
+  /**
+   * Removes and returns the PatientRecord having the highest priority, or returns null if this
+   * queue is empty
+   *
+   * @return the PatientRecord having the highest priority, or null if this queue is empty
+   */
+  PatientRecord poll();
+
+  /**
+   * Cancels the waiting PatientRecord having the given order of arrival. Case numbers repeat every
+   * 100 patients, so patients are identified by their unique order of arrival.
+   *
+   * @param arrivalOrder order of arrival of the patient to cancel
+   * @return {@code true} if a waiting patient was cancelled, {@code false} if no patient with this
+   *         order of arrival is waiting in this queue
+   */
+  boolean cancel(int arrivalOrder);
+
+  /**
+   * Returns the PatientRecords waiting in this queue, in no particular order
+   *
+   * @return a new array holding the waiting PatientRecords
+   */
+  PatientRecord[] toArray();
+
+  /**
+   * Appends every PatientRecord of this queue to the given StringBuilder, one per line, in order
+   * from smallest to greatest
+   *
+   * @param sb StringBuilder to append to
+   * @return the given StringBuilder, for chaining
+   */
+  StringBuilder formatTo(StringBuilder sb);
+
+  /**
+   * Streams every PatientRecord of this queue to the given channel, one per line, in order from
+   * smallest to greatest
+   *
+   * @param buffer reusable buffer of at least PatientRecord.MAX_FORMATTED_BYTES bytes
+   * @param out    channel to write the listing to
+   * @throws IOException if writing to the channel fails
+   */
+  void writeTo(ByteBuffer buffer, WritableByteChannel out) throws IOException;
+}
@@ -0,0 +1,329 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Seeded differential stress harness for PriorityCareAdmissions. It runs a long random sequence
+ * of addPatient(), removeBestRecord(), peek(), clear() and deepCopy() operations against a
+ * PriorityCareAdmissions queue and against a java.util.PriorityQueue of the same PatientRecords,
+ * and fails as soon as the two disagree on a returned record, a size or an exception. The
+ * min-heap invariant of the array-heap is also checked through arrayHeapCopy() at regular
+ * intervals. Every operation of the queue is timed, and the throughput of each kind of operation
+ * is reported, so that a change to the heap can be checked for both correctness and speed. As a
+ * peek or an addition takes about as long as reading the clock, the overhead of the timing itself
+ * is measured before the run and subtracted from the time of every operation.<BR/>
+ * <BR/>
+ * The same seed always replays the same operations, so a failure can be reproduced from the seed
+ * and the step it reports.<BR/>
+ * <BR/>
+ * Usage: java AdmissionsStressHarness [seed] [operations] [capacity]<BR/>
+ * The defaults are a random seed, 20,000,000 operations and a capacity of 10,000.
+ *
+ */
+public class AdmissionsStressHarness {
+
+  /**
+   * Kinds of operations run by the harness
+   */
+  public enum Operation {
+    /**
+     * addPatient() of a new PatientRecord
+     */
+    ADD,
+    /**
+     * removeBestRecord()
+     */
+    REMOVE_BEST,
+    /**
+     * peek()
+     */
+    PEEK,
+    /**
+     * clear()
+     */
+    CLEAR,
+    /**
+     * deepCopy(), followed by a check of the copy drained outside of the timing
+     */
+    DEEP_COPY;
+  }
+
+  private static final Operation[] OPERATIONS = Operation.values();
+  private static final TriageLevel[] TRIAGE_LEVELS = TriageLevel.values();
+  private static final int INVARIANT_INTERVAL = 1 << 16; // operations between two heap checks
+  private static final int CLEAR_ODDS = 50_000; // one operation in CLEAR_ODDS is a clear
+  private static final int DEEP_COPY_ODDS = 20_000; // one operation in DEEP_COPY_ODDS is a copy
+  private static final int TIMER_ROUNDS = 20; // rounds of back-to-back clock reads measured
+  private static final int TIMER_READS = 50_000; // clock reads per round
+
+  private final long[] counts; // number of operations run, per Operation.ordinal()
+  private final long[] nanos; // time measured around the queue, per Operation.ordinal()
+  private final double timerNanos; // time the timing adds to every measured operation
+  private long invariantChecks; // number of times the heap invariant was checked
+
+  /**
+   * Private constructor: instances only hold the results of run()
+   */
+  private AdmissionsStressHarness() {
+    this.counts = new long[OPERATIONS.length];
+    this.nanos = new long[OPERATIONS.length];
+    this.timerNanos = measureTimerNanos();
+  }
+
+  /**
+   * Returns the number of operations of the given kind that were run
+   *
+   * @param operation kind of operation
+   * @return the number of such operations
+   */
+  public long count(Operation operation) {
+    return this.counts[operation.ordinal()];
+  }
+
+  /**
+   * Returns the throughput of the queue for the given kind of operation, once the overhead of the
+   * timing is subtracted from the measured time
+   *
+   * @param operation kind of operation
+   * @return the number of such operations per second spent in the queue, or 0 if none was run or
+   *         if they were too fast to be told apart from the overhead of the timing
+   */
+  public double opsPerSecond(Operation operation) {
+    long count = this.counts[operation.ordinal()];
+    double spent = this.nanos[operation.ordinal()] - count * this.timerNanos;
+    return spent <= 0 ? 0 : count * 1e9 / spent;
+  }
+
+  /**
+   * Returns the overhead of timing one operation, subtracted by opsPerSecond()
+   *
+   * @return the time, in nanoseconds, between two back-to-back reads of System.nanoTime()
+   */
+  public double timerNanos() {
+    return this.timerNanos;
+  }
+
+  /**
+   * Returns the number of times the min-heap invariant of the array-heap was checked
+   *
+   * @return the number of heap checks
+   */
+  public long invariantChecks() {
+    return this.invariantChecks;
+  }
+
+  /**
+   * Runs the given number of random operations against a new PriorityCareAdmissions queue and a
+   * reference java.util.PriorityQueue, adding and removing patients with the same probability so
+   * that the size of the queue wanders between empty and full
+   *
+   * @param seed       seed of the random operations
+   * @param operations number of operations to run
+   * @param capacity   capacity of the queue
+   * @return the counts and timings of the operations
+   * @throws IllegalStateException with a descriptive error message naming the seed and the step
+   *                               if the queue and the reference disagree, or if the array-heap
+   *                               breaks the min-heap invariant
+   */
+  public static AdmissionsStressHarness run(long seed, long operations, int capacity)
+      throws IllegalStateException {
+    AdmissionsStressHarness results = new AdmissionsStressHarness();
+    Random random = new Random(seed);
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(capacity);
+    PriorityQueue<PatientRecord> reference = new PriorityQueue<PatientRecord>(capacity);
+
+    for (long step = 0; step < operations; step++) {
+      Operation operation = pick(random);
+      PatientRecord expected = null;
+      PatientRecord actual = null;
+      boolean threw = false;
+      long start = System.nanoTime();
+      long end;
+
+      switch (operation) {
+        case ADD:
+          PatientRecord p = new PatientRecord('X', random.nextInt(100),
+              TRIAGE_LEVELS[random.nextInt(TRIAGE_LEVELS.length)]);
+          start = System.nanoTime(); // the record is created outside of the timing
+          try {
+            queue.addPatient(p);
+          } catch (IllegalStateException e) {
+            threw = true;
+          }
+          end = System.nanoTime();
+          if (threw != (reference.size() == capacity)) {
+            throw failure(seed, step, operation,
+                threw ? "rejected a patient although it was not full"
+                    : "accepted a patient into a full queue");
+          }
+          if (!threw) {
+            reference.add(p);
+          }
+          break;
+        case REMOVE_BEST:
+          try {
+            actual = queue.removeBestRecord();
+          } catch (NoSuchElementException e) {
+            threw = true;
+          }
+          end = System.nanoTime();
+          expected = reference.poll();
+          checkEmpty(threw, expected, seed, step, operation);
+          break;
+        case PEEK:
+          try {
+            actual = queue.peek();
+          } catch (NoSuchElementException e) {
+            threw = true;
+          }
+          end = System.nanoTime();
+          expected = reference.peek();
+          checkEmpty(threw, expected, seed, step, operation);
+          break;
+        case CLEAR:
+          queue.clear();
+          end = System.nanoTime();
+          reference.clear();
+          break;
+        default: // DEEP_COPY
+          PriorityCareAdmissions copy = queue.deepCopy();
+          end = System.nanoTime();
+          checkCopy(copy, reference, seed, step);
+          break;
+      }
+      results.counts[operation.ordinal()]++;
+      results.nanos[operation.ordinal()] += end - start;
+
+      if (actual != expected) {
+        throw failure(seed, step, operation, "returned " + actual + " instead of " + expected);
+      }
+      if (queue.size() != reference.size()) {
+        throw failure(seed, step, operation,
+            "has " + queue.size() + " patients instead of " + reference.size());
+      }
+      if (step % INVARIANT_INTERVAL == 0) {
+        checkHeap(queue.arrayHeapCopy(), queue.size(), seed, step);
+        results.invariantChecks++;
+      }
+    }
+    checkHeap(queue.arrayHeapCopy(), queue.size(), seed, operations);
+    results.invariantChecks++;
+    return results;
+  }
+
+  /**
+   * Measures the time between two back-to-back reads of System.nanoTime(), which every timed
+   * operation includes once. The fastest of several rounds is kept, as the others were slowed down
+   * by the JIT compiler or by other threads.
+   */
+  private static double measureTimerNanos() {
+    double best = Double.MAX_VALUE;
+    for (int round = 0; round < TIMER_ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < TIMER_READS; i++) {
+        System.nanoTime();
+      }
+      best = Math.min(best, (double) (System.nanoTime() - start) / TIMER_READS);
+    }
+    return best;
+  }
+
+  /**
+   * Picks the next operation: rare clears and copies, then additions and removals with the same
+   * probability, and peeks
+   */
+  private static Operation pick(Random random) {
+    if (random.nextInt(CLEAR_ODDS) == 0) {
+      return Operation.CLEAR;
+    }
+    if (random.nextInt(DEEP_COPY_ODDS) == 0) {
+      return Operation.DEEP_COPY;
+    }
+    int draw = random.nextInt(5);
+    return draw < 2 ? Operation.ADD : draw < 4 ? Operation.REMOVE_BEST : Operation.PEEK;
+  }
+
+  /**
+   * Checks that the queue threw a NoSuchElementException if and only if the reference was empty
+   */
+  private static void checkEmpty(boolean threw, PatientRecord expected, long seed, long step,
+      Operation operation) {
+    if (threw != (expected == null)) {
+      throw failure(seed, step, operation,
+          threw ? "threw although it was not empty" : "did not throw although it was empty");
+    }
+  }
+
+  /**
+   * Checks that the given array-heap holds size records satisfying the min-heap invariant, both
+   * by priority key and by PatientRecord.compareTo(), followed by empty slots only
+   */
+  private static void checkHeap(PatientRecord[] heap, int size, long seed, long step) {
+    for (int i = 0; i < heap.length; i++) {
+      if ((heap[i] == null) != (i >= size)) {
+        throw failure(seed, step, null, "array-heap slot " + i + " does not match size " + size);
+      }
+      int parent = (i - 1) / 2;
+      if (i > 0 && i < size && (heap[parent].priorityKey > heap[i].priorityKey
+          || heap[parent].compareTo(heap[i]) > 0)) {
+        throw failure(seed, step, null, "array-heap slot " + i + " is smaller than its parent");
+      }
+    }
+  }
+
+  /**
+   * Checks that draining the given copy yields the records of the reference in order
+   */
+  private static void checkCopy(PriorityCareAdmissions copy,
+      PriorityQueue<PatientRecord> reference, long seed, long step) {
+    PatientRecord[] expected = reference.toArray(new PatientRecord[0]);
+    Arrays.sort(expected);
+    for (PatientRecord p : expected) {
+      if (copy.poll() != p) {
+        throw failure(seed, step, Operation.DEEP_COPY, "copy drained out of order");
+      }
+    }
+    if (!copy.isEmpty()) {
+      throw failure(seed, step, Operation.DEEP_COPY, "copy holds extra patients");
+    }
+  }
+
+  /**
+   * Builds the exception reporting a disagreement at the given step
+   */
+  private static IllegalStateException failure(long seed, long step, Operation operation,
+      String problem) {
+    return new IllegalStateException("Error! Seed " + seed + ", step " + step
+        + (operation == null ? "" : ", " + operation) + ": the queue " + problem);
+  }
+
+  /**
+   * Runs the harness and prints the throughput of each kind of operation, or the first
+   * disagreement found
+   *
+   * @param args optional seed, number of operations and capacity
+   */
+  public static void main(String[] args) {
+    long seed = args.length > 0 ? Long.parseLong(args[0]) : new Random().nextLong();
+    long operations = args.length > 1 ? Long.parseLong(args[1]) : 20_000_000;
+    int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+    System.out.println("Seed " + seed + ", " + operations + " operations, capacity " + capacity);
+    long start = System.nanoTime();
+    AdmissionsStressHarness results;
+    try {
+      results = run(seed, operations, capacity);
+    } catch (IllegalStateException e) {
+      System.out.println(e.getMessage());
+      System.exit(1);
+      return;
+    }
+    for (Operation operation : OPERATIONS) {
+      System.out.printf("%-12s %,14d ops %,16.0f ops/s%n", operation, results.count(operation),
+          results.opsPerSecond(operation));
+    }
+    System.out.printf("%d heap checks, no disagreement in %.1f s (timing overhead %.1f ns/op)%n",
+        results.invariantChecks(), (System.nanoTime() - start) / 1e9, results.timerNanos());
+  }
+}
@@ -0,0 +1,372 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+
+/**
+ * Learns the hourly arrival rate of every triage level, for each hour of the week, and uses it to
+ * reserve the storage of a PriorityCareAdmissions queue ahead of the surges it predicts, rather
+ * than at the moment the queue fills up, when the desk is busiest. The capacity of the queue is
+ * never changed.<BR/>
+ * <BR/>
+ * Arrivals are counted per triage level during the current hour. When the clock moves to a new
+ * hour, the counts of the hour that ended update the rate of its hour of the week (Monday 00:00 to
+ * Sunday 23:00, in the time zone of the forecaster) with an exponentially weighted moving
+ * average, so each weekday and hour follows its own seasonal pattern while recent weeks weigh
+ * more. The forecast of an hour is the learned rate of its hour of the week. Before that, the
+ * forecast of the hour that ended is compared with the arrivals actually counted, and the error
+ * is accumulated into metrics used to tune the smoothing.<BR/>
+ * <BR/>
+ * Recording an arrival only increments a counter, so a forecaster can listen to the changes of a
+ * queue inline. All the public operations of this class are thread-safe.
+ *
+ */
+public class ArrivalForecaster implements QueueChangeListener {
+
+  /**
+   * Number of hours of the week, the length of the seasonal cycle
+   */
+  public static final int HOURS_PER_WEEK = 168;
+
+  /**
+   * Ratio of the forecast arrivals the storage is grown for, to absorb forecast errors
+   */
+  public static final double HEADROOM = 1.25;
+
+  /**
+   * Interval between two checks of the thread started by start(), in milliseconds
+   */
+  public static final long PRESIZE_INTERVAL_MILLIS = 60_000;
+
+  private static final long HOUR_MILLIS = 3_600_000;
+  private static final TriageLevel[] TRIAGE_LEVELS = TriageLevel.values();
+
+  private final double smoothing; // weight of the latest week in the rates, in (0, 1]
+  private final ZoneId zone; // time zone the hours of the week are taken in
+  private final double[][] rates; // arrivals per hour, per hour of the week and triage ordinal
+  private final boolean[] learned; // whether each hour of the week was observed at least once
+  private final int[] counts; // arrivals of the current hour, per triage ordinal
+  private long currentHour = Long.MIN_VALUE; // hour since the epoch being counted
+  private long evaluatedHours; // number of hours whose forecast was compared with the arrivals
+  private double absoluteErrorSum; // sum of |forecast - actual| over the evaluated hours
+  private double errorSum; // sum of forecast - actual over the evaluated hours
+  private double actualSum; // sum of the arrivals of the evaluated hours
+  private double lastForecast; // forecast of the latest evaluated hour
+  private int lastActual; // arrivals of the latest evaluated hour
+  private int presizes; // number of times presize() prepared a queue
+  private PriorityCareAdmissions queue; // queue presized by the thread started by start()
+  private Thread worker; // thread started by start(), if any
+
+  /**
+   * Creates a new ArrivalForecaster that has not learned anything, using the system time zone and
+   * a smoothing of 0.3
+   */
+  public ArrivalForecaster() {
+    this(0.3, ZoneId.systemDefault());
+  }
+
+  /**
+   * Creates a new ArrivalForecaster that has not learned anything
+   *
+   * @param smoothing weight of the latest observation of an hour of the week in its rate, in
+   *                  (0, 1]; higher values adapt faster and forget faster
+   * @param zone      time zone the hours of the week are taken in
+   * @throws IllegalArgumentException if smoothing is out of range
+   * @throws NullPointerException     if zone is null
+   */
+  public ArrivalForecaster(double smoothing, ZoneId zone)
+      throws IllegalArgumentException, NullPointerException {
+    if (!(smoothing > 0 && smoothing <= 1)) {
+      throw new IllegalArgumentException("Error! The smoothing must be in (0, 1]");
+    }
+    if (zone == null) {
+      throw new NullPointerException();
+    }
+    this.smoothing = smoothing;
+    this.zone = zone;
+    this.rates = new double[HOURS_PER_WEEK][TRIAGE_LEVELS.length];
+    this.learned = new boolean[HOURS_PER_WEEK];
+    this.counts = new int[TRIAGE_LEVELS.length];
+  }
+
+  /**
+   * Counts every patient newly admitted to the queue this forecaster listens to, now. Patients
+   * returned to the queue by a released or expired claim are not reported, so never counted twice.
+   *
+   * @param change kind of change
+   * @param p      the PatientRecord concerned
+   */
+  @Override
+  public void onChange(QueueChange change, PatientRecord p) {
+    if (change == QueueChange.ADMITTED) {
+      this.recordArrival(p.getTriage(), System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Records the arrival of a patient of the given triage level at the given time, for instance to
+   * learn from the admission history before going live. Arrivals must be recorded in time order:
+   * one earlier than the current hour is counted in the current hour.
+   *
+   * @param triage    triage level of the patient
+   * @param nowMillis time of the arrival, in milliseconds since the epoch
+   */
+  public synchronized void recordArrival(TriageLevel triage, long nowMillis) {
+    this.advanceTo(nowMillis);
+    this.counts[triage.ordinal()]++;
+  }
+
+  /**
+   * Returns the expected number of arrivals of the given triage level during the hour containing
+   * the given time
+   *
+   * @param triage     triage level
+   * @param hourMillis any time of the hour, in milliseconds since the epoch
+   * @return the learned arrival rate of that hour of the week, 0 if it was never observed
+   */
+  public synchronized double forecast(TriageLevel triage, long hourMillis) {
+    return this.rates[this.hourOfWeek(Math.floorDiv(hourMillis, HOUR_MILLIS))][triage.ordinal()];
+  }
+
+  /**
+   * Returns the expected number of arrivals of all the triage levels during the given number of
+   * hours, starting with the hour containing the given time
+   *
+   * @param fromMillis any time of the first hour, in milliseconds since the epoch
+   * @param hours      number of hours to sum
+   * @return the total forecast arrivals over these hours
+   */
+  public synchronized double forecastArrivals(long fromMillis, int hours) {
+    long first = Math.floorDiv(fromMillis, HOUR_MILLIS);
+    double total = 0;
+    for (int h = 0; h < hours; h++) {
+      total += this.totalRate(this.hourOfWeek(first + h));
+    }
+    return total;
+  }
+
+  /**
+   * Reserves storage in the given queue for the patients waiting now plus the arrivals forecast
+   * over the given number of hours, with HEADROOM, so that its storage is not grown on the
+   * admission path. Patients dispatched in the meantime are ignored, so the size is an upper
+   * bound. The reservation never exceeds the capacity of the queue, which is left unchanged, so
+   * followers replicating the queue with the same capacity accept the same admissions, and a
+   * later, quieter forecast lets the storage fall back.
+   *
+   * @param queue          queue to presize
+   * @param nowMillis      current time, in milliseconds since the epoch
+   * @param lookaheadHours number of hours ahead to prepare for, such as 2
+   * @return the number of patients the queue was prepared for, or 0 if nothing was forecast
+   */
+  public int presize(PriorityCareAdmissions queue, long nowMillis, int lookaheadHours) {
+    double arrivals;
+    synchronized (this) {
+      this.advanceTo(nowMillis);
+      arrivals = this.forecastArrivals(nowMillis, lookaheadHours);
+    }
+    if (arrivals <= 0) {
+      return 0;
+    }
+
+    // Called without the lock of this forecaster, which the queue may take to report admissions
+    long target = queue.size() + (long) Math.ceil(HEADROOM * arrivals);
+    int expected = queue.reserveStorage((int) Math.min(target, Integer.MAX_VALUE));
+    synchronized (this) {
+      this.presizes++;
+    }
+    return expected;
+  }
+
+  /**
+   * Starts counting the admissions of the given queue and presizing it, every
+   * PRESIZE_INTERVAL_MILLIS, from a daemon thread. Does nothing if the thread is already running.
+   *
+   * @param queue          queue to learn from and presize
+   * @param lookaheadHours number of hours ahead to prepare for
+   */
+  public void start(PriorityCareAdmissions queue, int lookaheadHours) {
+    Thread thread;
+    synchronized (this) {
+      if (this.worker != null) {
+        return;
+      }
+      this.queue = queue;
+      thread = this.worker = new Thread(() -> {
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            this.presize(queue, System.currentTimeMillis(), lookaheadHours);
+            Thread.sleep(PRESIZE_INTERVAL_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          // stop() was called
+        }
+      }, "arrival-forecaster");
+      thread.setDaemon(true);
+    }
+    queue.addChangeListener(this); // outside of the lock, see presize()
+    thread.start();
+  }
+
+  /**
+   * Stops the thread started by start(), if any, and stops listening to its queue
+   */
+  public void stop() {
+    PriorityCareAdmissions listened;
+    synchronized (this) {
+      if (this.worker == null) {
+        return;
+      }
+      this.worker.interrupt();
+      this.worker = null;
+      listened = this.queue;
+      this.queue = null;
+    }
+    listened.removeChangeListener(this); // outside of the lock, see presize()
+  }
+
+  /**
+   * Returns the number of hours whose forecast was compared with the actual arrivals
+   *
+   * @return the number of evaluated hours
+   */
+  public synchronized long evaluatedHours() {
+    return this.evaluatedHours;
+  }
+
+  /**
+   * Returns the mean absolute error of the hourly forecasts of all the triage levels together
+   *
+   * @return the average of |forecast - actual| arrivals per hour, or 0 before any evaluation
+   */
+  public synchronized double meanAbsoluteError() {
+    return this.evaluatedHours == 0 ? 0 : this.absoluteErrorSum / this.evaluatedHours;
+  }
+
+  /**
+   * Returns the mean error of the hourly forecasts: positive if they tend to overestimate the
+   * arrivals, negative if they tend to underestimate them
+   *
+   * @return the average of forecast - actual arrivals per hour, or 0 before any evaluation
+   */
+  public synchronized double bias() {
+    return this.evaluatedHours == 0 ? 0 : this.errorSum / this.evaluatedHours;
+  }
+
+  /**
+   * Returns the absolute error of the hourly forecasts relative to the actual arrivals, which
+   * unlike a mean of percentages stays defined for hours without any arrival
+   *
+   * @return the sum of |forecast - actual| over the sum of actual arrivals, or 0 before any arrival
+   */
+  public synchronized double weightedPercentageError() {
+    return this.actualSum == 0 ? 0 : this.absoluteErrorSum / this.actualSum;
+  }
+
+  /**
+   * Returns the forecast of the latest evaluated hour
+   *
+   * @return the arrivals that were expected during the latest hour that ended
+   */
+  public synchronized double lastForecast() {
+    return this.lastForecast;
+  }
+
+  /**
+   * Returns the arrivals of the latest evaluated hour
+   *
+   * @return the arrivals counted during the latest hour that ended
+   */
+  public synchronized int lastActual() {
+    return this.lastActual;
+  }
+
+  /**
+   * Returns the number of times presize() prepared a queue
+   *
+   * @return the number of presizes
+   */
+  public synchronized int presizes() {
+    return this.presizes;
+  }
+
+  /**
+   * Returns a one-line summary of the forecast-versus-actual metrics
+   *
+   * @return the metrics of this forecaster
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%d hours evaluated, MAE %.2f arrivals/h, bias %+.2f, WAPE %.1f%%, last hour %.1f"
+            + " forecast vs %d actual",
+        this.evaluatedHours, this.meanAbsoluteError(), this.bias(),
+        100 * this.weightedPercentageError(), this.lastForecast, this.lastActual);
+  }
+
+  /**
+   * Moves the clock to the hour of the given time, closing the current hour and every hour
+   * skipped without any arrival. A time earlier than the current hour counts as the current hour.
+   */
+  private void advanceTo(long nowMillis) {
+    long hour = Math.floorDiv(nowMillis, HOUR_MILLIS);
+    if (this.currentHour == Long.MIN_VALUE) {
+      this.currentHour = hour;
+      return;
+    }
+    // Hours skipped beyond a week would only repeat the same updates with zero arrivals
+    long closing = Math.max(this.currentHour, hour - HOURS_PER_WEEK);
+    for (; closing < hour; closing++) {
+      this.closeHour(closing);
+    }
+    this.currentHour = Math.max(this.currentHour, hour);
+  }
+
+  /**
+   * Evaluates the forecast of the given hour against its counts, then learns from them and
+   * resets them
+   */
+  private void closeHour(long hour) {
+    int slot = this.hourOfWeek(hour);
+    int actual = 0;
+    for (int count : this.counts) {
+      actual += count;
+    }
+    if (this.learned[slot]) {
+      double forecast = this.totalRate(slot);
+      this.evaluatedHours++;
+      this.absoluteErrorSum += Math.abs(forecast - actual);
+      this.errorSum += forecast - actual;
+      this.actualSum += actual;
+      this.lastForecast = forecast;
+      this.lastActual = actual;
+    }
+
+    // Exponentially weighted moving average of each triage level, seeded by the first week
+    for (int t = 0; t < this.counts.length; t++) {
+      this.rates[slot][t] = this.learned[slot]
+          ? this.rates[slot][t] + this.smoothing * (this.counts[t] - this.rates[slot][t])
+          : this.counts[t];
+    }
+    this.learned[slot] = true;
+    Arrays.fill(this.counts, 0);
+  }
+
+  /**
+   * Returns the learned arrival rate of all the triage levels for the given hour of the week
+   */
+  private double totalRate(int slot) {
+    double total = 0;
+    for (double rate : this.rates[slot]) {
+      total += rate;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the hour of the week of the given hour since the epoch, 0 being Monday 00:00
+   */
+  private int hourOfWeek(long hour) {
+    ZonedDateTime time = Instant.ofEpochMilli(hour * HOUR_MILLIS).atZone(this.zone);
+    return (time.getDayOfWeek().getValue() - 1) * 24 + time.getHour();
+  }
+}
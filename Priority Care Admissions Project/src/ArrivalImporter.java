@@ -0,0 +1,442 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Utility class loading a CSV file of pre-registered arrivals into a PriorityCareAdmissions
+ * queue. Each row holds the age, gender and triage level of a patient, for instance
+ * "42,F,YELLOW". Blank lines are ignored, and a first line starting with a letter is taken as a
+ * header and skipped.<BR/>
+ * <BR/>
+ * The file is memory-mapped and split into line-aligned chunks, which are parsed in parallel
+ * directly from the mapped bytes, without decoding them to Strings. The PatientRecords are then
+ * created in file order, so that their order of arrival follows the file, and loaded with a single
+ * linear heapify. Malformed rows do not stop the import: they are collected in the returned
+ * Report instead.
+ *
+ */
+public class ArrivalImporter {
+
+  /**
+   * Maximum number of malformed rows described in a Report. Further malformed rows are only
+   * counted.
+   */
+  public static final int MAX_REPORTED_ERRORS = 1000;
+
+  // chunks are never made smaller than this, so small files are parsed by a single task
+  private static final long MIN_CHUNK_BYTES = 1 << 20;
+  // chunks are never made larger than this, so that each of them can be mapped at once
+  private static final long MAX_CHUNK_BYTES = 1 << 30;
+  // maximum number of characters of a malformed row quoted in its RowError
+  private static final int MAX_QUOTED_CHARS = 80;
+  // pre-encoded triage level names indexed by TriageLevel.ordinal()
+  private static final byte[][] TRIAGE_NAMES = encodeTriageNames();
+
+  /**
+   * Private constructor: this utility class is not meant to be instantiated
+   */
+  private ArrivalImporter() {
+  }
+
+  /**
+   * Describes a malformed row of an imported file
+   */
+  public static class RowError {
+    private final long line; // line number of the row in the file, starting at 1
+    private final String reason; // why the row was rejected
+    private final String row; // content of the row, possibly truncated
+
+    /**
+     * Creates a new RowError
+     */
+    private RowError(long line, String reason, String row) {
+      this.line = line;
+      this.reason = reason;
+      this.row = row;
+    }
+
+    /**
+     * Returns the line number of the malformed row, starting at 1
+     *
+     * @return the line number of the row
+     */
+    public long getLine() {
+      return this.line;
+    }
+
+    /**
+     * Returns why the row was rejected
+     *
+     * @return the reason of the error
+     */
+    public String getReason() {
+      return this.reason;
+    }
+
+    /**
+     * Returns a String representation of this RowError
+     */
+    @Override
+    public String toString() {
+      return "line " + this.line + ": " + this.reason + " \"" + this.row + "\"";
+    }
+  }
+
+  /**
+   * Outcome of an import: the number of PatientRecords loaded and the malformed rows skipped
+   */
+  public static class Report {
+    private final int loaded; // number of PatientRecords added to the queue
+    private final long rejected; // number of malformed rows
+    private final List<RowError> errors; // first MAX_REPORTED_ERRORS malformed rows, in file order
+
+    /**
+     * Creates a new Report
+     */
+    private Report(int loaded, long rejected, List<RowError> errors) {
+      this.loaded = loaded;
+      this.rejected = rejected;
+      this.errors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Returns the number of PatientRecords added to the queue
+     *
+     * @return the number of loaded rows
+     */
+    public int loaded() {
+      return this.loaded;
+    }
+
+    /**
+     * Returns the number of malformed rows, including those not described by errors()
+     *
+     * @return the number of rejected rows
+     */
+    public long rejected() {
+      return this.rejected;
+    }
+
+    /**
+     * Returns the first MAX_REPORTED_ERRORS malformed rows, in file order
+     *
+     * @return an unmodifiable list of RowErrors
+     */
+    public List<RowError> errors() {
+      return this.errors;
+    }
+
+    /**
+     * Returns a String representation of this Report, listing one malformed row per line
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Loaded ").append(this.loaded).append(" patients, rejected ")
+          .append(this.rejected).append(" rows\n");
+      for (RowError error : this.errors) {
+        sb.append(error).append('\n');
+      }
+      if (this.rejected > this.errors.size()) {
+        sb.append("... ").append(this.rejected - this.errors.size()).append(" more\n");
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Parsed rows of one chunk of the file. Each valid row is packed in an int: the age in bits 0-7,
+   * the gender in bits 8-15 and the triage ordinal in bits 16-17.
+   */
+  private static class Chunk {
+    private int[] rows = new int[1024]; // packed valid rows, in file order
+    private int rowCount; // number of valid rows
+    private long lineCount; // number of lines of the chunk, valid or not
+    private long rejected; // number of malformed rows
+    private final ArrayList<RowError> errors = new ArrayList<RowError>(); // lines chunk-relative
+
+    /**
+     * Appends a valid row
+     */
+    private void add(int row) {
+      if (this.rowCount == this.rows.length) {
+        this.rows = Arrays.copyOf(this.rows, 2 * this.rows.length);
+      }
+      this.rows[this.rowCount++] = row;
+    }
+  }
+
+  /**
+   * Loads the arrivals listed in the given CSV file into the given queue
+   *
+   * @param queue queue to load the arrivals into
+   * @param file  path of the CSV file to read
+   * @return a Report of the loaded and rejected rows
+   * @throws IOException           if the file cannot be read
+   * @throws IllegalStateException with a the exact error message "Warning: Full Admissions Queue!"
+   *                               if the valid rows do not all fit in the queue; in that case,
+   *                               none of them is added
+   */
+  public static Report importFile(PriorityCareAdmissions queue, Path file)
+      throws IOException, IllegalStateException {
+    Chunk[] chunks;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long[] bounds = split(channel);
+      List<CompletableFuture<Chunk>> parsing = new ArrayList<CompletableFuture<Chunk>>();
+      for (int i = 0; i < bounds.length - 1; i++) {
+        MappedByteBuffer bytes =
+            channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+        boolean first = i == 0;
+        parsing.add(CompletableFuture.supplyAsync(() -> parse(bytes, first)));
+      }
+      chunks = new Chunk[parsing.size()];
+      try {
+        for (int i = 0; i < chunks.length; i++) {
+          chunks[i] = parsing.get(i).join();
+        }
+      } catch (CompletionException e) {
+        throw new IOException("Error! Could not read " + file, e.getCause());
+      }
+    }
+
+    // Create the records in file order, and renumber the malformed lines file-wide
+    int total = 0;
+    for (Chunk chunk : chunks) {
+      total += chunk.rowCount;
+    }
+    PatientRecord[] records = new PatientRecord[total];
+    ArrayList<RowError> errors = new ArrayList<RowError>();
+    long rejected = 0;
+    long linesBefore = 0;
+    int index = 0;
+    for (Chunk chunk : chunks) {
+      for (int i = 0; i < chunk.rowCount; i++) {
+        int row = chunk.rows[i];
+        records[index++] = new PatientRecord((char) ((row >>> 8) & 0xFF), row & 0xFF,
+            TriageLevel.values()[row >>> 16]);
+      }
+      for (RowError error : chunk.errors) {
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+          errors.add(new RowError(linesBefore + error.line, error.reason, error.row));
+        }
+      }
+      rejected += chunk.rejected;
+      linesBefore += chunk.lineCount;
+    }
+
+    queue.addAll(records);
+    return new Report(total, rejected, errors);
+  }
+
+  /**
+   * Splits the file into line-aligned ranges of roughly equal size
+   *
+   * @return the boundaries of the ranges: range i spans bytes bounds[i] to bounds[i+1]-1
+   */
+  private static long[] split(FileChannel channel) throws IOException {
+    long length = channel.size();
+    long count = Math.min(length / MIN_CHUNK_BYTES, 4 * ForkJoinPool.getCommonPoolParallelism());
+    // leave room for each boundary to move forward by one line without exceeding MAX_CHUNK_BYTES
+    long half = MAX_CHUNK_BYTES / 2;
+    count = Math.max(Math.max(count, 1), (length + half - 1) / half);
+    long[] bounds = new long[(int) count + 1];
+    bounds[bounds.length - 1] = length;
+
+    // Move each boundary forward to the start of a line
+    for (int i = 1; i < bounds.length - 1; i++) {
+      bounds[i] = lineStart(channel, Math.max(length * i / count, bounds[i - 1]), length);
+    }
+    return bounds;
+  }
+
+  /**
+   * Returns the first position from the given one that starts a line, or the length of the file
+   * if there is none
+   */
+  private static long lineStart(FileChannel channel, long position, long length)
+      throws IOException {
+    if (position == 0) {
+      return 0;
+    }
+    ByteBuffer window = ByteBuffer.allocate(4096);
+    long scanned = position - 1; // a line starts at position if the byte before it is a '\n'
+    while (scanned < length) {
+      window.clear();
+      int read = channel.read(window, scanned);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (window.get(i) == '\n') {
+          return scanned + i + 1;
+        }
+      }
+      scanned += read;
+    }
+    return length;
+  }
+
+  /**
+   * Parses the rows of one chunk of the file
+   *
+   * @param bytes bytes of the chunk, which starts at the beginning of a line
+   * @param first whether this chunk is the first one of the file, which may start with a header
+   * @return the parsed rows
+   */
+  private static Chunk parse(ByteBuffer bytes, boolean first) {
+    Chunk chunk = new Chunk();
+    int limit = bytes.limit();
+    int start = 0;
+    while (start < limit) {
+      // Find the end of the line, excluding any line separator
+      int end = start;
+      while (end < limit && bytes.get(end) != '\n') {
+        end++;
+      }
+      int next = end + 1;
+      if (end > start && bytes.get(end - 1) == '\r') {
+        end--;
+      }
+      chunk.lineCount++;
+
+      boolean header = first && chunk.lineCount == 1 && end > start && isLetter(bytes.get(start));
+      if (!header) {
+        parseRow(bytes, start, end, chunk);
+      }
+      start = next;
+    }
+    return chunk;
+  }
+
+  /**
+   * Parses the row spanning bytes start to end-1, adding it to the chunk as either a valid row or
+   * a malformed one
+   */
+  private static void parseRow(ByteBuffer bytes, int start, int end, Chunk chunk) {
+    int position = skipBlanks(bytes, start, end);
+    if (position == end) {
+      return; // blank line
+    }
+
+    // age: a non-negative integer up to 150
+    int age = 0;
+    int digits = 0;
+    while (position < end && isDigit(bytes.get(position)) && digits <= 3) {
+      age = 10 * age + bytes.get(position++) - '0';
+      digits++;
+    }
+    position = skipBlanks(bytes, position, end);
+    if (digits == 0 || digits > 3 || age > 150) {
+      reject(chunk, "invalid age", bytes, start, end);
+      return;
+    }
+    if (position == end || bytes.get(position++) != ',') {
+      reject(chunk, "expected 3 comma-separated fields", bytes, start, end);
+      return;
+    }
+
+    // gender: a single F, M or X, in either case
+    position = skipBlanks(bytes, position, end);
+    char gender = position < end ? Character.toUpperCase((char) bytes.get(position++)) : ' ';
+    position = skipBlanks(bytes, position, end);
+    if ((gender != 'F' && gender != 'M' && gender != 'X')
+        || (position < end && bytes.get(position) != ',')) {
+      reject(chunk, "invalid gender", bytes, start, end);
+      return;
+    }
+    if (position == end) {
+      reject(chunk, "expected 3 comma-separated fields", bytes, start, end);
+      return;
+    }
+
+    // triage: the exact name of a TriageLevel
+    position = skipBlanks(bytes, position + 1, end);
+    int fieldEnd = end;
+    while (fieldEnd > position && isBlank(bytes.get(fieldEnd - 1))) {
+      fieldEnd--;
+    }
+    int triage = triageOrdinal(bytes, position, fieldEnd);
+    if (triage < 0) {
+      reject(chunk, "invalid triage level", bytes, start, end);
+      return;
+    }
+    chunk.add(age | gender << 8 | triage << 16);
+  }
+
+  /**
+   * Returns the ordinal of the TriageLevel named by bytes start to end-1, or -1 if there is none
+   */
+  private static int triageOrdinal(ByteBuffer bytes, int start, int end) {
+    for (int ordinal = 0; ordinal < TRIAGE_NAMES.length; ordinal++) {
+      byte[] name = TRIAGE_NAMES[ordinal];
+      if (name.length == end - start) {
+        int i = 0;
+        while (i < name.length && bytes.get(start + i) == name[i]) {
+          i++;
+        }
+        if (i == name.length) {
+          return ordinal;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Records the row spanning bytes start to end-1 as malformed
+   */
+  private static void reject(Chunk chunk, String reason, ByteBuffer bytes, int start, int end) {
+    chunk.rejected++;
+    if (chunk.errors.size() < MAX_REPORTED_ERRORS) {
+      byte[] quoted = new byte[Math.min(end - start, MAX_QUOTED_CHARS)];
+      bytes.get(start, quoted);
+      chunk.errors.add(new RowError(chunk.lineCount, reason,
+          new String(quoted, StandardCharsets.UTF_8)));
+    }
+  }
+
+  /**
+   * Returns the position of the first non-blank byte from start, or end if there is none
+   */
+  private static int skipBlanks(ByteBuffer bytes, int start, int end) {
+    while (start < end && isBlank(bytes.get(start))) {
+      start++;
+    }
+    return start;
+  }
+
+  private static boolean isBlank(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static boolean isLetter(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  /**
+   * Encodes the names of the triage levels as ASCII bytes
+   */
+  private static byte[][] encodeTriageNames() {
+    TriageLevel[] levels = TriageLevel.values();
+    byte[][] names = new byte[levels.length][];
+    for (TriageLevel level : levels) {
+      names[level.ordinal()] = level.name().getBytes(StandardCharsets.US_ASCII);
+    }
+    return names;
+  }
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+/**
+ * Fenwick tree counting PatientRecords by order of arrival, to answer "how many of them arrived
+ * before this one?" in O(log n) time. Adding or removing a record also takes O(log n) time.<BR/>
+ * <BR/>
+ * The tree only covers a window of consecutive orders of arrival, from the oldest record it holds.
+ * As new patients keep arriving, a record outside the window triggers a rebuild of the tree over
+ * a window twice as large as the range of the records it holds, so the rebuilds take constant
+ * amortized time per record, and the memory used follows the range of orders of arrival actually
+ * waiting rather than the total number of patients ever created.<BR/>
+ * <BR/>
+ * This class is not thread-safe.
+ *
+ */
+public class ArrivalRankTree {
+  private static final int MIN_LENGTH = 64; // smallest window
+  private static final int MAX_LENGTH = 1 << 30; // largest window
+
+  private int base; // order of arrival of the first position of the window
+  private int[] counts; // number of records having the order of arrival base + i, at index i
+  private int[] tree; // Fenwick tree over counts, 1-based: tree[i] sums counts[i - (i & -i), i)
+  private int size; // number of records in this tree
+
+  /**
+   * Creates a new empty ArrivalRankTree
+   */
+  public ArrivalRankTree() {
+    this.counts = new int[MIN_LENGTH];
+    this.tree = new int[MIN_LENGTH + 1];
+  }
+
+  /**
+   * Returns the number of records in this tree
+   *
+   * @return the number of records added and not removed
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Adds a record having the given order of arrival
+   *
+   * @param arrival order of arrival of the record
+   */
+  public void add(int arrival) {
+    if (this.size == 0) {
+      this.base = arrival; // an empty tree can move its window anywhere without rebuilding
+    } else if (arrival < this.base || (long) arrival - this.base >= this.counts.length) {
+      this.rebuild(arrival);
+    }
+    int i = arrival - this.base;
+    this.counts[i]++;
+    this.update(i, 1);
+    this.size++;
+  }
+
+  /**
+   * Removes a record having the given order of arrival
+   *
+   * @param arrival order of arrival of the record
+   * @return {@code true} if a record was removed, {@code false} if this tree holds no record
+   *         having that order of arrival
+   */
+  public boolean remove(int arrival) {
+    if (arrival < this.base || (long) arrival - this.base >= this.counts.length
+        || this.counts[arrival - this.base] == 0) {
+      return false;
+    }
+    int i = arrival - this.base;
+    this.counts[i]--;
+    this.update(i, -1);
+    this.size--;
+    return true;
+  }
+
+  /**
+   * Counts the records that arrived before the given order of arrival
+   *
+   * @param arrival order of arrival
+   * @return the number of records whose order of arrival is strictly less than arrival
+   */
+  public int countBefore(int arrival) {
+    if (arrival <= this.base) {
+      return 0;
+    }
+    if ((long) arrival - this.base >= this.counts.length) {
+      return this.size;
+    }
+    int sum = 0;
+    for (int i = arrival - this.base; i > 0; i -= i & -i) {
+      sum += this.tree[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Removes all the records from this tree
+   */
+  public void clear() {
+    if (this.counts.length > MIN_LENGTH) {
+      this.counts = new int[MIN_LENGTH];
+      this.tree = new int[MIN_LENGTH + 1];
+    } else {
+      Arrays.fill(this.counts, 0);
+      Arrays.fill(this.tree, 0);
+    }
+    this.size = 0;
+  }
+
+  /**
+   * Adds delta to the count at the given position of the window
+   */
+  private void update(int position, int delta) {
+    for (int i = position + 1; i < this.tree.length; i += i & -i) {
+      this.tree[i] += delta;
+    }
+  }
+
+  /**
+   * Moves and resizes the window to cover the records of this tree and the given order of
+   * arrival, then rebuilds the tree in linear time
+   *
+   * @throws IllegalStateException if the orders of arrival to cover span more than MAX_LENGTH
+   */
+  private void rebuild(int arrival) {
+    // Range of the orders of arrival to cover
+    int first = 0;
+    while (this.counts[first] == 0) {
+      first++;
+    }
+    int last = this.counts.length - 1;
+    while (this.counts[last] == 0) {
+      last--;
+    }
+    long low = Math.min((long) this.base + first, arrival);
+    long high = Math.max((long) this.base + last, arrival);
+    long range = high - low + 1;
+    if (range > MAX_LENGTH) {
+      throw new IllegalStateException("Error! Orders of arrival too far apart to be ranked");
+    }
+    int length = (int) Math.min(MAX_LENGTH, Math.max(MIN_LENGTH, Long.highestOneBit(2 * range)));
+
+    int[] moved = new int[length];
+    int offset = (int) ((long) this.base + first - low); // new position of the first record
+    System.arraycopy(this.counts, first, moved, offset, last - first + 1);
+    this.counts = moved;
+    this.base = (int) low;
+    this.tree = new int[length + 1];
+    for (int i = 1; i <= length; i++) {
+      this.tree[i] += this.counts[i - 1];
+      int parent = i + (i & -i);
+      if (parent <= length) {
+        this.tree[parent] += this.tree[i];
+      }
+    }
+  }
+}
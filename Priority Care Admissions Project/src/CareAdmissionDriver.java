@@ -1,6 +1,15 @@
 
 import java.util.Scanner;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * This class implements the Driver Application for cs300 spring 2023 p10 Priority Care assignment
@@ -12,11 +21,30 @@ public class CareAdmissionDriver {
   private final String WELCOME_MSG = "--- Welcome to the Priority Care Admissions App! ----";
   private final String GOOD_BYE_MSG = "---------- BYE! Thanks for using our App! ----------";
   private final String SYNTAX_ERROR_MSG = "Syntax Error: Please enter a valid command!";
+  // window within which a returning patient is flagged as a likely readmission, in hours
+  private final int READMISSION_HOURS = 72;
+  // specialties whose next eligible patient can be seen with the S command
+  private final Specialty[] SPECIALTIES =
+      {Specialty.PEDIATRIC, Specialty.TRAUMA, Specialty.GERIATRIC};
+  // hours of forecast arrivals the queue reserves storage for
+  private final int FORECAST_HOURS = 2;
+  // days seen patients are kept in the statistics and the archive for, interval between two
+  // compactions of the archive, and number of most recently seen patients kept in memory for the
+  // seen patients list
+  private static final int RETENTION_DAYS = 30;
+  private static final long COMPACTION_MILLIS = 600_000;
+  private final int SEEN_LISTED = 100;
 
   private PriorityCareAdmissions queue; // priority queue storing the patient records of unseen
                                         // patients
   private ArrayList<PatientRecord> seenPatients; // list of seen patients
+  private SeenPatientStore seenStatistics; // columnar store of seen patients for aggregates
   private Scanner scanner; // scanner to read user input command lines
+  private ByteBuffer listingBuffer; // reusable buffer used to stream patient listings
+  private WritableByteChannel out; // channel over System.out used to print patient listings
+  private ReplicationPrimary primary; // replicates the queue to followers, null if not replicated
+  private ArrivalForecaster forecaster; // learns the arrival rates and presizes the queue
+  private SeenRecordArchive archive; // archive of all seen patients, null if not archived
 
 
   /**
@@ -27,19 +55,90 @@ public class CareAdmissionDriver {
    * 
    */
   public CareAdmissionDriver(int capacity) {
-    queue = new PriorityCareAdmissions(capacity);
+    queue = new PriorityCareAdmissions(capacity, PriorityPolicy.STANDARD,
+        new RecordArena(capacity));
     scanner = new Scanner(System.in);
     seenPatients = new ArrayList<PatientRecord>();
+    seenStatistics = new SeenPatientStore(RETENTION_DAYS * SeenRecordArchive.DAY_MILLIS);
+    queue.setReadmissionFilter(new ReadmissionFilter(READMISSION_HOURS, 100, 0.01),
+        READMISSION_HOURS);
+    listingBuffer = ByteBuffer.allocate(8192);
+    out = Channels.newChannel(System.out);
+    forecaster = new ArrivalForecaster();
+    forecaster.start(queue, FORECAST_HOURS);
   }
 
   /**
-   * Main method that launches this driver application
+   * Creates and initializes a CareAdmissionDriver object whose queue is replicated to the
+   * ReplicationFollowers connecting to the given port
+   * 
+   * @param capacity capacity of the admission queue
+   * @param port     loopback port to accept followers on, or 0 for any free port
+   * @throws IllegalArgumentException if capacity is negative
+   * @throws IOException              if the port cannot be bound
+   */
+  public CareAdmissionDriver(int capacity, int port) throws IOException {
+    this(capacity);
+    primary = new ReplicationPrimary(queue, port);
+  }
+
+  /**
+   * Main method that launches this driver application. Passing "--primary &lt;port&gt;" replicates
+   * the queue to the ReplicationFollowers connecting to that port, passing "--dashboard
+   * &lt;port&gt;" serves a live QueueDashboard of the queue on that port, and passing "--archive
+   * &lt;directory&gt;" archives seen patients in that directory. Seen patients are not archived
+   * otherwise, or if the archive cannot be opened.
    * 
    * @param args list of input arguments if any
+   * @throws IOException if the replication or dashboard port cannot be bound
    */
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
+    int primaryPort = -1; // port to accept followers on, or -1 if the queue is not replicated
+    int dashboardPort = -1; // port of the dashboard, or -1 if there is no dashboard
+    String archiveDirectory = null; // directory of the archive of seen patients, or null
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--primary")) {
+        primaryPort = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("--dashboard")) {
+        dashboardPort = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("--archive")) {
+        archiveDirectory = args[i + 1];
+      }
+    }
+
     // create a new CareAdmissionDriver object and start the application
-    new CareAdmissionDriver(20).runApplication();
+    CareAdmissionDriver driver = primaryPort < 0 ? new CareAdmissionDriver(20)
+        : new CareAdmissionDriver(20, primaryPort);
+    if (driver.primary != null) {
+      System.out.println("Replicating to followers on port " + driver.primary.port());
+    }
+    QueueDashboard dashboard = null;
+    if (dashboardPort >= 0) {
+      dashboard = new QueueDashboard(driver.queue, dashboardPort);
+      System.out.println("Dashboard on http://localhost:" + dashboard.port() + "/");
+    }
+    if (archiveDirectory != null) {
+      try {
+        driver.archive = new SeenRecordArchive(Paths.get(archiveDirectory),
+            RETENTION_DAYS * SeenRecordArchive.DAY_MILLIS);
+        driver.archive.startCompaction(COMPACTION_MILLIS);
+        System.out.println("Archiving seen patients in " + archiveDirectory);
+      } catch (IOException e) {
+        System.out.println("Error! Could not open the archive, seen patients are not archived: "
+            + e.getMessage());
+      }
+    }
+    driver.runApplication();
+    driver.forecaster.stop();
+    if (driver.archive != null) {
+      driver.archive.close();
+    }
+    if (dashboard != null) {
+      dashboard.close();
+    }
+    if (driver.primary != null) {
+      driver.primary.close();
+    }
   }
 
 
@@ -60,13 +159,22 @@ public class CareAdmissionDriver {
   private void displayMenu() {
     System.out.println("\n==================== MENU ====================");
     System.out.println("Enter one of the following options:");
-    System.out.println("[1 <age> <M/F/X> <RED/YELLOW/GREEN>] Add a new patient record");
+    System.out.println("[1 <age> <M/F/X> <RED/YELLOW/GREEN> [<patient id>]] Add a new patient "
+        + "record");
     System.out.println("[2] Show next patient");
     System.out.println("[3] See next patient");
     System.out.println("[4] List all unseen patient records");
-    System.out.println("[5] List seen patients");
+    System.out.println("[5] List the most recently seen patients");
     System.out.println("[6] Clear the care admission queue");
     System.out.println("[7] Logout and EXIT");
+    System.out.println("[8 <case number>] Cancel a patient who left without being seen");
+    System.out.println("[9 <file>] Import pre-registered arrivals from a CSV file");
+    System.out.println("[0] Show statistics of seen patients");
+    System.out.println("[W <case number>] Show the position and estimated wait of a patient");
+    System.out.println("[R <RED/YELLOW/GREEN> <case number>...] Re-triage waiting patients");
+    System.out.println("[S <PEDIATRIC/TRAUMA/GERIATRIC>] See next patient of a specialty");
+    System.out.println("[F] Show the arrival forecast and its accuracy");
+    System.out.println("[H <case number>] Show the archived visits of a patient");
     System.out.println("----------------------------------------------");
   }
 
@@ -95,8 +203,17 @@ public class CareAdmissionDriver {
           // Create a new PatientRecord given age, gender, and triage level values
           // and add it to the queue of this care admission driver
           TriageLevel triage = TriageLevel.valueOf(commands[3]);
-          PatientRecord patient = new PatientRecord(gender, age, triage);
-          queue.addPatient(patient);
+          String patientId = commands.length > 4 ? commands[4] : null; // optional health card
+          PatientRecord patient = new PatientRecord(gender, age, triage, patientId);
+          AdmissionStatus status = primary == null ? queue.offer(patient) : primary.offer(patient);
+          if (status == AdmissionStatus.ADMITTED && patient.isLikelyReadmission()) {
+            System.out.println("Note: patient " + patientId + " probably visited within the last "
+                + READMISSION_HOURS + " hours.");
+          } else if (status == AdmissionStatus.REJECTED) {
+            System.out.println("Warning: Full Admissions Queue!");
+          } else if (status == AdmissionStatus.DIVERTED) {
+            System.out.println("Full Admissions Queue! Patient diverted: " + patient);
+          }
         }
       } catch (NumberFormatException e) {
         System.out.println(SYNTAX_ERROR_MSG + " Invalid age!");
@@ -109,6 +226,239 @@ public class CareAdmissionDriver {
 
   }
 
+  /**
+   * Reads and processes user command line to cancel a waiting patient record
+   * 
+   * @param commandLine user command line to cancel a Patient Record from the Care Admission Queue
+   */
+  private void cancelPatientRecord(String commandLine) {
+    String[] commands = commandLine.trim().split(" "); // split user command
+    if (commands.length < 2) {
+      System.out.println(SYNTAX_ERROR_MSG);
+    } else {
+      try {
+        int arrivalOrder = this.findWaitingPatient(commands[1]);
+        if (arrivalOrder < 0) {
+          return;
+        }
+        if (primary == null ? queue.cancel(arrivalOrder) : primary.cancel(arrivalOrder)) {
+          System.out.println("Cancelled patient " + commands[1]);
+        } else {
+          System.out.println("No waiting patient " + commands[1]);
+        }
+      } catch (NumberFormatException e) {
+        System.out.println(SYNTAX_ERROR_MSG + " Invalid case number!");
+      }
+    }
+  }
+
+  /**
+   * Reads and processes user command line to move several waiting patient records to a new triage
+   * level at once
+   * 
+   * @param commandLine user command line naming a triage level and Patient Records of the Care
+   *                    Admission Queue
+   */
+  private void retriagePatientRecords(String commandLine) {
+    String[] commands = commandLine.trim().split(" +"); // split user command
+    if (commands.length < 3) {
+      System.out.println(SYNTAX_ERROR_MSG);
+    } else {
+      try {
+        TriageLevel triage = TriageLevel.valueOf(commands[1].toUpperCase());
+        HashMap<Integer, TriageLevel> changes = new HashMap<Integer, TriageLevel>();
+        for (int i = 2; i < commands.length; i++) {
+          int arrivalOrder = this.findWaitingPatient(commands[i]);
+          if (arrivalOrder >= 0) {
+            changes.put(arrivalOrder, triage);
+          }
+        }
+        int retriaged =
+            primary == null ? queue.retriageAll(changes) : primary.retriageAll(changes);
+        System.out.println("Re-triaged " + retriaged + " patient(s) to " + triage);
+      } catch (NumberFormatException e) {
+        System.out.println(SYNTAX_ERROR_MSG + " Invalid case number!");
+      } catch (IllegalArgumentException e) {
+        System.out.println(SYNTAX_ERROR_MSG + " Invalid triage level!");
+      }
+    }
+  }
+
+  /**
+   * Reads and processes user command line to see the next patient eligible for a specialty
+   * 
+   * @param commandLine user command line naming a predefined specialty
+   */
+  private void seeSpecialtyPatient(String commandLine) {
+    String[] commands = commandLine.trim().split(" +"); // split user command
+    if (commands.length < 2) {
+      System.out.println(SYNTAX_ERROR_MSG);
+      return;
+    }
+    Specialty specialty = null;
+    for (Specialty s : SPECIALTIES) {
+      if (s.name().equalsIgnoreCase(commands[1])) {
+        specialty = s;
+      }
+    }
+    if (specialty == null) {
+      System.out.println(SYNTAX_ERROR_MSG + " Invalid specialty!");
+      return;
+    }
+    try {
+      PatientRecord patientSee = primary == null ? queue.removeBestEligible(specialty)
+          : primary.removeBestEligible(specialty);
+      patientSee.seePatient();
+      this.recordSeenPatient(patientSee);
+      System.out.println(patientSee.toString());
+    } catch (NoSuchElementException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Reads and processes user command line to show how many patients are ahead of a waiting patient
+   * record, and how long it should still wait
+   * 
+   * @param commandLine user command line naming a Patient Record of the Care Admission Queue
+   */
+  private void showPosition(String commandLine) {
+    String[] commands = commandLine.trim().split(" "); // split user command
+    if (commands.length < 2) {
+      System.out.println(SYNTAX_ERROR_MSG);
+    } else {
+      try {
+        int arrivalOrder = this.findWaitingPatient(commands[1]);
+        if (arrivalOrder < 0) {
+          return;
+        }
+        int rank = queue.rankOf(arrivalOrder);
+        if (rank < 0) {
+          System.out.println("No waiting patient " + commands[1]);
+        } else {
+          long waitMillis = queue.estimatedWaitMillis(arrivalOrder);
+          System.out.println(rank + " patient(s) ahead of patient " + commands[1]
+              + (waitMillis < 0 ? ", no wait estimate yet"
+                  : ", estimated wait " + (waitMillis + 59_999) / 60_000 + " minute(s)"));
+        }
+      } catch (NumberFormatException e) {
+        System.out.println(SYNTAX_ERROR_MSG + " Invalid case number!");
+      }
+    }
+  }
+
+  /**
+   * Finds the waiting patient named by the given token of a user command line: either a case
+   * number, or "#" followed by an order of arrival. Case numbers repeat every 100 patients, so a
+   * case number shared by several waiting patients is reported as ambiguous, along with their
+   * orders of arrival, one of which must then be given instead.
+   * 
+   * @param token case number, or "#" followed by an order of arrival
+   * @return the order of arrival of the patient, or -1 if no single waiting patient has this case
+   *         number, in which case a message was printed
+   * @throws NumberFormatException if the token is not a number
+   */
+  private int findWaitingPatient(String token) throws NumberFormatException {
+    if (token.startsWith("#")) {
+      return Integer.parseInt(token.substring(1));
+    }
+    int caseNumber = Integer.parseInt(token);
+    int arrivalOrder = -1; // order of arrival of the only match, or -2 if several
+    StringBuilder matches = new StringBuilder();
+    for (PatientRecord p : queue.toArray()) {
+      if (p.CASE_NUMBER == caseNumber) {
+        arrivalOrder = arrivalOrder == -1 ? p.getArrivalOrder() : -2;
+        p.formatTo(matches.append("\n  #").append(p.getArrivalOrder()).append(' '));
+      }
+    }
+    if (arrivalOrder == -1) {
+      System.out.println("No waiting patient with case number " + caseNumber);
+    } else if (arrivalOrder == -2) {
+      System.out.println("Several waiting patients have case number " + caseNumber
+          + ", please name one as #<arrival order>:" + matches);
+      arrivalOrder = -1;
+    }
+    return arrivalOrder;
+  }
+
+  /**
+   * Records a seen patient: adds it to index 0 of the list of the most recently seen patients,
+   * dropping the oldest one beyond SEEN_LISTED, to the statistics of seen patients, and to the
+   * archive
+   * 
+   * @param patientSee PatientRecord of the patient just seen
+   */
+  private void recordSeenPatient(PatientRecord patientSee) {
+    seenPatients.add(0, patientSee);
+    if (seenPatients.size() > SEEN_LISTED) {
+      seenPatients.remove(seenPatients.size() - 1);
+    }
+    seenStatistics.append(patientSee);
+    if (archive != null) {
+      try {
+        archive.append(patientSee);
+      } catch (IOException e) {
+        System.out.println("Error! Could not archive the seen patient: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads and processes user command line to show every archived visit of a patient
+   * 
+   * @param commandLine user command line naming the case number of a seen patient
+   */
+  private void showArchivedVisits(String commandLine) {
+    String[] commands = commandLine.trim().split(" "); // split user command
+    if (commands.length < 2) {
+      System.out.println(SYNTAX_ERROR_MSG);
+    } else if (archive == null) {
+      System.out.println("Sorry! Seen patients are not archived.");
+    } else {
+      try {
+        int caseNumber = Integer.parseInt(commands[1]);
+        List<PatientRecord> visits = archive.find(caseNumber);
+        if (visits.isEmpty()) {
+          System.out.println("No archived visit of patient " + caseNumber);
+        } else {
+          System.out.println(visits.size() + " archived visit(s) of patient " + caseNumber + ":");
+          PatientRecord.writeAll(visits, listingBuffer, out);
+        }
+      } catch (NumberFormatException e) {
+        System.out.println(SYNTAX_ERROR_MSG + " Invalid case number!");
+      } catch (IOException e) {
+        System.out.println("Error! Could not read the archive: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads and processes user command line to import pre-registered arrivals from a CSV file
+   * 
+   * @param commandLine user command line to import a file of Patient Records into the Care
+   *                    Admission Queue
+   */
+  private void importPatientRecords(String commandLine) {
+    String file = commandLine.substring(1).trim();
+    if (file.isEmpty()) {
+      System.out.println(SYNTAX_ERROR_MSG);
+      return;
+    }
+    if (primary != null) {
+      System.out.println("Sorry! Imports are not replicated to followers.");
+      return;
+    }
+    try {
+      System.out.print(ArrivalImporter.importFile(queue, Paths.get(file)));
+    } catch (IOException e) {
+      System.out.println("Error! Could not import " + file + ": " + e.getMessage());
+    } catch (InvalidPathException e) {
+      System.out.println(SYNTAX_ERROR_MSG + " Invalid file name!");
+    } catch (IllegalStateException e) {
+      System.out.println(e.getMessage() + " No patient imported.");
+    }
+  }
+
   /**
    * Reads and processes user command lines
    */
@@ -129,43 +479,89 @@ public class CareAdmissionDriver {
             this.addPatientRecord(command); // Add the patient to the queue
             break;
           case '2': // [2] Show the next patient record
-            System.out.println(queue.peek().toString());
+            PatientRecord patientNext = queue.peekOrNull();
+            if (patientNext == null) {
+              System.out.println("Warning: Empty Admissions Queue!");
+              break;
+            }
             // Print the string representation of the patient record at the root of the priority
             // queue
+            System.out.println(patientNext.toString());
             System.out.println(/* */);
             break;
           case '3': // [3] See next Patient
             // remove the best record from the priority queue and store it in a variable
-            PatientRecord patientSee = queue.removeBestRecord();
+            PatientRecord patientSee = primary == null ? queue.poll() : primary.poll();
+            if (patientSee == null) {
+              System.out.println("Warning: Empty Admissions Queue!");
+              break;
+            }
 
             // mark nextPatient to be seen
             patientSee.seePatient();
-            // add nextPatient to index 0 of the list of seenPatients by calling ArrayList.add(0,
-            // PatientRecord) method
-            seenPatients.add(0, patientSee);
+            // add nextPatient to the list of seenPatients, the statistics and the archive
+            this.recordSeenPatient(patientSee);
 
             System.out.println(patientSee.toString());
             break;
           case '4': // [4] Print the list of unseen patient records
             System.out.println("List of unseen patients:");
-            System.out.println(this.queue.toString());
+            this.queue.writeTo(listingBuffer, out);
+            System.out.println();
             break;
           case '5': // [5] Print list of seen Patients
             System.out.println("List of seen patients:");
-            for (PatientRecord p : seenPatients) {
-              System.out.println(p);
-            }
+            PatientRecord.writeAll(seenPatients, listingBuffer, out);
             break;
           case '6': // [6] Clear the Care Admission Queue
             System.out.println("Sorry! We are closed due to out of control circumstances!");
-            queue.clear();
+            if (primary == null) {
+              queue.clear();
+            } else {
+              primary.clear();
+            }
+            break;
+          case '8': // [8 <case number>] Cancel a patient who left without being seen
+            this.cancelPatientRecord(command);
+            break;
+          case '9': // [9 <file>] Import pre-registered arrivals from a CSV file
+            this.importPatientRecords(command);
+            break;
+          case '0': // [0] Show statistics of seen patients
+            System.out.print(seenStatistics);
+            break;
+          case 'W': // [W <case number>] Show the position and estimated wait of a patient
+          case 'w':
+            this.showPosition(command);
+            break;
+          case 'R': // [R <RED/YELLOW/GREEN> <case number>...] Re-triage waiting patients
+          case 'r':
+            this.retriagePatientRecords(command);
+            break;
+          case 'S': // [S <PEDIATRIC/TRAUMA/GERIATRIC>] See next patient of a specialty
+          case 's':
+            this.seeSpecialtyPatient(command);
+            break;
+          case 'H': // [H <case number>] Show the archived visits of a patient
+          case 'h':
+            this.showArchivedVisits(command);
+            break;
+          case 'F': // [F] Show the arrival forecast and its accuracy
+          case 'f':
+            System.out.printf("%.1f arrivals expected in the next %d hours, capacity %d%n",
+                forecaster.forecastArrivals(System.currentTimeMillis(), FORECAST_HOURS),
+                FORECAST_HOURS, queue.capacity());
+            System.out.println(forecaster);
             break;
           default:
             System.out.println(SYNTAX_ERROR_MSG); // Syntax Error
 
         }
-      } catch (Exception e) {
-        System.out.println(e.getMessage());
+      } catch (IOException e) {
+        System.out.println("Error! Could not print the list of patients: " + e.getMessage());
+      } catch (RuntimeException e) {
+        // Report any other failure of a command and keep the application running
+        System.out.println(e.getMessage() != null ? e.getMessage() : "Error! " + e);
       }
       // read next user command line
       displayMenu(); // display the main menu
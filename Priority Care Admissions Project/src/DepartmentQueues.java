@@ -0,0 +1,110 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manages many PriorityCareAdmissions queues, one per department or clinic, in a single JVM. All
+ * the queues draw their array-heap storage from one shared RecordArena, so an idle queue holds no
+ * storage at all, and storage released by a queue that drains is reused by the busy ones.
+ *
+ */
+public class DepartmentQueues {
+  private final RecordArena arena; // arena shared by all the queues
+  private final int capacity; // capacity of every queue created by this manager
+  private final PriorityPolicy policy; // policy of every queue created by this manager
+  private final ConcurrentHashMap<String, PriorityCareAdmissions> queues; // queues by department
+
+  /**
+   * Creates a new manager without any queue
+   * 
+   * @param capacity         capacity of each department queue
+   * @param policy           PriorityPolicy of each department queue
+   * @param maxRetainedSlots maximum number of free slots the shared arena keeps for reuse
+   * @throws IllegalArgumentException if capacity is not positive or maxRetainedSlots is negative
+   */
+  public DepartmentQueues(int capacity, PriorityPolicy policy, long maxRetainedSlots) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Error! You need to input a capacity greater than 0");
+    }
+    this.arena = new RecordArena(maxRetainedSlots);
+    this.capacity = capacity;
+    this.policy = policy;
+    this.queues = new ConcurrentHashMap<String, PriorityCareAdmissions>();
+  }
+
+  /**
+   * Returns the queue of the given department, creating it if needed. Creating a queue does not
+   * allocate any storage.
+   * 
+   * @param department name of the department
+   * @return the queue of this department
+   */
+  public PriorityCareAdmissions queueFor(String department) {
+    return this.queues.computeIfAbsent(department,
+        name -> new PriorityCareAdmissions(this.capacity, this.policy, this.arena));
+  }
+
+  /**
+   * Closes the queue of the given department, handing its storage back to the shared arena
+   * 
+   * @param department name of the department
+   * @return the queue that was closed, now empty, or null if this department had no queue
+   */
+  public PriorityCareAdmissions close(String department) {
+    PriorityCareAdmissions queue = this.queues.remove(department);
+    if (queue != null) {
+      queue.clear();
+    }
+    return queue;
+  }
+
+  /**
+   * Closes the queue of the given department, moving its waiting patients to the queue of the
+   * neighbor department instead of discarding them. The patients keep their triage and arrival
+   * ordering. The department is removed atomically with the move of its patients: queueFor() of
+   * this department waits until the move is over, and then creates a new queue. The emptied queue
+   * is not cleared, and its storage returns to the arena as it drains.
+   * 
+   * @param department name of the department to close
+   * @param neighbor   name of the department taking over its patients
+   * @return the number of patients moved to the neighbor
+   * @throws IllegalArgumentException if department and neighbor are the same
+   * @throws IllegalStateException    with a the exact error message "Warning: Full Admissions
+   *                                  Queue!" if the patients do not fit in the neighbor queue; in
+   *                                  that case, the department stays open
+   */
+  public int closeInto(String department, String neighbor) {
+    if (department.equals(neighbor)) {
+      throw new IllegalArgumentException("Error! A department cannot be closed into itself");
+    }
+    if (!this.queues.containsKey(department)) {
+      return 0;
+    }
+    PriorityCareAdmissions target = this.queueFor(neighbor);
+    int[] moved = new int[1];
+    // The mapping of the department stays locked during the meld, and a failed meld leaves it
+    // unchanged, so the department can neither be reopened nor lose its patients meanwhile
+    this.queues.computeIfPresent(department, (name, closing) -> {
+      moved[0] = target.meld(closing);
+      return null;
+    });
+    return moved[0];
+  }
+
+  /**
+   * Returns the names of the departments having a queue
+   * 
+   * @return a live view of the department names
+   */
+  public Set<String> departments() {
+    return this.queues.keySet();
+  }
+
+  /**
+   * Returns the arena shared by the queues of this manager, for instance to monitor its usage
+   * 
+   * @return the shared RecordArena
+   */
+  public RecordArena arena() {
+    return this.arena;
+  }
+}
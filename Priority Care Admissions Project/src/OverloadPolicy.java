@@ -0,0 +1,63 @@
+import java.util.function.Consumer;
+
+/**
+ * An OverloadPolicy decides what happens when a PatientRecord is offered to a full
+ * PriorityCareAdmissions queue. It is called while holding the lock of the queue, so it should
+ * return quickly.
+ *
+ */
+@FunctionalInterface
+public interface OverloadPolicy {
+
+  /**
+   * Rejects the patient, leaving the queue unchanged. This is the default policy.
+   */
+  OverloadPolicy REJECT = (queue, p) -> AdmissionStatus.REJECTED;
+
+  /**
+   * Handles a PatientRecord offered to a full queue. Returning ADMITTED_AFTER_EVICTION requires
+   * the policy to have freed a slot with PriorityCareAdmissions.evictNewest(); the queue then adds
+   * the patient. Any other status leaves the patient out of the queue.
+   * 
+   * @param queue the full queue
+   * @param p     the PatientRecord being offered
+   * @return the outcome of the offer
+   */
+  AdmissionStatus onFull(PriorityCareAdmissions queue, PatientRecord p);
+
+  /**
+   * Creates a policy that admits a RED patient into a full queue by evicting the most recently
+   * arrived GREEN patient, which is handed to the given consumer. Other patients, or RED patients
+   * when no GREEN patient is waiting, are rejected.
+   * 
+   * @param evicted consumer receiving the evicted GREEN patients
+   * @return the new policy
+   */
+  static OverloadPolicy evictNewestGreen(Consumer<PatientRecord> evicted) {
+    return (queue, p) -> {
+      if (p.getTriage() != TriageLevel.RED) {
+        return AdmissionStatus.REJECTED;
+      }
+      PatientRecord victim = queue.evictNewest(TriageLevel.GREEN);
+      if (victim == null) {
+        return AdmissionStatus.REJECTED;
+      }
+      evicted.accept(victim);
+      return AdmissionStatus.ADMITTED_AFTER_EVICTION;
+    };
+  }
+
+  /**
+   * Creates a policy that hands every patient offered to a full queue to the given overflow
+   * callback, for instance to divert it to another site
+   * 
+   * @param overflow callback receiving the diverted patients
+   * @return the new policy
+   */
+  static OverloadPolicy divertTo(Consumer<PatientRecord> overflow) {
+    return (queue, p) -> {
+      overflow.accept(p);
+      return AdmissionStatus.DIVERTED;
+    };
+  }
+}
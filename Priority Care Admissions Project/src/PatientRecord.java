@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class models PatientRecord objects to be managed in a priority queue at an urgent care
@@ -22,6 +26,25 @@ public class PatientRecord implements Comparable<PatientRecord> {
   private int orderOfArrival; // The order in which this patient arrived; taken from the value of
                               // patientCounter when this record was created.
   private boolean hasBeenSeen; // tells whether this patient has been marked as "seen"
+  private long arrivalNanos; // System.nanoTime() when this record was created
+  private long seenNanos; // System.nanoTime() when this patient was seen, 0 until then
+  private String patientId; // stable identity of this patient across visits, or null if unknown
+  private boolean readmissionChecked; // whether a ReadmissionFilter was checked for this visit
+  private boolean likelyReadmission; // whether this patient probably visited recently
+  long priorityKey; // key of this patient under the PriorityPolicy of the queue it was admitted to
+
+  /**
+   * Upper bound on the number of bytes written by formatTo(ByteBuffer) for a single record,
+   * including a trailing line separator. Callers streaming many records can flush their buffer
+   * whenever less than this many bytes remain.
+   */
+  public static final int MAX_FORMATTED_BYTES = 48;
+
+  // pre-encoded " (<triage>) - " literals indexed by TriageLevel.ordinal()
+  private static final byte[][] TRIAGE_BYTES = encodeTriageLabels();
+  private static final byte[] SEEN_BYTES = "seen".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NOT_SEEN_BYTES = "not seen".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SEPARATOR_BYTES = ": ".getBytes(StandardCharsets.US_ASCII);
 
   /**
    * Creates a new patient record and assigns it a CASE_NUMBER, as the counter will advance when the
@@ -38,6 +61,49 @@ public class PatientRecord implements Comparable<PatientRecord> {
     this.triage = triage; // The triage level of this patient
     this.orderOfArrival = patientCounter; // Set the order arrival as the patientcounter
     this.CASE_NUMBER = PatientRecord.generateCaseNumber(gender, age); // This patient's case number
+    this.arrivalNanos = System.nanoTime(); // The monotonic arrival time of this patient
+  }
+
+  /**
+   * Creates a new patient record for a patient having a stable identity, such as a health card
+   * number, that lets a ReadmissionFilter recognize the patient on a later visit
+   * 
+   * @param gender    a single character representing this patient's reported gender
+   * @param age       the age of this patient in years
+   * @param triage    the triage level of this patient
+   * @param patientId stable identity of this patient across visits, or null if unknown
+   */
+  public PatientRecord(char gender, int age, TriageLevel triage, String patientId) {
+    this(gender, age, triage);
+    this.patientId = patientId;
+  }
+
+  /**
+   * Recreates a patient record that was previously created by this application, for instance when
+   * reading it back from disk or from a replication log. The patient counter is moved past the
+   * order of arrival of the original record, so that the patients created afterwards never rank
+   * ahead of it. As monotonic timestamps are only meaningful within one JVM, the arrival time of
+   * the recreated record is the current time (see setArrivalNanos()).
+   * 
+   * @param caseNumber     the CASE_NUMBER of the original record
+   * @param gender         a single character representing this patient's reported gender
+   * @param age            the age of this patient in years
+   * @param triage         the triage level of this patient
+   * @param orderOfArrival the order of arrival of the original record
+   * @param hasBeenSeen    whether the original record was marked as seen
+   */
+  PatientRecord(int caseNumber, char gender, int age, TriageLevel triage, int orderOfArrival,
+      boolean hasBeenSeen) {
+    this.CASE_NUMBER = caseNumber;
+    this.gender = gender;
+    this.age = age;
+    this.triage = triage;
+    this.orderOfArrival = orderOfArrival;
+    this.hasBeenSeen = hasBeenSeen;
+    this.arrivalNanos = System.nanoTime();
+    if (patientCounter <= orderOfArrival) {
+      patientCounter = orderOfArrival + 1;
+    }
   }
 
   /**
@@ -119,7 +185,9 @@ public class PatientRecord implements Comparable<PatientRecord> {
   }
 
   /**
-   * Accessor method for the order of arrival of this patient record
+   * Accessor method for the order of arrival of this patient record. Unlike the five-digit
+   * CASE_NUMBER, which repeats every 100 patients, the order of arrival is unique among the records
+   * created during this run of the application, so queues identify their waiting patients by it.
    * 
    * @return the order of arrival of this patient record
    */
@@ -128,9 +196,100 @@ public class PatientRecord implements Comparable<PatientRecord> {
   }
 
   /**
-   * Marks this patient as having been seen. There is no way to undo this action.
+   * Accessor method for the monotonic arrival time of this patient record
+   * 
+   * @return the value of System.nanoTime() when this patient record was created
+   */
+  public long getArrivalNanos() {
+    return arrivalNanos;
+  }
+
+  /**
+   * Accessor method for the monotonic time at which this patient was seen
+   * 
+   * @return the value of System.nanoTime() when seePatient() was first called, or 0 if this
+   *         patient has not been seen yet
+   */
+  public long getSeenNanos() {
+    return seenNanos;
+  }
+
+  /**
+   * Accessor method for the stable identity of this patient
+   * 
+   * @return the identity of this patient across visits, or null if unknown
+   */
+  public String getPatientId() {
+    return patientId;
+  }
+
+  /**
+   * Accessor method for the readmission flag of this patient record, set when it is admitted to a
+   * queue having a ReadmissionFilter
+   * 
+   * @return {@code true} if this patient probably visited within the window of the filter
+   */
+  public boolean isLikelyReadmission() {
+    return likelyReadmission;
+  }
+
+  /**
+   * Checks whether this visit was already checked against a ReadmissionFilter, so that it is not
+   * checked again, and found, when the record moves to another queue
+   * 
+   * @return {@code true} if flagReadmission() was called
+   */
+  boolean isReadmissionChecked() {
+    return readmissionChecked;
+  }
+
+  /**
+   * Records the outcome of the readmission check of this visit
+   * 
+   * @param likely whether this patient probably visited recently
+   */
+  void flagReadmission(boolean likely) {
+    this.readmissionChecked = true;
+    this.likelyReadmission = likely;
+  }
+
+  /**
+   * Restores the arrival time of a record recreated from a file written by the same JVM, such as a
+   * TieredCareAdmissions segment, or from the waiting time shipped by a ReplicationPrimary, so that
+   * its waiting time keeps counting from the first arrival
+   * 
+   * @param arrivalNanos the value of System.nanoTime() when the original record was created
+   */
+  void setArrivalNanos(long arrivalNanos) {
+    this.arrivalNanos = arrivalNanos;
+  }
+
+  /**
+   * Mutator method for triage, used by PriorityCareAdmissions.retriageAll() while the record is
+   * waiting in that queue, which then restores its heap
+   * 
+   * @param triage the new triage level of this patient
+   */
+  void setTriage(TriageLevel triage) {
+    this.triage = triage;
+  }
+
+  /**
+   * Accessor method for the seen status of this patient record
+   * 
+   * @return {@code true} if this patient has been marked as seen
+   */
+  public boolean hasBeenSeen() {
+    return hasBeenSeen;
+  }
+
+  /**
+   * Marks this patient as having been seen, and records when. There is no way to undo this action.
    */
   public void seePatient() {
+    if (!this.hasBeenSeen) {
+      this.seenNanos = System.nanoTime();
+    }
     this.hasBeenSeen = true;
   }
 
@@ -147,8 +306,136 @@ public class PatientRecord implements Comparable<PatientRecord> {
    */
   @Override
   public String toString() {
-    return CASE_NUMBER + ": " + age + "" + gender + " (" + triage.toString() + ") - "
-        + (this.hasBeenSeen ? "seen" : "not seen");
+    return formatTo(new StringBuilder(MAX_FORMATTED_BYTES)).toString();
+  }
+
+  /**
+   * Appends the String representation of this PatientRecord (see toString()) to the given
+   * StringBuilder without creating any intermediate objects.
+   * 
+   * @param sb StringBuilder to append to
+   * @return the given StringBuilder, for chaining
+   */
+  public StringBuilder formatTo(StringBuilder sb) {
+    sb.append(CASE_NUMBER).append(": ").append(age).append(gender).append(" (")
+        .append(triage.name()).append(") - ").append(this.hasBeenSeen ? "seen" : "not seen");
+    return sb;
+  }
+
+  /**
+   * Writes the String representation of this PatientRecord (see toString()) as UTF-8 bytes into
+   * the given buffer, using pre-encoded literals for the triage level and seen status so that no
+   * object is allocated per record.
+   * 
+   * @param buffer buffer to write into, starting at its current position
+   * @return the given buffer, for chaining
+   * @throws java.nio.BufferOverflowException if the buffer has less than MAX_FORMATTED_BYTES
+   *                                          bytes remaining
+   */
+  public ByteBuffer formatTo(ByteBuffer buffer) {
+    putInt(buffer, CASE_NUMBER);
+    buffer.put(SEPARATOR_BYTES);
+    putInt(buffer, age);
+    putChar(buffer, gender);
+    buffer.put(TRIAGE_BYTES[triage.ordinal()]);
+    buffer.put(this.hasBeenSeen ? SEEN_BYTES : NOT_SEEN_BYTES);
+    return buffer;
+  }
+
+  /**
+   * Streams the given records, one per line, to the given channel through the reusable buffer.
+   * The buffer is flushed to the channel whenever it runs low, and once more at the end.
+   * 
+   * @param records records to write, in iteration order
+   * @param buffer  reusable buffer of at least MAX_FORMATTED_BYTES bytes
+   * @param out     channel to write to
+   * @throws IOException if writing to the channel fails
+   */
+  public static void writeAll(Iterable<PatientRecord> records, ByteBuffer buffer,
+      WritableByteChannel out) throws IOException {
+    for (PatientRecord p : records) {
+      writeLine(p, buffer, out);
+    }
+    flush(buffer, out);
+  }
+
+  /**
+   * Formats the given record followed by a line separator into the buffer, first flushing the
+   * buffer to the channel if it is running low.
+   * 
+   * @param p      record to write
+   * @param buffer reusable buffer of at least MAX_FORMATTED_BYTES bytes
+   * @param out    channel to flush to
+   * @throws IOException if writing to the channel fails
+   */
+  static void writeLine(PatientRecord p, ByteBuffer buffer, WritableByteChannel out)
+      throws IOException {
+    if (buffer.remaining() < MAX_FORMATTED_BYTES) {
+      flush(buffer, out);
+    }
+    p.formatTo(buffer).put((byte) '\n');
+  }
+
+  /**
+   * Writes all the pending bytes of the buffer to the channel and clears the buffer.
+   * 
+   * @param buffer buffer in write mode
+   * @param out    channel to write to
+   * @throws IOException if writing to the channel fails
+   */
+  static void flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Writes the decimal digits of value into the buffer as ASCII bytes
+   */
+  private static void putInt(ByteBuffer buffer, int value) {
+    long v = value; // widen so that Integer.MIN_VALUE can be negated
+    if (v < 0) {
+      buffer.put((byte) '-');
+      v = -v;
+    }
+    long divisor = 1;
+    while (divisor * 10 <= v) {
+      divisor *= 10;
+    }
+    while (divisor > 0) {
+      buffer.put((byte) ('0' + (v / divisor)));
+      v %= divisor;
+      divisor /= 10;
+    }
+  }
+
+  /**
+   * Writes the given character into the buffer encoded as UTF-8
+   */
+  private static void putChar(ByteBuffer buffer, char c) {
+    if (c < 0x80) {
+      buffer.put((byte) c);
+    } else if (c < 0x800) {
+      buffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+    } else {
+      buffer.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F)))
+          .put((byte) (0x80 | (c & 0x3F)));
+    }
+  }
+
+  /**
+   * Pre-encodes the " (<triage>) - " literal of every triage level
+   */
+  private static byte[][] encodeTriageLabels() {
+    TriageLevel[] levels = TriageLevel.values();
+    byte[][] labels = new byte[levels.length][];
+    for (TriageLevel level : levels) {
+      labels[level.ordinal()] =
+          (" (" + level.name() + ") - ").getBytes(StandardCharsets.US_ASCII);
+    }
+    return labels;
   }
 
   /**
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Utility class that encodes PatientRecords into a fixed-size binary layout, and decodes them
+ * back. Every record takes exactly RECORD_BYTES bytes, so that files and buffers of records can be
+ * addressed by index.
+ *
+ */
+public class PatientRecordCodec {
+
+  /**
+   * Number of bytes taken by one encoded PatientRecord
+   */
+  public static final int RECORD_BYTES = 16;
+
+  private static final TriageLevel[] TRIAGE_LEVELS = TriageLevel.values();
+
+  /**
+   * Private constructor: this utility class is not meant to be instantiated
+   */
+  private PatientRecordCodec() {
+  }
+
+  /**
+   * Writes the given PatientRecord at the current position of the buffer, and advances the
+   * position by RECORD_BYTES.
+   * 
+   * @param p      PatientRecord to encode
+   * @param buffer buffer to write into
+   * @throws java.nio.BufferOverflowException if less than RECORD_BYTES bytes remain in the buffer
+   */
+  public static void encode(PatientRecord p, ByteBuffer buffer) {
+    buffer.putInt(p.CASE_NUMBER);
+    buffer.putInt(p.getArrivalOrder());
+    buffer.putInt(p.getAge());
+    buffer.putChar(p.getGender());
+    buffer.put((byte) p.getTriage().ordinal());
+    buffer.put((byte) (p.hasBeenSeen() ? 1 : 0));
+  }
+
+  /**
+   * Reads a PatientRecord from the current position of the buffer, and advances the position by
+   * RECORD_BYTES.
+   * 
+   * @param buffer buffer to read from
+   * @return the decoded PatientRecord
+   * @throws java.nio.BufferUnderflowException if less than RECORD_BYTES bytes remain in the buffer
+   */
+  public static PatientRecord decode(ByteBuffer buffer) {
+    int caseNumber = buffer.getInt();
+    int orderOfArrival = buffer.getInt();
+    int age = buffer.getInt();
+    char gender = buffer.getChar();
+    TriageLevel triage = TRIAGE_LEVELS[buffer.get()];
+    boolean seen = buffer.get() != 0;
+    return new PatientRecord(caseNumber, gender, age, triage, orderOfArrival, seen);
+  }
+}
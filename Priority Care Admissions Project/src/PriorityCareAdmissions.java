@@ -1,196 +1,1555 @@
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 /**
  * Array-based min-heap implementation of a priority queue storing PatientRecords. Guarantees the
  * min-heap invariant, so that the PatientRecord at the root should be the smallest PatientRecord,
  * which corresponds to the element having the highest priority to be dequeued first, and children
- * always are greater than their parent. We rely on the PatientRecord.compareTo() method to compare
- * PatientRecords. The root of a non-empty queue is always at index 0 of this array-heap.
+ * always are greater than their parent. PatientRecords are compared by the priority keys computed
+ * by the PriorityPolicy of this queue when they are admitted; the default policy orders them the
+ * same way as the PatientRecord.compareTo() method. The root of a non-empty queue is always at
+ * index 0 of this array-heap.
+ * 
+ * Patients who leave without being seen can be cancelled by order of arrival, which identifies a
+ * patient uniquely, unlike the case number. Cancelled records stay in the array-heap as
+ * tombstones, are skipped lazily when they reach the root, and are purged all at once by a linear
+ * rebuild of the heap when they make up too large a share of the array.
+ * 
+ * Dispatch can also happen in two phases: claimNext() hides the best PatientRecord behind a lease
+ * held by a clinician, and confirm() marks it as seen. A lease that is released or expires returns
+ * the PatientRecord to its original priority position. Claimed PatientRecords keep their slot in
+ * the capacity of this queue until then. Lease deadlines are tracked with a hashed TimingWheel. A
+ * claimed patient is only reported as dispatched, and counted in the service times, once the claim
+ * is confirmed; a claim that is released or expires is not reported at all.
+ * 
+ * A queue created with a RecordArena does not preallocate its capacity: its array-heap is borrowed
+ * from the arena, grown on demand, and handed back to the arena when the queue drains, so that an
+ * idle queue holds almost no memory.
+ * 
+ * All the public operations of this queue are thread-safe. Admissions, dispatches, rejections,
+ * clears and listings are reported as disabled-by-default Flight Recorder QueueEvents.
+ * 
+ * @see TriageBucketAdmissions for a representation suited to large queues under heavy traffic
  */
-public class PriorityCareAdmissions {
+public class PriorityCareAdmissions implements AdmissionsQueue {
+  // share of tombstones in the array-heap above which the heap is compacted
+  private static final double TOMBSTONE_RATIO = 0.25;
+  // heap levels narrower than this are heapified sequentially
+  private static final int PARALLEL_LEVEL_WIDTH = 1 << 12;
+  // background attempts to switch policy before the rebuild is finished while holding the lock
+  private static final int POLICY_REBUILD_ATTEMPTS = 3;
+  private static final int LEASE_WHEEL_SLOTS = 512; // number of slots of the lease timing wheel
+  private static final long LEASE_TICK_MILLIS = 10; // resolution of the lease deadlines
+  // weight of the latest dispatch interval in the rolling average service times
+  private static final double SERVICE_SMOOTHING = 0.2;
+  private static final Object MELD_TIE_LOCK = new Object(); // orders melds of colliding queues
+  private static final PatientRecord[] NO_STORAGE = new PatientRecord[0]; // storage of an empty
+                                                                          // arena-backed queue
+
   private PatientRecord[] queue; // array min-heap of PatientRecords representing this priority
                                  // queue
-  private int size; // size of this priority queue
+  private int size; // number of PatientRecords stored in the array-heap, tombstones included
+  private int capacity; // maximum number of PatientRecords this queue can hold
+  private RecordArena arena; // arena providing the array-heap storage, or null if preallocated
+  private int reservedLength; // storage an arena-backed queue keeps even when it drains, set by
+                              // reserveStorage()
+  private HashMap<Integer, PatientRecord> waiting; // live PatientRecords indexed by arrival order
+  private Set<PatientRecord> tombstones; // cancelled PatientRecords still stored in the array-heap
+  private PriorityPolicy policy; // policy computing the priority keys of the admitted records
+  private int modCount; // number of structural modifications of the array-heap
+  private int policyVersion; // number of calls to setPolicy(), used to discard stale rebuilds
+  private HashMap<Integer, Claim> claims; // claimed PatientRecords indexed by arrival order
+  private TimingWheel<Claim> leases; // deadlines of the leases of the claimed PatientRecords
+  private OverloadPolicy overloadPolicy; // decides what offer() does when this queue is full
+  private SlaMonitor slaMonitor; // notified of every admission, if any
+  private ReadmissionFilter readmissionFilter; // recognizes recent visits on admission, if any
+  private int readmissionHours; // window within which a visit is flagged as a readmission
+  private int siftDepth; // number of levels moved by the last percolation, for QueueEvents
+  private PatientRecord[] listing; // reused by formatTo() and writeTo() to sort the records
+  private QueueChangeListener[] changeListeners; // notified of every change, or null if none
+  private ArrivalRankTree[] ranks; // waiting records per triage ordinal, built by rankOf() if
+                                   // ever called
+  private long[] serviceNanos; // rolling average time between dispatches, per triage ordinal
+  private long lastDispatchNanos; // System.nanoTime() of the latest dispatch, 0 before the first
+  private SpecialtyHeap[] specialties; // sub-heaps of the specialties dispatched by
+                                       // removeBestEligible(), or null if none
+
+  /**
+   * Creates a new empty PriorityCareAdmissions queue with the given capacity
+   * 
+   * @param capacity Capacity of this PriorityCareAdmissions queue
+   * @throws IllegalArgumentException with a descriptive error message if the capacity is not a
+   *                                  positive integer
+   */
+  public PriorityCareAdmissions(int capacity) throws IllegalArgumentException {
+    this(capacity, PriorityPolicy.STANDARD);
+  }
+
+  /**
+   * Creates a new empty PriorityCareAdmissions queue with the given capacity, ordering its
+   * PatientRecords with the given policy
+   * 
+   * @param capacity Capacity of this PriorityCareAdmissions queue
+   * @param policy   PriorityPolicy used to order the PatientRecords of this queue
+   * @throws IllegalArgumentException with a descriptive error message if the capacity is not a
+   *                                  positive integer
+   * @throws NullPointerException     if policy is null
+   */
+  public PriorityCareAdmissions(int capacity, PriorityPolicy policy)
+      throws IllegalArgumentException {
+    this(capacity, policy, null);
+  }
+
+  /**
+   * Creates a new empty PriorityCareAdmissions queue with the given capacity, ordering its
+   * PatientRecords with the given policy and drawing its storage from the given arena. No storage
+   * is allocated until the first PatientRecord is added.
+   * 
+   * @param capacity Capacity of this PriorityCareAdmissions queue
+   * @param policy   PriorityPolicy used to order the PatientRecords of this queue
+   * @param arena    RecordArena providing the storage of this queue, or null to preallocate an
+   *                 array of the given capacity
+   * @throws IllegalArgumentException with a descriptive error message if the capacity is not a
+   *                                  positive integer
+   * @throws NullPointerException     if policy is null
+   */
+  public PriorityCareAdmissions(int capacity, PriorityPolicy policy, RecordArena arena)
+      throws IllegalArgumentException {
+    if (policy == null) {
+      throw new NullPointerException();
+    }
+
+    // Throw exception if capacity is not positive
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Error! You need to input a capacity greater than 0");
+    }
+
+    // Initialize an array for this min-queue, unless the arena will provide it
+    this.queue = arena == null ? new PatientRecord[capacity] : NO_STORAGE;
+    this.size = 0; // Set the array's size to 0
+    this.capacity = capacity;
+    this.arena = arena;
+    this.waiting = new HashMap<Integer, PatientRecord>();
+    this.tombstones = Collections.newSetFromMap(new IdentityHashMap<PatientRecord, Boolean>(4));
+    this.policy = policy;
+    this.claims = new HashMap<Integer, Claim>();
+    this.overloadPolicy = OverloadPolicy.REJECT;
+    this.serviceNanos = new long[TriageLevel.values().length];
+  }
+
+  /**
+   * Creates a copy of the given queue sharing its PatientRecords, policies and arena, but neither
+   * its claims nor its observers
+   * 
+   * @param original queue to copy
+   */
+  private PriorityCareAdmissions(PriorityCareAdmissions original) {
+    this.capacity = original.capacity;
+    this.arena = original.arena;
+    if (this.arena == null) {
+      this.queue = Arrays.copyOf(original.queue, original.queue.length);
+    } else if (original.size == 0) {
+      this.queue = NO_STORAGE;
+    } else {
+      this.queue = this.arena.allocate(original.size);
+      System.arraycopy(original.queue, 0, this.queue, 0, original.size);
+    }
+    this.size = original.size;
+    this.waiting = new HashMap<Integer, PatientRecord>(original.waiting);
+    this.tombstones = Collections.newSetFromMap(new IdentityHashMap<PatientRecord, Boolean>(4));
+    this.tombstones.addAll(original.tombstones);
+    this.policy = original.policy;
+    this.claims = new HashMap<Integer, Claim>();
+    this.overloadPolicy = original.overloadPolicy;
+    this.serviceNanos = original.serviceNanos.clone();
+    this.lastDispatchNanos = original.lastDispatchNanos;
+  }
+
+  /**
+   * Checks whether this PriorityCareAdmissions queue is empty
+   * 
+   * @return {@code true} if this PriorityCareAdmissions queue is empty
+   */
+  public synchronized boolean isEmpty() {
+
+    // If there are no live patientRecords in this queue, return true
+    if (this.size() == 0) {
+      return true;
+    }
+    return false; // return false if there is more than 0 patientRecords in this queue
+  }
+
+  /**
+   * Returns the size of this PriorityCareAdmissions queue
+   * 
+   * @return the total number of PatientRecords waiting in this PriorityCareAdmissions queue, not
+   *         counting cancelled ones
+   */
+  public synchronized int size() {
+    return this.size - this.tombstones.size(); // Return the number of live patients
+  }
+
+  /**
+   * Returns the capacity of this PriorityCareAdmissions queue
+   * 
+   * @return the capacity of this PriorityCareAdmissions queue
+   */
+  public synchronized int capacity() {
+    return this.capacity; // return the capacity of the queue
+  }
+
+  /**
+   * Removes all the elements from this PriorityCareAdmissions queue
+   */
+  public synchronized void clear() {
+    QueueEvents.Clear event = new QueueEvents.Clear();
+    event.begin();
+    int cleared = this.size();
+
+    // Empty the array-heap in place, or hand it back to the arena, keeping the capacity
+    if (this.arena == null) {
+      Arrays.fill(this.queue, 0, this.size, null);
+    } else {
+      this.reservedLength = 0;
+      this.releaseStorage();
+    }
+    this.size = 0;
+    this.waiting.clear();
+    this.ranks = null;
+    if (this.specialties != null) {
+      for (SpecialtyHeap view : this.specialties) {
+        view.clear();
+      }
+    }
+    this.tombstones.clear();
+    this.claims.clear();
+    this.leases = null;
+    this.modCount++;
+    if (this.slaMonitor != null) {
+      this.slaMonitor.cleared();
+    }
+    this.changed(QueueChange.CLEARED, null);
+    if (event.shouldCommit()) {
+      event.queueSize = cleared;
+      event.commit();
+    }
+  }
+
+  /**
+   * Returns the PatientRecord at the root of this PriorityCareAdmissions queue, i.e. the
+   * PatientRecord having the the highest priority.
+   * 
+   * @return the PatientRecord at the root of this PriorityCareAdmissions queue
+   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
+   *                                if this PriorityCareAdmissions queue is empty
+   */
+  public synchronized PatientRecord peek() throws NoSuchElementException {
+    PatientRecord best = this.peekOrNull();
+
+    // If the queue is empty, throw an exception
+    if (best == null) {
+      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+    }
+    return best; // Return the first value in the queue
+  }
+
+  /**
+   * Returns the PatientRecord at the root of this PriorityCareAdmissions queue, i.e. the
+   * PatientRecord having the the highest priority, or null if this queue is empty. Unlike peek(),
+   * this method never throws.
+   * 
+   * @return the PatientRecord at the root of this PriorityCareAdmissions queue, or null if this
+   *         queue is empty
+   */
+  public synchronized PatientRecord peekOrNull() {
+
+    this.expireDueLeases(); // Return the patients whose lease expired to the queue
+    this.skipTombstones(); // Make sure the root is a live patient
+
+    return this.size == 0 ? null : queue[0];
+  }
+
+  /**
+   * Adds the given PatientRecord to this PriorityCareAdmissions queue at the correct position based
+   * on the min-heap ordering. This queue should maintain the min-heap invariant, so that the
+   * PatientRecord at each index is less than or equal to than the PatientRecords in its child
+   * nodes. PatientRecords should be compared using the PatientRecord.compareTo() method.
+   * 
+   * @param p PatientRecord to add to this PriorityCareAdmissions queue
+   * @throws NullPointerException  if the given PatientRecord is null
+   * @throws IllegalStateException with a the exact error message "Warning: Full Admissions Queue!"
+   *                               if this PriorityCareAdmissions queue is full
+   */
+  public synchronized void addPatient(PatientRecord p)
+      throws NullPointerException, IllegalStateException {
+
+    // If the inputed patient is null, throw a NullPointerException
+    if (p == null) {
+      throw new NullPointerException();
+    }
+    QueueEvents.Admission event = new QueueEvents.Admission();
+    event.begin();
+
+    // Make room by purging the tombstones if the array is full of them
+    if (this.isFull() && !this.tombstones.isEmpty()) {
+      this.compact();
+    }
+
+    // If this queue is full, throw a descriptive IllegalStateException
+    if (this.isFull()) {
+      this.rejected(p, AdmissionStatus.REJECTED);
+      throw new IllegalStateException("Warning: Full Admissions Queue!");
+    }
+
+    p.priorityKey = this.policy.priorityKey(p); // Evaluate the policy once for this patient
+    this.insert(p);
+    this.admitted(p);
+    this.commit(event, p);
+  }
+
+  /**
+   * Offers the given PatientRecord to this PriorityCareAdmissions queue. Unlike addPatient(), this
+   * method reports the outcome as a status instead of throwing: if this queue is full, the
+   * OverloadPolicy of this queue decides whether the patient is rejected, admitted after evicting
+   * another patient, or diverted.
+   * 
+   * @param p PatientRecord to offer
+   * @return the outcome of the offer; REJECTED if p is null
+   */
+  public synchronized AdmissionStatus offer(PatientRecord p) {
+    if (p == null) {
+      return AdmissionStatus.REJECTED;
+    }
+    QueueEvents.Admission event = new QueueEvents.Admission();
+    event.begin();
+
+    // Make room by purging the tombstones if the array is full of them
+    if (this.isFull() && !this.tombstones.isEmpty()) {
+      this.compact();
+    }
+
+    AdmissionStatus status = AdmissionStatus.ADMITTED;
+    if (this.isFull()) {
+      status = this.overloadPolicy.onFull(this, p);
+      if (status != AdmissionStatus.ADMITTED_AFTER_EVICTION) {
+        this.rejected(p, status);
+        return status;
+      }
+      if (this.isFull()) {
+        this.compact(); // release the slot of the evicted patient
+      }
+      if (this.isFull()) {
+        this.rejected(p, AdmissionStatus.REJECTED);
+        return AdmissionStatus.REJECTED; // the policy did not actually free a slot
+      }
+    }
+
+    p.priorityKey = this.policy.priorityKey(p);
+    this.insert(p);
+    this.admitted(p);
+    this.commit(event, p);
+    return status;
+  }
+
+  /**
+   * Sets the OverloadPolicy applied by offer() when this queue is full
+   * 
+   * @param overloadPolicy the new OverloadPolicy, for instance OverloadPolicy.REJECT
+   * @throws NullPointerException if overloadPolicy is null
+   */
+  public synchronized void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+    if (overloadPolicy == null) {
+      throw new NullPointerException();
+    }
+    this.overloadPolicy = overloadPolicy;
+  }
+
+  /**
+   * Removes the waiting PatientRecord of the given triage level that arrived last, if any. This is
+   * a linear scan meant for overload handling, not for the normal dispatch path.
+   * 
+   * @param triage triage level of the PatientRecord to evict
+   * @return the evicted PatientRecord, or null if no patient of this triage level is waiting
+   */
+  public synchronized PatientRecord evictNewest(TriageLevel triage) {
+    PatientRecord newest = null;
+    for (int i = 0; i < this.size; i++) {
+      PatientRecord p = this.queue[i];
+      if (p.getTriage() == triage && !this.tombstones.contains(p)
+          && (newest == null || p.getArrivalOrder() > newest.getArrivalOrder())) {
+        newest = p;
+      }
+    }
+    if (newest != null) {
+      this.waiting.remove(newest.getArrivalOrder(), newest);
+      this.unranked(newest);
+      this.tombstones.add(newest);
+      this.changed(QueueChange.CANCELLED, newest);
+    }
+    return newest;
+  }
+
+  /**
+   * Prepares this queue to hold the given number of patients, for instance ahead of a forecast
+   * surge, so that the storage is grown now rather than by the admission that finds the queue
+   * full. The capacity of this queue is never changed, and the reservation is clamped to it. An
+   * arena-backed queue takes storage for the reserved patients from its arena and keeps it even
+   * when patients leave, until the next call to this method reserves less, or the queue is
+   * cleared. A preallocated array-heap already holds capacity patients, so nothing is done.
+   * 
+   * @param patients number of patients this queue should be able to hold without growing its
+   *                 storage, or 0 to release the reservation
+   * @return the number of patients storage was reserved for
+   * @throws IllegalArgumentException with a descriptive error message if patients is negative
+   */
+  public synchronized int reserveStorage(int patients) throws IllegalArgumentException {
+    if (patients < 0) {
+      throw new IllegalArgumentException("Error! You need to input a number of patients that is "
+          + "not negative");
+    }
+    int reserved = Math.min(patients, this.capacity);
+    if (this.arena != null) {
+      this.reservedLength = reserved;
+      this.ensureStorage(reserved);
+      this.shrinkStorage(); // release what a smaller reservation no longer needs
+    }
+    return reserved;
+  }
+
+  /**
+   * Makes sure the array-heap can hold the given number of elements, growing it if needed. Arrays
+   * taken from the arena at least double in length on each growth.
+   * 
+   * @param length number of elements the array-heap must be able to hold
+   */
+  private void ensureStorage(int length) {
+    if (length <= this.queue.length) {
+      return;
+    }
+    if (this.arena == null) {
+      this.queue = Arrays.copyOf(this.queue, Math.max(length, this.capacity));
+      return;
+    }
+    PatientRecord[] grown = this.arena.allocate(Math.max(length, 2 * this.queue.length));
+    System.arraycopy(this.queue, 0, grown, 0, this.size);
+    this.releaseStorage();
+    this.queue = grown;
+  }
+
+  /**
+   * Hands the array-heap of an arena-backed queue back to the arena once it is empty, or swaps it
+   * for a smaller one once it is less than a quarter full, keeping the storage reserved by
+   * reserveStorage()
+   */
+  private void shrinkStorage() {
+    if (this.arena == null || this.queue.length <= this.reservedLength) {
+      return;
+    }
+    if (this.size == 0 && this.reservedLength == 0) {
+      this.releaseStorage();
+    } else if (this.size < this.queue.length / 4 && this.queue.length > RecordArena.MIN_LENGTH) {
+      PatientRecord[] shrunk = this.arena.allocate(Math.max(2 * this.size, this.reservedLength));
+      System.arraycopy(this.queue, 0, shrunk, 0, this.size);
+      this.releaseStorage();
+      this.queue = shrunk;
+    }
+  }
+
+  /**
+   * Hands the array-heap of an arena-backed queue back to the arena, leaving it without storage
+   */
+  private void releaseStorage() {
+    if (this.queue != NO_STORAGE) {
+      Arrays.fill(this.queue, 0, this.size, null);
+      this.arena.release(this.queue);
+      this.queue = NO_STORAGE;
+    }
+  }
+
+  /**
+   * Notifies the observers of this queue that the given PatientRecord was newly admitted
+   * 
+   * @param p the admitted PatientRecord
+   */
+  private void admitted(PatientRecord p) {
+    if (this.slaMonitor != null) {
+      this.slaMonitor.admitted(p);
+    }
+    if (this.readmissionFilter != null && p.getPatientId() != null
+        && !p.isReadmissionChecked()) {
+      p.flagReadmission(
+          this.readmissionFilter.checkAndRecord(p.getPatientId(), this.readmissionHours));
+    }
+  }
+
+  /**
+   * Commits the given admission event for the given PatientRecord, if it is enabled
+   */
+  private void commit(QueueEvents.Admission event, PatientRecord p) {
+    if (event.shouldCommit()) {
+      event.caseNumber = p.CASE_NUMBER;
+      event.triage = p.getTriage().name();
+      event.queueSize = this.size();
+      event.siftDepth = this.siftDepth;
+      event.commit();
+    }
+  }
+
+  /**
+   * Reports that the given PatientRecord was turned away from this full queue, if the event is
+   * enabled
+   */
+  private void rejected(PatientRecord p, AdmissionStatus status) {
+    QueueEvents.Rejection event = new QueueEvents.Rejection();
+    if (event.shouldCommit()) {
+      event.triage = p.getTriage().name();
+      event.queueSize = this.size();
+      event.outcome = status.name();
+      event.commit();
+    }
+  }
+
+  /**
+   * Adds a listener notified of every change of the waiting PatientRecords of this queue. Listeners
+   * run inline, while this queue is locked: a subsystem that may be slow to react should rather
+   * consume the changes from a QueueEventBus.
+   * 
+   * @param listener listener to add
+   * @throws NullPointerException if the given listener is null
+   */
+  public synchronized void addChangeListener(QueueChangeListener listener)
+      throws NullPointerException {
+    if (listener == null) {
+      throw new NullPointerException();
+    }
+    int count = this.changeListeners == null ? 0 : this.changeListeners.length;
+    QueueChangeListener[] listeners = new QueueChangeListener[count + 1];
+    if (count > 0) {
+      System.arraycopy(this.changeListeners, 0, listeners, 0, count);
+    }
+    listeners[count] = listener;
+    this.changeListeners = listeners;
+  }
+
+  /**
+   * Removes a listener added by addChangeListener()
+   * 
+   * @param listener listener to remove
+   * @return {@code true} if the listener was removed, {@code false} if it was not listening
+   */
+  public synchronized boolean removeChangeListener(QueueChangeListener listener) {
+    int count = this.changeListeners == null ? 0 : this.changeListeners.length;
+    for (int i = 0; i < count; i++) {
+      if (this.changeListeners[i] == listener) {
+        QueueChangeListener[] listeners = null;
+        if (count > 1) {
+          listeners = new QueueChangeListener[count - 1];
+          System.arraycopy(this.changeListeners, 0, listeners, 0, i);
+          System.arraycopy(this.changeListeners, i + 1, listeners, i, count - i - 1);
+        }
+        this.changeListeners = listeners;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Notifies the change listeners of this queue, if any, of the given change
+   */
+  private void changed(QueueChange change, PatientRecord p) {
+    if (this.changeListeners != null) {
+      for (QueueChangeListener listener : this.changeListeners) {
+        listener.onChange(change, p);
+      }
+    }
+  }
+
+  /**
+   * Attaches the given SlaMonitor to this queue. Patients admitted from now on are monitored
+   * against the target waits of their triage level.
+   * 
+   * @param slaMonitor the SlaMonitor to notify of admissions, or null to detach the current one
+   */
+  public synchronized void setSlaMonitor(SlaMonitor slaMonitor) {
+    this.slaMonitor = slaMonitor;
+    if (slaMonitor != null) {
+      slaMonitor.attach(this);
+    }
+  }
+
+  /**
+   * Attaches the given ReadmissionFilter to this queue. Each patient admitted from now on with a
+   * patient identity is checked against the filter, in constant time, and flagged as a likely
+   * readmission if the filter probably saw the same identity within the given number of hours;
+   * the visit is then recorded in the filter.
+   * 
+   * @param filter      the ReadmissionFilter to check and update, or null to detach the current
+   *                    one
+   * @param withinHours window within which a previous visit flags a readmission, such as 24 or
+   *                    72, capped to the window of the filter
+   */
+  public synchronized void setReadmissionFilter(ReadmissionFilter filter, int withinHours) {
+    this.readmissionFilter = filter;
+    this.readmissionHours = withinHours;
+  }
+
+  /**
+   * Checks whether the given PatientRecord is waiting in this queue, i.e. it was admitted and has
+   * not been dispatched, claimed, or cancelled since
+   * 
+   * @param p PatientRecord to check
+   * @return {@code true} if p is waiting in this queue
+   */
+  synchronized boolean isWaiting(PatientRecord p) {
+    return this.waiting.get(p.getArrivalOrder()) == p;
+  }
+
+  /**
+   * Checks whether every slot of this queue is taken by a waiting PatientRecord, a tombstone, or a
+   * claimed PatientRecord
+   * 
+   * @return {@code true} if no PatientRecord can be added without purging tombstones
+   */
+  private boolean isFull() {
+    return this.size + this.claims.size() >= this.capacity;
+  }
+
+  /**
+   * Inserts the given PatientRecord, whose priority key is already computed, into the array-heap.
+   * The caller must make sure there is room for it.
+   * 
+   * @param p PatientRecord to insert
+   */
+  private void insert(PatientRecord p) {
+    this.store(p);
+    this.changed(QueueChange.ADMITTED, p);
+  }
+
+  /**
+   * Stores the given PatientRecord in the array-heap and in the indexes of the waiting records,
+   * without notifying the change listeners
+   * 
+   * @param p PatientRecord to store
+   */
+  private void store(PatientRecord p) {
+    this.ensureStorage(this.size + 1);
+    queue[this.size] = p; // Add the patient to the array of patients
+    this.size += 1; // Increment size by
+    this.siftDepth = 0;
+    percolateUp(this.size - 1); // Keep percolating up the added patient until in correct position
+    this.waiting.put(p.getArrivalOrder(), p); // Index the patient by order of arrival
+    this.ranked(p);
+    this.eligible(p);
+    this.modCount++;
+  }
+
+  /**
+   * Adds all the given PatientRecords to this PriorityCareAdmissions queue at once. The records are
+   * appended to the array-heap and the min-heap invariant is restored with a single linear
+   * heapify, rather than by percolating up each of them.
+   * 
+   * @param records PatientRecords to add to this PriorityCareAdmissions queue
+   * @throws NullPointerException  if the given array or any of its elements is null
+   * @throws IllegalStateException with a the exact error message "Warning: Full Admissions Queue!"
+   *                               if the records do not all fit in this PriorityCareAdmissions
+   *                               queue; in that case, none of them is added
+   */
+  public synchronized void addAll(PatientRecord[] records)
+      throws NullPointerException, IllegalStateException {
+
+    // Reject null records up front so that the queue is left unchanged
+    for (PatientRecord p : records) {
+      if (p == null) {
+        throw new NullPointerException();
+      }
+    }
+
+    // Make room by purging the tombstones if needed
+    int available = this.capacity - this.claims.size();
+    if (this.size + records.length > available && !this.tombstones.isEmpty()) {
+      this.compact();
+    }
+
+    // If the records do not fit, throw a descriptive IllegalStateException
+    if (this.size + records.length > available) {
+      throw new IllegalStateException("Warning: Full Admissions Queue!");
+    }
+
+    this.append(records);
+  }
+
+  /**
+   * Adds the given PatientRecords to the array-heap, evaluating their priority keys under the
+   * policy of this queue. A few records are percolated up one by one; otherwise, they are
+   * appended and the whole array-heap is rebuilt with a linear heapify, whichever is cheaper. The
+   * caller must make sure there is room for them.
+   * 
+   * @param records PatientRecords to add
+   */
+  private void append(PatientRecord[] records) {
+    int total = this.size + records.length;
+    boolean siftEach = (long) records.length * (32 - Integer.numberOfLeadingZeros(total)) < total;
+
+    this.ensureStorage(total);
+    for (PatientRecord p : records) {
+      p.priorityKey = this.policy.priorityKey(p);
+      this.waiting.put(p.getArrivalOrder(), p);
+      this.ranked(p);
+      this.eligible(p);
+      this.queue[this.size++] = p;
+      if (siftEach) {
+        this.percolateUp(this.size - 1);
+      }
+    }
+    if (!siftEach) {
+      this.heapify();
+    }
+    this.modCount++;
+    for (PatientRecord p : records) {
+      this.admitted(p);
+      this.changed(QueueChange.ADMITTED, p);
+    }
+  }
+
+  /**
+   * Moves all the waiting PatientRecords of the other queue into this one, for instance when the
+   * other site closes. Their priority keys are evaluated under the policy of this queue, so they
+   * keep their triage and arrival ordering. Small queues are percolated up one record at a time,
+   * and larger ones appended and heapified together, so melding never takes more than linear time
+   * in the total number of records. PatientRecords claimed in the other queue stay there until
+   * their claim ends.
+   * 
+   * @param other queue whose waiting PatientRecords are moved to this one; it is left empty
+   * @return the number of PatientRecords moved to this queue
+   * @throws IllegalArgumentException if other is this queue
+   * @throws IllegalStateException    with a the exact error message "Warning: Full Admissions
+   *                                  Queue!" if the PatientRecords of the other queue do not all
+   *                                  fit in this one; in that case, neither queue is changed
+   */
+  public int meld(PriorityCareAdmissions other)
+      throws IllegalArgumentException, IllegalStateException {
+    if (other == this) {
+      throw new IllegalArgumentException("Error! A queue cannot be melded with itself");
+    }
+
+    // Lock both queues in a global order, so that concurrent melds cannot deadlock
+    int thisHash = System.identityHashCode(this);
+    int otherHash = System.identityHashCode(other);
+    Object first = thisHash < otherHash ? this : other;
+    Object second = thisHash < otherHash ? other : this;
+    synchronized (thisHash == otherHash ? MELD_TIE_LOCK : first) {
+      synchronized (first) {
+        synchronized (second) {
+          int available = this.capacity - this.claims.size();
+          if (this.size + other.size() > available && !this.tombstones.isEmpty()) {
+            this.compact();
+          }
+          if (this.size + other.size() > available) {
+            throw new IllegalStateException("Warning: Full Admissions Queue!");
+          }
+          PatientRecord[] moved = other.extract(p -> true);
+          this.append(moved);
+          return moved.length;
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the waiting PatientRecords matching the given predicate to a new queue, for instance to
+   * hand a group of patients over to another site. Both queues are rebuilt with a linear heapify,
+   * so they keep their triage and arrival ordering.
+   * 
+   * @param predicate selects the PatientRecords to move
+   * @return a new queue with the same capacity, policy and arena as this one, holding the moved
+   *         PatientRecords
+   * @throws NullPointerException if predicate is null
+   */
+  public synchronized PriorityCareAdmissions split(Predicate<PatientRecord> predicate) {
+    if (predicate == null) {
+      throw new NullPointerException();
+    }
+    PriorityCareAdmissions moved = new PriorityCareAdmissions(this.capacity, this.policy,
+        this.arena);
+    moved.append(this.extract(predicate));
+    return moved;
+  }
+
+  /**
+   * Moves the given fraction of the waiting PatientRecords to a new queue, to rebalance the load
+   * between two sites. The records are taken evenly across the priority order, so that both
+   * queues get their fair share of every triage level and of the oldest arrivals, and both keep
+   * their triage and arrival ordering. This sorts the waiting records, in O(n log n) time.
+   * 
+   * @param fraction share of the waiting PatientRecords to move, between 0 and 1; the number of
+   *                 moved records is rounded down
+   * @return a new queue with the same capacity, policy and arena as this one, holding the moved
+   *         PatientRecords
+   * @throws IllegalArgumentException if fraction is not between 0 and 1
+   */
+  public synchronized PriorityCareAdmissions split(double fraction)
+      throws IllegalArgumentException {
+    if (!(fraction >= 0 && fraction <= 1)) {
+      throw new IllegalArgumentException("Error! The fraction must be between 0 and 1");
+    }
+
+    // Select every record whose rank crosses a multiple of 1 / fraction
+    PatientRecord[] sorted = this.snapshot().records;
+    Arrays.sort(sorted, (a, b) -> Long.compare(a.priorityKey, b.priorityKey));
+    Set<PatientRecord> selected =
+        Collections.newSetFromMap(new IdentityHashMap<PatientRecord, Boolean>(sorted.length));
+    for (int i = 0; i < sorted.length; i++) {
+      if ((long) ((i + 1) * fraction) > (long) (i * fraction)) {
+        selected.add(sorted[i]);
+      }
+    }
+    return this.split(selected::contains);
+  }
+
+  /**
+   * Removes and returns all the waiting PatientRecords having the given triage level, in no
+   * particular order. The remaining PatientRecords are rebuilt into a heap in linear time.
+   * 
+   * @param triage triage level of the PatientRecords to remove
+   * @return the removed PatientRecords
+   */
+  synchronized PatientRecord[] removeAll(TriageLevel triage) {
+    return this.extract(p -> p.getTriage() == triage);
+  }
+
+  /**
+   * Removes and returns all the waiting PatientRecords matching the given predicate, in no
+   * particular order. The remaining PatientRecords are rebuilt into a heap in linear time, and
+   * claimed PatientRecords are left untouched.
+   * 
+   * @param predicate selects the PatientRecords to remove
+   * @return the removed PatientRecords
+   */
+  private PatientRecord[] extract(Predicate<PatientRecord> predicate) {
+    this.compact(); // purge the tombstones so that every remaining element is live
+
+    PatientRecord[] removed = new PatientRecord[this.size];
+    int count = 0; // number of removed records
+    int kept = 0; // number of records kept in the array-heap
+
+    // Partition the array-heap between the kept and the removed records
+    for (int i = 0; i < this.size; i++) {
+      PatientRecord p = this.queue[i];
+      if (predicate.test(p)) {
+        removed[count++] = p;
+        this.waiting.remove(p.getArrivalOrder(), p);
+        this.unranked(p);
+        this.changed(QueueChange.TRANSFERRED, p);
+      } else {
+        this.queue[kept++] = p;
+      }
+    }
+    Arrays.fill(this.queue, kept, this.size, null);
+    this.size = kept;
+    this.heapify();
+    this.modCount++;
+    this.shrinkStorage();
+    return Arrays.copyOf(removed, count);
+  }
+
+  /**
+   * Recursive implementation of percolateUp() method. Restores the min-heap invariant of this
+   * priority queue by percolating a leaf up the heap. If the element at the given index does not
+   * violate the min-heap invariant (it is greater than its parent), then this method does not
+   * modify the heap. Otherwise, if there is a heap violation, swap the element with its parent and
+   * continue percolating the element up the heap.
+   * 
+   * @param i index of the element in the heap to percolate upwards
+   * @throws IndexOutOfBoundsException if index is out of bounds (out of the range 0..size()-1
+   *                                   inclusive)
+   */
+  protected void percolateUp(int i) throws IndexOutOfBoundsException {
+
+    // If i is greater than size or negative, throw an IndexOutOfBoundsException
+    if (i > this.size || i < 0) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    // Set the parent and children index's for this current Patient at index i
+    int parent = (i - 1) / 2;
+    int leftChild = (2 * i) + 1;
+    int rightChild = (2 * i) + 2;
+
+    PatientRecord temp; // Set temporary patient variable to swap
+
+    // If i is 0, it is does not need to percolate up, return
+    if (i == 0) {
+      return;
+    }
+
+    // If the parent patient has a smaller or equal triage than this current patient, return
+    if (queue[parent].priorityKey <= queue[i].priorityKey) {
+      return;
+    }
+
+    // If the parent has a greater triage than this current patient, swap patient and its parent
+    else {
+      temp = queue[parent];
+      queue[parent] = queue[i];
+      queue[i] = temp;
+      this.siftDepth++;
+      percolateUp(parent);
+    }
+  }
+
+  /**
+   * Removes and returns the PatientRecord at the root of this PriorityCareAdmissions queue, i.e.
+   * the PatientRecord having the highest priority (the minimum one).
+   * 
+   * @return the PatientRecord in this PriorityCareAdmissions queue at the root of this priority
+   *         queue.
+   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
+   *                                if this PriorityCareAdmissions queue is empty
+   */
+  public synchronized PatientRecord removeBestRecord() throws NoSuchElementException {
+    PatientRecord patientReturn = this.poll(); // Remove the min triage patient
+
+    // If the min-queue is empty, throw a descriptive NoSuchElementException
+    if (patientReturn == null) {
+      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+    }
+    return patientReturn; // Return the min-triage patient
+  }
+
+  /**
+   * Removes and returns the PatientRecord at the root of this PriorityCareAdmissions queue, or
+   * returns null if this queue is empty. Unlike removeBestRecord(), this method never throws.
+   * 
+   * @return the PatientRecord having the highest priority, or null if this queue is empty
+   */
+  public synchronized PatientRecord poll() {
+
+    QueueEvents.Dispatch event = new QueueEvents.Dispatch();
+    event.begin();
+    this.expireDueLeases(); // Return the patients whose lease expired to the queue
+    this.skipTombstones(); // Make sure the root is a live patient
+
+    if (this.size == 0) {
+      return null;
+    }
+    PatientRecord patientReturn = this.removeRoot();
+    this.waiting.remove(patientReturn.getArrivalOrder(), patientReturn);
+    this.unranked(patientReturn);
+    this.served(patientReturn);
+    this.changed(QueueChange.DISPATCHED, patientReturn);
+    if (event.shouldCommit()) {
+      event.caseNumber = patientReturn.CASE_NUMBER;
+      event.triage = patientReturn.getTriage().name();
+      event.queueSize = this.size();
+      event.siftDepth = this.siftDepth;
+      event.commit();
+    }
+    return patientReturn;
+  }
+
+  /**
+   * Returns the waiting PatientRecord having the highest priority among those eligible for the
+   * given Specialty, without removing it. The first call for a specialty builds its sub-heap in
+   * linear time; from then on, every admission also adds the eligible patients to it.
+   * 
+   * @param specialty Specialty of the clinician
+   * @return the best eligible patient, or null if no eligible patient is waiting
+   * @throws NullPointerException if specialty is null
+   */
+  public synchronized PatientRecord peekBestEligible(Specialty specialty)
+      throws NullPointerException {
+    this.expireDueLeases();
+    return this.bestEligible(this.specialtyHeap(specialty));
+  }
+
+  /**
+   * Removes and returns the waiting PatientRecord having the highest priority among those eligible
+   * for the given Specialty, such as the best patient under 18 for a pediatric nurse. Each
+   * specialty dispatched from keeps a sub-heap of references to the records of the array-heap, so
+   * this takes O(log n) amortized time instead of filtering the whole queue. The record is
+   * removed from the array-heap as a tombstone, like a cancellation, and from the sub-heaps of the
+   * other specialties lazily, when it reaches their root. It is reported as dispatched.
+   * 
+   * @param specialty Specialty of the clinician
+   * @return the best eligible patient
+   * @throws NullPointerException   if specialty is null
+   * @throws NoSuchElementException with the exact error message "Warning: No Eligible Patient!" if
+   *                                no eligible patient is waiting in this queue
+   */
+  public synchronized PatientRecord removeBestEligible(Specialty specialty)
+      throws NullPointerException, NoSuchElementException {
+    this.expireDueLeases();
+    SpecialtyHeap view = this.specialtyHeap(specialty);
+    PatientRecord p = this.bestEligible(view);
+    if (p == null) {
+      throw new NoSuchElementException("Warning: No Eligible Patient!");
+    }
+    view.poll();
+    this.waiting.remove(p.getArrivalOrder());
+    this.unranked(p);
+
+    // The best patient overall is removed for real; any other one becomes a tombstone
+    this.skipTombstones();
+    if (this.queue[0] == p) {
+      this.removeRoot();
+    } else {
+      this.tombstones.add(p);
+      if (this.tombstones.size() > this.size * TOMBSTONE_RATIO) {
+        this.compact();
+      }
+    }
+    this.served(p);
+    this.changed(QueueChange.DISPATCHED, p);
+    return p;
+  }
+
+  /**
+   * Returns the sub-heap of the given specialty, building it from the waiting records if this
+   * specialty was never dispatched from
+   */
+  private SpecialtyHeap specialtyHeap(Specialty specialty) {
+    if (specialty == null) {
+      throw new NullPointerException();
+    }
+    int count = this.specialties == null ? 0 : this.specialties.length;
+    for (int i = 0; i < count; i++) {
+      if (this.specialties[i].specialty() == specialty) {
+        return this.specialties[i];
+      }
+    }
+    SpecialtyHeap view = new SpecialtyHeap(specialty);
+    view.rebuild(this.waiting.values());
+    SpecialtyHeap[] views = new SpecialtyHeap[count + 1];
+    if (count > 0) {
+      System.arraycopy(this.specialties, 0, views, 0, count);
+    }
+    views[count] = view;
+    this.specialties = views;
+    return view;
+  }
+
+  /**
+   * Discards the stale entries at the root of the given sub-heap, those of patients no longer
+   * waiting in this queue, and returns the root
+   * 
+   * @return the best eligible waiting patient, or null if there is none
+   */
+  private PatientRecord bestEligible(SpecialtyHeap view) {
+    PatientRecord p;
+    while ((p = view.peek()) != null && !this.isWaiting(p)) {
+      view.poll();
+    }
+    return p;
+  }
+
+  /**
+   * Adds the given PatientRecord, which started waiting, to the sub-heaps of the specialties it is
+   * eligible for. A sub-heap holding more stale entries than waiting patients is rebuilt.
+   */
+  private void eligible(PatientRecord p) {
+    if (this.specialties != null) {
+      for (SpecialtyHeap view : this.specialties) {
+        if (view.offer(p) && view.size() > 2 * this.waiting.size() + 16) {
+          view.rebuild(this.waiting.values());
+        }
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the sub-heaps of the specialties from the waiting records, after their priority keys
+   * or triage levels changed
+   */
+  private void rebuildSpecialties() {
+    if (this.specialties != null) {
+      for (SpecialtyHeap view : this.specialties) {
+        view.rebuild(this.waiting.values());
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the element stored at the root of the array-heap, whether it is live or a
+   * tombstone.
+   * 
+   * @return the element at index 0 of the array-heap
+   */
+  private PatientRecord removeRoot() {
+    PatientRecord root = this.queue[0]; // Set the root to be returned
+
+    this.queue[0] = this.queue[this.size - 1]; // Move the last element to the index 0 spot
+
+    this.queue[this.size - 1] = null; // Remove the last element
+
+    this.size -= 1; // Decrease size by one
+
+    this.siftDepth = 0;
+    this.percolateDown(0); // Percolate the element at index 0 down
+    this.modCount++;
+    this.shrinkStorage();
+
+    return root;
+  }
 
   /**
-   * Creates a new empty PriorityCareAdmissions queue with the given capacity
+   * Cancels the waiting PatientRecord having the given order of arrival, for instance because the
+   * patient left without being seen. The record is only marked as a tombstone, in constant time;
+   * it is skipped when it reaches the root, and the array-heap is compacted once tombstones exceed
+   * a quarter of its elements. Patients are identified by their order of arrival rather than by
+   * their case number, which several waiting patients may share.
    * 
-   * @param capacity Capacity of this PriorityCareAdmissions queue
-   * @throws IllegalArgumentException with a descriptive error message if the capacity is not a
-   *                                  positive integer
+   * @param arrivalOrder order of arrival of the patient to cancel
+   * @return {@code true} if a waiting patient was cancelled, {@code false} if no patient with this
+   *         order of arrival is waiting in this queue
    */
-  public PriorityCareAdmissions(int capacity) throws IllegalArgumentException {
+  public synchronized boolean cancel(int arrivalOrder) {
+    PatientRecord p = this.waiting.remove(arrivalOrder);
 
-    // Throw exception if capacity is not positive
-    if (capacity <= 0) {
-      throw new IllegalArgumentException("Error! You need to input a capacity greater than 0");
+    // If no live patient has this order of arrival, there is nothing to cancel
+    if (p == null) {
+      return false;
     }
 
-    this.queue = new PatientRecord[capacity]; // Initialize an array for this min-queue
-    this.size = 0; // Set the array's size to 0
+    this.tombstones.add(p); // Mark the patient as a tombstone
+    this.unranked(p);
+    this.changed(QueueChange.CANCELLED, p);
+
+    // Rebuild the heap without its tombstones if there are too many of them
+    if (this.tombstones.size() > this.size * TOMBSTONE_RATIO) {
+      this.compact();
+    }
+    return true;
   }
 
   /**
-   * Checks whether this PriorityCareAdmissions queue is empty
+   * Changes the triage levels of many waiting PatientRecords at once, for instance when command
+   * staff re-triage the waiting room during a mass-casualty incident. The new levels are applied
+   * to the records in one pass, then the min-heap invariant is restored with a single linear
+   * heapify, which also purges the tombstones; re-adding every patient would instead cost
+   * O(log n) per patient. The whole batch is applied while holding the lock of this queue, so
+   * concurrent peeks and dispatches see either none or all of the changes.<BR/>
+   * <BR/>
+   * Orders of arrival of patients not waiting in this queue, and levels equal to the current ones,
+   * are ignored. Copies returned earlier by deepCopy() share their PatientRecords with this queue,
+   * so they must no longer be used once a patient was re-triaged.
    * 
-   * @return {@code true} if this PriorityCareAdmissions queue is empty
+   * @param changes new TriageLevel of each patient to re-triage, keyed by order of arrival
+   * @return the number of patients whose triage level changed
+   * @throws NullPointerException if changes is null or maps an order of arrival to null; the queue
+   *                              is then left unchanged
    */
-  public boolean isEmpty() {
+  public synchronized int retriageAll(Map<Integer, TriageLevel> changes)
+      throws NullPointerException {
+    if (changes.containsValue(null)) {
+      throw new NullPointerException();
+    }
 
-    // If there are no patientRecords in this queue, return true
-    if (this.size == 0) {
-      return true;
+    // Update the triage levels and keys of the records in place
+    PatientRecord[] moved = new PatientRecord[Math.min(changes.size(), this.waiting.size())];
+    int count = 0;
+    for (Map.Entry<Integer, TriageLevel> change : changes.entrySet()) {
+      PatientRecord p = this.waiting.get(change.getKey());
+      if (p == null || p.getTriage() == change.getValue()) {
+        continue; // not waiting here, or already at that level
+      }
+      this.unranked(p);
+      p.setTriage(change.getValue());
+      p.priorityKey = this.policy.priorityKey(p);
+      this.ranked(p);
+      moved[count++] = p;
     }
-    return false; // return false if there is more than 0 patientRecords in this queue
+    if (count == 0) {
+      return 0;
+    }
+
+    // Rebuild the heap once for the whole batch
+    if (this.tombstones.isEmpty()) {
+      this.heapify();
+      this.modCount++;
+    } else {
+      this.compact();
+    }
+    this.rebuildSpecialties(); // the keys and eligibility of the moved records changed
+    moved = Arrays.copyOf(moved, count);
+    if (this.slaMonitor != null) {
+      this.slaMonitor.retriaged(moved);
+    }
+    for (PatientRecord p : moved) {
+      this.changed(QueueChange.RETRIAGED, p);
+    }
+    return count;
   }
 
   /**
-   * Returns the size of this PriorityCareAdmissions queue
+   * Returns how many patients are ahead of the waiting PatientRecord having the given order of
+   * arrival, i.e. how many will be dispatched before it if no other patient arrives. Under the
+   * PriorityPolicy.STANDARD policy, this sums the waiting patients of the more urgent triage
+   * levels and those of the same triage level who arrived earlier, in O(log n) time using one
+   * ArrivalRankTree per triage level; the trees are built by the first call, then kept up to date
+   * by every admission and removal. Under any other policy, the waiting PatientRecords are counted
+   * in linear time, without copying this queue.
    * 
-   * @return the total number of PatientRecords stored in this PriorityCareAdmissions queue
+   * @param arrivalOrder order of arrival of a waiting patient
+   * @return the number of waiting patients ahead of that patient, 0 if it is the next one, or -1
+   *         if no patient with this order of arrival is waiting in this queue
    */
-  public int size() {
-    return this.size; // Return this queue's size
+  public synchronized int rankOf(int arrivalOrder) {
+    int[] ahead = this.aheadByTriage(arrivalOrder);
+    if (ahead == null) {
+      return -1;
+    }
+    int rank = 0;
+    for (int count : ahead) {
+      rank += count;
+    }
+    return rank;
   }
 
   /**
-   * Returns the capacity of this PriorityCareAdmissions queue
+   * Estimates how long the waiting PatientRecord having the given order of arrival will wait before
+   * being dispatched, by multiplying the patients ahead of it in each triage level by the rolling
+   * average time between two dispatches of that triage level. Triage levels not dispatched yet are
+   * assumed to take the average time of the others.
    * 
-   * @return the capacity of this PriorityCareAdmissions queue
+   * @param arrivalOrder order of arrival of a waiting patient
+   * @return the estimated wait in milliseconds, or -1 if no patient with this order of arrival is
+   *         waiting in this queue, or if patients are ahead of it but no service time was
+   *         measured yet
    */
-  public int capacity() {
-    return this.queue.length; // return the length of the queue (capacity)
+  public synchronized long estimatedWaitMillis(int arrivalOrder) {
+    int[] ahead = this.aheadByTriage(arrivalOrder);
+    if (ahead == null) {
+      return -1;
+    }
+
+    // Average of the measured service times, for the triage levels not measured yet
+    long measuredSum = 0;
+    int measured = 0;
+    for (long nanos : this.serviceNanos) {
+      if (nanos > 0) {
+        measuredSum += nanos;
+        measured++;
+      }
+    }
+    if (measured == 0) {
+      return this.rankOf(arrivalOrder) == 0 ? 0 : -1;
+    }
+
+    double waitNanos = 0;
+    for (int t = 0; t < ahead.length; t++) {
+      long nanos = this.serviceNanos[t] > 0 ? this.serviceNanos[t] : measuredSum / measured;
+      waitNanos += (double) ahead[t] * nanos;
+    }
+    return Math.round(waitNanos / 1_000_000);
   }
 
   /**
-   * Removes all the elements from this PriorityCareAdmissions queue
+   * Counts the waiting PatientRecords ahead of the one having the given order of arrival, per
+   * triage level
+   * 
+   * @return the number of waiting patients ahead, per triage ordinal, or null if no patient with
+   *         this order of arrival is waiting
    */
-  public void clear() {
+  private int[] aheadByTriage(int arrivalOrder) {
+    PatientRecord p = this.waiting.get(arrivalOrder);
+    if (p == null) {
+      return null;
+    }
+    int[] ahead = new int[TriageLevel.values().length];
 
-    // Reset the queue to an empty array with size zero, keeping its capacity
-    this.queue = new PatientRecord[queue.length];
-    this.size = 0;
+    if (this.policy == PriorityPolicy.STANDARD) {
+      if (this.ranks == null) {
+        this.ranks = new ArrivalRankTree[ahead.length];
+        for (int t = 0; t < ahead.length; t++) {
+          this.ranks[t] = new ArrivalRankTree();
+        }
+        for (PatientRecord r : this.waiting.values()) {
+          this.ranked(r);
+        }
+      }
+      int triage = p.getTriage().ordinal();
+      for (int t = 0; t < triage; t++) {
+        ahead[t] = this.ranks[t].size();
+      }
+      ahead[triage] = this.ranks[triage].countBefore(p.getArrivalOrder());
+    } else {
+      for (PatientRecord r : this.waiting.values()) {
+        if (r.priorityKey < p.priorityKey) {
+          ahead[r.getTriage().ordinal()]++;
+        }
+      }
+    }
+    return ahead;
   }
 
   /**
-   * Returns the PatientRecord at the root of this PriorityCareAdmissions queue, i.e. the
-   * PatientRecord having the the highest priority.
-   * 
-   * @return the PatientRecord at the root of this PriorityCareAdmissions queue
-   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
-   *                                if this PriorityCareAdmissions queue is empty
+   * Counts the given PatientRecord, which just started waiting, in the rank trees if they are
+   * built
    */
-  public PatientRecord peek() throws NoSuchElementException {
+  private void ranked(PatientRecord p) {
+    if (this.ranks != null) {
+      this.ranks[p.getTriage().ordinal()].add(p.getArrivalOrder());
+    }
+  }
 
-    // If the queue is empty, throw an exception
-    if (this.isEmpty()) {
-      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+  /**
+   * Removes the given PatientRecord, which stopped waiting, from the rank trees if they are built
+   */
+  private void unranked(PatientRecord p) {
+    if (this.ranks != null) {
+      this.ranks[p.getTriage().ordinal()].remove(p.getArrivalOrder());
     }
-    return queue[0]; // Return the first value in the queue
   }
 
   /**
-   * Adds the given PatientRecord to this PriorityCareAdmissions queue at the correct position based
-   * on the min-heap ordering. This queue should maintain the min-heap invariant, so that the
-   * PatientRecord at each index is less than or equal to than the PatientRecords in its child
-   * nodes. PatientRecords should be compared using the PatientRecord.compareTo() method.
-   * 
-   * @param p PatientRecord to add to this PriorityCareAdmissions queue
-   * @throws NullPointerException  if the given PatientRecord is null
-   * @throws IllegalStateException with a the exact error message "Warning: Full Admissions Queue!"
-   *                               if this PriorityCareAdmissions queue is full
+   * Updates the rolling average service time of the triage level of the given PatientRecord,
+   * which was just dispatched, with the time elapsed since the previous dispatch. That interval
+   * only measures the service time if the patient was already waiting at the previous dispatch;
+   * otherwise it also includes idle time, and is ignored.
    */
-  public void addPatient(PatientRecord p) throws NullPointerException, IllegalStateException {
+  private void served(PatientRecord p) {
+    long now = System.nanoTime();
+    if (this.lastDispatchNanos != 0 && p.getArrivalNanos() - this.lastDispatchNanos <= 0) {
+      int triage = p.getTriage().ordinal();
+      long interval = now - this.lastDispatchNanos;
+      this.serviceNanos[triage] = this.serviceNanos[triage] == 0 ? Math.max(1, interval)
+          : Math.max(1, Math.round(this.serviceNanos[triage]
+              + SERVICE_SMOOTHING * (interval - this.serviceNanos[triage])));
+    }
+    this.lastDispatchNanos = now;
+  }
 
-    // If the inputed patient is null, throw a NullPointerException
-    if (p == null) {
+  /**
+   * Claims the PatientRecord having the highest priority on behalf of the given clinician. The
+   * record is hidden from this queue, but not marked as seen, until the claim is confirmed or
+   * released, or until its lease expires; in the last two cases, it returns to its original
+   * priority position.
+   * 
+   * @param clinicianId identifier of the clinician claiming the patient
+   * @param leaseMillis duration of the lease in milliseconds
+   * @return the claimed PatientRecord
+   * @throws NullPointerException     if clinicianId is null
+   * @throws IllegalArgumentException if leaseMillis is negative
+   * @throws NoSuchElementException   with the exact error message "Warning: Empty Admissions
+   *                                  Queue!" if this PriorityCareAdmissions queue is empty
+   */
+  public synchronized PatientRecord claimNext(String clinicianId, long leaseMillis)
+      throws NoSuchElementException {
+    if (clinicianId == null) {
       throw new NullPointerException();
     }
-
-    // If this queue is full, throw a descriptive IllegalStateException
-    if (this.queue.length == this.size()) {
-      throw new IllegalStateException("Warning: Full Admissions Queue!");
+    if (leaseMillis < 0) {
+      throw new IllegalArgumentException("Error! The lease duration cannot be negative");
     }
 
-    queue[this.size()] = p; // Add the patient to the array of patients
-    this.size += 1; // Increment size by
-    percolateUp(this.size() - 1); // Keep percolating up the added patient until in correct position
+    this.expireDueLeases(); // Return the patients whose lease expired to the queue
+    this.skipTombstones(); // Make sure the root is a live patient
+    if (this.size == 0) {
+      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+    }
 
+    // Hide the root without reporting it as dispatched, which only confirm() does
+    PatientRecord p = this.removeRoot();
+    this.waiting.remove(p.getArrivalOrder(), p);
+    this.unranked(p);
+    Claim claim = new Claim(p, clinicianId);
+    if (this.leases == null) {
+      this.leases = new TimingWheel<Claim>(LEASE_WHEEL_SLOTS, LEASE_TICK_MILLIS, now());
+    }
+    claim.lease = this.leases.schedule(claim, now() + leaseMillis);
+    this.claims.put(p.getArrivalOrder(), claim);
+    return p;
   }
 
   /**
-   * Recursive implementation of percolateUp() method. Restores the min-heap invariant of this
-   * priority queue by percolating a leaf up the heap. If the element at the given index does not
-   * violate the min-heap invariant (it is greater than its parent), then this method does not
-   * modify the heap. Otherwise, if there is a heap violation, swap the element with its parent and
-   * continue percolating the element up the heap.
+   * Confirms the claim on the PatientRecord having the given order of arrival, and marks the
+   * patient as seen. The patient is reported as dispatched, and its service time measured, now.
    * 
-   * @param i index of the element in the heap to percolate upwards
-   * @throws IndexOutOfBoundsException if index is out of bounds (out of the range 0..size()-1
-   *                                   inclusive)
+   * @param arrivalOrder order of arrival of the claimed patient
+   * @return the PatientRecord of the patient, now marked as seen
+   * @throws NoSuchElementException with the exact error message "Warning: No Active Claim!" if
+   *                                this patient is not claimed, or if its lease expired
    */
-  protected void percolateUp(int i) throws IndexOutOfBoundsException {
+  public synchronized PatientRecord confirm(int arrivalOrder) throws NoSuchElementException {
+    this.expireDueLeases();
+    Claim claim = this.claims.remove(arrivalOrder);
+    if (claim == null) {
+      throw new NoSuchElementException("Warning: No Active Claim!");
+    }
+    QueueEvents.Dispatch event = new QueueEvents.Dispatch();
+    event.begin();
+    this.leases.cancel(claim.lease);
+    PatientRecord p = claim.record;
+    p.seePatient();
+    this.served(p);
+    this.changed(QueueChange.DISPATCHED, p);
+    if (event.shouldCommit()) {
+      event.caseNumber = p.CASE_NUMBER;
+      event.triage = p.getTriage().name();
+      event.queueSize = this.size();
+      event.siftDepth = 0;
+      event.commit();
+    }
+    return p;
+  }
 
-    // If i is greater than size or negative, throw an IndexOutOfBoundsException
-    if (i > this.size() || i < 0) {
-      throw new IndexOutOfBoundsException();
+  /**
+   * Releases the claim on the PatientRecord having the given order of arrival, returning the
+   * patient to its original priority position in this queue
+   * 
+   * @param arrivalOrder order of arrival of the claimed patient
+   * @return {@code true} if the patient was claimed and is now back in the queue
+   */
+  public synchronized boolean release(int arrivalOrder) {
+    this.expireDueLeases();
+    Claim claim = this.claims.remove(arrivalOrder);
+    if (claim == null) {
+      return false;
     }
+    this.leases.cancel(claim.lease);
+    this.readmit(claim.record);
+    return true;
+  }
 
-    // Set the parent and children index's for this current Patient at index i
-    int parent = (i - 1) / 2;
-    int leftChild = (2 * i) + 1;
-    int rightChild = (2 * i) + 2;
+  /**
+   * Returns the patients whose lease expired to their original priority position in this queue.
+   * This is also done automatically by the other claim operations, peek() and removeBestRecord().
+   * 
+   * @return the number of patients returned to this queue
+   */
+  public synchronized int expireLeases() {
+    return this.leases == null ? 0 : this.leases.advanceTo(now(), this::expire);
+  }
 
-    PatientRecord temp; // Set temporary patient variable to swap
+  /**
+   * Returns the number of PatientRecords currently claimed
+   * 
+   * @return the number of claims neither confirmed, released, nor expired
+   */
+  public synchronized int claimCount() {
+    return this.claims.size();
+  }
 
-    // If i is 0, it is does not need to percolate up, return
-    if (i == 0) {
-      return;
-    }
+  /**
+   * Returns the clinician currently holding a claim on the given patient
+   * 
+   * @param arrivalOrder order of arrival of the patient
+   * @return the identifier of the clinician claiming this patient, or null if it is not claimed
+   */
+  public synchronized String claimedBy(int arrivalOrder) {
+    this.expireDueLeases();
+    Claim claim = this.claims.get(arrivalOrder);
+    return claim == null ? null : claim.clinicianId;
+  }
 
-    // If the parent patient has a smaller or equal triage than this current patient, return
-    if (queue[parent].compareTo(queue[i]) <= 0) {
-      return;
+  /**
+   * Expires the due leases, if any claim is pending
+   */
+  private void expireDueLeases() {
+    if (!this.claims.isEmpty()) {
+      this.leases.advanceTo(now(), this::expire);
     }
+  }
 
-    // If the parent has a greater triage than this current patient, swap patient and its parent
-    else {
-      temp = queue[parent];
-      queue[parent] = queue[i];
-      queue[i] = temp;
-      percolateUp(parent);
-    }
+  /**
+   * Returns the PatientRecord of an expired claim to this queue
+   * 
+   * @param claim the expired claim
+   */
+  private void expire(Claim claim) {
+    this.claims.remove(claim.record.getArrivalOrder(), claim);
+    this.readmit(claim.record);
   }
 
   /**
-   * Removes and returns the PatientRecord at the root of this PriorityCareAdmissions queue, i.e.
-   * the PatientRecord having the highest priority (the minimum one).
+   * Returns a formerly claimed PatientRecord to this queue. Its priority key is evaluated again,
+   * since the policy may have changed while it was claimed, and the SlaMonitor tracks its original
+   * deadline again. The change listeners are not notified: they were not told of the claim either.
    * 
-   * @return the PatientRecord in this PriorityCareAdmissions queue at the root of this priority
-   *         queue.
-   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
-   *                                if this PriorityCareAdmissions queue is empty
+   * @param p the PatientRecord of a released or expired claim
    */
-  public PatientRecord removeBestRecord() throws NoSuchElementException {
+  private void readmit(PatientRecord p) {
+    p.priorityKey = this.policy.priorityKey(p);
+    this.store(p);
+    this.admitted(p);
+  }
 
-    // If the min-queue is empty, throw a descriptive NoSuchElementException
-    if (this.isEmpty()) {
-      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
-    }
+  /**
+   * Returns the current time in milliseconds on the monotonic clock used for leases
+   */
+  private static long now() {
+    return System.nanoTime() / 1_000_000;
+  }
 
-    PatientRecord patientReturn = this.queue[0]; // Set the min triage patient to be returned
+  /**
+   * PatientRecord claimed by a clinician, along with its lease
+   */
+  private static class Claim {
+    private final PatientRecord record; // claimed PatientRecord
+    private final String clinicianId; // clinician holding the claim
+    private TimingWheel.Timeout<Claim> lease; // expiry of this claim
 
-    this.queue[0] = this.queue[size() - 1]; // Move the largest triage patient to the index 0 spot
+    /**
+     * Creates a claim of the given record by the given clinician
+     */
+    private Claim(PatientRecord record, String clinicianId) {
+      this.record = record;
+      this.clinicianId = clinicianId;
+    }
+  }
 
-    this.queue[this.size() - 1] = null; // Remove the last patient with the greatest triage
+  /**
+   * Removes the tombstones sitting at the root of the array-heap, if any, so that the root is a
+   * live PatientRecord or this queue is empty.
+   */
+  private void skipTombstones() {
+    while (this.size > 0 && this.tombstones.remove(this.queue[0])) {
+      this.removeRoot();
+    }
+  }
 
-    this.size -= 1; // Decrease size by one
+  /**
+   * Purges all the tombstones from the array-heap, releasing their slots, and restores the
+   * min-heap invariant with a linear bottom-up heapify.
+   */
+  private void compact() {
+    int live = 0; // number of live elements moved to the front of the array
 
-    this.percolateDown(0); // Percolate the patient at index 0 down
+    // Slide every live element towards the front of the array
+    for (int i = 0; i < this.size; i++) {
+      if (!this.tombstones.contains(this.queue[i])) {
+        this.queue[live++] = this.queue[i];
+      }
+    }
+    Arrays.fill(this.queue, live, this.size, null); // release the tombstones' slots
+    this.size = live;
+    this.tombstones.clear();
+    this.heapify();
+    this.modCount++;
+    this.shrinkStorage();
+  }
 
-    return patientReturn; // Return the min-triage patient
+  /**
+   * Restores the min-heap invariant over the first size elements of the array-heap in linear
+   * time, by percolating down every internal node starting from the last one.
+   */
+  private void heapify() {
+    for (int i = this.size / 2 - 1; i >= 0; i--) {
+      this.percolateDown(i);
+    }
   }
 
 
@@ -208,7 +1567,7 @@ public class PriorityCareAdmissions {
   protected void percolateDown(int i) throws IndexOutOfBoundsException {
 
     // If is greater than size, throw an IndexOutOfBoundsException
-    if (i > this.size()) {
+    if (i > this.size) {
       throw new IndexOutOfBoundsException();
     }
 
@@ -220,7 +1579,7 @@ public class PriorityCareAdmissions {
     int smallerChild; // index of the smaller child (right or left)
 
     // If the right and left children's index are greater than size, return
-    if (rightChild >= this.size() && leftChild >= this.size()) {
+    if (rightChild >= this.size && leftChild >= this.size) {
       return;
     }
 
@@ -228,11 +1587,12 @@ public class PriorityCareAdmissions {
     else if (rightChild >= this.size && leftChild < this.size) {
 
       // If the current Patient has a higher triage than its child, swap the two
-      if (this.queue[i].compareTo(this.queue[leftChild]) > 0) {
+      if (this.queue[i].priorityKey > this.queue[leftChild].priorityKey) {
         smallerChild = leftChild;
         temp = this.queue[smallerChild];
         this.queue[smallerChild] = this.queue[i];
         this.queue[i] = temp;
+        this.siftDepth++;
         percolateDown(smallerChild); // Keep percolating the current patient until at correct place
       }
     }
@@ -241,7 +1601,7 @@ public class PriorityCareAdmissions {
     else {
 
       // If the left child has a smaller triage than the right child
-      if (this.queue[leftChild].compareTo(this.queue[rightChild]) < 0) {
+      if (this.queue[leftChild].priorityKey < this.queue[rightChild].priorityKey) {
         smallerChild = leftChild; // the leftChild is smaller
       }
 
@@ -251,7 +1611,7 @@ public class PriorityCareAdmissions {
       }
 
       // If the current patient has smaller triage than the smaller child, return
-      if (this.queue[i].compareTo(this.queue[smallerChild]) <= 0) {
+      if (this.queue[i].priorityKey <= this.queue[smallerChild].priorityKey) {
         return;
       }
 
@@ -260,12 +1620,158 @@ public class PriorityCareAdmissions {
         temp = this.queue[smallerChild];
         this.queue[smallerChild] = this.queue[i];
         this.queue[i] = temp;
+        this.siftDepth++;
         percolateDown(smallerChild); // Keep percolating the current patient until at correct place
       }
     }
   }
 
 
+  /**
+   * Returns the PriorityPolicy currently used to order the PatientRecords of this queue
+   * 
+   * @return the current PriorityPolicy of this queue
+   */
+  public synchronized PriorityPolicy getPolicy() {
+    return this.policy;
+  }
+
+  /**
+   * Switches this queue to the given PriorityPolicy. The priority keys of the waiting
+   * PatientRecords are recomputed and the heap is rebuilt with a parallel linear heapify in the
+   * background, while admissions and dispatches continue under the current policy. The new
+   * policy is installed atomically once the rebuild completes; if the queue was modified in the
+   * meantime, the rebuild is retried, and eventually finished while holding the lock of this
+   * queue.<BR/>
+   * <BR/>
+   * Copies returned earlier by deepCopy() share their PatientRecords with this queue, so they must
+   * no longer be used once the returned future completes.
+   * 
+   * @param newPolicy PriorityPolicy to switch to
+   * @return a future completing once the new policy is installed
+   * @throws NullPointerException if newPolicy is null
+   */
+  public CompletableFuture<Void> setPolicy(PriorityPolicy newPolicy) {
+    if (newPolicy == null) {
+      throw new NullPointerException();
+    }
+    int version;
+    synchronized (this) {
+      version = ++this.policyVersion;
+    }
+    return CompletableFuture.runAsync(() -> this.rebuild(newPolicy, version));
+  }
+
+  /**
+   * Rebuilds the array-heap under the given policy, off the lock when possible, then installs it
+   * unless a more recent call to setPolicy() superseded it.
+   * 
+   * @param newPolicy PriorityPolicy to switch to
+   * @param version   value of policyVersion for this switch
+   */
+  private void rebuild(PriorityPolicy newPolicy, int version) {
+    for (int attempt = 0; attempt < POLICY_REBUILD_ATTEMPTS; attempt++) {
+      PatientRecord[] records;
+      int expectedModCount;
+      synchronized (this) {
+        if (version != this.policyVersion) {
+          return; // superseded by a later policy switch
+        }
+        records = Arrays.copyOf(this.queue, this.size);
+        expectedModCount = this.modCount;
+      }
+
+      // Evaluate the new policy and rebuild the heap without holding the lock
+      long[] keys = new long[records.length];
+      IntStream.range(0, records.length).parallel()
+          .forEach(i -> keys[i] = newPolicy.priorityKey(records[i]));
+      parallelHeapify(records, keys);
+
+      synchronized (this) {
+        if (version != this.policyVersion) {
+          return;
+        }
+        if (expectedModCount == this.modCount) {
+          for (int i = 0; i < records.length; i++) {
+            records[i].priorityKey = keys[i];
+          }
+          System.arraycopy(records, 0, this.queue, 0, records.length);
+          this.policy = newPolicy;
+          this.rebuildSpecialties();
+          this.modCount++;
+          this.changed(QueueChange.REORDERED, null);
+          return;
+        }
+      }
+    }
+
+    // The queue kept changing: finish the rebuild while holding the lock
+    synchronized (this) {
+      if (version == this.policyVersion) {
+        for (int i = 0; i < this.size; i++) {
+          this.queue[i].priorityKey = newPolicy.priorityKey(this.queue[i]);
+        }
+        this.heapify();
+        this.policy = newPolicy;
+        this.rebuildSpecialties();
+        this.modCount++;
+        this.changed(QueueChange.REORDERED, null);
+      }
+    }
+  }
+
+  /**
+   * Turns the given records into a min-heap of their keys in linear time. Subtrees rooted at the
+   * same depth are disjoint, so every level of internal nodes is sifted down in parallel, starting
+   * from the deepest one.
+   * 
+   * @param records records to arrange into a heap
+   * @param keys    keys of the records, rearranged along with them
+   */
+  static void parallelHeapify(PatientRecord[] records, long[] keys) {
+    int n = records.length;
+    if (n < 2) {
+      return;
+    }
+    int lastInternal = n / 2 - 1; // index of the last node having a child
+
+    // Walk the levels of internal nodes bottom-up; a level starting at index s ends at index 2s
+    for (int levelStart = Integer.highestOneBit(lastInternal + 1) - 1; levelStart >= 0;
+        levelStart = (levelStart + 1) / 2 - 1) {
+      int levelEnd = Math.min(lastInternal, 2 * levelStart);
+      if (levelEnd - levelStart + 1 >= PARALLEL_LEVEL_WIDTH) {
+        IntStream.rangeClosed(levelStart, levelEnd).parallel()
+            .forEach(i -> siftDown(records, keys, i, n));
+      } else {
+        for (int i = levelStart; i <= levelEnd; i++) {
+          siftDown(records, keys, i, n);
+        }
+      }
+    }
+  }
+
+  /**
+   * Iteratively sifts down the record at index i of a heap of n records ordered by keys
+   */
+  private static void siftDown(PatientRecord[] records, long[] keys, int i, int n) {
+    PatientRecord record = records[i];
+    long key = keys[i];
+    int child;
+    while ((child = 2 * i + 1) < n) {
+      if (child + 1 < n && keys[child + 1] < keys[child]) {
+        child++;
+      }
+      if (key <= keys[child]) {
+        break;
+      }
+      records[i] = records[child];
+      keys[i] = keys[child];
+      i = child;
+    }
+    records[i] = record;
+    keys[i] = key;
+  }
+
   /**
    * Returns a deep copy of this PriorityCareAdmissions queue containing all of its elements in the
    * same order. This method does not return the deepest copy, meaning that you do not need to
@@ -275,11 +1781,23 @@ public class PriorityCareAdmissions {
    * @return a deep copy of this PriorityCareAdmissions queue. The returned new priority care
    *         admissions queue has the same length and size as this queue.
    */
-  public PriorityCareAdmissions deepCopy() {
-    PriorityCareAdmissions deepCopy = new PriorityCareAdmissions(this.capacity());
-    deepCopy.queue = Arrays.copyOf(this.queue, this.queue.length);
-    deepCopy.size = this.size;
-    return deepCopy;
+  public synchronized PriorityCareAdmissions deepCopy() {
+    QueueEvents.Listing event = new QueueEvents.Listing();
+    event.begin();
+    PriorityCareAdmissions copy = new PriorityCareAdmissions(this);
+    this.listed(event, "deepCopy");
+    return copy;
+  }
+
+  /**
+   * Commits the given listing event for the given operation, if it is enabled
+   */
+  private void listed(QueueEvents.Listing event, String operation) {
+    if (event.shouldCommit()) {
+      event.operation = operation;
+      event.queueSize = this.size();
+      event.commit();
+    }
   }
 
   /**
@@ -289,11 +1807,56 @@ public class PriorityCareAdmissions {
    * 
    * @return a deep copy of the array-heap storing the ParientRecords in this queue
    */
-  protected PatientRecord[] arrayHeapCopy() {
+  protected synchronized PatientRecord[] arrayHeapCopy() {
     return Arrays.copyOf(this.queue, this.queue.length);
 
   }
 
+  /**
+   * Takes a consistent snapshot of the live PatientRecords of this queue and of their priority
+   * keys, in array-heap order.
+   * 
+   * @return the snapshot
+   */
+  synchronized Snapshot snapshot() {
+    PatientRecord[] records = new PatientRecord[this.size()];
+    long[] keys = new long[records.length];
+    int count = 0;
+    for (int i = 0; i < this.size; i++) {
+      if (!this.tombstones.contains(this.queue[i])) {
+        records[count] = this.queue[i];
+        keys[count++] = this.queue[i].priorityKey;
+      }
+    }
+    return new Snapshot(records, keys);
+  }
+
+  /**
+   * Returns the live PatientRecords of this queue, in array-heap order. Claimed PatientRecords are
+   * not included.
+   * 
+   * @return a new array holding the waiting PatientRecords
+   */
+  public synchronized PatientRecord[] toArray() {
+    return this.snapshot().records;
+  }
+
+  /**
+   * Live PatientRecords of a queue along with their priority keys at the time of the snapshot
+   */
+  static class Snapshot {
+    final PatientRecord[] records; // live records, in array-heap order
+    final long[] keys; // keys[i] is the priority key of records[i]
+
+    /**
+     * Creates a snapshot of the given records and keys
+     */
+    Snapshot(PatientRecord[] records, long[] keys) {
+      this.records = records;
+      this.keys = keys;
+    }
+  }
+
   /**
    * Returns a String representing this PriorityCareAdmissions queue, where each element
    * (PatientRecord) of the queue is listed on a separate line, in order from smallest to greatest.
@@ -301,19 +1864,99 @@ public class PriorityCareAdmissions {
    * @return a String representing this PriorityCareAdmissions queue, and an empty String "" if this
    *         queue is empty.
    */
-  public String toString() {
-    // Initialize a deep copy to be looped through to generate the toString
-    PriorityCareAdmissions admissionsCopy = this.deepCopy();
+  public synchronized String toString() {
+    long length = (long) this.size() * PatientRecord.MAX_FORMATTED_BYTES;
+    return formatTo(new StringBuilder((int) Math.min(length, Integer.MAX_VALUE - 8))).toString();
+  }
+
+  /**
+   * Appends every PatientRecord of this queue to the given StringBuilder, one per line, in order
+   * from smallest to greatest (the same listing as toString()). The records are sorted in an array
+   * reused from one listing to the next, so no garbage is created per record.
+   * 
+   * @param sb StringBuilder to append to
+   * @return the given StringBuilder, for chaining
+   */
+  public synchronized StringBuilder formatTo(StringBuilder sb) {
+    QueueEvents.Listing event = new QueueEvents.Listing();
+    event.begin();
+    int count = this.sortListing();
+
+    // The smallest record was sorted last, so list from the end of the array
+    for (int i = count - 1; i >= 0; i--) {
+      if (!this.tombstones.contains(this.listing[i])) {
+        this.listing[i].formatTo(sb).append('\n');
+      }
+    }
+    Arrays.fill(this.listing, 0, count, null); // do not keep dispatched patients reachable
+    this.listed(event, "formatTo");
+    return sb;
+  }
 
-    String returnString = ""; // Initialize the returned toString as blank
+  /**
+   * Streams every PatientRecord of this queue to the given channel, one per line, in order from
+   * smallest to greatest (the same listing as toString()). Records are formatted straight into the
+   * given reusable buffer, which is flushed to the channel whenever it runs low.
+   * 
+   * @param buffer reusable buffer of at least PatientRecord.MAX_FORMATTED_BYTES bytes
+   * @param out    channel to write the listing to
+   * @throws IOException if writing to the channel fails
+   */
+  public synchronized void writeTo(ByteBuffer buffer, WritableByteChannel out)
+      throws IOException {
+    QueueEvents.Listing event = new QueueEvents.Listing();
+    event.begin();
+    int count = this.sortListing();
+    try {
+      for (int i = count - 1; i >= 0; i--) {
+        if (!this.tombstones.contains(this.listing[i])) {
+          PatientRecord.writeLine(this.listing[i], buffer, out);
+        }
+      }
+    } finally {
+      Arrays.fill(this.listing, 0, count, null); // do not keep dispatched patients reachable
+    }
+    PatientRecord.flush(buffer, out);
+    this.listed(event, "writeTo");
+  }
 
-    // While the deep copy of the min-queue is not empty
-    while (admissionsCopy.isEmpty() == false) {
+  /**
+   * Copies the array-heap, tombstones included, into the reused listing array and sorts it in
+   * place: the root is repeatedly swapped with the last element of the remaining heap, which is
+   * then percolated down, exactly as removeRoot() would dispatch it. The records thus end up from
+   * greatest, at index 0, to smallest, at index size - 1.
+   * 
+   * @return the number of records sorted into the listing array
+   */
+  private int sortListing() {
+    if (this.listing == null || this.listing.length < this.size) {
+      this.listing = new PatientRecord[Math.max(this.size, RecordArena.MIN_LENGTH)];
+    }
+    PatientRecord[] heap = this.listing;
+    System.arraycopy(this.queue, 0, heap, 0, this.size);
+    for (int last = this.size - 1; last > 0; last--) {
+      PatientRecord root = heap[0];
+      heap[0] = heap[last];
+      heap[last] = root;
 
-      // add on the next lowest triage patient to the return string with a blank line
-      returnString += admissionsCopy.removeBestRecord().toString() + "\n";
+      // Percolate the new root down the heap of the first last elements
+      int i = 0;
+      while (2 * i + 1 < last) {
+        int smallerChild = 2 * i + 1;
+        if (smallerChild + 1 < last
+            && heap[smallerChild].priorityKey >= heap[smallerChild + 1].priorityKey) {
+          smallerChild++; // the right child is smaller or equal to the left child
+        }
+        if (heap[i].priorityKey <= heap[smallerChild].priorityKey) {
+          break;
+        }
+        PatientRecord temp = heap[smallerChild];
+        heap[smallerChild] = heap[i];
+        heap[i] = temp;
+        i = smallerChild;
+      }
     }
-    return returnString; // Return the entire toString of the queue
+    return this.size;
   }
 
 }
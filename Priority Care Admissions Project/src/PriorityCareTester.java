@@ -1,6 +1,35 @@
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 /**
  * This is a Utility class which contains tester methods to ensure the correctness of the
@@ -444,7 +473,8 @@ public class PriorityCareTester {
 
 
   /**
-   * Tests toString() method of PriorityCareAdmissions class.
+   * Tests toString() method of PriorityCareAdmissions class, and the formatTo() and writeTo()
+   * listings of a queue holding cancelled patients.
    * 
    * @return true if the tester verifies a correct functionality and false if at least one bug is
    *         detected
@@ -483,9 +513,2079 @@ public class PriorityCareTester {
     if (!testAdmissions.toString().equals("")) {
       return false;
     }
+
+    // Ensure that listing a queue with cancelled patients follows the dispatch order, through both
+    // formatTo() and writeTo(), without reporting any change to the listeners of the queue
+    Random random = new Random(26);
+    PriorityCareAdmissions listed = new PriorityCareAdmissions(500);
+    for (int i = 0; i < 500; i++) {
+      listed.addPatient(new PatientRecord('F', random.nextInt(100),
+          TriageLevel.values()[random.nextInt(3)]));
+    }
+    for (PatientRecord p : listed.toArray()) {
+      if (random.nextInt(4) == 0) {
+        listed.cancel(p.getArrivalOrder());
+      }
+    }
+    StringBuilder drained = new StringBuilder();
+    PriorityCareAdmissions copy = listed.deepCopy();
+    while (!copy.isEmpty()) {
+      drained.append(copy.removeBestRecord()).append('\n');
+    }
+    int waiting = listed.size();
+    ArrayList<QueueChange> changes = new ArrayList<QueueChange>();
+    listed.addChangeListener((change, p) -> changes.add(change));
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    try {
+      listed.writeTo(ByteBuffer.allocate(256), Channels.newChannel(written));
+    } catch (IOException e) {
+      return false;
+    }
+    if (!listed.toString().equals(drained.toString())
+        || !written.toString(StandardCharsets.UTF_8).equals(drained.toString())
+        || !changes.isEmpty() || listed.size() != waiting) {
+      return false;
+    }
     return true; // returns true if and only if all test cases pass
   }
 
+  /**
+   * Tests that PatientRecord.formatTo() writes exactly the same text as toString() into both a
+   * StringBuilder and a ByteBuffer, for seen and unseen records of every triage level.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testPatientRecordFormatTo() {
+
+    // Initialize records covering every triage level, and mark one of them as seen
+    PatientRecord[] records = new PatientRecord[] {new PatientRecord('M', 17, TriageLevel.YELLOW),
+        new PatientRecord('F', 103, TriageLevel.RED), new PatientRecord('X', 0, TriageLevel.GREEN)};
+    records[1].seePatient();
+
+    ByteBuffer buffer = ByteBuffer.allocate(PatientRecord.MAX_FORMATTED_BYTES);
+    StringBuilder sb = new StringBuilder();
+    for (PatientRecord p : records) {
+
+      // Ensure the StringBuilder path matches toString()
+      sb.setLength(0);
+      if (!p.formatTo(sb).toString().equals(p.toString())) {
+        return false;
+      }
+
+      // Ensure the ByteBuffer path matches toString()
+      buffer.clear();
+      p.formatTo(buffer).flip();
+      if (!StandardCharsets.UTF_8.decode(buffer).toString().equals(p.toString())) {
+        return false;
+      }
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests the functionality of cancel() method. Cancelled patients should no longer be counted by
+   * size(), returned by peek() or removeBestRecord(), or listed by toString(), while the remaining
+   * patients keep their order. Cancelling an unknown or already cancelled case number should
+   * return false.
+   * 
+   * @return true if PriorityCareAdmissions.cancel() functions properly, false otherwise
+   */
+  public static boolean testCancel() {
+
+    // Initialize queue to be tested on
+    PriorityCareAdmissions testAdmissions = new PriorityCareAdmissions(6);
+
+    // Initialize the patient records to be added to the queue
+    PatientRecord test1 = new PatientRecord('M', 18, TriageLevel.RED);
+    PatientRecord test2 = new PatientRecord('F', 19, TriageLevel.RED);
+    PatientRecord test3 = new PatientRecord('M', 20, TriageLevel.YELLOW);
+    PatientRecord test4 = new PatientRecord('F', 21, TriageLevel.YELLOW);
+    PatientRecord test5 = new PatientRecord('M', 48, TriageLevel.GREEN);
+
+    // Add the patient records to the queue
+    testAdmissions.addPatient(test1);
+    testAdmissions.addPatient(test2);
+    testAdmissions.addPatient(test3);
+    testAdmissions.addPatient(test4);
+    testAdmissions.addPatient(test5);
+
+    // Cancel the root and a patient in the middle of the queue
+    if (!testAdmissions.cancel(test1.getArrivalOrder())
+        || !testAdmissions.cancel(test4.getArrivalOrder())) {
+      return false;
+    }
+
+    // Ensure that cancelling twice, or cancelling an unknown patient, returns false
+    if (testAdmissions.cancel(test1.getArrivalOrder()) || testAdmissions.cancel(99999)) {
+      return false;
+    }
+
+    // Ensure that size only counts the live patients and peek skips the cancelled root
+    if (testAdmissions.size() != 3 || !testAdmissions.peek().equals(test2)) {
+      return false;
+    }
+
+    // Ensure the remaining patients are listed in order
+    String expected = test2.toString() + "\n" + test3.toString() + "\n" + test5.toString() + "\n";
+    if (!testAdmissions.toString().equals(expected)) {
+      return false;
+    }
+
+    // Ensure that cancelled slots can be reused once the queue is full
+    testAdmissions.addPatient(new PatientRecord('X', 30, TriageLevel.GREEN));
+    testAdmissions.addPatient(new PatientRecord('X', 31, TriageLevel.GREEN));
+    testAdmissions.addPatient(new PatientRecord('X', 32, TriageLevel.GREEN));
+    if (testAdmissions.size() != 6 || !testAdmissions.removeBestRecord().equals(test2)) {
+      return false;
+    }
+
+    // Case numbers repeat every 100 patients: cancelling one of two waiting patients sharing a
+    // case number must leave the other one waiting
+    PriorityCareAdmissions sameCase = new PriorityCareAdmissions(2);
+    PatientRecord earlier = new PatientRecord('F', 40, TriageLevel.GREEN);
+    for (int i = 0; i < 99; i++) {
+      new PatientRecord('M', 50, TriageLevel.GREEN); // advances the patient counter
+    }
+    PatientRecord later = new PatientRecord('F', 40, TriageLevel.GREEN);
+    sameCase.addPatient(earlier);
+    sameCase.addPatient(later);
+    if (earlier.CASE_NUMBER != later.CASE_NUMBER || !sameCase.cancel(earlier.getArrivalOrder())
+        || sameCase.size() != 1 || sameCase.peek() != later
+        || !sameCase.cancel(later.getArrivalOrder()) || !sameCase.isEmpty()) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests the functionality of TieredCareAdmissions. Admitting more patients than fit in its
+   * in-memory tier should spill the least urgent ones to disk, and removeBestRecord() should still
+   * return every patient in priority order across both tiers, with their arrival time and
+   * readmission flags, deleting the segment files at the end.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testTieredCareAdmissions() {
+    PatientRecord.resetCounter();
+    TriageLevel[] levels = TriageLevel.values();
+    PatientRecord[] expected = new PatientRecord[40];
+
+    try {
+      Path directory = Files.createTempDirectory("tiered");
+      try (TieredCareAdmissions testAdmissions = new TieredCareAdmissions(16, directory)) {
+
+        // Admit 40 patients with a mix of triage levels through an in-memory tier of 16
+        for (int i = 0; i < expected.length; i++) {
+          expected[i] = new PatientRecord('F', 20 + i, levels[(i * 7) % 3]);
+          if (i % 5 == 0) {
+            expected[i].flagReadmission(i % 10 == 0);
+          }
+          testAdmissions.addPatient(expected[i]);
+        }
+
+        // Ensure some patients were spilled and none was lost
+        if (testAdmissions.spilledSize() == 0 || testAdmissions.size() != expected.length) {
+          return false;
+        }
+
+        // Ensure the segment files got unpredictable names in the spill directory
+        try (Stream<Path> files = Files.list(directory)) {
+          if (files.anyMatch(f -> !f.getFileName().toString().startsWith("admissions-")
+              || f.getFileName().toString().equals("admissions-0.seg"))) {
+            return false;
+          }
+        }
+
+        // Ensure the patients come out in priority order, with their arrival time and readmission
+        // flags intact after a trip to disk
+        Arrays.sort(expected);
+        for (PatientRecord p : expected) {
+          if (testAdmissions.peek().compareTo(p) != 0) {
+            return false;
+          }
+          PatientRecord best = testAdmissions.removeBestRecord();
+          if (best.compareTo(p) != 0 || best.getArrivalNanos() != p.getArrivalNanos()
+              || best.isReadmissionChecked() != p.isReadmissionChecked()
+              || best.isLikelyReadmission() != p.isLikelyReadmission()) {
+            return false;
+          }
+        }
+
+        // Ensure the queue is empty and every segment file was deleted
+        try (Stream<Path> files = Files.list(directory)) {
+          if (!testAdmissions.isEmpty() || files.count() != 0) {
+            return false;
+          }
+        }
+      }
+      Files.delete(directory);
+    } catch (IOException e) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests the PriorityPolicy support of PriorityCareAdmissions. Switching a queue to an age-boost
+   * policy should serve young and old patients first within their triage level, and the parallel
+   * background rebuild should leave a large queue in a valid order.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testSetPolicy() {
+
+    // Initialize queue and patients to be tested on
+    PriorityCareAdmissions testAdmissions = new PriorityCareAdmissions(4);
+    PatientRecord test1 = new PatientRecord('M', 30, TriageLevel.YELLOW);
+    PatientRecord test2 = new PatientRecord('F', 3, TriageLevel.YELLOW);
+    PatientRecord test3 = new PatientRecord('X', 40, TriageLevel.RED);
+    PatientRecord test4 = new PatientRecord('M', 90, TriageLevel.RED);
+    testAdmissions.addPatient(test1);
+    testAdmissions.addPatient(test2);
+    testAdmissions.addPatient(test3);
+    testAdmissions.addPatient(test4);
+
+    // Ensure that the standard policy orders by triage then arrival
+    String expected = test3.toString() + "\n" + test4.toString() + "\n" + test1.toString() + "\n"
+        + test2.toString() + "\n";
+    if (!testAdmissions.toString().equals(expected)) {
+      return false;
+    }
+
+    // Ensure that the age-boost policy serves patients under 5 or over 80 first within a level
+    PriorityPolicy ageBoost = PriorityPolicy.ageBoost(5, 80);
+    testAdmissions.setPolicy(ageBoost).join();
+    expected = test4.toString() + "\n" + test3.toString() + "\n" + test2.toString() + "\n"
+        + test1.toString() + "\n";
+    if (testAdmissions.getPolicy() != ageBoost || !testAdmissions.toString().equals(expected)) {
+      return false;
+    }
+
+    // Ensure that a large queue rebuilt in parallel dequeues its records in key order
+    Random random = new Random(300);
+    PriorityCareAdmissions largeAdmissions = new PriorityCareAdmissions(50000);
+    for (int i = 0; i < 50000; i++) {
+      largeAdmissions.addPatient(new PatientRecord('F', random.nextInt(100),
+          TriageLevel.values()[random.nextInt(3)]));
+    }
+    largeAdmissions.setPolicy(ageBoost).join();
+    long previous = Long.MIN_VALUE;
+    while (!largeAdmissions.isEmpty()) {
+      long key = ageBoost.priorityKey(largeAdmissions.removeBestRecord());
+      if (key < previous) {
+        return false;
+      }
+      previous = key;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests AdmissionsExporter. The CSV export of a queue should list its waiting patients in the
+   * same order as toString(), after a header line, and the JSON export should hold one object per
+   * waiting patient. Exporting should not modify the queue, and a gender marker that is a comma or
+   * a quote should be quoted in the CSV export.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testExport() {
+
+    // Initialize a queue with patients of every triage level, one of them cancelled
+    Random random = new Random(30);
+    PriorityCareAdmissions testAdmissions = new PriorityCareAdmissions(20000);
+    for (int i = 0; i < 20000; i++) {
+      testAdmissions.addPatient(new PatientRecord('M', random.nextInt(100),
+          TriageLevel.values()[random.nextInt(3)]));
+    }
+    testAdmissions.cancel(testAdmissions.peek().getArrivalOrder());
+    String[] expected = testAdmissions.toString().split("\n");
+
+    try {
+      Path csv = Files.createTempFile("export", ".csv");
+      Path json = Files.createTempFile("export", ".json");
+      try {
+
+        // Ensure the CSV lines follow the priority order of the queue
+        int count = AdmissionsExporter.export(testAdmissions, csv, AdmissionsExporter.Format.CSV);
+        List<String> lines = Files.readAllLines(csv);
+        if (count != expected.length || lines.size() != expected.length + 1) {
+          return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+          String[] fields = lines.get(i + 1).split(",");
+          if (!expected[i].startsWith(fields[1] + ": " + fields[2] + fields[3] + " (" + fields[4])) {
+            return false;
+          }
+        }
+
+        // Ensure the JSON array holds one object per waiting patient
+        AdmissionsExporter.export(testAdmissions, json, AdmissionsExporter.Format.JSON);
+        String text = Files.readString(json);
+        if (!text.startsWith("[") || !text.endsWith("]\n")
+            || text.split("\\{").length != expected.length + 1) {
+          return false;
+        }
+      } finally {
+        Files.delete(csv);
+        Files.delete(json);
+      }
+    } catch (IOException e) {
+      return false;
+    }
+
+    // Ensure the queue was left unchanged
+    if (testAdmissions.size() != expected.length) {
+      return false;
+    }
+
+    // Ensure a gender marker that is a separator or a quote is quoted in the CSV export
+    PriorityCareAdmissions oddMarkers = new PriorityCareAdmissions(2);
+    oddMarkers.addPatient(new PatientRecord(',', 30, TriageLevel.RED));
+    oddMarkers.addPatient(new PatientRecord('"', 40, TriageLevel.YELLOW));
+    try {
+      Path csv = Files.createTempFile("export", ".csv");
+      try {
+        AdmissionsExporter.export(oddMarkers, csv, AdmissionsExporter.Format.CSV);
+        List<String> lines = Files.readAllLines(csv);
+        if (lines.size() != 3 || !lines.get(1).contains(",30,\",\",RED,")
+            || !lines.get(2).contains(",40,\"\"\"\",YELLOW,")) {
+          return false;
+        }
+      } finally {
+        Files.delete(csv);
+      }
+    } catch (IOException e) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests the two-phase dispatch of PriorityCareAdmissions. A claimed patient should be hidden from
+   * the queue while keeping its slot, a confirmed claim should mark the patient as seen, and a
+   * released or expired lease should return the patient to its original priority position.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testClaimConfirmRelease() {
+
+    // Initialize a full queue to be tested on
+    PriorityCareAdmissions testAdmissions = new PriorityCareAdmissions(3);
+    PatientRecord test1 = new PatientRecord('M', 18, TriageLevel.RED);
+    PatientRecord test2 = new PatientRecord('F', 19, TriageLevel.YELLOW);
+    PatientRecord test3 = new PatientRecord('X', 20, TriageLevel.GREEN);
+    testAdmissions.addPatient(test2);
+    testAdmissions.addPatient(test3);
+    testAdmissions.addPatient(test1);
+    ArrayList<QueueChange> changes = new ArrayList<QueueChange>();
+    testAdmissions.addChangeListener((change, p) -> changes.add(change));
+
+    // Ensure that a claim hides the best patient but keeps its slot
+    if (!testAdmissions.claimNext("nurse1", 60000).equals(test1) || testAdmissions.size() != 2
+        || !testAdmissions.peek().equals(test2) || !"nurse1".equals(
+            testAdmissions.claimedBy(test1.getArrivalOrder()))) {
+      return false;
+    }
+    try {
+      testAdmissions.addPatient(new PatientRecord('F', 50, TriageLevel.RED));
+      return false;
+    } catch (IllegalStateException e) {
+    }
+
+    // Ensure that releasing the claim returns the patient to the root, and that neither the claim
+    // nor its release was reported to the listeners
+    if (!testAdmissions.release(test1.getArrivalOrder()) || !testAdmissions.peek().equals(test1)
+        || testAdmissions.claimCount() != 0 || !changes.isEmpty()) {
+      return false;
+    }
+
+    // Ensure that confirming a claim marks the patient as seen, reports it as dispatched, and only
+    // works once
+    testAdmissions.claimNext("nurse1", 60000);
+    if (!changes.isEmpty() || !testAdmissions.confirm(test1.getArrivalOrder()).hasBeenSeen()
+        || testAdmissions.size() != 2 || !changes.equals(List.of(QueueChange.DISPATCHED))) {
+      return false;
+    }
+    try {
+      testAdmissions.confirm(test1.getArrivalOrder());
+      return false;
+    } catch (NoSuchElementException e) {
+    }
+
+    // Ensure that an expired lease returns the patient to the queue
+    testAdmissions.claimNext("nurse2", 1);
+    try {
+      Thread.sleep(50);
+    } catch (InterruptedException e) {
+      return false;
+    }
+    if (!testAdmissions.peek().equals(test2) || testAdmissions.claimCount() != 0
+        || testAdmissions.size() != 2 || changes.size() != 1) {
+      return false;
+    }
+
+    // Ensure that a patient released after a policy change is ranked under the new policy
+    PriorityCareAdmissions policyAdmissions = new PriorityCareAdmissions(2);
+    PatientRecord adult = new PatientRecord('F', 40, TriageLevel.YELLOW);
+    PatientRecord child = new PatientRecord('M', 4, TriageLevel.YELLOW);
+    policyAdmissions.addPatient(adult);
+    policyAdmissions.addPatient(child);
+    policyAdmissions.claimNext("nurse1", 60000);
+    policyAdmissions.setPolicy(PriorityPolicy.ageBoost(12, 65)).join();
+    if (!policyAdmissions.release(adult.getArrivalOrder())
+        || policyAdmissions.removeBestRecord() != child
+        || policyAdmissions.removeBestRecord() != adult) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests the non-throwing offer(), poll() and peekOrNull() methods, along with the predefined
+   * OverloadPolicies: a full queue should reject by default, evict its newest GREEN patient to
+   * admit a RED one, or divert the patient to an overflow callback.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testOfferPollOverload() {
+
+    // Ensure that an empty queue returns null instead of throwing
+    PriorityCareAdmissions testAdmissions = new PriorityCareAdmissions(2);
+    if (testAdmissions.peekOrNull() != null || testAdmissions.poll() != null
+        || testAdmissions.offer(null) != AdmissionStatus.REJECTED) {
+      return false;
+    }
+
+    // Fill the queue with two GREEN patients and ensure that the default policy rejects
+    PatientRecord green1 = new PatientRecord('M', 30, TriageLevel.GREEN);
+    PatientRecord green2 = new PatientRecord('F', 31, TriageLevel.GREEN);
+    PatientRecord red = new PatientRecord('X', 32, TriageLevel.RED);
+    if (testAdmissions.offer(green1) != AdmissionStatus.ADMITTED
+        || testAdmissions.offer(green2) != AdmissionStatus.ADMITTED
+        || testAdmissions.offer(red) != AdmissionStatus.REJECTED) {
+      return false;
+    }
+
+    // Ensure that the eviction policy evicts the newest GREEN to admit a RED, but not a YELLOW
+    ArrayList<PatientRecord> overflow = new ArrayList<PatientRecord>();
+    testAdmissions.setOverloadPolicy(OverloadPolicy.evictNewestGreen(overflow::add));
+    if (testAdmissions.offer(new PatientRecord('F', 40, TriageLevel.YELLOW))
+        != AdmissionStatus.REJECTED
+        || testAdmissions.offer(red) != AdmissionStatus.ADMITTED_AFTER_EVICTION
+        || overflow.size() != 1 || !overflow.get(0).equals(green2)
+        || testAdmissions.size() != 2) {
+      return false;
+    }
+
+    // Ensure that the divert policy hands the patient to the overflow callback
+    testAdmissions.setOverloadPolicy(OverloadPolicy.divertTo(overflow::add));
+    PatientRecord diverted = new PatientRecord('M', 50, TriageLevel.RED);
+    if (testAdmissions.offer(diverted) != AdmissionStatus.DIVERTED
+        || !overflow.get(1).equals(diverted)) {
+      return false;
+    }
+
+    // Ensure that poll() dequeues in priority order
+    if (!testAdmissions.peekOrNull().equals(red) || !testAdmissions.poll().equals(red)
+        || !testAdmissions.poll().equals(green1) || testAdmissions.poll() != null) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests SlaMonitor. Only the patients still waiting past the target wait of their triage level
+   * should be reported, once each, whether breaches are polled explicitly or detected by the
+   * background thread, a patient returned to the queue by a released claim should be monitored
+   * again, and a patient admitted after others who arrived later should still be reported on time.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testSlaMonitor() {
+
+    // Initialize a monitor with a short RED target and a long YELLOW target
+    HashMap<TriageLevel, Long> targets = new HashMap<TriageLevel, Long>();
+    targets.put(TriageLevel.RED, 20L);
+    targets.put(TriageLevel.YELLOW, 3600000L);
+    ArrayList<PatientRecord> breaches = new ArrayList<PatientRecord>();
+    SlaMonitor monitor = new SlaMonitor(targets, (p, waited) -> {
+      synchronized (breaches) {
+        breaches.add(p);
+      }
+    });
+    PriorityCareAdmissions testAdmissions = new PriorityCareAdmissions(5);
+    testAdmissions.setSlaMonitor(monitor);
+
+    // Admit two RED patients and dispatch the first one before its deadline
+    PatientRecord test1 = new PatientRecord('M', 18, TriageLevel.RED);
+    PatientRecord test2 = new PatientRecord('F', 19, TriageLevel.RED);
+    PatientRecord test3 = new PatientRecord('X', 20, TriageLevel.YELLOW);
+    PatientRecord test4 = new PatientRecord('M', 21, TriageLevel.GREEN);
+    testAdmissions.addPatient(test1);
+    testAdmissions.addPatient(test2);
+    testAdmissions.addPatient(test3);
+    testAdmissions.addPatient(test4);
+    testAdmissions.removeBestRecord();
+
+    // Ensure that nothing is reported before the deadline, and only test2 after it
+    if (monitor.poll(System.nanoTime()) != 0
+        || monitor.poll(System.nanoTime() + 1000000000L) != 1 || !breaches.get(0).equals(test2)
+        || monitor.poll(System.nanoTime() + 1000000000L) != 0) {
+      return false;
+    }
+
+    // Ensure that the background thread reports a breach on its own
+    monitor.start();
+    PatientRecord test5 = new PatientRecord('F', 22, TriageLevel.RED);
+    testAdmissions.addPatient(test5);
+    try {
+      for (int i = 0; i < 100 && breaches.size() < 2; i++) {
+        Thread.sleep(10);
+      }
+    } catch (InterruptedException e) {
+      return false;
+    } finally {
+      monitor.stop();
+    }
+    synchronized (breaches) {
+      if (breaches.size() != 2 || !breaches.get(1).equals(test5)) {
+        return false;
+      }
+    }
+
+    // Ensure that a patient returned by a released claim is monitored again, once
+    breaches.clear();
+    PriorityCareAdmissions claimed = new PriorityCareAdmissions(5);
+    claimed.setSlaMonitor(monitor);
+    PatientRecord test6 = new PatientRecord('X', 23, TriageLevel.RED);
+    claimed.addPatient(test6);
+    claimed.claimNext("nurse1", 60000);
+    claimed.release(test6.getArrivalOrder()); // still registered: must not be registered twice
+    if (monitor.poll(System.nanoTime() + 1000000000L) != 1) {
+      return false;
+    }
+    claimed.claimNext("nurse1", 60000);
+    if (monitor.poll(System.nanoTime() + 1000000000L) != 0) {
+      return false; // the claimed patient is not waiting, and its deadline is dropped
+    }
+    claimed.release(test6.getArrivalOrder());
+    if (monitor.poll(System.nanoTime() + 1000000000L) != 1 || breaches.size() != 2
+        || breaches.get(1) != test6) {
+      return false;
+    }
+
+    // Ensure that a patient who arrived earlier, but was admitted later, is reported on time
+    PatientRecord earlier = new PatientRecord('F', 24, TriageLevel.YELLOW);
+    try {
+      Thread.sleep(2);
+    } catch (InterruptedException e) {
+      return false;
+    }
+    PatientRecord later = new PatientRecord('M', 25, TriageLevel.YELLOW);
+    claimed.addPatient(later);
+    if (monitor.outOfOrderCount() != 0) {
+      return false;
+    }
+    claimed.addAll(new PatientRecord[] {earlier});
+    long earlierDeadline = earlier.getArrivalNanos() + 3600000L * 1000000L;
+    if (later.getArrivalNanos() <= earlier.getArrivalNanos() || monitor.outOfOrderCount() != 1
+        || monitor.poll(earlierDeadline) != 1 || breaches.get(2) != earlier
+        || monitor.outOfOrderCount() != 0) {
+      return false;
+    }
+
+    // Ensure that admissions in arrival order are appended in O(1), never to the out-of-order heap
+    PriorityCareAdmissions busy = new PriorityCareAdmissions(1000);
+    busy.setSlaMonitor(monitor);
+    for (int i = 0; i < 1000; i++) {
+      busy.addPatient(new PatientRecord('F', 30, TriageLevel.values()[i % 3]));
+    }
+    if (monitor.outOfOrderCount() != 0) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Tests DepartmentQueues and RecordArena. Idle department queues should not hold any storage,
+   * storage should grow with the number of waiting patients, and it should be handed back to the
+   * shared arena and reused once a queue drains or is cleared.
+   * 
+   * @return true if the tester verifies a correct functionality and false if at least one bug is
+   *         detected
+   */
+  public static boolean testDepartmentQueues() {
+    DepartmentQueues departments = new DepartmentQueues(10000, PriorityPolicy.STANDARD, 1 << 16);
+
+    // Ensure that creating many idle queues does not borrow any storage
+    for (int i = 0; i < 1000; i++) {
+      departments.queueFor("clinic" + i);
+    }
+    if (departments.arena().borrowedSlots() != 0 || departments.departments().size() != 1000) {
+      return false;
+    }
+
+    // Ensure that storage follows the size of a queue rather than its capacity
+    PriorityCareAdmissions pediatrics = departments.queueFor("pediatrics");
+    for (int i = 0; i < 100; i++) {
+      pediatrics.addPatient(new PatientRecord('F', i % 18, TriageLevel.values()[i % 3]));
+    }
+    if (departments.arena().borrowedSlots() != 128 || pediatrics.capacity() != 10000) {
+      return false;
+    }
+
+    // Ensure that the patients still come out in priority order, and draining releases storage
+    PatientRecord previous = pediatrics.removeBestRecord();
+    while (!pediatrics.isEmpty()) {
+      PatientRecord next = pediatrics.removeBestRecord();
+      if (previous.compareTo(next) > 0) {
+        return false;
+      }
+      previous = next;
+    }
+    if (departments.arena().borrowedSlots() != 0 || departments.arena().retainedSlots() == 0) {
+      return false;
+    }
+
+    // Ensure that clearing a queue releases its storage as well
+    PriorityCareAdmissions trauma = departments.queueFor("trauma");
+    trauma.addPatient(new PatientRecord('M', 40, TriageLevel.RED));
+    departments.close("trauma");
+    if (departments.arena().borrowedSlots() != 0 || trauma.size() != 0) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks the correctness of the replication of a queue from a ReplicationPrimary to a
+   * ReplicationFollower, including the bootstrap from a snapshot, the promotion of the follower,
+   * and a follower stopping loudly when it cannot apply an operation
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testReplication() {
+    try (ReplicationPrimary primary = new ReplicationPrimary(new PriorityCareAdmissions(200), 0)) {
+      // Admit patients before the follower connects so that it bootstraps from a snapshot
+      for (int i = 0; i < 50; i++) {
+        primary.offer(new PatientRecord('F', 20 + i, TriageLevel.values()[i % 3]));
+      }
+      PriorityCareAdmissions replica = new PriorityCareAdmissions(200);
+      ReplicationFollower follower = new ReplicationFollower(replica, "localhost", primary.port());
+
+      // Then stream admissions, dispatches and a cancellation
+      PatientRecord leaving = new PatientRecord('M', 33, TriageLevel.GREEN);
+      primary.offer(leaving);
+      for (int i = 0; i < 50; i++) {
+        primary.offer(new PatientRecord('M', 30 + i, TriageLevel.values()[i % 3]));
+      }
+      for (int i = 0; i < 10; i++) {
+        primary.poll();
+      }
+      HashMap<Integer, TriageLevel> changes = new HashMap<Integer, TriageLevel>();
+      changes.put(leaving.getArrivalOrder(), TriageLevel.RED);
+      primary.retriageAll(changes);
+      primary.cancel(leaving.getArrivalOrder());
+      if (!awaitReplication(primary, follower) || follower.divergences() != 0
+          || !drainOrder(primary.queue()).equals(drainOrder(replica))) {
+        return false;
+      }
+
+      // Ensure that clearing is replicated, and that the follower can be promoted
+      primary.clear();
+      if (!awaitReplication(primary, follower) || !replica.isEmpty()) {
+        return false;
+      }
+      PriorityCareAdmissions promoted = follower.promote(1000);
+      promoted.addPatient(new PatientRecord('F', 50, TriageLevel.RED));
+      if (promoted.size() != 1 || primary.followerCount() > 1) {
+        return false;
+      }
+
+      // Ensure that a follower promoted in a JVM of its own ranks new arrivals behind the
+      // replicated patients of the same triage level, and keeps their waiting times
+      PatientRecord[] waiting = new PatientRecord[3];
+      for (int i = 0; i < waiting.length; i++) {
+        waiting[i] = new PatientRecord('F', 40 + i, TriageLevel.RED);
+        primary.offer(waiting[i]);
+      }
+      Thread.sleep(20);
+      PatientRecord.resetCounter(); // as if the follower had just been started
+      ReplicationFollower standby =
+          new ReplicationFollower(new PriorityCareAdmissions(200), "localhost", primary.port());
+      if (!awaitReplication(primary, standby)) {
+        return false;
+      }
+      PriorityCareAdmissions successor = standby.promote(1000);
+      PatientRecord newcomer = new PatientRecord('M', 45, TriageLevel.RED);
+      successor.addPatient(newcomer);
+      if (successor.rankOf(newcomer.getArrivalOrder()) != waiting.length) {
+        return false;
+      }
+      for (PatientRecord p : successor.toArray()) {
+        if (p != newcomer && System.nanoTime() - p.getArrivalNanos() < 20000000L) {
+          return false;
+        }
+      }
+      primary.clear();
+
+      // Ensure that a follower unable to apply an admission stops and refuses to be promoted
+      ReplicationFollower small =
+          new ReplicationFollower(new PriorityCareAdmissions(2), "localhost", primary.port());
+      for (int i = 0; i < 3; i++) {
+        primary.offer(new PatientRecord('X', 60 + i, TriageLevel.YELLOW));
+      }
+      for (int i = 0; i < 5000 && small.failure() == null; i++) {
+        Thread.sleep(1);
+      }
+      if (!(small.failure() instanceof IllegalStateException)) {
+        return false;
+      }
+      try {
+        small.promote(1000);
+        return false;
+      } catch (IllegalStateException e) {
+      }
+    } catch (IOException | InterruptedException e) {
+      return false;
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Waits for up to five seconds until the follower applied every operation of the primary
+   */
+  private static boolean awaitReplication(ReplicationPrimary primary,
+      ReplicationFollower follower) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (follower.appliedSequence() != primary.sequence()) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the patients of a copy of the given queue, in the order they would be dispatched
+   */
+  private static List<String> drainOrder(PriorityCareAdmissions queue) {
+    PriorityCareAdmissions copy = queue.deepCopy();
+    List<String> order = new ArrayList<>();
+    while (!copy.isEmpty()) {
+      PatientRecord p = copy.removeBestRecord();
+      order.add(p.toString() + "#" + p.getArrivalOrder());
+    }
+    return order;
+  }
+
+  /**
+   * Checks the correctness of ArrivalImporter.importFile(), including the bulk report of malformed
+   * rows and the import of a file large enough to be parsed in several chunks
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testImportArrivals() {
+    Path file = null;
+    try {
+      file = Files.createTempFile("arrivals", ".csv");
+
+      // A small file with a header, CRLF line separators, blank lines and malformed rows
+      Files.write(file, ("age,gender,triage\r\n" + "42,F,YELLOW\r\n" + " 7 , x , RED\r\n"
+          + "\r\n" + "abc,M,GREEN\n" + "30,Q,GREEN\n" + "30,M,BLUE\n" + "30,M\n"
+          + "65,M,GREEN").getBytes(StandardCharsets.US_ASCII));
+      PriorityCareAdmissions queue = new PriorityCareAdmissions(10);
+      ArrivalImporter.Report report = ArrivalImporter.importFile(queue, file);
+      if (report.loaded() != 3 || report.rejected() != 4 || queue.size() != 3) {
+        return false;
+      }
+      long[] expectedLines = {5, 6, 7, 8};
+      for (int i = 0; i < expectedLines.length; i++) {
+        if (report.errors().get(i).getLine() != expectedLines[i]) {
+          return false;
+        }
+      }
+      PatientRecord first = queue.removeBestRecord();
+      PatientRecord second = queue.removeBestRecord();
+      PatientRecord third = queue.removeBestRecord();
+      if (first.getTriage() != TriageLevel.RED || first.getGender() != 'X' || first.getAge() != 7
+          || second.getTriage() != TriageLevel.YELLOW || third.getAge() != 65
+          || first.getArrivalOrder() <= second.getArrivalOrder()) {
+        return false;
+      }
+
+      // Ensure that a full queue is left unchanged
+      PriorityCareAdmissions small = new PriorityCareAdmissions(2);
+      try {
+        ArrivalImporter.importFile(small, file);
+        return false;
+      } catch (IllegalStateException e) {
+        if (!e.getMessage().equals("Warning: Full Admissions Queue!") || !small.isEmpty()) {
+          return false;
+        }
+      }
+
+      // A file of several megabytes, with one malformed row in the middle
+      int rows = 300000;
+      StringBuilder sb = new StringBuilder(rows * 12);
+      for (int i = 1; i <= rows; i++) {
+        sb.append(i == 150000 ? "oops" : Integer.toString(i % 100)).append(',')
+            .append("FMX".charAt(i % 3)).append(',').append(TriageLevel.values()[i % 3].name())
+            .append('\n');
+      }
+      Files.write(file, sb.toString().getBytes(StandardCharsets.US_ASCII));
+      PriorityCareAdmissions large = new PriorityCareAdmissions(rows);
+      report = ArrivalImporter.importFile(large, file);
+      if (report.loaded() != rows - 1 || large.size() != rows - 1 || report.rejected() != 1
+          || report.errors().get(0).getLine() != 150000) {
+        return false;
+      }
+      PatientRecord previous = large.removeBestRecord();
+      while (!large.isEmpty()) {
+        PatientRecord next = large.removeBestRecord();
+        if (previous.compareTo(next) > 0) {
+          return false;
+        }
+        previous = next;
+      }
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          // best effort
+        }
+      }
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks the correctness of the aggregate queries of SeenPatientStore, over enough rows to span
+   * several chunks, and that a store with a retention period drops the patients seen before it
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testSeenPatientStore() {
+    SeenPatientStore store = new SeenPatientStore();
+
+    // Ensure that unseen patients are rejected
+    try {
+      store.append(new PatientRecord('F', 30, TriageLevel.RED));
+      return false;
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // Append enough seen patients to fill several chunks, counting them as we go
+    int rows = 2 * SeenPatientStore.CHUNK_ROWS + 1000;
+    long[] expectedTriage = new long[3];
+    long[] expectedBands = new long[10];
+    long females = 0;
+    long adults = 0;
+    for (int i = 0; i < rows; i++) {
+      char gender = "FMX".charAt(i % 7 % 3);
+      int age = i % 97;
+      TriageLevel triage = i < SeenPatientStore.CHUNK_ROWS ? TriageLevel.GREEN
+          : TriageLevel.values()[i % 3];
+      PatientRecord p = new PatientRecord(gender, age, triage);
+      p.seePatient();
+      store.append(p);
+      expectedTriage[triage.ordinal()]++;
+      expectedBands[age / 10]++;
+      females += gender == 'F' ? 1 : 0;
+      adults += age >= 18 && age <= 64 ? 1 : 0;
+    }
+
+    if (store.size() != rows || !Arrays.equals(store.countByTriage(), expectedTriage)
+        || !Arrays.equals(store.ageHistogram(10), expectedBands)
+        || store.countByGender().get('F') != females || store.countByGender().size() != 3
+        || store.countAgeBetween(18, 64) != adults || store.countAgeBetween(200, 300) != 0
+        || store.countAgeBetween(0, 150) != rows) {
+      return false;
+    }
+
+    // Patients were seen right after their arrival, so wait times are short but known
+    double average = store.averageWaitMillis(null);
+    if (Double.isNaN(average) || average < 0 || average > 1000
+        || store.countWaitedAtLeast(60000) != 0 || store.countWaitedAtLeast(0) != rows) {
+      return false;
+    }
+
+    // A store with a retention period drops the days of patients seen before it
+    long day = SeenPatientStore.CHUNK_MILLIS;
+    long start = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+    SeenPatientStore retained = new SeenPatientStore(3 * day);
+    for (int d = 0; d < 5; d++) {
+      for (int i = 0; i < 10; i++) {
+        PatientRecord p = new PatientRecord('M', 40, TriageLevel.values()[d % 3]);
+        p.seePatient();
+        retained.append(p, start + d * day + i * 60_000);
+      }
+    }
+    // The patients of the first two days were all seen more than three days before the last one
+    if (retained.size() != 30 || retained.countByTriage()[TriageLevel.RED.ordinal()] != 10
+        || retained.expire(start + 5 * day) != 0 || retained.expire(start + 6 * day) != 10
+        || retained.size() != 20 || retained.expire(start + 9 * day) != 20 || retained.size() != 0
+        || retained.ageHistogram(10).length != 1) {
+      return false;
+    }
+    try {
+      new SeenPatientStore(0);
+      return false;
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks the correctness of TriageBucketAdmissions, including PatientRecords admitted out of
+   * order of arrival and cancelled ones
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testTriageBucketAdmissions() {
+    TriageBucketAdmissions buckets = new TriageBucketAdmissions(10);
+    PriorityCareAdmissions heap = new PriorityCareAdmissions(10);
+    PatientRecord[] records = new PatientRecord[8];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = new PatientRecord('M', 20 + i, TriageLevel.values()[i % 3]);
+    }
+
+    // Admit the records in a shuffled order, so that some buckets have to be re-sorted
+    int[] order = {3, 0, 7, 5, 1, 6, 2, 4};
+    for (int i : order) {
+      buckets.addPatient(records[i]);
+      heap.addPatient(records[i]);
+    }
+    if (buckets.size() != 8 || !buckets.toString().equals(heap.toString())
+        || buckets.peek() != records[0]) {
+      return false;
+    }
+
+    // Ensure that cancelled patients are skipped, and that the order matches the array-heap
+    int first = records[0].getArrivalOrder();
+    if (!buckets.cancel(first) || buckets.cancel(first) || !heap.cancel(first)
+        || buckets.size() != 7) {
+      return false;
+    }
+    while (!heap.isEmpty()) {
+      if (buckets.poll() != heap.poll()) {
+        return false;
+      }
+    }
+    if (buckets.poll() != null || !buckets.isEmpty()) {
+      return false;
+    }
+
+    // Ensure that a full queue rejects admissions, and that a bulk load is all or nothing
+    buckets.addAll(Arrays.copyOf(records, 6));
+    if (buckets.offer(new PatientRecord('F', 1, TriageLevel.RED)) != AdmissionStatus.ADMITTED) {
+      return false;
+    }
+    try {
+      buckets.addAll(Arrays.copyOfRange(records, 6, 8));
+      buckets.addAll(Arrays.copyOfRange(records, 6, 8));
+      return false;
+    } catch (IllegalStateException e) {
+      if (!e.getMessage().equals("Warning: Full Admissions Queue!") || buckets.size() != 9) {
+        return false;
+      }
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks that AdaptiveCareAdmissions migrates between its backends as its workload changes,
+   * without changing the order in which PatientRecords are dispatched
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testAdaptiveCareAdmissions() {
+    AdaptiveCareAdmissions adaptive = new AdaptiveCareAdmissions(5000);
+    PriorityCareAdmissions reference = new PriorityCareAdmissions(5000);
+    if (adaptive.activeBackend() != AdaptiveCareAdmissions.Backend.ARRAY_HEAP) {
+      return false;
+    }
+
+    // A large queue under heavy admission traffic moves to the triage buckets
+    Random random = new Random(38);
+    for (int i = 0; i < 3000; i++) {
+      PatientRecord p = new PatientRecord('X', random.nextInt(90), TriageLevel.values()[i % 3]);
+      adaptive.addPatient(p);
+      reference.addPatient(p);
+    }
+    if (adaptive.activeBackend() != AdaptiveCareAdmissions.Backend.TRIAGE_BUCKETS
+        || adaptive.migrations() != 1 || !adaptive.reason().contains("heavy traffic")
+        || !adaptive.toString().equals(reference.toString())) {
+      return false;
+    }
+
+    // Draining it keeps the order; once it is small and quiet, it moves back to the array-heap
+    while (!reference.isEmpty()) {
+      if (adaptive.poll() != reference.poll()) {
+        return false;
+      }
+    }
+    for (int i = 0; i < 2 * AdaptiveCareAdmissions.WINDOW_OPERATIONS; i++) {
+      adaptive.peekOrNull(); // a full window of operations on an empty queue
+    }
+    if (adaptive.activeBackend() != AdaptiveCareAdmissions.Backend.ARRAY_HEAP
+        || adaptive.migrations() != 2 || !adaptive.reason().contains("small queue")
+        || !adaptive.isEmpty()) {
+      return false;
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks that PriorityCareAdmissions reports its operations as Flight Recorder QueueEvents when
+   * they are enabled in a recording
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testFlightRecorderEvents() {
+    Path file = null;
+    try (Recording recording = new Recording()) {
+      for (String name : new String[] {"care.Admission", "care.Dispatch", "care.Rejection",
+          "care.Clear", "care.Listing"}) {
+        recording.enable(name).withThreshold(Duration.ZERO);
+      }
+      recording.start();
+      PriorityCareAdmissions queue = new PriorityCareAdmissions(3);
+      queue.addPatient(new PatientRecord('F', 30, TriageLevel.GREEN));
+      queue.addPatient(new PatientRecord('M', 40, TriageLevel.GREEN));
+      queue.addPatient(new PatientRecord('X', 50, TriageLevel.RED)); // moves up one level
+      queue.offer(new PatientRecord('F', 60, TriageLevel.RED)); // rejected
+      queue.removeBestRecord();
+      queue.toString(); // a single formatTo listing, and no dispatch
+      queue.clear();
+      recording.stop();
+      file = Files.createTempFile("queue-events", ".jfr");
+      recording.dump(file);
+
+      HashMap<String, List<RecordedEvent>> events = new HashMap<String, List<RecordedEvent>>();
+      for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+        events.computeIfAbsent(event.getEventType().getName(), k -> new ArrayList<>()).add(event);
+      }
+      List<RecordedEvent> admissions = events.get("care.Admission");
+      List<RecordedEvent> dispatches = events.get("care.Dispatch");
+      List<RecordedEvent> rejections = events.get("care.Rejection");
+      List<RecordedEvent> clears = events.get("care.Clear");
+      List<RecordedEvent> listings = events.get("care.Listing");
+      if (admissions == null || admissions.size() != 3 || dispatches == null
+          || dispatches.size() != 1 || rejections == null || rejections.size() != 1
+          || clears == null || clears.size() != 1 || listings == null || listings.size() != 1) {
+        return false;
+      }
+      RecordedEvent red = admissions.get(2);
+      if (!red.getString("triage").equals("RED") || red.getInt("siftDepth") != 1
+          || red.getInt("queueSize") != 3 || clears.get(0).getInt("queueSize") != 2
+          || !rejections.get(0).getString("outcome").equals("REJECTED")) {
+        return false;
+      }
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          // best effort
+        }
+      }
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks the correctness of PriorityCareAdmissions.meld(), split(Predicate) and split(double)
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testMeldSplit() {
+    PriorityCareAdmissions north = new PriorityCareAdmissions(100);
+    PriorityCareAdmissions south = new PriorityCareAdmissions(100);
+    PriorityCareAdmissions reference = new PriorityCareAdmissions(100);
+    for (int i = 0; i < 40; i++) {
+      PatientRecord p = new PatientRecord('F', i, TriageLevel.values()[i % 3]);
+      (i % 4 == 0 ? south : north).addPatient(p);
+      reference.addPatient(p);
+    }
+    PatientRecord leaving = south.peek(); // the RED patient of age 0
+    south.cancel(leaving.getArrivalOrder()); // the cancelled patient must not be melded
+    reference.cancel(leaving.getArrivalOrder());
+
+    // Ensure that melding moves every waiting patient, in the right order, reporting them to the
+    // listeners of the other queue as transferred rather than cancelled
+    ArrayList<QueueChange> southChanges = new ArrayList<QueueChange>();
+    south.addChangeListener((change, p) -> southChanges.add(change));
+    if (north.meld(south) != 9 || north.size() != 39 || !south.isEmpty()
+        || !north.toString().equals(reference.toString()) || southChanges.size() != 9
+        || southChanges.stream().anyMatch(change -> change != QueueChange.TRANSFERRED)) {
+      return false;
+    }
+
+    // Ensure that melding into a queue that is too small changes nothing
+    PriorityCareAdmissions tiny = new PriorityCareAdmissions(5);
+    try {
+      tiny.meld(north);
+      return false;
+    } catch (IllegalStateException e) {
+      if (north.size() != 39 || !tiny.isEmpty()) {
+        return false;
+      }
+    }
+
+    // Ensure that splitting by predicate moves exactly the matching patients
+    PriorityCareAdmissions pediatrics = north.split(p -> p.getAge() < 18);
+    if (pediatrics.size() != 17 || north.size() != 22) {
+      return false;
+    }
+    for (PatientRecord p : pediatrics.toArray()) {
+      if (p.getAge() >= 18) {
+        return false;
+      }
+    }
+    north.meld(pediatrics);
+    if (!north.toString().equals(reference.toString())) {
+      return false;
+    }
+
+    // Ensure that splitting by fraction takes an even share of every triage level
+    PriorityCareAdmissions half = north.split(0.5);
+    if (half.size() != 19 || north.size() != 20) {
+      return false;
+    }
+    int[] triages = new int[3];
+    for (PatientRecord p : half.toArray()) {
+      triages[p.getTriage().ordinal()]++;
+    }
+    for (int count : triages) {
+      if (count < 6 || count > 7) {
+        return false;
+      }
+    }
+    half.meld(north);
+    if (!half.toString().equals(reference.toString())) {
+      return false;
+    }
+
+    // Ensure that closing a department moves its patients to the neighbor department
+    DepartmentQueues departments = new DepartmentQueues(100, PriorityPolicy.STANDARD, 1 << 10);
+    departments.queueFor("east").addAll(half.toArray());
+    if (departments.closeInto("east", "west") != 39 || departments.departments().contains("east")
+        || !departments.queueFor("west").toString().equals(reference.toString())) {
+      return false;
+    }
+
+    // Ensure that a department whose patients do not fit in the neighbor stays open
+    DepartmentQueues small = new DepartmentQueues(30, PriorityPolicy.STANDARD, 1 << 10);
+    PatientRecord[] patients = reference.toArray();
+    small.queueFor("east").addAll(Arrays.copyOfRange(patients, 0, 20));
+    small.queueFor("west").addAll(Arrays.copyOfRange(patients, 20, 39));
+    try {
+      small.closeInto("east", "west");
+      return false;
+    } catch (IllegalStateException e) {
+      if (small.queueFor("east").size() != 20 || small.queueFor("west").size() != 19) {
+        return false;
+      }
+    }
+
+    // Ensure that a department admitting patients while it fails to close loses none of them
+    small.queueFor("west").addAll(Arrays.copyOfRange(patients, 0, 11));
+    AtomicBoolean admitting = new AtomicBoolean(true);
+    Thread closer = new Thread(() -> {
+      while (admitting.get()) {
+        try {
+          small.closeInto("east", "west");
+        } catch (IllegalStateException e) {
+        }
+      }
+    });
+    closer.start();
+    for (int i = 0; i < 10; i++) {
+      small.queueFor("east").addPatient(new PatientRecord('M', 70 + i, TriageLevel.GREEN));
+      Thread.yield();
+    }
+    admitting.set(false);
+    try {
+      closer.join();
+    } catch (InterruptedException e) {
+      return false;
+    }
+    if (small.queueFor("east").size() != 30 || small.queueFor("west").size() != 30) {
+      return false;
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks that QueueDashboard streams a snapshot then deltas to a new client, and only the missed
+   * deltas to a client reconnecting with a recent Last-Event-ID
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testQueueDashboard() {
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(20);
+    queue.addPatient(new PatientRecord('F', 30, TriageLevel.GREEN));
+    queue.addPatient(new PatientRecord('M', 40, TriageLevel.YELLOW));
+    try (QueueDashboard dashboard = new QueueDashboard(queue, 0)) {
+      URL events = new URL("http://localhost:" + dashboard.port() + "/events");
+
+      // A new client gets a snapshot, then one event per change
+      HttpURLConnection first = (HttpURLConnection) events.openConnection();
+      first.setReadTimeout(5000);
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(first.getInputStream(), StandardCharsets.UTF_8));
+      if (!readEvent(reader).startsWith("id: 0\nevent: snapshot\ndata: 2\n")) {
+        return false;
+      }
+      PatientRecord red = new PatientRecord('X', 50, TriageLevel.RED);
+      queue.addPatient(red);
+      queue.poll();
+      if (!readEvent(reader).startsWith("id: 1\nevent: admitted\ndata: " + red.CASE_NUMBER + ",")
+          || !readEvent(reader).startsWith("id: 2\nevent: dispatched\n")) {
+        return false;
+      }
+      first.disconnect();
+
+      // A client resuming from event 2 only gets the changes it missed
+      PatientRecord leaving = queue.peek();
+      queue.cancel(leaving.getArrivalOrder());
+      HttpURLConnection resumed = (HttpURLConnection) events.openConnection();
+      resumed.setReadTimeout(5000);
+      resumed.setRequestProperty("Last-Event-ID", "2");
+      reader = new BufferedReader(
+          new InputStreamReader(resumed.getInputStream(), StandardCharsets.UTF_8));
+      if (!readEvent(reader).startsWith("id: 3\nevent: cancelled\ndata: " + leaving.CASE_NUMBER)) {
+        return false;
+      }
+      queue.clear();
+      if (!readEvent(reader).startsWith("id: 4\nevent: cleared\n")) {
+        return false;
+      }
+      resumed.disconnect();
+
+      // A client resuming from an unknown event gets a new snapshot
+      HttpURLConnection unknown = (HttpURLConnection) events.openConnection();
+      unknown.setReadTimeout(5000);
+      unknown.setRequestProperty("Last-Event-ID", "1000");
+      reader = new BufferedReader(
+          new InputStreamReader(unknown.getInputStream(), StandardCharsets.UTF_8));
+      if (!readEvent(reader).startsWith("id: 4\nevent: snapshot\ndata: 0\n")) {
+        return false;
+      }
+      unknown.disconnect();
+    } catch (IOException e) {
+      return false;
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Reads one server-sent event, skipping comments, and returns its lines
+   */
+  private static String readEvent(BufferedReader reader) throws IOException {
+    StringBuilder event = new StringBuilder();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.isEmpty() && event.length() > 0) {
+        break;
+      }
+      if (!line.isEmpty() && !line.startsWith(":")) {
+        event.append(line).append('\n');
+      }
+    }
+    return event.toString();
+  }
+
+  /**
+   * Checks that a QueueEventBus delivers every change in order to a subscriber keeping up, and
+   * that a stalled subscriber loses the overwritten events without holding the queue back
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testQueueEventBus() {
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(200);
+    CountDownLatch stall = new CountDownLatch(1);
+    List<QueueChange> changes = new ArrayList<QueueChange>();
+    long[] lastSequence = {-1};
+    boolean[] ordered = {true};
+    boolean[] endOfLastBatch = {false};
+    long[] stalledHandled = {0};
+    try (QueueEventBus bus = new QueueEventBus(queue, 8)) {
+      QueueEventBus.Subscription follower =
+          bus.subscribe("follower", QueueEventBus.WaitStrategy.BLOCKING, (e, seq, end) -> {
+            ordered[0] &= seq == lastSequence[0] + 1;
+            lastSequence[0] = seq;
+            endOfLastBatch[0] = end;
+            changes.add(e.getChange());
+          });
+      QueueEventBus.Subscription stalled =
+          bus.subscribe("stalled", QueueEventBus.WaitStrategy.SLEEPING, (e, seq, end) -> {
+            try {
+              stall.await();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+            stalledHandled[0]++;
+          });
+
+      // 100 changes go through while a subscriber is stuck on the first one
+      for (int i = 0; i < 98; i++) {
+        queue.addPatient(new PatientRecord('F', 20 + i % 50, TriageLevel.values()[i % 3]));
+      }
+      queue.poll();
+      queue.clear();
+      if (bus.cursor() != 99 || !awaitSubscriber(bus, follower)) {
+        return false;
+      }
+      // The follower handles every event in order, unless it was descheduled long enough to lose
+      // some of them
+      if (changes.size() + follower.lostEvents() != 100 || !endOfLastBatch[0]
+          || changes.get(changes.size() - 1) != QueueChange.CLEARED) {
+        return false;
+      }
+      if (follower.lostEvents() == 0 && (!ordered[0] || changes.get(0) != QueueChange.ADMITTED
+          || changes.get(98) != QueueChange.DISPATCHED)) {
+        return false;
+      }
+
+      stall.countDown();
+      if (!awaitSubscriber(bus, stalled)) {
+        return false;
+      }
+      // The stalled subscriber only finds the last 8 events in the ring
+      if (stalled.lostEvents() < 100 - 1 - 8 || stalled.lostEvents() + stalledHandled[0] != 100) {
+        return false;
+      }
+
+      stalled.close();
+      queue.addPatient(new PatientRecord('M', 40, TriageLevel.RED));
+      if (!awaitSubscriber(bus, follower) || stalled.sequence() != 99) {
+        return false;
+      }
+    }
+    queue.poll(); // the closed bus no longer listens
+    return lastSequence[0] == 100; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Waits up to 5 seconds for the given subscriber to handle every event published on the bus
+   */
+  private static boolean awaitSubscriber(QueueEventBus bus, QueueEventBus.Subscription s) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (s.sequence() != bus.cursor()) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.onSpinWait();
+    }
+    return true;
+  }
+
+  /**
+   * Checks that rankOf() matches the dispatch order of the queue while patients, some of them
+   * sharing a case number, are admitted, dispatched, cancelled and claimed, under the standard and
+   * a custom policy, and that estimatedWaitMillis() grows with the rank
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testRankOf() {
+    // ArrivalRankTree against a brute-force count, with orders of arrival far apart
+    Random random = new Random(43);
+    ArrivalRankTree tree = new ArrivalRankTree();
+    List<Integer> arrivals = new ArrayList<Integer>();
+    for (int i = 0; i < 2000; i++) {
+      if (arrivals.isEmpty() || random.nextInt(3) > 0) {
+        int arrival = 1_000_000 + (random.nextBoolean() ? i * 37 : -random.nextInt(5000));
+        tree.add(arrival);
+        arrivals.add(arrival);
+      } else if (!tree.remove(arrivals.remove(random.nextInt(arrivals.size())))) {
+        return false;
+      }
+      int probe = 995_000 + random.nextInt(80_000);
+      if (tree.countBefore(probe) != arrivals.stream().filter(a -> a < probe).count()
+          || tree.size() != arrivals.size()) {
+        return false;
+      }
+    }
+    if (tree.remove(-1)) {
+      return false;
+    }
+
+    PriorityCareAdmissions[] queues = {new PriorityCareAdmissions(400),
+        new PriorityCareAdmissions(400, PriorityPolicy.ageBoost(5, 80))};
+    for (PriorityCareAdmissions queue : queues) {
+      List<PatientRecord> admitted = new ArrayList<PatientRecord>();
+      for (int step = 0; step < 600; step++) {
+        int operation = random.nextInt(10);
+        if (operation < 6 && queue.size() < 300) {
+          // Case numbers collide often with 300 waiting patients: each one is still ranked
+          TriageLevel triage = TriageLevel.values()[random.nextInt(TriageLevel.values().length)];
+          PatientRecord p =
+              new PatientRecord("FMX".charAt(random.nextInt(3)), random.nextInt(100), triage);
+          queue.addPatient(p);
+          admitted.add(p);
+        } else if (operation < 8) {
+          queue.poll();
+        } else if (operation < 9 && !admitted.isEmpty()) {
+          queue.cancel(admitted.get(random.nextInt(admitted.size())).getArrivalOrder());
+        } else if (!queue.isEmpty()) {
+          PatientRecord claimed = queue.claimNext("dr", 60_000);
+          if (random.nextBoolean()) {
+            queue.release(claimed.getArrivalOrder());
+          }
+        }
+        if (step == 100) {
+          queue.rankOf(-1); // build the rank trees halfway, so they must then be maintained
+        }
+      }
+
+      // Every waiting patient is ranked by its position in the dispatch order
+      PriorityCareAdmissions copy = queue.deepCopy();
+      long previousWait = -1;
+      for (int rank = 0; !copy.isEmpty(); rank++) {
+        PatientRecord next = copy.poll();
+        if (queue.rankOf(next.getArrivalOrder()) != rank) {
+          return false;
+        }
+        long wait = queue.estimatedWaitMillis(next.getArrivalOrder());
+        if (wait < previousWait) {
+          return false;
+        }
+        previousWait = wait;
+      }
+      for (PatientRecord p : admitted) {
+        if (!queue.isWaiting(p) && queue.rankOf(p.getArrivalOrder()) != -1) {
+          return false;
+        }
+      }
+    }
+
+    // Without any dispatch, only the next patient has a wait estimate
+    PriorityCareAdmissions fresh = new PriorityCareAdmissions(5);
+    PatientRecord first = new PatientRecord('M', 30, TriageLevel.RED);
+    PatientRecord second = new PatientRecord('M', 30, TriageLevel.GREEN);
+    fresh.addPatient(second);
+    fresh.addPatient(first);
+    if (fresh.estimatedWaitMillis(first.getArrivalOrder()) != 0
+        || fresh.estimatedWaitMillis(second.getArrivalOrder()) != -1 || fresh.rankOf(12345) != -1) {
+      return false;
+    }
+    fresh.addPatient(new PatientRecord('M', 30, TriageLevel.RED));
+    fresh.poll();
+    fresh.poll(); // measures the service time of a RED patient
+    return fresh.rankOf(second.getArrivalOrder()) == 0
+        && fresh.estimatedWaitMillis(second.getArrivalOrder()) == 0; // Return true if and only if
+                                                                     // all test cases pass
+  }
+
+  /**
+   * Checks that SharedMemoryAdmissions queues mapping the same file share one priority order, from
+   * several threads, from another JVM, and after a process died while holding the lock
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testSharedMemoryAdmissions() {
+    Path file = null;
+    try {
+      file = Files.createTempFile("shared-queue", ".bin");
+      Files.delete(file); // let the first queue create it
+      try (SharedMemoryAdmissions kiosk = new SharedMemoryAdmissions(file, 5000);
+          SharedMemoryAdmissions clinician = new SharedMemoryAdmissions(file, 10)) {
+        // Both queues see the admissions of the other, in the shared arrival order
+        PatientRecord green = new PatientRecord('F', 20, TriageLevel.GREEN);
+        PatientRecord firstRed = new PatientRecord('M', 30, TriageLevel.RED);
+        PatientRecord secondRed = new PatientRecord('X', 40, TriageLevel.RED);
+        kiosk.addPatient(green);
+        clinician.addPatient(firstRed);
+        kiosk.addPatient(secondRed);
+        if (clinician.capacity() != 5000 || clinician.size() != 3
+            || kiosk.poll().CASE_NUMBER != firstRed.CASE_NUMBER
+            || clinician.poll().CASE_NUMBER != secondRed.CASE_NUMBER
+            || !clinician.toString().equals(green.toString() + "\n")) {
+          return false;
+        }
+
+        // Records carry the shared arrival sequence as their order of arrival, used to cancel
+        PatientRecord waiting = clinician.peek();
+        if (waiting.getArrivalOrder() != 1 || kiosk.cancel(2)
+            || !kiosk.cancel(waiting.getArrivalOrder()) || !clinician.isEmpty()) {
+          return false;
+        }
+
+        // Threads admitting and dispatching through both queues lose no patient
+        int[] dispatched = new int[4];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+          SharedMemoryAdmissions queue = t % 2 == 0 ? kiosk : clinician;
+          int index = t;
+          threads[t] = new Thread(() -> {
+            for (int i = 0; i < 500; i++) {
+              queue.addPatient(new PatientRecord('F', i % 100, TriageLevel.values()[i % 3]));
+              if (i % 2 == 1 && queue.poll() != null) {
+                dispatched[index]++;
+              }
+            }
+          });
+          threads[t].start();
+        }
+        for (Thread thread : threads) {
+          thread.join();
+        }
+        int total = Arrays.stream(dispatched).sum() + kiosk.size();
+        PatientRecord previous = null;
+        while (!kiosk.isEmpty()) {
+          PatientRecord next = kiosk.poll();
+          if (previous != null && previous.getTriage().compareTo(next.getTriage()) > 0) {
+            return false;
+          }
+          previous = next;
+        }
+        if (total != 2000 || kiosk.arrivalSequence() != 2003) {
+          return false;
+        }
+
+        // Another JVM admits patients to the same file
+        Process other = new ProcessBuilder(
+            Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+            System.getProperty("java.class.path"), "SharedMemoryAdmissions", file.toString(), "10",
+            "5", "YELLOW").start();
+        if (!other.waitFor(30, TimeUnit.SECONDS) || other.exitValue() != 0
+            || clinician.size() != 5 || clinician.peek().getTriage() != TriageLevel.YELLOW) {
+          return false;
+        }
+
+        // The lock left by a dead process is taken over
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, SharedMemoryAdmissions.HEADER_BYTES)
+              .order(ByteOrder.nativeOrder()).putInt(8, (int) other.pid());
+        }
+        if (kiosk.poll() == null || kiosk.size() != 4) {
+          return false;
+        }
+
+        // A swap interrupted by the death of its process is rolled back, or completed, from the
+        // journal, so that no patient is lost or duplicated
+        for (boolean redo : new boolean[] {false, true}) {
+          kiosk.clear();
+          PatientRecord red = new PatientRecord('F', 50, TriageLevel.RED);
+          PatientRecord yellow = new PatientRecord('M', 51, TriageLevel.YELLOW);
+          PatientRecord greenToo = new PatientRecord('X', 52, TriageLevel.GREEN);
+          kiosk.addPatient(red);
+          kiosk.addPatient(yellow);
+          kiosk.addPatient(greenToo);
+          crashMidSwap(file, (int) other.pid(), redo);
+          if (kiosk.poll().CASE_NUMBER != red.CASE_NUMBER
+              || kiosk.poll().CASE_NUMBER != yellow.CASE_NUMBER
+              || kiosk.poll().CASE_NUMBER != greenToo.CASE_NUMBER || !kiosk.isEmpty()) {
+            return false;
+          }
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      return false;
+    } finally {
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          // best effort
+        }
+      }
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Leaves the first two entries of a shared queue file as a process dying in the middle of
+   * swapping them would, holding the lock: while overwriting the first entry (undo), or while
+   * overwriting the second one (redo)
+   */
+  private static void crashMidSwap(Path file, int deadPid, boolean redo) throws IOException {
+    int entry = SharedMemoryAdmissions.ENTRY_BYTES;
+    int first = SharedMemoryAdmissions.HEADER_BYTES;
+    int second = first + entry;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, second + entry)
+          .order(ByteOrder.nativeOrder());
+      for (int b = 0; b < entry; b += 8) { // the first entry is saved in the journal
+        map.putLong(SharedMemoryAdmissions.JOURNAL_ENTRY_OFFSET + b, map.getLong(first + b));
+      }
+      map.putInt(SharedMemoryAdmissions.JOURNAL_SIZE_OFFSET, map.getInt(12));
+      if (redo) {
+        for (int b = 0; b < entry; b += 8) { // the second entry was copied over the first
+          map.putLong(first + b, map.getLong(second + b));
+        }
+        map.putInt(SharedMemoryAdmissions.JOURNAL_OFFSET, -2);
+        map.putLong(second, map.getLong(SharedMemoryAdmissions.JOURNAL_ENTRY_OFFSET));
+      } else {
+        map.putInt(SharedMemoryAdmissions.JOURNAL_OFFSET, 1);
+        map.putLong(first, map.getLong(second)); // the copy stopped after two of its three words
+        map.putLong(first + 8, map.getLong(second + 8));
+      }
+      map.putInt(8, deadPid);
+    }
+  }
+
+  /**
+   * Checks that a ReadmissionFilter recognizes recent visits within the requested window, forgets
+   * them once they leave its window, and flags the readmissions admitted to a queue
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testReadmissionFilter() {
+    long hour = ReadmissionFilter.BUCKET_MILLIS;
+    long start = 500_000 * hour;
+    ReadmissionFilter filter = new ReadmissionFilter(72, 50, 0.01);
+    filter.recordVisit("HC-1", start);
+
+    // A visit is found within its window, and never missed
+    if (!filter.mightHaveVisited("HC-1", 24, start + 23 * hour)) {
+      return false;
+    }
+    filter.recordVisit("HC-2", start + 30 * hour);
+    if (filter.mightHaveVisited("HC-1", 24, start + 30 * hour)
+        || !filter.mightHaveVisited("HC-1", 72, start + 30 * hour)
+        || !filter.mightHaveVisited("HC-2", 1, start + 30 * hour)) {
+      return false;
+    }
+    // Identities never seen are rarely reported, at about the configured rate
+    int falsePositives = 0;
+    for (int i = 0; i < 10_000; i++) {
+      if (filter.mightHaveVisited("never-" + i, 72, start + 30 * hour)) {
+        falsePositives++;
+      }
+    }
+    if (falsePositives > 100) {
+      return false;
+    }
+    // Visits expire once their hour leaves the window
+    if (filter.mightHaveVisited("HC-1", 72, start + 72 * hour)
+        || !filter.mightHaveVisited("HC-2", 72, start + 101 * hour)
+        || filter.mightHaveVisited("HC-2", 72, start + 102 * hour)
+        || filter.checkAndRecord("HC-3", 72, start + 102 * hour)
+        || !filter.checkAndRecord("HC-3", 72, start + 103 * hour)) {
+      return false;
+    }
+
+    // The queue flags the second visit of a patient, but not a record moving between queues
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(10);
+    PriorityCareAdmissions other = new PriorityCareAdmissions(10);
+    ReadmissionFilter shared = new ReadmissionFilter(72, 50, 0.01);
+    queue.setReadmissionFilter(shared, 24);
+    other.setReadmissionFilter(shared, 24);
+    PatientRecord first = new PatientRecord('F', 30, TriageLevel.GREEN, "HC-42");
+    PatientRecord anonymous = new PatientRecord('M', 30, TriageLevel.GREEN);
+    queue.addPatient(first);
+    queue.addPatient(anonymous);
+    PatientRecord second = new PatientRecord('F', 30, TriageLevel.RED, "HC-42");
+    queue.offer(second);
+    other.meld(queue);
+    return !first.isLikelyReadmission() && second.isLikelyReadmission()
+        && !anonymous.isLikelyReadmission() && other.size() == 3; // Return true if and only if
+                                                                   // all test cases pass
+  }
+
+  /**
+   * Checks that PriorityCareAdmissions.retriageAll() re-triages a batch of waiting patients in one
+   * rebuild, keeping the dispatch order, the ranks, the deadlines and the listeners consistent
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testRetriageAll() {
+    HashMap<TriageLevel, Long> targets = new HashMap<TriageLevel, Long>();
+    targets.put(TriageLevel.RED, 0L);
+    ArrayList<PatientRecord> breaches = new ArrayList<PatientRecord>();
+    SlaMonitor monitor = new SlaMonitor(targets, (p, waited) -> breaches.add(p));
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(100);
+    queue.setSlaMonitor(monitor);
+    ArrayList<PatientRecord> retriaged = new ArrayList<PatientRecord>();
+    queue.addChangeListener((change, p) -> {
+      if (change == QueueChange.RETRIAGED) {
+        retriaged.add(p);
+      }
+    });
+
+    // Admit 60 GREEN and YELLOW patients with distinct case numbers, and cancel a few of them
+    HashMap<Integer, PatientRecord> byCase = new HashMap<Integer, PatientRecord>();
+    while (byCase.size() < 60) {
+      PatientRecord p = new PatientRecord('X', 40, TriageLevel.values()[1 + byCase.size() % 2]);
+      if (byCase.putIfAbsent(p.CASE_NUMBER, p) == null) {
+        queue.addPatient(p);
+      }
+    }
+    PatientRecord[] patients = queue.toArray();
+    for (int i = 0; i < 5; i++) {
+      queue.cancel(patients[3 * i + 1].getArrivalOrder());
+    }
+    queue.rankOf(patients[0].getArrivalOrder()); // builds the rank trees
+
+    // A null level rejects the whole batch
+    HashMap<Integer, TriageLevel> changes = new HashMap<Integer, TriageLevel>();
+    changes.put(patients[0].getArrivalOrder(), TriageLevel.RED);
+    changes.put(patients[2].getArrivalOrder(), null);
+    try {
+      queue.retriageAll(changes);
+      return false;
+    } catch (NullPointerException e) {
+      if (patients[0].getTriage() == TriageLevel.RED) {
+        return false;
+      }
+    }
+
+    // Re-triage every third patient; unknown, cancelled and unchanged entries are ignored
+    changes.clear();
+    int expected = 0;
+    for (int i = 0; i < patients.length; i += 3) {
+      TriageLevel level = i % 2 == 0 ? TriageLevel.RED : TriageLevel.GREEN;
+      changes.put(patients[i].getArrivalOrder(), level);
+      expected += patients[i].getTriage() == level ? 0 : 1;
+    }
+    changes.put(patients[1].getArrivalOrder(), TriageLevel.RED); // cancelled
+    changes.put(-1, TriageLevel.RED); // never admitted
+    if (queue.retriageAll(changes) != expected || retriaged.size() != expected
+        || queue.size() != 55 || monitor.poll(System.nanoTime()) != 10) {
+      return false;
+    }
+
+    // Every patient must be ranked and dispatched in the order of its new triage level
+    PatientRecord[] expectedOrder = queue.toArray();
+    Arrays.sort(expectedOrder);
+    for (int i = 0; i < expectedOrder.length; i++) {
+      if (queue.rankOf(expectedOrder[i].getArrivalOrder()) != i) {
+        return false;
+      }
+    }
+    for (PatientRecord p : expectedOrder) {
+      if (queue.poll() != p) {
+        return false;
+      }
+    }
+    return queue.isEmpty() && breaches.size() == 10; // Return true if and only if all test cases
+                                                      // pass
+  }
+
+  /**
+   * Checks that PriorityCareAdmissions.removeBestEligible() dispatches the best patient eligible
+   * for a specialty, against a brute-force search, while dispatches, cancellations and re-triages
+   * of patients, some of them sharing a case number, keep the sub-heaps of the specialties and the
+   * array-heap consistent
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testRemoveBestEligible() {
+    Specialty[] specialties = {Specialty.PEDIATRIC, Specialty.TRAUMA, Specialty.GERIATRIC};
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(300);
+    HashMap<Integer, PatientRecord> model = new HashMap<Integer, PatientRecord>();
+    Random random = new Random(47);
+
+    // No eligible patient: the queue reports it without changing
+    queue.addPatient(new PatientRecord('F', 40, TriageLevel.GREEN));
+    try {
+      queue.removeBestEligible(Specialty.TRAUMA);
+      return false;
+    } catch (NoSuchElementException e) {
+      if (!e.getMessage().equals("Warning: No Eligible Patient!") || queue.size() != 1) {
+        return false;
+      }
+    }
+    model.put(queue.peek().getArrivalOrder(), queue.peek());
+
+    for (int step = 0; step < 3000; step++) {
+      int operation = random.nextInt(10);
+      if (operation < 4 && model.size() < 250) {
+        // Case numbers collide often with 250 waiting patients: each one is still dispatched
+        PatientRecord p = new PatientRecord('M', random.nextInt(100),
+            TriageLevel.values()[random.nextInt(3)]);
+        model.put(p.getArrivalOrder(), p);
+        queue.addPatient(p);
+      } else if (operation == 4 && !model.isEmpty()) {
+        model.remove(queue.poll().getArrivalOrder());
+      } else if (operation == 5 && !model.isEmpty()) {
+        PatientRecord p = model.values().iterator().next();
+        if (!queue.cancel(p.getArrivalOrder())) {
+          return false;
+        }
+        model.remove(p.getArrivalOrder());
+      } else if (operation == 6 && !model.isEmpty()) {
+        HashMap<Integer, TriageLevel> changes = new HashMap<Integer, TriageLevel>();
+        for (PatientRecord p : model.values()) {
+          if (random.nextInt(10) == 0) {
+            changes.put(p.getArrivalOrder(), TriageLevel.values()[random.nextInt(3)]);
+          }
+        }
+        queue.retriageAll(changes);
+      } else {
+        // The best eligible patient must be the smallest eligible record of the model
+        Specialty specialty = specialties[random.nextInt(specialties.length)];
+        PatientRecord expected = null;
+        for (PatientRecord p : model.values()) {
+          if (specialty.isEligible(p) && (expected == null || p.compareTo(expected) < 0)) {
+            expected = p;
+          }
+        }
+        if (queue.peekBestEligible(specialty) != expected) {
+          return false;
+        }
+        if (expected != null) {
+          if (queue.removeBestEligible(specialty) != expected) {
+            return false;
+          }
+          model.remove(expected.getArrivalOrder());
+        }
+      }
+      if (queue.size() != model.size()) {
+        return false;
+      }
+    }
+
+    // What is left must still be dispatched in order
+    PatientRecord[] expectedOrder = model.values().toArray(new PatientRecord[0]);
+    Arrays.sort(expectedOrder);
+    for (PatientRecord p : expectedOrder) {
+      if (queue.poll() != p) {
+        return false;
+      }
+    }
+    return queue.isEmpty() && queue.peekBestEligible(Specialty.PEDIATRIC) == null; // Return true
+                                                                                    // if and only
+                                                                                    // if all test
+                                                                                    // cases pass
+  }
+
+  /**
+   * Runs a short version of AdmissionsStressHarness with a few seeds and a small capacity, so that
+   * the queue often fills up and empties, and checks that it found no disagreement with the
+   * reference queue
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testStressHarness() {
+    for (long seed = 1; seed <= 3; seed++) {
+      try {
+        AdmissionsStressHarness results = AdmissionsStressHarness.run(seed, 200_000, 64);
+        if (results.count(AdmissionsStressHarness.Operation.ADD) == 0
+            || results.count(AdmissionsStressHarness.Operation.REMOVE_BEST) == 0
+            || results.invariantChecks() < 2) {
+          return false;
+        }
+      } catch (IllegalStateException e) {
+        return false;
+      }
+    }
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks that an ArrivalForecaster learns a weekly arrival pattern, reports its forecast errors,
+   * and reserves the storage of an arena-backed queue ahead of a forecast surge, within its
+   * capacity
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testArrivalForecaster() {
+    long hour = 3_600_000;
+    long monday = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+    ArrivalForecaster forecaster = new ArrivalForecaster(0.5, ZoneOffset.UTC);
+
+    // Three weeks of 12 arrivals per hour in the daytime (4 per triage level), 3 at night
+    for (int h = 0; h < 3 * ArrivalForecaster.HOURS_PER_WEEK; h++) {
+      int hourOfDay = h % 24;
+      int arrivals = hourOfDay >= 9 && hourOfDay < 18 ? 12 : 3;
+      for (int i = 0; i < arrivals; i++) {
+        forecaster.recordArrival(TriageLevel.values()[i % 3], monday + h * hour + i * 1000);
+      }
+    }
+    long lastMonday = monday + 2 * ArrivalForecaster.HOURS_PER_WEEK * hour;
+    if (forecaster.forecast(TriageLevel.RED, lastMonday + 10 * hour) != 4
+        || forecaster.forecastArrivals(lastMonday + 3 * hour, 2) != 6
+        || forecaster.evaluatedHours() != 2 * ArrivalForecaster.HOURS_PER_WEEK - 1
+        || forecaster.meanAbsoluteError() != 0 || forecaster.lastForecast() != 3) {
+      return false;
+    }
+
+    // A week twice as busy is underestimated, and the rates move half way towards it
+    long surge = monday + 3 * ArrivalForecaster.HOURS_PER_WEEK * hour;
+    for (int h = 0; h < 24; h++) {
+      for (int i = 0; i < 24; i++) {
+        forecaster.recordArrival(TriageLevel.YELLOW, surge + h * hour + i * 1000);
+      }
+    }
+    forecaster.recordArrival(TriageLevel.GREEN, surge + 24 * hour);
+    if (forecaster.bias() >= 0 || forecaster.lastActual() != 24
+        || forecaster.forecast(TriageLevel.YELLOW, surge + 10 * hour) != 14) {
+      return false;
+    }
+
+    // Presizing an arena-backed queue before the day shift reserves storage for the surge, and
+    // leaves its capacity unchanged
+    RecordArena arena = new RecordArena(1 << 12);
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(1000, PriorityPolicy.STANDARD, arena);
+    int expected = forecaster.presize(queue, surge + 7 * 24 * hour + 9 * hour, 2);
+    if (expected < 30 || queue.capacity() != 1000 || arena.borrowedSlots() < expected) {
+      return false;
+    }
+    for (int i = 0; i < expected; i++) {
+      queue.addPatient(new PatientRecord('F', 30, TriageLevel.GREEN));
+    }
+    long borrowed = arena.borrowedSlots();
+    while (!queue.isEmpty()) {
+      queue.poll(); // the reserved storage is kept while the queue drains
+    }
+    if (borrowed >= 2 * expected + RecordArena.MIN_LENGTH || arena.borrowedSlots() != borrowed) {
+      return false;
+    }
+
+    // A quieter forecast for the next night lets the storage fall back
+    int night = forecaster.presize(queue, surge + 8 * 24 * hour + 22 * hour, 2);
+    if (night <= 0 || night >= expected || arena.borrowedSlots() >= borrowed
+        || queue.capacity() != 1000) {
+      return false;
+    }
+    queue.clear();
+    if (arena.borrowedSlots() != 0) {
+      return false;
+    }
+
+    // The reservation never exceeds the capacity of a small queue
+    PriorityCareAdmissions small = new PriorityCareAdmissions(10, PriorityPolicy.STANDARD, arena);
+    if (forecaster.presize(small, surge + 9 * 24 * hour + 9 * hour, 2) != 10
+        || small.capacity() != 10 || arena.borrowedSlots() > 2 * 10 + RecordArena.MIN_LENGTH) {
+      return false;
+    }
+    small.clear();
+    return arena.borrowedSlots() == 0 && forecaster.presizes() == 3; // Return true if and only if
+                                                                     // all test cases pass
+  }
+
+  /**
+   * Checks that a SeenRecordArchive finds every visit of a case number across hourly segments and
+   * its tail, merges the segments of a day that ended, keeps its records when reopened, and
+   * deletes the segments older than its retention
+   * 
+   * @return true when this test verifies a correct functionality, and false otherwise
+   */
+  public static boolean testSeenRecordArchive() {
+    PatientRecord.resetCounter();
+    long hour = SeenRecordArchive.HOUR_MILLIS;
+    long day = SeenRecordArchive.DAY_MILLIS;
+    long start = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+    Random random = new Random(50);
+    ArrayList<PatientRecord> seen = new ArrayList<PatientRecord>();
+    ArrayList<Long> seenMillis = new ArrayList<Long>();
+
+    try {
+      Path directory = Files.createTempDirectory("archive");
+      SeenRecordArchive archive = new SeenRecordArchive(directory, 7 * day);
+
+      // 600 patients seen over the first 5 hours of a day, then 20 in the next day
+      for (int i = 0; i < 620; i++) {
+        PatientRecord p = new PatientRecord('M', random.nextInt(100),
+            TriageLevel.values()[random.nextInt(3)]);
+        long millis = i < 600 ? start + i * 30_000 : start + day + (i - 600) * 60_000;
+        p.seePatient();
+        archive.append(p, millis);
+        seen.add(p);
+        seenMillis.add(millis);
+      }
+      if (archive.size() != 620 || archive.segmentCount() != 5
+          || !checkArchive(archive, seen, seenMillis, Long.MIN_VALUE, Long.MAX_VALUE)
+          || !checkArchive(archive, seen, seenMillis, start + hour, start + 3 * hour)) {
+        return false;
+      }
+
+      // Compacting after the first day merges its 5 hourly segments, and the lookups still work
+      int samples = (600 + SeenRecordArchive.INDEX_INTERVAL - 1) / SeenRecordArchive.INDEX_INTERVAL;
+      if (archive.compact(start + day + hour) != 5 || archive.segmentCount() != 1
+          || archive.size() != 620 || archive.indexBytes() != 4 * samples
+          || !checkArchive(archive, seen, seenMillis, Long.MIN_VALUE, Long.MAX_VALUE)) {
+        return false;
+      }
+
+      // The tail is sealed on closing, and the reopened archive holds the same records
+      archive.close();
+      archive = new SeenRecordArchive(directory, 7 * day);
+      if (archive.size() != 620 || archive.segmentCount() != 2
+          || !checkArchive(archive, seen, seenMillis, Long.MIN_VALUE, Long.MAX_VALUE)) {
+        return false;
+      }
+
+      // Once the first day is older than the retention, its segment is deleted
+      if (archive.compact(start + 8 * day) != 1 || archive.size() != 20
+          || !checkArchive(archive, seen, seenMillis, start + day, Long.MAX_VALUE)
+          || !archive.find(seen.get(0).CASE_NUMBER, Long.MIN_VALUE, start + day).isEmpty()) {
+        return false;
+      }
+      archive.close();
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    } catch (IOException e) {
+      return false;
+    }
+
+    return true; // Return true if and only if all test cases pass
+  }
+
+  /**
+   * Checks that looking every seen case number up in the given archive, during the given time
+   * range, returns the records seen during that range in the order they were seen
+   */
+  private static boolean checkArchive(SeenRecordArchive archive, List<PatientRecord> seen,
+      List<Long> seenMillis, long fromMillis, long toMillis) throws IOException {
+    for (PatientRecord p : seen) {
+      List<PatientRecord> found = archive.find(p.CASE_NUMBER, fromMillis, toMillis);
+      int matched = 0;
+      for (int i = 0; i < seen.size(); i++) {
+        long millis = seenMillis.get(i);
+        if (seen.get(i).CASE_NUMBER == p.CASE_NUMBER && millis >= fromMillis && millis < toMillis) {
+          if (matched == found.size() || found.get(matched).compareTo(seen.get(i)) != 0
+              || found.get(matched).CASE_NUMBER != p.CASE_NUMBER) {
+            return false;
+          }
+          matched++;
+        }
+      }
+      if (matched != found.size()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Runs all the tester methods defined in this class.
    * 
@@ -499,7 +2599,15 @@ public class PriorityCareTester {
         && testPeekNonEmpty() && testAddPatientEmpty() && testAddPatientNonEmpty()
         && testAddPatientFull() && testAddPatientNull() && testRemoveBestRecordNonEmpty()
         && testRemoveBestRecordEmpty() && testRemoveBestRecordSizeOne() && testClear()
-        && testToString();
+        && testToString() && testPatientRecordFormatTo() && testCancel()
+        && testTieredCareAdmissions() && testSetPolicy() && testExport()
+        && testClaimConfirmRelease() && testOfferPollOverload() && testSlaMonitor()
+        && testDepartmentQueues() && testReplication() && testImportArrivals()
+        && testSeenPatientStore() && testTriageBucketAdmissions() && testAdaptiveCareAdmissions()
+        && testFlightRecorderEvents() && testMeldSplit() && testQueueDashboard()
+        && testQueueEventBus() && testRankOf() && testSharedMemoryAdmissions()
+        && testReadmissionFilter() && testRetriageAll() && testRemoveBestEligible()
+        && testStressHarness() && testArrivalForecaster() && testSeenRecordArchive();
   }
 
   /**
@@ -531,6 +2639,43 @@ public class PriorityCareTester {
         "testRemoveBestRecordSizeOne: " + (testRemoveBestRecordSizeOne() ? "Pass" : "Failed!"));
     System.out.println("testClear: " + (testClear() ? "Pass" : "Failed!"));
     System.out.println("testToString: " + (testToString() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testPatientRecordFormatTo: " + (testPatientRecordFormatTo() ? "Pass" : "Failed!"));
+    System.out.println("testCancel: " + (testCancel() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testTieredCareAdmissions: " + (testTieredCareAdmissions() ? "Pass" : "Failed!"));
+    System.out.println("testSetPolicy: " + (testSetPolicy() ? "Pass" : "Failed!"));
+    System.out.println("testExport: " + (testExport() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testClaimConfirmRelease: " + (testClaimConfirmRelease() ? "Pass" : "Failed!"));
+    System.out.println("testOfferPollOverload: " + (testOfferPollOverload() ? "Pass" : "Failed!"));
+    System.out.println("testSlaMonitor: " + (testSlaMonitor() ? "Pass" : "Failed!"));
+    System.out.println("testDepartmentQueues: " + (testDepartmentQueues() ? "Pass" : "Failed!"));
+    System.out.println("testReplication: " + (testReplication() ? "Pass" : "Failed!"));
+    System.out.println("testImportArrivals: " + (testImportArrivals() ? "Pass" : "Failed!"));
+    System.out.println("testSeenPatientStore: " + (testSeenPatientStore() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testTriageBucketAdmissions: " + (testTriageBucketAdmissions() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testAdaptiveCareAdmissions: " + (testAdaptiveCareAdmissions() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testFlightRecorderEvents: " + (testFlightRecorderEvents() ? "Pass" : "Failed!"));
+    System.out.println("testMeldSplit: " + (testMeldSplit() ? "Pass" : "Failed!"));
+    System.out.println("testQueueDashboard: " + (testQueueDashboard() ? "Pass" : "Failed!"));
+    System.out.println("testQueueEventBus: " + (testQueueEventBus() ? "Pass" : "Failed!"));
+    System.out.println("testRankOf: " + (testRankOf() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testSharedMemoryAdmissions: " + (testSharedMemoryAdmissions() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testReadmissionFilter: " + (testReadmissionFilter() ? "Pass" : "Failed!"));
+    System.out.println("testRetriageAll: " + (testRetriageAll() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testRemoveBestEligible: " + (testRemoveBestEligible() ? "Pass" : "Failed!"));
+    System.out.println("testStressHarness: " + (testStressHarness() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testArrivalForecaster: " + (testArrivalForecaster() ? "Pass" : "Failed!"));
+    System.out.println(
+        "testSeenRecordArchive: " + (testSeenRecordArchive() ? "Pass" : "Failed!"));
   }
 
 }
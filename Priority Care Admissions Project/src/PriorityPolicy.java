@@ -0,0 +1,57 @@
+import java.util.function.Predicate;
+
+/**
+ * A PriorityPolicy defines the order in which PatientRecords are dequeued from a
+ * PriorityCareAdmissions queue. Its rules are evaluated only once per PatientRecord, when the
+ * record is admitted, into a numeric priority key. The queue then orders its records by comparing
+ * those keys: the smaller the key, the higher the priority.<BR/>
+ * <BR/>
+ * Keys only need to be comparable among the records of one queue under one policy. Policies
+ * should give distinct keys to distinct records, which the predefined ones do by using the order
+ * of arrival as a tie-breaker.
+ *
+ */
+@FunctionalInterface
+public interface PriorityPolicy {
+
+  /**
+   * The default policy: PatientRecords are ordered by triage level, then by order of arrival,
+   * which is the same order as PatientRecord.compareTo().
+   */
+  PriorityPolicy STANDARD =
+      p -> ((long) p.getTriage().ordinal() << 33) | (p.getArrivalOrder() & 0xFFFFFFFFL);
+
+  /**
+   * Computes the priority key of the given PatientRecord under this policy
+   * 
+   * @param p PatientRecord to evaluate
+   * @return the priority key of p; smaller keys are dequeued first
+   */
+  long priorityKey(PatientRecord p);
+
+  /**
+   * Creates a policy that orders PatientRecords by triage level and, within the same triage level,
+   * serves the records matching the given rule before the others. Ties are broken by order of
+   * arrival.
+   * 
+   * @param rule rule selecting the PatientRecords to boost within their triage level
+   * @return the new policy
+   */
+  static PriorityPolicy boostWithinTriage(Predicate<PatientRecord> rule) {
+    return p -> ((long) p.getTriage().ordinal() << 33) | (rule.test(p) ? 0L : 1L << 32)
+        | (p.getArrivalOrder() & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Creates a policy that, within the same triage level, serves patients younger than youngerThan
+   * or older than olderThan first. For instance, ageBoost(5, 80) boosts patients under 5 or over
+   * 80.
+   * 
+   * @param youngerThan patients strictly younger than this age are boosted
+   * @param olderThan   patients strictly older than this age are boosted
+   * @return the new policy
+   */
+  static PriorityPolicy ageBoost(int youngerThan, int olderThan) {
+    return boostWithinTriage(p -> p.getAge() < youngerThan || p.getAge() > olderThan);
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * This enumeration defines the kinds of changes of the waiting PatientRecords of a
+ * PriorityCareAdmissions queue reported to its QueueChangeListeners.
+ *
+ */
+public enum QueueChange {
+  /**
+   * A patient was newly admitted to the queue
+   */
+  ADMITTED,
+  /**
+   * The patient having the highest priority was removed from the queue to be seen, or its claim
+   * was confirmed. A claimed patient is not reported until then.
+   */
+  DISPATCHED,
+  /**
+   * A patient left the queue without being seen: cancelled or evicted
+   */
+  CANCELLED,
+  /**
+   * A patient was moved to another queue by meld() or split(), or spilled to disk, and keeps
+   * waiting there
+   */
+  TRANSFERRED,
+  /**
+   * The triage level of a waiting patient changed
+   */
+  RETRIAGED,
+  /**
+   * All the patients were removed from the queue
+   */
+  CLEARED,
+  /**
+   * The priority keys of all the waiting patients were re-evaluated under a new PriorityPolicy
+   */
+  REORDERED;
+}
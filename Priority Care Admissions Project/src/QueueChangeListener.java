@@ -0,0 +1,18 @@
+/**
+ * A QueueChangeListener is notified of every change of the waiting PatientRecords of a
+ * PriorityCareAdmissions queue. It is called while holding the lock of the queue, right after the
+ * change, so it sees the changes in the order they happened; it should return quickly. Subsystems
+ * that may take longer should consume the changes from a QueueEventBus instead.
+ *
+ */
+@FunctionalInterface
+public interface QueueChangeListener {
+
+  /**
+   * Handles a change of the queue
+   * 
+   * @param change kind of change
+   * @param p      PatientRecord concerned by the change, or null for CLEARED and REORDERED
+   */
+  void onChange(QueueChange change, PatientRecord p);
+}
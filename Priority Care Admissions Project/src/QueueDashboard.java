@@ -0,0 +1,289 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded HTTP server streaming the changes of a PriorityCareAdmissions queue to the wall
+ * displays of the waiting room, as server-sent events.<BR/>
+ * <BR/>
+ * GET /events opens an event stream. A new client first receives a compact "snapshot" event
+ * listing the waiting patients, then one event per change: "admitted", "dispatched", "cancelled",
+ * "transferred", "retriaged", "cleared", or a fresh snapshot when the whole queue is reordered by
+ * a new PriorityPolicy. Every event carries a sequence number as its id, so a client reconnecting
+ * with the standard Last-Event-ID header only receives the changes it missed, as long as they are
+ * still among the last HISTORY_EVENTS ones; otherwise it receives a new snapshot. Each patient is
+ * sent as "caseNumber,age,gender,triage,arrivalOrder,priorityKey"; displays list the patients by
+ * increasing priority key.<BR/>
+ * <BR/>
+ * Each change is encoded once, into a ring of recent events shared by all the clients, and each
+ * client streams from its own position in that ring. Serving many displays therefore costs
+ * O(changes) per display instead of a full listing of the queue per display and refresh. GET /
+ * serves a minimal HTML page rendering the stream.
+ *
+ */
+public class QueueDashboard implements AutoCloseable {
+
+  /**
+   * Number of recent events kept for reconnecting clients
+   */
+  public static final int HISTORY_EVENTS = 1 << 12;
+
+  // maximum time without any event before a comment is sent to detect closed connections
+  private static final long HEARTBEAT_MILLIS = 15000;
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+  // minimal wall display: keeps the waiting patients by order of arrival, since case numbers
+  // repeat every hundred patients, and lists them sorted by priority key
+  private static final String PAGE = "<!DOCTYPE html><html><head><title>Waiting room</title>"
+      + "</head><body><h1>Waiting patients</h1><ol id=\"queue\"></ol><script>\n"
+      + "const patients = new Map();\n"
+      + "const parse = line => { const f = line.split(',');\n"
+      + "  return {arrival: f[4], label: f[0] + ': ' + f[1] + f[2] + ' (' + f[3] + ')',\n"
+      + "    key: BigInt(f[5])}; };\n"
+      + "const render = () => { const list = document.getElementById('queue');\n"
+      + "  list.replaceChildren(...[...patients.values()]\n"
+      + "    .sort((a, b) => (a.key < b.key ? -1 : a.key > b.key ? 1 : 0))\n"
+      + "    .map(p => { const item = document.createElement('li');\n"
+      + "      item.textContent = p.label; return item; })); };\n"
+      + "const events = new EventSource('/events');\n"
+      + "events.addEventListener('snapshot', e => { patients.clear();\n"
+      + "  e.data.split('\\n').slice(1).forEach(line => { const p = parse(line);\n"
+      + "    patients.set(p.arrival, p); }); render(); });\n"
+      + "['admitted', 'retriaged'].forEach(type => events.addEventListener(type, e => {\n"
+      + "  const p = parse(e.data); patients.set(p.arrival, p); render(); }));\n"
+      + "['dispatched', 'cancelled', 'transferred'].forEach(type =>\n"
+      + "  events.addEventListener(type, e => {\n"
+      + "    patients.delete(e.data.split(',')[4]); render(); }));\n"
+      + "events.addEventListener('cleared', () => { patients.clear(); render(); });\n"
+      + "</script></body></html>\n";
+
+  private final PriorityCareAdmissions queue; // queue being displayed
+  private final HttpServer server; // embedded HTTP server
+  private final ExecutorService clientThreads; // one thread per open event stream
+  private final byte[][] history; // encoded event of sequence number s at index s % HISTORY_EVENTS
+  private long sequence; // sequence number of the latest event
+  private volatile boolean closed; // whether close() was called
+  private final AtomicInteger clients = new AtomicInteger(); // number of open event streams
+  private final QueueChangeListener listener = this::publish; // listener added to the queue
+
+  /**
+   * Starts serving the dashboard of the given queue on the given loopback port
+   *
+   * @param queue queue to display
+   * @param port  port to listen on, or 0 for any free port
+   * @throws IOException if the port cannot be bound
+   */
+  public QueueDashboard(PriorityCareAdmissions queue, int port) throws IOException {
+    this.queue = queue;
+    this.history = new byte[HISTORY_EVENTS][];
+    this.server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    this.clientThreads = Executors.newCachedThreadPool(task -> {
+      Thread thread = new Thread(task, "dashboard-client");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.server.setExecutor(this.clientThreads);
+    this.server.createContext("/events", this::streamEvents);
+    this.server.createContext("/", this::servePage);
+    queue.addChangeListener(this.listener);
+    this.server.start();
+  }
+
+  /**
+   * Returns the port this dashboard listens on
+   *
+   * @return the local port of the HTTP server
+   */
+  public int port() {
+    return this.server.getAddress().getPort();
+  }
+
+  /**
+   * Returns the sequence number of the latest event
+   *
+   * @return the number of events published so far
+   */
+  public synchronized long sequence() {
+    return this.sequence;
+  }
+
+  /**
+   * Returns the number of open event streams
+   *
+   * @return the number of connected displays
+   */
+  public int clientCount() {
+    return this.clients.get();
+  }
+
+  /**
+   * Stops the dashboard, closing every event stream, and detaches it from the queue
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.queue.removeChangeListener(this.listener);
+    synchronized (this) {
+      this.notifyAll();
+    }
+    this.server.stop(0);
+    this.clientThreads.shutdownNow();
+  }
+
+  /**
+   * Encodes a change of the queue as an event and wakes up the event streams. Called by the queue
+   * while holding its lock.
+   */
+  private void publish(QueueChange change, PatientRecord p) {
+    synchronized (this) {
+      long next = this.sequence + 1;
+      this.history[(int) (next % HISTORY_EVENTS)] =
+          change == QueueChange.REORDERED ? this.snapshotEvent(next) : deltaEvent(next, change, p);
+      this.sequence = next;
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Streams the events to one client until it disconnects or the dashboard is closed
+   */
+  private void streamEvents(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    exchange.sendResponseHeaders(200, 0);
+    this.clients.incrementAndGet();
+    try (OutputStream out = exchange.getResponseBody()) {
+      long cursor = this.resumePoint(exchange.getRequestHeaders().getFirst("Last-Event-ID"));
+      if (cursor < 0) {
+        cursor = this.sendSnapshot(out);
+      }
+      while (!this.closed) {
+        byte[][] events;
+        long target;
+        synchronized (this) {
+          if (this.sequence == cursor) {
+            this.wait(HEARTBEAT_MILLIS);
+          }
+          target = this.sequence;
+          events = null;
+          if (target - cursor <= HISTORY_EVENTS) {
+            events = new byte[(int) (target - cursor)][];
+            for (long s = cursor + 1; s <= target; s++) {
+              events[(int) (s - cursor - 1)] = this.history[(int) (s % HISTORY_EVENTS)];
+            }
+          }
+        }
+
+        if (events == null) {
+          cursor = this.sendSnapshot(out); // this client fell too far behind
+          continue;
+        }
+        for (byte[] event : events) {
+          out.write(event);
+        }
+        if (events.length == 0) {
+          out.write(HEARTBEAT);
+        }
+        out.flush();
+        cursor = target;
+      }
+    } catch (IOException | InterruptedException e) {
+      // the client disconnected, or the dashboard is closing
+    } finally {
+      this.clients.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  /**
+   * Returns the sequence number after which a client resuming from the given Last-Event-ID can
+   * be served from the history, or -1 if it needs a snapshot
+   */
+  private synchronized long resumePoint(String lastEventId) {
+    if (lastEventId == null) {
+      return -1;
+    }
+    try {
+      long last = Long.parseLong(lastEventId.trim());
+      return last >= 0 && last <= this.sequence && this.sequence - last <= HISTORY_EVENTS ? last
+          : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Sends a snapshot of the queue to a client
+   *
+   * @return the sequence number of the snapshot, after which the client must receive deltas
+   */
+  private long sendSnapshot(OutputStream out) throws IOException {
+    byte[] event;
+    long snapshotSequence;
+    synchronized (this.queue) { // no change can be published while the snapshot is taken
+      synchronized (this) {
+        snapshotSequence = this.sequence;
+        event = this.snapshotEvent(snapshotSequence);
+      }
+    }
+    out.write(event);
+    out.flush();
+    return snapshotSequence;
+  }
+
+  /**
+   * Encodes a snapshot event: the number of waiting patients, then one patient per data line
+   */
+  private byte[] snapshotEvent(long id) {
+    PatientRecord[] records = this.queue.snapshot().records;
+    StringBuilder sb = new StringBuilder(32 + records.length * 40);
+    sb.append("id: ").append(id).append("\nevent: snapshot\ndata: ").append(records.length)
+        .append('\n');
+    for (PatientRecord p : records) {
+      appendPatient(sb.append("data: "), p).append('\n');
+    }
+    return sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Encodes a delta event for the given change of the given PatientRecord
+   */
+  private static byte[] deltaEvent(long id, QueueChange change, PatientRecord p) {
+    StringBuilder sb = new StringBuilder(96);
+    sb.append("id: ").append(id).append("\nevent: ").append(change.name().toLowerCase())
+        .append("\ndata: ");
+    if (p != null) {
+      appendPatient(sb, p);
+    }
+    return sb.append("\n\n").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Appends the fields of the given PatientRecord, separated by commas
+   */
+  private static StringBuilder appendPatient(StringBuilder sb, PatientRecord p) {
+    return sb.append(p.CASE_NUMBER).append(',').append(p.getAge()).append(',')
+        .append(p.getGender()).append(',').append(p.getTriage().name()).append(',')
+        .append(p.getArrivalOrder()).append(',').append(p.priorityKey);
+  }
+
+  /**
+   * Serves the HTML page rendering the event stream
+   */
+  private void servePage(HttpExchange exchange) throws IOException {
+    byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+    exchange.sendResponseHeaders(200, page.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(page);
+    }
+  }
+}
@@ -0,0 +1,449 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-writer ring buffer publishing the changes of a PriorityCareAdmissions queue to
+ * subsystems that react to them at their own pace, such as billing, bed management or
+ * notifications.<BR/>
+ * <BR/>
+ * The bus listens to the queue and copies each change into the next slot of a ring of
+ * preallocated ChangeEvents, then advances its cursor. Only the queue writes to the ring, while
+ * holding its lock, so publishing takes no further lock, allocates nothing, and costs the queue a
+ * few field writes whatever the number of subscribers.<BR/>
+ * <BR/>
+ * Each Subscription runs its Handler on its own thread. It follows the cursor with its own
+ * WaitStrategy and hands over every event published since its last batch, flagging the last one
+ * of the batch, so that a handler can flush its work once per batch instead of once per event. A
+ * subscriber never holds the queue back: when it falls more than one ring behind, the events it
+ * missed are overwritten, and it skips to the oldest event still in the ring, reporting how many
+ * it lost to its handler.
+ *
+ */
+public class QueueEventBus implements QueueChangeListener, AutoCloseable {
+
+  /**
+   * Ways a Subscription waits for new events, from the lowest latency to the lowest CPU usage
+   */
+  public enum WaitStrategy {
+    /**
+     * Spins on the cursor, keeping a core busy
+     */
+    BUSY_SPIN,
+    /**
+     * Spins briefly, then yields the core to other threads between checks
+     */
+    YIELDING,
+    /**
+     * Spins briefly, yields, then sleeps SLEEP_NANOS between checks
+     */
+    SLEEPING,
+    /**
+     * Parks until the queue publishes an event and wakes the subscriber up
+     */
+    BLOCKING
+  }
+
+  /**
+   * Reacts to the events of a QueueEventBus, on the thread of its Subscription
+   */
+  @FunctionalInterface
+  public interface Handler {
+
+    /**
+     * Handles one event. The event is reused for the next one, so its fields must be copied to be
+     * kept.
+     *
+     * @param event      event to handle
+     * @param sequence   sequence number of the event
+     * @param endOfBatch whether no other event was available when this batch started
+     */
+    void onEvent(ChangeEvent event, long sequence, boolean endOfBatch);
+
+    /**
+     * Called when events were overwritten before this handler could read them
+     *
+     * @param count number of events lost
+     */
+    default void onLost(long count) {
+    }
+  }
+
+  /**
+   * A change of the queue, as published on the bus
+   */
+  public static final class ChangeEvent {
+    private volatile long sequence = -1; // sequence number of the event, -1 while it is written
+    private QueueChange change; // kind of change
+    private PatientRecord record; // PatientRecord concerned, or null for CLEARED and REORDERED
+    private int caseNumber; // case number of the record, or -1
+    private TriageLevel triage; // triage level of the record at the time of the change, or null
+    private long nanoTime; // System.nanoTime() when the change was published
+
+    /**
+     * Returns the kind of this change
+     *
+     * @return the kind of change
+     */
+    public QueueChange getChange() {
+      return this.change;
+    }
+
+    /**
+     * Returns the PatientRecord concerned by this change
+     *
+     * @return the PatientRecord concerned, or null for CLEARED and REORDERED
+     */
+    public PatientRecord getRecord() {
+      return this.record;
+    }
+
+    /**
+     * Returns the case number of the PatientRecord concerned by this change
+     *
+     * @return the CASE_NUMBER of the record, or -1 for CLEARED and REORDERED
+     */
+    public int getCaseNumber() {
+      return this.caseNumber;
+    }
+
+    /**
+     * Returns the triage level of the PatientRecord concerned, at the time of this change
+     *
+     * @return the triage level of the record, or null for CLEARED and REORDERED
+     */
+    public TriageLevel getTriage() {
+      return this.triage;
+    }
+
+    /**
+     * Returns when this change was published
+     *
+     * @return the value of System.nanoTime() when this change was published
+     */
+    public long getNanoTime() {
+      return this.nanoTime;
+    }
+
+    /**
+     * Copies the event of the given sequence number stored in this slot to the given event
+     *
+     * @return {@code false} if this slot no longer holds that event, because the writer lapped
+     *         the reader
+     */
+    private boolean copyTo(ChangeEvent event, long expected) {
+      if (this.sequence != expected) {
+        return false;
+      }
+      event.change = this.change;
+      event.record = this.record;
+      event.caseNumber = this.caseNumber;
+      event.triage = this.triage;
+      event.nanoTime = this.nanoTime;
+      VarHandle.acquireFence(); // read the fields before checking they were not overwritten
+      return this.sequence == expected;
+    }
+  }
+
+  /**
+   * Default number of events kept in the ring
+   */
+  public static final int DEFAULT_RING_SIZE = 1 << 12;
+  /**
+   * Time a SLEEPING subscriber sleeps between two checks, in nanoseconds
+   */
+  public static final long SLEEP_NANOS = 100_000;
+  // number of checks a subscriber spins before yielding or sleeping
+  private static final int SPIN_TRIES = 100;
+  // number of checks a subscriber yields before sleeping
+  private static final int YIELD_TRIES = 100;
+  // longest time a BLOCKING subscriber parks before checking whether it was closed
+  private static final long PARK_NANOS = 100_000_000;
+
+  private final PriorityCareAdmissions queue; // queue publishing on this bus
+  private final ChangeEvent[] ring; // preallocated slots, event s at index s & mask
+  private final int mask; // ring.length - 1
+  private volatile long cursor = -1; // sequence number of the latest published event
+  private volatile Subscription[] subscriptions = new Subscription[0]; // open subscriptions
+
+  /**
+   * Creates a bus of DEFAULT_RING_SIZE events publishing the changes of the given queue
+   *
+   * @param queue queue whose changes are published
+   */
+  public QueueEventBus(PriorityCareAdmissions queue) {
+    this(queue, DEFAULT_RING_SIZE);
+  }
+
+  /**
+   * Creates a bus publishing the changes of the given queue
+   *
+   * @param queue    queue whose changes are published
+   * @param ringSize number of events kept for the subscribers, a power of 2
+   * @throws IllegalArgumentException with a descriptive error message if the ring size is not a
+   *                                  positive power of 2
+   */
+  public QueueEventBus(PriorityCareAdmissions queue, int ringSize)
+      throws IllegalArgumentException {
+    if (ringSize <= 0 || Integer.bitCount(ringSize) != 1) {
+      throw new IllegalArgumentException("Error! The ring size must be a power of 2");
+    }
+    this.queue = queue;
+    this.ring = new ChangeEvent[ringSize];
+    for (int i = 0; i < ringSize; i++) {
+      this.ring[i] = new ChangeEvent();
+    }
+    this.mask = ringSize - 1;
+    queue.addChangeListener(this);
+  }
+
+  /**
+   * Returns the sequence number of the latest published event
+   *
+   * @return the sequence number of the latest event, or -1 if none was published
+   */
+  public long cursor() {
+    return this.cursor;
+  }
+
+  /**
+   * Returns the number of events this bus keeps for its subscribers
+   *
+   * @return the size of the ring
+   */
+  public int ringSize() {
+    return this.ring.length;
+  }
+
+  /**
+   * Starts a subscriber handling every event published from now on, on a new daemon thread
+   *
+   * @param name         name of the subscriber, used to name its thread
+   * @param waitStrategy how the subscriber waits for new events
+   * @param handler      handler of the events
+   * @return the new Subscription
+   * @throws NullPointerException if the wait strategy or the handler is null
+   */
+  public synchronized Subscription subscribe(String name, WaitStrategy waitStrategy,
+      Handler handler) throws NullPointerException {
+    if (waitStrategy == null || handler == null) {
+      throw new NullPointerException();
+    }
+    Subscription subscription = new Subscription(name, waitStrategy, handler, this.cursor);
+    Subscription[] current = this.subscriptions;
+    Subscription[] next = new Subscription[current.length + 1];
+    System.arraycopy(current, 0, next, 0, current.length);
+    next[current.length] = subscription;
+    this.subscriptions = next;
+    subscription.thread.start();
+    return subscription;
+  }
+
+  /**
+   * Publishes a change of the queue. Called by the queue while holding its lock, which makes the
+   * queue the single writer of the ring.
+   */
+  @Override
+  public void onChange(QueueChange change, PatientRecord p) {
+    long next = this.cursor + 1;
+    ChangeEvent slot = this.ring[(int) next & this.mask];
+    slot.sequence = -1; // readers of the previous event of this slot will see it was overwritten
+    VarHandle.storeStoreFence();
+    slot.change = change;
+    slot.record = p;
+    slot.caseNumber = p == null ? -1 : p.CASE_NUMBER;
+    slot.triage = p == null ? null : p.getTriage();
+    slot.nanoTime = System.nanoTime();
+    slot.sequence = next;
+    this.cursor = next;
+    for (Subscription subscription : this.subscriptions) {
+      if (subscription.parked) {
+        LockSupport.unpark(subscription.thread);
+      }
+    }
+  }
+
+  /**
+   * Stops publishing the changes of the queue, and closes every subscription
+   */
+  @Override
+  public void close() {
+    this.queue.removeChangeListener(this);
+    Subscription[] current;
+    synchronized (this) {
+      current = this.subscriptions;
+      this.subscriptions = new Subscription[0];
+    }
+    for (Subscription subscription : current) {
+      subscription.close();
+    }
+  }
+
+  /**
+   * Removes a closed subscription from the ones woken up by the queue
+   */
+  private synchronized void unsubscribe(Subscription subscription) {
+    Subscription[] current = this.subscriptions;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == subscription) {
+        Subscription[] next = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        this.subscriptions = next;
+        return;
+      }
+    }
+  }
+
+  /**
+   * A subscriber of a QueueEventBus, handling its events on its own thread
+   */
+  public final class Subscription implements AutoCloseable {
+    private final Thread thread; // thread running the handler
+    private final WaitStrategy waitStrategy; // how to wait for new events
+    private final Handler handler; // handler of the events
+    private final ChangeEvent event = new ChangeEvent(); // reused copy handed to the handler
+    private volatile long sequence; // sequence number of the last handled event
+    private volatile long lostEvents; // number of events overwritten before being handled
+    private volatile long failures; // number of events whose handler threw an exception
+    private volatile boolean parked; // whether the thread is parked by the BLOCKING strategy
+    private volatile boolean closed; // whether close() was called
+
+    /**
+     * Creates a subscription handling the events published after the given sequence number
+     */
+    private Subscription(String name, WaitStrategy waitStrategy, Handler handler, long start) {
+      this.waitStrategy = waitStrategy;
+      this.handler = handler;
+      this.sequence = start;
+      this.thread = new Thread(this::run, "queue-events-" + name);
+      this.thread.setDaemon(true);
+    }
+
+    /**
+     * Returns the sequence number of the last event handled by this subscriber
+     *
+     * @return the sequence number of the last handled or lost event
+     */
+    public long sequence() {
+      return this.sequence;
+    }
+
+    /**
+     * Returns the number of published events this subscriber has not handled yet
+     *
+     * @return how many events this subscriber is behind the queue
+     */
+    public long lag() {
+      return QueueEventBus.this.cursor - this.sequence;
+    }
+
+    /**
+     * Returns the number of events overwritten before this subscriber could handle them
+     *
+     * @return the number of lost events
+     */
+    public long lostEvents() {
+      return this.lostEvents;
+    }
+
+    /**
+     * Returns the number of events whose handler threw an exception
+     *
+     * @return the number of failed events
+     */
+    public long failures() {
+      return this.failures;
+    }
+
+    /**
+     * Stops this subscriber after the event it is handling, if any, and waits for its thread to
+     * end
+     */
+    @Override
+    public void close() {
+      this.closed = true;
+      QueueEventBus.this.unsubscribe(this);
+      LockSupport.unpark(this.thread);
+      if (Thread.currentThread() != this.thread) {
+        try {
+          this.thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    /**
+     * Handles the published events in batches until this subscription is closed
+     */
+    private void run() {
+      long next = this.sequence + 1;
+      while (!this.closed) {
+        long available = this.waitFor(next);
+        if (available < next) {
+          continue; // closed while waiting
+        }
+        long oldest = available - QueueEventBus.this.ring.length + 1;
+        if (next < oldest) {
+          this.lost(oldest - next);
+          next = oldest;
+        }
+        while (next <= available && !this.closed) {
+          if (!QueueEventBus.this.ring[(int) next & QueueEventBus.this.mask]
+              .copyTo(this.event, next)) {
+            break; // overwritten while reading: skip ahead from the new cursor
+          }
+          try {
+            this.handler.onEvent(this.event, next, next == available);
+          } catch (RuntimeException e) {
+            this.failures++; // only this thread writes the counter
+          }
+          this.sequence = next;
+          next++;
+        }
+      }
+    }
+
+    /**
+     * Waits until the event of the given sequence number is published, or this subscription is
+     * closed
+     *
+     * @return the cursor of the bus, which is at least next unless this subscription was closed
+     */
+    private long waitFor(long next) {
+      int tries = 0;
+      long available;
+      while ((available = QueueEventBus.this.cursor) < next && !this.closed) {
+        if (this.waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) {
+          Thread.onSpinWait();
+        } else if (this.waitStrategy == WaitStrategy.BLOCKING) {
+          this.parked = true; // the queue checks this flag after advancing the cursor
+          if (QueueEventBus.this.cursor < next && !this.closed) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+          }
+          this.parked = false;
+        } else if (this.waitStrategy == WaitStrategy.YIELDING
+            || tries < SPIN_TRIES + YIELD_TRIES) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(this, SLEEP_NANOS);
+        }
+        tries++;
+      }
+      return available;
+    }
+
+    /**
+     * Reports events lost by this subscriber
+     */
+    private void lost(long count) {
+      this.lostEvents += count; // only this thread writes the counter
+      this.sequence += count;
+      try {
+        this.handler.onLost(count);
+      } catch (RuntimeException e) {
+        this.failures++;
+      }
+    }
+  }
+}
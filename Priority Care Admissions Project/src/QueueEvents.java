@@ -0,0 +1,131 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events emitted by PriorityCareAdmissions, so that latency spikes of the
+ * queue can be correlated with garbage collections and CPU usage in a single recording.<BR/>
+ * <BR/>
+ * All the events are disabled by default. They can be enabled by name in a recording, for
+ * instance with -XX:StartFlightRecording and a settings file enabling "care.Admission". The queue
+ * only fills in the fields of an event when the event is enabled and its duration is above the
+ * threshold of the recording, so a disabled event costs a begin() and a shouldCommit() call, which
+ * the JIT compiler reduces to nothing when JFR is off.
+ *
+ */
+public final class QueueEvents {
+
+  /**
+   * Private constructor: this class only groups the event types
+   */
+  private QueueEvents() {
+  }
+
+  /**
+   * A PatientRecord was added to a queue
+   */
+  @Name("care.Admission")
+  @Label("Patient Admission")
+  @Description("A patient was added to a PriorityCareAdmissions queue")
+  @Category({"Priority Care", "Queue"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class Admission extends Event {
+    @Label("Case Number")
+    int caseNumber;
+
+    @Label("Triage Level")
+    String triage;
+
+    @Label("Queue Size")
+    @Description("Number of waiting patients after the admission")
+    int queueSize;
+
+    @Label("Sift Depth")
+    @Description("Number of heap levels the patient moved up")
+    int siftDepth;
+  }
+
+  /**
+   * The PatientRecord having the highest priority was removed from a queue
+   */
+  @Name("care.Dispatch")
+  @Label("Patient Dispatch")
+  @Description("The patient having the highest priority was removed from a queue")
+  @Category({"Priority Care", "Queue"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class Dispatch extends Event {
+    @Label("Case Number")
+    int caseNumber;
+
+    @Label("Triage Level")
+    String triage;
+
+    @Label("Queue Size")
+    @Description("Number of waiting patients after the dispatch")
+    int queueSize;
+
+    @Label("Sift Depth")
+    @Description("Number of heap levels the last record moved down to refill the root")
+    int siftDepth;
+  }
+
+  /**
+   * A PatientRecord was turned away because the queue was full
+   */
+  @Name("care.Rejection")
+  @Label("Full Queue Rejection")
+  @Description("A patient could not be admitted because the queue was full")
+  @Category({"Priority Care", "Queue"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class Rejection extends Event {
+    @Label("Triage Level")
+    String triage;
+
+    @Label("Queue Size")
+    int queueSize;
+
+    @Label("Outcome")
+    @Description("REJECTED for addPatient(), or the AdmissionStatus returned by offer()")
+    String outcome;
+  }
+
+  /**
+   * A queue was cleared
+   */
+  @Name("care.Clear")
+  @Label("Queue Clear")
+  @Description("All the patients of a queue were removed")
+  @Category({"Priority Care", "Queue"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class Clear extends Event {
+    @Label("Queue Size")
+    @Description("Number of waiting patients before the queue was cleared")
+    int queueSize;
+  }
+
+  /**
+   * A queue was copied or listed
+   */
+  @Name("care.Listing")
+  @Label("Queue Listing")
+  @Description("A queue was copied, or listed in priority order")
+  @Category({"Priority Care", "Queue"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class Listing extends Event {
+    @Label("Operation")
+    @Description("deepCopy, formatTo or writeTo")
+    String operation;
+
+    @Label("Queue Size")
+    int queueSize;
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Measures what a ReadmissionFilter adds to the intake of a PriorityCareAdmissions queue, and the
+ * false-positive rate it actually reaches against the configured one.<BR/>
+ * <BR/>
+ * Usage: java ReadmissionBenchmark [windowHours] [visitsPerHour] [falsePositiveRate]<BR/>
+ * The defaults are a 72-hour window, 500 visits per hour and a 1% false-positive rate.
+ *
+ */
+public class ReadmissionBenchmark {
+  private static final int WARMUP_ROUNDS = 5; // rounds run before measuring, for the JIT compiler
+  private static final int MEASURED_ROUNDS = 5; // rounds measured, keeping the fastest
+  private static final int INTAKES_PER_ROUND = 200_000; // admissions per round
+  private static final int WAITING = 1_000; // size the queue is kept at during a round
+  private static final int RETURNING_PATIENTS = 20_000; // identities patients are drawn from
+  private static final int FALSE_POSITIVE_PROBES = 100_000; // identities never seen, queried
+
+  /**
+   * Private constructor: this class only holds the benchmark
+   */
+  private ReadmissionBenchmark() {
+  }
+
+  /**
+   * Runs the benchmark and prints its results
+   *
+   * @param args optional window in hours, visits per hour and false-positive rate
+   */
+  public static void main(String[] args) {
+    int windowHours = args.length > 0 ? Integer.parseInt(args[0]) : 72;
+    int visitsPerHour = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    double rate = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+
+    long baseline = Long.MAX_VALUE;
+    long filtered = Long.MAX_VALUE;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+      long withoutFilter = runRound(null);
+      long withFilter = runRound(new ReadmissionFilter(windowHours, visitsPerHour, rate));
+      if (round >= WARMUP_ROUNDS) {
+        baseline = Math.min(baseline, withoutFilter);
+        filtered = Math.min(filtered, withFilter);
+      }
+    }
+
+    System.out.printf("Intake without filter: %.1f ns/patient%n",
+        (double) baseline / INTAKES_PER_ROUND);
+    System.out.printf("Intake with filter:    %.1f ns/patient (+%.1f ns)%n",
+        (double) filtered / INTAKES_PER_ROUND, (double) (filtered - baseline) / INTAKES_PER_ROUND);
+
+    // Fill every hour of the window with the expected visits, then query unseen identities
+    ReadmissionFilter filter = new ReadmissionFilter(windowHours, visitsPerHour, rate);
+    long start = 1_000L * ReadmissionFilter.BUCKET_MILLIS;
+    int visits = 0;
+    for (int hour = 0; hour < windowHours; hour++) {
+      for (int i = 0; i < visitsPerHour; i++) {
+        filter.recordVisit("seen-" + visits++, start + hour * ReadmissionFilter.BUCKET_MILLIS);
+      }
+    }
+    long now = start + (windowHours - 1) * ReadmissionFilter.BUCKET_MILLIS;
+    int falsePositives = 0;
+    for (int i = 0; i < FALSE_POSITIVE_PROBES; i++) {
+      if (filter.mightHaveVisited("unseen-" + i, windowHours, now)) {
+        falsePositives++;
+      }
+    }
+    System.out.printf("False positives: %.3f%% measured, %.3f%% configured%n",
+        100.0 * falsePositives / FALSE_POSITIVE_PROBES, 100 * rate);
+    System.out.printf("Filter memory: %d KiB for a %d-hour window%n", filter.memoryBytes() / 1024,
+        windowHours);
+  }
+
+  /**
+   * Admits INTAKES_PER_ROUND new patients to a new queue attached to the given filter, dispatching
+   * one patient for each admission once WAITING patients wait. The records are created before the
+   * clock starts, so that only the admissions are measured.
+   *
+   * @return the elapsed time in nanoseconds
+   */
+  private static long runRound(ReadmissionFilter filter) {
+    PatientRecord[] patients = new PatientRecord[INTAKES_PER_ROUND];
+    for (int i = 0; i < patients.length; i++) {
+      patients[i] = new PatientRecord('X', i % 100, TriageLevel.values()[i % 3],
+          "HC-" + (i * 7919L % RETURNING_PATIENTS));
+    }
+    PriorityCareAdmissions queue = new PriorityCareAdmissions(WAITING + 1);
+    if (filter != null) {
+      queue.setReadmissionFilter(filter, filter.windowHours());
+    }
+    long start = System.nanoTime();
+    for (PatientRecord p : patients) {
+      queue.addPatient(p);
+      if (queue.size() >= WAITING) {
+        queue.poll();
+      }
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,265 @@
+import java.util.Arrays;
+
+/**
+ * Rolling, time-windowed approximate-membership filter answering "did this patient already come
+ * in during the last hours?" in constant time and fixed memory, whatever the length of the visit
+ * history.<BR/>
+ * <BR/>
+ * The window is split into one Bloom filter per hour, kept in a ring. A visit sets the bits of the
+ * patient identity in the filter of the current hour; a query checks the filters of the hours it
+ * covers. When the clock moves to a new hour, the filter of the oldest hour is cleared and reused
+ * for the new one, so visits expire an hour at a time without ever being deleted one by one.<BR/>
+ * <BR/>
+ * A query may report a visit that did not happen, but never misses one that did and is still in
+ * the window. Every hourly filter is sized for the expected number of visits per hour and for the
+ * configured false-positive rate divided by the number of hours of the window, so a query over
+ * the whole window stays under the configured rate as long as the hourly visits do not exceed the
+ * expected number. All the public operations of this filter are thread-safe, so several queues
+ * can share one.
+ *
+ */
+public class ReadmissionFilter {
+
+  /**
+   * Length of the buckets of the window, in milliseconds
+   */
+  public static final long BUCKET_MILLIS = 3_600_000;
+
+  private final long[][] buckets; // bits of the Bloom filter of each hour, hour h at h % length
+  private final int bitsPerBucket; // number of bits of each Bloom filter, a multiple of 64
+  private final int hashes; // number of bits set per identity
+  private final double falsePositiveRate; // configured false-positive rate over the window
+  private final long[] bucketHours; // hour stored in each bucket, Long.MIN_VALUE if none
+  private final int[] probes; // bits of the identity being recorded or queried, reused
+  private long currentHour; // latest hour a visit or a query was made at
+
+  /**
+   * Creates a new empty ReadmissionFilter
+   *
+   * @param windowHours       number of hours a visit is remembered for, such as 24 or 72
+   * @param visitsPerHour     expected number of visits per hour
+   * @param falsePositiveRate highest acceptable rate of false readmissions over the whole window,
+   *                          strictly between 0 and 1
+   * @throws IllegalArgumentException with a descriptive error message if a parameter is out of
+   *                                  range
+   */
+  public ReadmissionFilter(int windowHours, int visitsPerHour, double falsePositiveRate)
+      throws IllegalArgumentException {
+    if (windowHours <= 0 || visitsPerHour <= 0) {
+      throw new IllegalArgumentException("Error! The window and the visits must be positive");
+    }
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      throw new IllegalArgumentException("Error! The false-positive rate must be in (0, 1)");
+    }
+
+    // Standard Bloom filter sizing, for the share of the rate allotted to one hour
+    double bucketRate = falsePositiveRate / windowHours;
+    double ln2 = Math.log(2);
+    long bits = (long) Math.ceil(-visitsPerHour * Math.log(bucketRate) / (ln2 * ln2));
+    if (bits > Integer.MAX_VALUE - 64) {
+      throw new IllegalArgumentException("Error! The filter would be too large");
+    }
+    this.bitsPerBucket = (int) ((bits + 63) / 64 * 64);
+    this.hashes = Math.max(1, (int) Math.round((double) this.bitsPerBucket / visitsPerHour * ln2));
+    this.falsePositiveRate = falsePositiveRate;
+    this.buckets = new long[windowHours][this.bitsPerBucket / 64];
+    this.bucketHours = new long[windowHours];
+    this.probes = new int[this.hashes];
+    Arrays.fill(this.bucketHours, Long.MIN_VALUE);
+    this.currentHour = Long.MIN_VALUE;
+  }
+
+  /**
+   * Returns the number of hours a visit is remembered for
+   *
+   * @return the length of the window in hours
+   */
+  public int windowHours() {
+    return this.buckets.length;
+  }
+
+  /**
+   * Returns the configured false-positive rate of a query over the whole window
+   *
+   * @return the false-positive rate
+   */
+  public double falsePositiveRate() {
+    return this.falsePositiveRate;
+  }
+
+  /**
+   * Returns the memory taken by the bits of this filter, which does not depend on the number of
+   * visits
+   *
+   * @return the size of the hourly filters in bytes
+   */
+  public long memoryBytes() {
+    return (long) this.buckets.length * this.bitsPerBucket / 8;
+  }
+
+  /**
+   * Records a visit of the patient having the given identity, now
+   *
+   * @param patientId stable identity of the patient
+   * @throws NullPointerException if patientId is null
+   */
+  public void recordVisit(String patientId) throws NullPointerException {
+    this.recordVisit(patientId, System.currentTimeMillis());
+  }
+
+  /**
+   * Records a visit of the patient having the given identity at the given time
+   *
+   * @param patientId stable identity of the patient
+   * @param nowMillis time of the visit, in milliseconds since the epoch
+   * @throws NullPointerException if patientId is null
+   */
+  public synchronized void recordVisit(String patientId, long nowMillis)
+      throws NullPointerException {
+    this.computeProbes(patientId);
+    this.set(this.advanceTo(nowMillis));
+  }
+
+  /**
+   * Checks whether the patient having the given identity probably visited within the given number
+   * of hours before now
+   *
+   * @param patientId   stable identity of the patient
+   * @param withinHours number of hours to look back, capped to the window of this filter
+   * @return {@code true} if the patient probably visited, {@code false} if the patient certainly
+   *         did not
+   * @throws NullPointerException if patientId is null
+   */
+  public boolean mightHaveVisited(String patientId, int withinHours) throws NullPointerException {
+    return this.mightHaveVisited(patientId, withinHours, System.currentTimeMillis());
+  }
+
+  /**
+   * Checks whether the patient having the given identity probably visited within the given number
+   * of hours before the given time. Visits are counted by hour: a visit made in the same hour as
+   * nowMillis or in one of the previous withinHours - 1 hours is found.
+   *
+   * @param patientId   stable identity of the patient
+   * @param withinHours number of hours to look back, capped to the window of this filter
+   * @param nowMillis   time of the query, in milliseconds since the epoch
+   * @return {@code true} if the patient probably visited, {@code false} if the patient certainly
+   *         did not
+   * @throws NullPointerException if patientId is null
+   */
+  public synchronized boolean mightHaveVisited(String patientId, int withinHours, long nowMillis)
+      throws NullPointerException {
+    this.computeProbes(patientId);
+    return this.probe(this.advanceTo(nowMillis), withinHours);
+  }
+
+  /**
+   * Checks whether the patient having the given identity probably visited within the given number
+   * of hours, then records a visit of that patient now. This hashes the identity only once.
+   *
+   * @param patientId   stable identity of the patient
+   * @param withinHours number of hours to look back, capped to the window of this filter
+   * @return {@code true} if the patient probably visited before this visit
+   * @throws NullPointerException if patientId is null
+   */
+  public boolean checkAndRecord(String patientId, int withinHours) throws NullPointerException {
+    return this.checkAndRecord(patientId, withinHours, System.currentTimeMillis());
+  }
+
+  /**
+   * Checks whether the patient having the given identity probably visited within the given number
+   * of hours before the given time, then records a visit of that patient at that time
+   *
+   * @param patientId   stable identity of the patient
+   * @param withinHours number of hours to look back, capped to the window of this filter
+   * @param nowMillis   time of the visit, in milliseconds since the epoch
+   * @return {@code true} if the patient probably visited before this visit
+   * @throws NullPointerException if patientId is null
+   */
+  public synchronized boolean checkAndRecord(String patientId, int withinHours, long nowMillis)
+      throws NullPointerException {
+    this.computeProbes(patientId);
+    long hour = this.advanceTo(nowMillis);
+    boolean visited = this.probe(hour, withinHours);
+    this.set(hour);
+    return visited;
+  }
+
+  /**
+   * Sets the probes of the current identity in the filter of the given hour
+   */
+  private void set(long hour) {
+    long[] bits = this.buckets[(int) Math.floorMod(hour, (long) this.buckets.length)];
+    for (int bit : this.probes) {
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Checks whether the probes of the current identity are all set in one of the filters of the
+   * given number of hours up to the given hour
+   */
+  private boolean probe(long hour, int withinHours) {
+    int hours = Math.min(withinHours, this.buckets.length);
+    for (int back = 0; back < hours; back++) {
+      int index = (int) Math.floorMod(hour - back, (long) this.buckets.length);
+      if (this.bucketHours[index] != hour - back) {
+        continue; // no visit recorded during that hour
+      }
+      long[] bits = this.buckets[index];
+      boolean found = true;
+      for (int i = 0; i < this.probes.length && found; i++) {
+        found = (bits[this.probes[i] >>> 6] & (1L << this.probes[i])) != 0;
+      }
+      if (found) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves the window to the hour of the given time, clearing the buckets of the hours leaving it.
+   * A time earlier than the latest one seen counts as the latest one.
+   *
+   * @return the current hour
+   */
+  private long advanceTo(long nowMillis) {
+    long hour = Math.max(this.currentHour, Math.floorDiv(nowMillis, BUCKET_MILLIS));
+    if (hour != this.currentHour) {
+      int index = (int) Math.floorMod(hour, (long) this.buckets.length);
+      if (this.bucketHours[index] != hour) {
+        Arrays.fill(this.buckets[index], 0); // only the bucket of the new hour is reused
+        this.bucketHours[index] = hour;
+      }
+      this.currentHour = hour;
+    }
+    return hour;
+  }
+
+  /**
+   * Computes the bits of the given identity, the same in every hourly filter, by double hashing
+   * into probes
+   */
+  private void computeProbes(String patientId) {
+    long hash = hash(patientId);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < this.probes.length; i++) {
+      this.probes[i] = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bitsPerBucket;
+    }
+  }
+
+  /**
+   * Hashes a patient identity into 64 bits: FNV-1a over its characters, followed by the
+   * finalizer of SplitMix64 to spread the bits
+   */
+  private static long hash(String patientId) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < patientId.length(); i++) {
+      hash = (hash ^ patientId.charAt(i)) * 0x100000001b3L;
+    }
+    hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+    return hash ^ (hash >>> 31);
+  }
+}
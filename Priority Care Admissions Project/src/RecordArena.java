@@ -0,0 +1,112 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Shared pool of PatientRecord arrays used as array-heap storage by many PriorityCareAdmissions
+ * queues. Arrays come in power-of-two size classes, from MIN_LENGTH slots up. A queue borrows the
+ * smallest array that fits its current size, trades it for a larger one as it grows, and hands it
+ * back when it drains or is cleared, so that storage follows the actual number of waiting patients
+ * rather than the declared capacity of every queue.<BR/>
+ * <BR/>
+ * Released arrays are kept on a free list per size class for reuse, up to a total number of
+ * retained slots; arrays beyond that budget are left to the garbage collector. This class is
+ * thread-safe.
+ *
+ */
+public class RecordArena {
+
+  /**
+   * Length of the smallest arrays handed out by an arena
+   */
+  public static final int MIN_LENGTH = 16;
+
+  private final ArrayDeque<PatientRecord[]>[] freeLists; // released arrays per size class
+  private final long maxRetainedSlots; // maximum number of slots kept on the free lists
+  private long retainedSlots; // number of slots currently kept on the free lists
+  private long borrowedSlots; // number of slots currently handed out
+
+  /**
+   * Creates a new empty arena
+   * 
+   * @param maxRetainedSlots maximum total number of slots of the released arrays kept for reuse
+   * @throws IllegalArgumentException if maxRetainedSlots is negative
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public RecordArena(long maxRetainedSlots) {
+    if (maxRetainedSlots < 0) {
+      throw new IllegalArgumentException("Error! The retained slots cannot be negative");
+    }
+    this.maxRetainedSlots = maxRetainedSlots;
+    this.freeLists = (ArrayDeque<PatientRecord[]>[])
+        new ArrayDeque[31 - Integer.numberOfTrailingZeros(MIN_LENGTH)];
+    for (int i = 0; i < this.freeLists.length; i++) {
+      this.freeLists[i] = new ArrayDeque<PatientRecord[]>();
+    }
+  }
+
+  /**
+   * Returns an empty array of at least the given length, reusing a released one if possible
+   * 
+   * @param minLength minimum length of the array
+   * @return an array of the smallest size class holding minLength slots, filled with nulls
+   * @throws IllegalArgumentException if minLength is negative or too large
+   */
+  public synchronized PatientRecord[] allocate(int minLength) {
+    if (minLength < 0 || minLength > (1 << 30)) {
+      throw new IllegalArgumentException("Error! Invalid array length " + minLength);
+    }
+    int length = Math.max(MIN_LENGTH, Integer.highestOneBit(Math.max(1, minLength - 1)) << 1);
+    PatientRecord[] array = this.freeLists[sizeClass(length)].pollFirst();
+    if (array == null) {
+      array = new PatientRecord[length];
+    } else {
+      this.retainedSlots -= length;
+    }
+    this.borrowedSlots += length;
+    return array;
+  }
+
+  /**
+   * Hands an array obtained from allocate() back to this arena. The array must no longer be used
+   * by the caller.
+   * 
+   * @param array array to release
+   */
+  public synchronized void release(PatientRecord[] array) {
+    int length = array.length;
+    if (length < MIN_LENGTH || Integer.bitCount(length) != 1) {
+      return; // not an array of this arena
+    }
+    this.borrowedSlots -= length;
+    if (this.retainedSlots + length <= this.maxRetainedSlots) {
+      Arrays.fill(array, null);
+      this.freeLists[sizeClass(length)].addFirst(array);
+      this.retainedSlots += length;
+    }
+  }
+
+  /**
+   * Returns the number of slots currently handed out to queues
+   * 
+   * @return the total length of the arrays allocated and not yet released
+   */
+  public synchronized long borrowedSlots() {
+    return this.borrowedSlots;
+  }
+
+  /**
+   * Returns the number of slots kept for reuse
+   * 
+   * @return the total length of the released arrays kept on the free lists
+   */
+  public synchronized long retainedSlots() {
+    return this.retainedSlots;
+  }
+
+  /**
+   * Returns the index of the free list of arrays of the given power-of-two length
+   */
+  private static int sizeClass(int length) {
+    return Integer.numberOfTrailingZeros(length) - Integer.numberOfTrailingZeros(MIN_LENGTH);
+  }
+}
@@ -0,0 +1,277 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Follower side of the replication of a PriorityCareAdmissions queue (see ReplicationPrimary).
+ * The follower connects to a primary, loads the snapshot it receives into its own queue, then
+ * applies every batch of operations in order and acknowledges it. If the primary fails, the
+ * follower can be promoted: it stops following and its queue can be used directly, missing at
+ * most the operations of the last FLUSH_INTERVAL_MILLIS before the failure plus the network
+ * delay, as reported by lagMillis().<BR/>
+ * <BR/>
+ * An operation that cannot be applied, for instance an admission to a replica queue smaller than
+ * the primary, or a corrupt frame, stops the follower: it disconnects, records the error, and
+ * refuses to be promoted, since its queue no longer matches the primary (see failure()).<BR/>
+ * <BR/>
+ * Running this class as a program follows a primary from another JVM and prints its replication
+ * metrics every second.
+ *
+ */
+public class ReplicationFollower implements AutoCloseable {
+  private static final TriageLevel[] TRIAGE_LEVELS = TriageLevel.values();
+
+  private final PriorityCareAdmissions queue; // queue the log is applied to
+  private final Socket socket; // connection to the primary
+  private final Thread reader; // thread applying the log
+  private volatile long appliedSequence = -1; // sequence number of the last applied frame
+  private volatile long lastFrameMillis; // primary send time of the last applied frame
+  private volatile long appliedOperations; // total number of operations applied
+  private volatile long divergences; // dispatches that did not match the primary
+  private volatile boolean promoted; // whether promote() or close() was called
+  private volatile RuntimeException failure; // error that stopped the follower, if any
+  private final long startNanos; // creation time, used to compute the throughput
+
+  /**
+   * Connects to the primary listening on the given host and port, and starts applying its log to
+   * the given queue
+   * 
+   * @param queue queue to replicate into; it is cleared by the initial snapshot
+   * @param host  host of the primary
+   * @param port  port of the primary
+   * @throws IOException if the primary cannot be reached
+   */
+  public ReplicationFollower(PriorityCareAdmissions queue, String host, int port)
+      throws IOException {
+    this.queue = queue;
+    this.socket = new Socket(host, port);
+    this.socket.setTcpNoDelay(true);
+    this.startNanos = System.nanoTime();
+    this.reader = new Thread(this::applyLog, "replication-follower");
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  /**
+   * Returns the sequence number of the last operation applied
+   * 
+   * @return the applied sequence number, or -1 until the snapshot is loaded
+   */
+  public long appliedSequence() {
+    return this.appliedSequence;
+  }
+
+  /**
+   * Returns how far behind the primary this follower may be, in milliseconds: the time elapsed
+   * since the primary sent the last applied frame. As the primary sends a frame at least every
+   * FLUSH_INTERVAL_MILLIS, this stays close to that interval while the primary is alive.
+   * 
+   * @return the replication lag in milliseconds, or -1 until the snapshot is loaded
+   */
+  public long lagMillis() {
+    return this.appliedSequence < 0 ? -1 : System.currentTimeMillis() - this.lastFrameMillis;
+  }
+
+  /**
+   * Returns the number of dispatches whose patient did not match the one dispatched by the
+   * primary. It stays at zero unless the replicated queue was modified outside of the log.
+   * 
+   * @return the number of diverging dispatches
+   */
+  public long divergences() {
+    return this.divergences;
+  }
+
+  /**
+   * Returns the error that stopped this follower, if an operation of the primary could not be
+   * applied to its queue
+   * 
+   * @return the error that stopped this follower, or null if none occurred
+   */
+  public RuntimeException failure() {
+    return this.failure;
+  }
+
+  /**
+   * Returns a one-line summary of the replication metrics of this follower
+   * 
+   * @return the applied sequence number, lag and throughput of this follower
+   */
+  public String metrics() {
+    double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+    return String.format("seq=%d lagMs=%d ops/s=%.0f size=%d divergences=%d",
+        this.appliedSequence, this.lagMillis(), this.appliedOperations / seconds,
+        this.queue.size(), this.divergences);
+  }
+
+  /**
+   * Stops following the primary and returns the replicated queue, which can now be modified
+   * 
+   * @param maxLagMillis maximum acceptable lag, in milliseconds
+   * @return the replicated queue
+   * @throws IllegalStateException if no snapshot was received yet, if the lag exceeds
+   *                               maxLagMillis, or if an operation could not be applied
+   */
+  public PriorityCareAdmissions promote(long maxLagMillis) {
+    long lag = this.lagMillis();
+    this.close();
+    if (this.failure != null) {
+      throw new IllegalStateException("Error! Replication failed, the follower cannot be "
+          + "promoted: " + this.failure.getMessage(), this.failure);
+    }
+    if (lag < 0 || lag > maxLagMillis) {
+      throw new IllegalStateException("Error! Replication lag " + lag + " ms exceeds "
+          + maxLagMillis + " ms, the follower cannot be promoted");
+    }
+    return this.queue;
+  }
+
+  /**
+   * Disconnects from the primary
+   */
+  @Override
+  public void close() {
+    this.promoted = true;
+    try {
+      this.socket.close();
+    } catch (IOException e) {
+      // nothing more to do
+    }
+    if (Thread.currentThread() != this.reader) {
+      try {
+        this.reader.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Body of the reader thread: applies every frame received from the primary and acknowledges it
+   */
+  private void applyLog() {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(this.socket.getOutputStream())) {
+      byte[] payload = new byte[1 << 12];
+      while (!this.promoted) {
+        byte type = in.readByte();
+        long sentMillis = in.readLong();
+        long sequence = in.readLong();
+        int count = in.readInt();
+        int length = in.readInt();
+        if (payload.length < length) {
+          payload = new byte[Math.max(length, 2 * payload.length)];
+        }
+        in.readFully(payload, 0, length);
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+
+        synchronized (this.queue) {
+          if (type == ReplicationPrimary.SNAPSHOT) {
+            PatientRecord[] records = new PatientRecord[count];
+            for (int i = 0; i < count; i++) {
+              records[i] = decodeEntry(buffer);
+            }
+            this.queue.clear();
+            this.queue.addAll(records);
+          } else {
+            for (int i = 0; i < count; i++) {
+              this.apply(buffer);
+            }
+            this.appliedOperations += count;
+          }
+        }
+        this.lastFrameMillis = sentMillis;
+        this.appliedSequence = sequence;
+        if (count > 0 || type == ReplicationPrimary.SNAPSHOT) {
+          out.writeLong(sequence);
+          out.flush();
+        }
+      }
+    } catch (IOException e) {
+      // the primary disconnected, or this follower was promoted
+    } catch (RuntimeException e) {
+      // The replica diverged from the primary: stop following it
+      this.failure = e;
+      this.close();
+    }
+  }
+
+  /**
+   * Applies the operation at the current position of the buffer to the queue
+   */
+  private void apply(ByteBuffer buffer) {
+    byte operation = buffer.get();
+    switch (operation) {
+      case ReplicationPrimary.ADMIT:
+        this.queue.addPatient(decodeEntry(buffer));
+        break;
+      case ReplicationPrimary.DISPATCH:
+        int arrival = buffer.getInt();
+        PatientRecord p = this.queue.poll();
+        if (p == null || p.getArrivalOrder() != arrival) {
+          this.divergences++;
+        }
+        break;
+      case ReplicationPrimary.CANCEL:
+        this.queue.cancel(buffer.getInt());
+        break;
+      case ReplicationPrimary.CLEAR:
+        this.queue.clear();
+        break;
+      case ReplicationPrimary.RETRIAGE:
+        int count = buffer.getInt();
+        HashMap<Integer, TriageLevel> changes = new HashMap<Integer, TriageLevel>(2 * count);
+        for (int i = 0; i < count; i++) {
+          changes.put(buffer.getInt(), TRIAGE_LEVELS[buffer.get()]);
+        }
+        this.queue.retriageAll(changes);
+        break;
+      default:
+        throw new IllegalStateException("Error! Unknown replicated operation " + operation);
+    }
+  }
+
+  /**
+   * Reads a record shipped by the primary, and backdates its arrival by the time its patient has
+   * already waited (see ReplicationPrimary.ENTRY_BYTES)
+   */
+  private static PatientRecord decodeEntry(ByteBuffer buffer) {
+    PatientRecord p = PatientRecordCodec.decode(buffer);
+    p.setArrivalNanos(System.nanoTime() - buffer.getLong());
+    return p;
+  }
+
+  /**
+   * Follows the primary listening on the given host and port, printing replication metrics every
+   * second until the primary disconnects
+   * 
+   * @param args host and port of the primary
+   * @throws IOException          if the primary cannot be reached
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 2) {
+      System.out.println("Usage: java ReplicationFollower <host> <port>");
+      return;
+    }
+    ReplicationFollower follower =
+        new ReplicationFollower(new PriorityCareAdmissions(100000), args[0],
+            Integer.parseInt(args[1]));
+    while (follower.reader.isAlive()) {
+      System.out.println(follower.metrics());
+      follower.reader.join(1000);
+    }
+    if (follower.failure() == null) {
+      System.out.println("Primary disconnected. Final state: " + follower.metrics());
+    } else {
+      System.out.println("Error! Replication stopped after sequence " + follower.appliedSequence()
+          + ", the next frame could not be applied: " + follower.failure().getMessage());
+      System.out.println("Final state: " + follower.metrics());
+    }
+  }
+}
@@ -0,0 +1,448 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Primary side of the replication of a PriorityCareAdmissions queue. Every admission, dispatch,
+ * cancellation, re-triage and clear applied through this class is also appended to a compact
+ * operation log. The log is shipped in batches, every FLUSH_INTERVAL_MILLIS, to the followers
+ * connected over TCP, which apply it to their own queue (see ReplicationFollower). A follower
+ * joining late first receives a snapshot of the waiting patients. Every replicated record carries
+ * the time its patient has waited so far, so that waiting times and SLA deadlines survive the
+ * promotion of a follower.<BR/>
+ * <BR/>
+ * Every batch is stamped with the sequence number of its last operation and the time it was sent;
+ * an empty batch is sent when there is nothing to replicate, so that followers can bound their
+ * lag. Followers acknowledge the sequence number they applied. Each follower is served by its own
+ * threads, so a slow follower never blocks admissions. A follower that falls more than
+ * MAX_PENDING_FRAMES frames behind is disconnected rather than buffered without bound; it can
+ * reconnect and bootstrap again from a fresh snapshot.<BR/>
+ * <BR/>
+ * The queue must only be modified through this class while it is replicated.
+ *
+ */
+public class ReplicationPrimary implements AutoCloseable {
+
+  /**
+   * Interval between two batches, in milliseconds
+   */
+  public static final long FLUSH_INTERVAL_MILLIS = 5;
+
+  /**
+   * Number of frames, about five seconds of batches, that may wait to be sent to one follower
+   * before that follower is disconnected
+   */
+  public static final int MAX_PENDING_FRAMES = 1000;
+
+  // frame types
+  static final byte SNAPSHOT = 1;
+  static final byte BATCH = 2;
+  // operation codes
+  static final byte ADMIT = 1;
+  static final byte DISPATCH = 2;
+  static final byte CANCEL = 3;
+  static final byte CLEAR = 4;
+  static final byte RETRIAGE = 5;
+  // an encoded PatientRecord followed by the nanoseconds its patient has waited so far
+  static final int ENTRY_BYTES = PatientRecordCodec.RECORD_BYTES + 8;
+
+  private final PriorityCareAdmissions queue; // replicated queue
+  private final ServerSocket server; // accepts follower connections
+  private final CopyOnWriteArrayList<FollowerLink> followers; // connected followers
+  private ByteBuffer pending; // operations appended since the last batch
+  private int pendingCount; // number of operations in pending
+  private long sequence; // sequence number of the last operation appended to the log
+  private long operations; // total number of operations replicated
+  private long bytesSent; // total number of frame bytes handed to the followers
+  private final long startNanos; // creation time, used to compute the throughput
+  private volatile boolean closed; // whether close() was called
+
+  /**
+   * Starts replicating the given queue to the followers connecting to the given port
+   * 
+   * @param queue queue to replicate; it may already hold patients
+   * @param port  TCP port to listen on, or 0 to pick a free port (see port())
+   * @throws IOException if the port cannot be opened
+   */
+  public ReplicationPrimary(PriorityCareAdmissions queue, int port) throws IOException {
+    this.queue = queue;
+    this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    this.followers = new CopyOnWriteArrayList<FollowerLink>();
+    this.pending = ByteBuffer.allocate(1 << 12);
+    this.startNanos = System.nanoTime();
+    startDaemon(this::acceptFollowers, "replication-acceptor");
+    startDaemon(this::flushPeriodically, "replication-flusher");
+  }
+
+  /**
+   * Returns the TCP port followers should connect to
+   * 
+   * @return the local port of this primary
+   */
+  public int port() {
+    return this.server.getLocalPort();
+  }
+
+  /**
+   * Returns the replicated queue. It must not be modified directly.
+   * 
+   * @return the queue of this primary
+   */
+  public PriorityCareAdmissions queue() {
+    return this.queue;
+  }
+
+  /**
+   * Offers the given patient to the queue and replicates the admission. If the overload policy of
+   * the queue evicted another patient, the followers are resynchronized with a new snapshot.
+   * 
+   * @param p PatientRecord to offer
+   * @return the outcome of PriorityCareAdmissions.offer()
+   */
+  public synchronized AdmissionStatus offer(PatientRecord p) {
+    AdmissionStatus status = this.queue.offer(p);
+    if (status == AdmissionStatus.ADMITTED) {
+      encodeEntry(p, this.reserve(1 + ENTRY_BYTES).put(ADMIT), System.nanoTime());
+      this.appended();
+    } else if (status == AdmissionStatus.ADMITTED_AFTER_EVICTION) {
+      this.flush();
+      this.sequence++;
+      this.operations++;
+      for (FollowerLink follower : this.followers) {
+        follower.send(this.snapshotFrame());
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Dispatches the best patient of the queue and replicates the dispatch
+   * 
+   * @return the dispatched patient, or null if the queue is empty
+   */
+  public synchronized PatientRecord poll() {
+    PatientRecord p = this.queue.poll();
+    if (p != null) {
+      this.reserve(5).put(DISPATCH).putInt(p.getArrivalOrder());
+      this.appended();
+    }
+    return p;
+  }
+
+  /**
+   * Dispatches the best patient of the queue eligible for the given Specialty. Specialties are
+   * not shipped to the followers, so the removal of that patient is replicated as a cancellation.
+   * 
+   * @param specialty Specialty of the clinician
+   * @return the dispatched patient
+   * @throws NoSuchElementException if no eligible patient is waiting
+   */
+  public synchronized PatientRecord removeBestEligible(Specialty specialty)
+      throws NoSuchElementException {
+    PatientRecord p = this.queue.removeBestEligible(specialty);
+    this.reserve(5).put(CANCEL).putInt(p.getArrivalOrder());
+    this.appended();
+    return p;
+  }
+
+  /**
+   * Cancels a waiting patient and replicates the cancellation
+   * 
+   * @param arrivalOrder order of arrival of the patient to cancel
+   * @return the result of PriorityCareAdmissions.cancel()
+   */
+  public synchronized boolean cancel(int arrivalOrder) {
+    boolean cancelled = this.queue.cancel(arrivalOrder);
+    if (cancelled) {
+      this.reserve(5).put(CANCEL).putInt(arrivalOrder);
+      this.appended();
+    }
+    return cancelled;
+  }
+
+  /**
+   * Re-triages waiting patients of the queue and replicates the batch as a single operation
+   * 
+   * @param changes new TriageLevel of each patient to re-triage, keyed by order of arrival
+   * @return the result of PriorityCareAdmissions.retriageAll()
+   * @throws NullPointerException if changes is null or maps an order of arrival to null
+   */
+  public synchronized int retriageAll(Map<Integer, TriageLevel> changes)
+      throws NullPointerException {
+    int retriaged = this.queue.retriageAll(changes);
+    if (retriaged > 0) {
+      ByteBuffer log = this.reserve(5 + 5 * changes.size()).put(RETRIAGE).putInt(changes.size());
+      for (Map.Entry<Integer, TriageLevel> change : changes.entrySet()) {
+        log.putInt(change.getKey()).put((byte) change.getValue().ordinal());
+      }
+      this.appended();
+    }
+    return retriaged;
+  }
+
+  /**
+   * Clears the queue and replicates the clear
+   */
+  public synchronized void clear() {
+    this.queue.clear();
+    this.reserve(1).put(CLEAR);
+    this.appended();
+  }
+
+  /**
+   * Returns the sequence number of the last replicated operation
+   * 
+   * @return the number of operations appended to the log
+   */
+  public synchronized long sequence() {
+    return this.sequence;
+  }
+
+  /**
+   * Returns the number of operations the slowest connected follower still has to acknowledge
+   * 
+   * @return the replication lag in operations, or 0 if no follower is connected
+   */
+  public synchronized long lagOperations() {
+    long lag = 0;
+    for (FollowerLink follower : this.followers) {
+      lag = Math.max(lag, this.sequence - follower.acknowledged);
+    }
+    return lag;
+  }
+
+  /**
+   * Returns the number of connected followers
+   * 
+   * @return the number of followers currently receiving the log
+   */
+  public int followerCount() {
+    return this.followers.size();
+  }
+
+  /**
+   * Returns a one-line summary of the replication metrics of this primary
+   * 
+   * @return the sequence number, lag, throughput and volume of the replication
+   */
+  public synchronized String metrics() {
+    double seconds = (System.nanoTime() - this.startNanos) / 1e9;
+    return String.format("seq=%d followers=%d lagOps=%d ops/s=%.0f bytesSent=%d", this.sequence,
+        this.followers.size(), this.lagOperations(), this.operations / seconds, this.bytesSent);
+  }
+
+  /**
+   * Stops accepting followers and disconnects the connected ones
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    try {
+      this.server.close();
+    } catch (IOException e) {
+      // nothing more to do
+    }
+    for (FollowerLink follower : this.followers) {
+      follower.close();
+    }
+  }
+
+  /**
+   * Makes sure the pending log can hold the given number of bytes
+   * 
+   * @return the pending log
+   */
+  private ByteBuffer reserve(int bytes) {
+    if (this.pending.remaining() < bytes) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * this.pending.capacity(),
+          this.pending.position() + bytes));
+      this.pending.flip();
+      this.pending = grown.put(this.pending);
+    }
+    return this.pending;
+  }
+
+  /**
+   * Accounts for an operation just appended to the pending log
+   */
+  private void appended() {
+    this.sequence++;
+    this.operations++;
+    this.pendingCount++;
+  }
+
+  /**
+   * Ships the pending operations, or a heartbeat if there are none, to every follower
+   */
+  private synchronized void flush() {
+    this.pending.flip();
+    byte[] frame =
+        frame(BATCH, this.sequence, this.pendingCount, this.pending.array(), this.pending.limit());
+    this.pending.clear();
+    this.pendingCount = 0;
+    for (FollowerLink follower : this.followers) {
+      follower.send(frame);
+      this.bytesSent += frame.length;
+    }
+  }
+
+  /**
+   * Builds a snapshot frame of the waiting patients of the queue, in array-heap order
+   */
+  private byte[] snapshotFrame() {
+    PatientRecord[] records = this.queue.snapshot().records;
+    ByteBuffer payload = ByteBuffer.allocate(records.length * ENTRY_BYTES);
+    long now = System.nanoTime();
+    for (PatientRecord p : records) {
+      encodeEntry(p, payload, now);
+    }
+    return frame(SNAPSHOT, this.sequence, records.length, payload.array(), payload.position());
+  }
+
+  /**
+   * Writes the given record followed by the time its patient has waited so far (see ENTRY_BYTES)
+   */
+  private static void encodeEntry(PatientRecord p, ByteBuffer buffer, long nowNanos) {
+    PatientRecordCodec.encode(p, buffer);
+    buffer.putLong(nowNanos - p.getArrivalNanos());
+  }
+
+  /**
+   * Builds a frame: type, send time, sequence number, operation count, payload length and payload
+   */
+  private static byte[] frame(byte type, long sequence, int count, byte[] payload, int length) {
+    ByteBuffer frame = ByteBuffer.allocate(25 + length);
+    frame.put(type).putLong(System.currentTimeMillis()).putLong(sequence).putInt(count)
+        .putInt(length).put(payload, 0, length);
+    return frame.array();
+  }
+
+  /**
+   * Body of the acceptor thread: registers every connecting follower, after sending it a snapshot
+   */
+  private void acceptFollowers() {
+    while (!this.closed) {
+      try {
+        Socket socket = this.server.accept();
+        socket.setTcpNoDelay(true);
+        FollowerLink follower = new FollowerLink(socket);
+        synchronized (this) {
+          this.flush(); // so that the snapshot starts right after the last shipped batch
+          follower.send(this.snapshotFrame());
+          follower.acknowledged = this.sequence;
+          this.followers.add(follower);
+        }
+      } catch (IOException e) {
+        // the server socket was closed, or a follower failed to connect
+      }
+    }
+  }
+
+  /**
+   * Body of the flusher thread
+   */
+  private void flushPeriodically() {
+    while (!this.closed) {
+      try {
+        Thread.sleep(FLUSH_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      this.flush();
+    }
+  }
+
+  /**
+   * Starts a daemon thread running the given task
+   */
+  private static void startDaemon(Runnable task, String name) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Connection to one follower, with its own sender and acknowledgment reader threads
+   */
+  private class FollowerLink {
+    private final Socket socket; // connection to the follower
+    private final LinkedBlockingQueue<byte[]> outbox; // frames waiting to be sent
+    private volatile long acknowledged; // last sequence number applied by the follower
+
+    /**
+     * Starts serving the follower connected through the given socket
+     */
+    private FollowerLink(Socket socket) {
+      this.socket = socket;
+      this.outbox = new LinkedBlockingQueue<byte[]>(MAX_PENDING_FRAMES);
+      startDaemon(this::sendFrames, "replication-sender");
+      startDaemon(this::readAcknowledgments, "replication-acks");
+    }
+
+    /**
+     * Queues a frame for this follower, or disconnects it if it fell too far behind
+     */
+    private void send(byte[] frame) {
+      if (!this.outbox.offer(frame)) {
+        this.close();
+      }
+    }
+
+    /**
+     * Body of the sender thread
+     */
+    private void sendFrames() {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()))) {
+        while (!ReplicationPrimary.this.closed) {
+          byte[] frame = this.outbox.poll(100, TimeUnit.MILLISECONDS);
+          if (frame == null) {
+            continue;
+          }
+          out.write(frame);
+          if (this.outbox.isEmpty()) {
+            out.flush();
+          }
+        }
+      } catch (IOException | InterruptedException e) {
+        // the follower disconnected
+      }
+      this.close();
+    }
+
+    /**
+     * Body of the acknowledgment reader thread
+     */
+    private void readAcknowledgments() {
+      try (DataInputStream in = new DataInputStream(this.socket.getInputStream())) {
+        while (true) {
+          this.acknowledged = in.readLong();
+        }
+      } catch (IOException e) {
+        this.close();
+      }
+    }
+
+    /**
+     * Disconnects this follower
+     */
+    private void close() {
+      ReplicationPrimary.this.followers.remove(this);
+      try {
+        this.socket.close();
+      } catch (IOException e) {
+        // nothing more to do
+      }
+    }
+  }
+}
@@ -0,0 +1,370 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only columnar store of the PatientRecords of seen patients, answering the aggregate
+ * queries of the daily reports: counts per triage level and gender, age histograms and average
+ * wait times.<BR/>
+ * <BR/>
+ * Each field is stored in its own primitive array, in chunks of CHUNK_ROWS rows. Genders are
+ * dictionary-encoded as one byte, triage levels as their ordinal, and wait times in milliseconds.
+ * Each chunk also keeps the range of its ages, the longest of its wait times and the set of its
+ * triage levels, so that queries can skip the chunks that cannot match and count the chunks that
+ * entirely match without scanning them. Aggregates are computed by tight loops over the
+ * primitive arrays, without touching any PatientRecord.<BR/>
+ * <BR/>
+ * A chunk also covers at most CHUNK_MILLIS of seen times. A store created with a retention period
+ * drops the chunks whose patients were all seen longer ago than that, when a patient is appended
+ * or when expire() is called, so its heap stays bounded by the patients seen during the retention
+ * period, plus at most one chunk.
+ *
+ */
+public class SeenPatientStore {
+
+  /**
+   * Number of rows per chunk
+   */
+  public static final int CHUNK_ROWS = 1 << 16;
+
+  /**
+   * Longest time span between the seen times of the rows of a chunk, in milliseconds
+   */
+  public static final long CHUNK_MILLIS = 24 * 3_600_000L;
+
+  // number of rows a chunk is first allocated for, doubled as it fills up
+  private static final int INITIAL_ROWS = 1 << 10;
+
+  // wait time stored for patients whose wait is unknown, such as records restored from disk
+  private static final int UNKNOWN_WAIT = -1;
+
+  private final ArrayList<Chunk> chunks = new ArrayList<Chunk>(); // last one is being filled
+  private final long retentionMillis; // age after which rows are dropped, or Long.MAX_VALUE
+  private char[] genders = new char[4]; // dictionary of the gender markers, indexed by code
+  private int genderCount; // number of distinct gender markers in the dictionary
+  private long size; // number of rows
+
+  /**
+   * One chunk of rows, with summaries of its columns
+   */
+  private static class Chunk {
+    private int[] caseNumbers = new int[INITIAL_ROWS];
+    private short[] ages = new short[INITIAL_ROWS];
+    private byte[] genderCodes = new byte[INITIAL_ROWS];
+    private byte[] triages = new byte[INITIAL_ROWS];
+    private int[] waitMillis = new int[INITIAL_ROWS]; // UNKNOWN_WAIT if unknown
+    private int rows; // number of rows of this chunk
+    private final long firstSeenMillis; // seen time of the first row
+    private long lastSeenMillis; // latest seen time of the rows
+    private short minAge = Short.MAX_VALUE;
+    private short maxAge = Short.MIN_VALUE;
+    private int maxWait = UNKNOWN_WAIT; // among the known wait times
+    private int triageMask; // bit t is set if some row has triage ordinal t
+
+    private Chunk(long firstSeenMillis) {
+      this.firstSeenMillis = this.lastSeenMillis = firstSeenMillis;
+    }
+
+    /**
+     * Doubles the length of the columns of this chunk if they are full
+     */
+    private void ensureRoom() {
+      if (this.rows < this.ages.length) {
+        return;
+      }
+      int length = Math.min(CHUNK_ROWS, 2 * this.ages.length);
+      this.caseNumbers = Arrays.copyOf(this.caseNumbers, length);
+      this.ages = Arrays.copyOf(this.ages, length);
+      this.genderCodes = Arrays.copyOf(this.genderCodes, length);
+      this.triages = Arrays.copyOf(this.triages, length);
+      this.waitMillis = Arrays.copyOf(this.waitMillis, length);
+    }
+  }
+
+  /**
+   * Creates an empty store keeping every appended patient
+   */
+  public SeenPatientStore() {
+    this.retentionMillis = Long.MAX_VALUE;
+  }
+
+  /**
+   * Creates an empty store keeping the patients seen during the given retention period
+   *
+   * @param retentionMillis age in milliseconds after which seen patients are dropped
+   * @throws IllegalArgumentException if retentionMillis is not positive
+   */
+  public SeenPatientStore(long retentionMillis) {
+    if (retentionMillis <= 0) {
+      throw new IllegalArgumentException("Error! The retention must be positive");
+    }
+    this.retentionMillis = retentionMillis;
+  }
+
+  /**
+   * Appends the given seen PatientRecord to this store, seen now
+   *
+   * @param p seen PatientRecord to append
+   * @throws IllegalArgumentException if p has not been seen
+   * @throws IllegalStateException    if more than 256 distinct gender markers were appended
+   */
+  public void append(PatientRecord p) {
+    this.append(p, System.currentTimeMillis());
+  }
+
+  /**
+   * Appends the given seen PatientRecord to this store, after dropping the patients older than the
+   * retention period. Ages are clamped to the range of a short, and wait times to
+   * Integer.MAX_VALUE milliseconds, or about 24 days.
+   *
+   * @param p          seen PatientRecord to append
+   * @param seenMillis time the patient was seen, in milliseconds since the epoch
+   * @throws IllegalArgumentException if p has not been seen
+   * @throws IllegalStateException    if more than 256 distinct gender markers were appended
+   */
+  public synchronized void append(PatientRecord p, long seenMillis) {
+    if (!p.hasBeenSeen()) {
+      throw new IllegalArgumentException("Error! Patient " + p.CASE_NUMBER + " was not seen yet");
+    }
+    this.expire(seenMillis);
+    Chunk chunk = this.chunks.isEmpty() ? null : this.chunks.get(this.chunks.size() - 1);
+    if (chunk == null || chunk.rows == CHUNK_ROWS
+        || seenMillis - chunk.firstSeenMillis >= CHUNK_MILLIS) {
+      chunk = new Chunk(seenMillis);
+      this.chunks.add(chunk);
+    }
+    chunk.ensureRoom();
+    chunk.lastSeenMillis = Math.max(chunk.lastSeenMillis, seenMillis);
+
+    short age = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, p.getAge()));
+    int wait = UNKNOWN_WAIT;
+    if (p.getSeenNanos() != 0) {
+      wait = (int) Math.min(Integer.MAX_VALUE,
+          Math.max(0, (p.getSeenNanos() - p.getArrivalNanos()) / 1000000));
+    }
+    int row = chunk.rows++;
+    chunk.caseNumbers[row] = p.CASE_NUMBER;
+    chunk.ages[row] = age;
+    chunk.genderCodes[row] = this.genderCode(p.getGender());
+    chunk.triages[row] = (byte) p.getTriage().ordinal();
+    chunk.waitMillis[row] = wait;
+    chunk.minAge = (short) Math.min(chunk.minAge, age);
+    chunk.maxAge = (short) Math.max(chunk.maxAge, age);
+    if (wait != UNKNOWN_WAIT) {
+      chunk.maxWait = Math.max(chunk.maxWait, wait);
+    }
+    chunk.triageMask |= 1 << p.getTriage().ordinal();
+    this.size++;
+  }
+
+  /**
+   * Drops the chunks whose patients were all seen longer ago than the retention period. Does
+   * nothing if this store keeps every patient.
+   *
+   * @param nowMillis current time, in milliseconds since the epoch
+   * @return the number of seen patients dropped
+   */
+  public synchronized long expire(long nowMillis) {
+    if (this.retentionMillis == Long.MAX_VALUE) {
+      return 0;
+    }
+    long dropped = 0;
+    while (!this.chunks.isEmpty()
+        && this.chunks.get(0).lastSeenMillis <= nowMillis - this.retentionMillis) {
+      dropped += this.chunks.remove(0).rows;
+    }
+    this.size -= dropped;
+    return dropped;
+  }
+
+  /**
+   * Returns the number of seen patients in this store
+   *
+   * @return the number of rows
+   */
+  public synchronized long size() {
+    return this.size;
+  }
+
+  /**
+   * Counts the seen patients of each triage level
+   *
+   * @return an array whose element t is the number of patients of triage level
+   *         TriageLevel.values()[t]
+   */
+  public synchronized long[] countByTriage() {
+    long[] counts = new long[TriageLevel.values().length];
+    for (Chunk chunk : this.chunks) {
+      if (Integer.bitCount(chunk.triageMask) == 1) {
+        counts[Integer.numberOfTrailingZeros(chunk.triageMask)] += chunk.rows;
+        continue; // the whole chunk has the same triage level
+      }
+      byte[] triages = chunk.triages;
+      for (int i = 0; i < chunk.rows; i++) {
+        counts[triages[i]]++;
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Counts the seen patients of each gender marker
+   *
+   * @return a map from each gender marker to its number of patients, in order of first appearance
+   */
+  public synchronized Map<Character, Long> countByGender() {
+    long[] counts = new long[this.genderCount];
+    for (Chunk chunk : this.chunks) {
+      byte[] codes = chunk.genderCodes;
+      for (int i = 0; i < chunk.rows; i++) {
+        counts[codes[i] & 0xFF]++;
+      }
+    }
+    Map<Character, Long> byGender = new LinkedHashMap<Character, Long>();
+    for (int code = 0; code < this.genderCount; code++) {
+      byGender.put(this.genders[code], counts[code]);
+    }
+    return byGender;
+  }
+
+  /**
+   * Builds a histogram of the ages of the seen patients, in bands of the given width. Band b counts
+   * the patients whose age is between b * bandWidth and (b + 1) * bandWidth - 1; negative ages are
+   * counted in band 0.
+   *
+   * @param bandWidth width of each age band, in years
+   * @return the number of patients in each age band, up to the band of the oldest patient
+   * @throws IllegalArgumentException if bandWidth is not positive
+   */
+  public synchronized long[] ageHistogram(int bandWidth) {
+    if (bandWidth <= 0) {
+      throw new IllegalArgumentException("Error! The band width must be positive");
+    }
+    int maxAge = 0;
+    for (Chunk chunk : this.chunks) {
+      maxAge = Math.max(maxAge, chunk.maxAge);
+    }
+    long[] histogram = new long[maxAge / bandWidth + 1];
+    for (Chunk chunk : this.chunks) {
+      short[] ages = chunk.ages;
+      for (int i = 0; i < chunk.rows; i++) {
+        histogram[Math.max(0, ages[i]) / bandWidth]++;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Counts the seen patients whose age is between minAge and maxAge, both included. Chunks whose
+   * age range does not overlap the query are skipped, and chunks whose age range is included in
+   * the query are counted without being scanned.
+   *
+   * @param minAge minimum age, in years
+   * @param maxAge maximum age, in years
+   * @return the number of patients in the given age range
+   */
+  public synchronized long countAgeBetween(int minAge, int maxAge) {
+    long count = 0;
+    for (Chunk chunk : this.chunks) {
+      if (chunk.maxAge < minAge || chunk.minAge > maxAge) {
+        continue;
+      }
+      if (chunk.minAge >= minAge && chunk.maxAge <= maxAge) {
+        count += chunk.rows;
+        continue;
+      }
+      short[] ages = chunk.ages;
+      for (int i = 0; i < chunk.rows; i++) {
+        count += ages[i] >= minAge && ages[i] <= maxAge ? 1 : 0;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Counts the seen patients who waited at least the given time before being seen. Chunks whose
+   * longest wait is shorter are skipped.
+   *
+   * @param waitMillis minimum wait time, in milliseconds
+   * @return the number of patients with a known wait time of at least waitMillis
+   */
+  public synchronized long countWaitedAtLeast(long waitMillis) {
+    long count = 0;
+    for (Chunk chunk : this.chunks) {
+      if (chunk.maxWait < waitMillis) {
+        continue;
+      }
+      int[] waits = chunk.waitMillis;
+      for (int i = 0; i < chunk.rows; i++) {
+        count += waits[i] >= waitMillis ? 1 : 0;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Computes the average wait time, between admission and being seen, of the seen patients of the
+   * given triage level
+   *
+   * @param triage triage level of the patients to average over, or null for all patients
+   * @return the average wait time in milliseconds, or NaN if no such patient has a known wait time
+   */
+  public synchronized double averageWaitMillis(TriageLevel triage) {
+    long sum = 0;
+    long count = 0;
+    for (Chunk chunk : this.chunks) {
+      if (chunk.maxWait == UNKNOWN_WAIT
+          || (triage != null && (chunk.triageMask & 1 << triage.ordinal()) == 0)) {
+        continue;
+      }
+      int[] waits = chunk.waitMillis;
+      byte[] triages = chunk.triages;
+      int wanted = triage == null ? -1 : triage.ordinal();
+      for (int i = 0; i < chunk.rows; i++) {
+        boolean counted = waits[i] != UNKNOWN_WAIT && (wanted < 0 || triages[i] == wanted);
+        sum += counted ? waits[i] : 0;
+        count += counted ? 1 : 0;
+      }
+    }
+    return count == 0 ? Double.NaN : (double) sum / count;
+  }
+
+  /**
+   * Returns a multi-line summary of the seen patients: counts per triage level and gender, the
+   * histogram of ages in bands of ten years, and the average wait time per triage level
+   */
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Seen patients: ").append(this.size).append('\n');
+    long[] byTriage = this.countByTriage();
+    for (TriageLevel level : TriageLevel.values()) {
+      sb.append(String.format("  %-6s %8d  average wait %.1f ms%n", level.name(),
+          byTriage[level.ordinal()], this.averageWaitMillis(level)));
+    }
+    sb.append("  By gender: ").append(this.countByGender()).append('\n');
+    sb.append("  By age (10 years bands): ").append(Arrays.toString(this.ageHistogram(10)))
+        .append('\n');
+    return sb.toString();
+  }
+
+  /**
+   * Returns the dictionary code of the given gender marker, adding it to the dictionary if needed
+   */
+  private byte genderCode(char gender) {
+    for (int code = 0; code < this.genderCount; code++) {
+      if (this.genders[code] == gender) {
+        return (byte) code;
+      }
+    }
+    if (this.genderCount == 256) {
+      throw new IllegalStateException("Error! Too many distinct gender markers");
+    }
+    if (this.genderCount == this.genders.length) {
+      this.genders = Arrays.copyOf(this.genders, 2 * this.genders.length);
+    }
+    this.genders[this.genderCount] = gender;
+    return (byte) this.genderCount++;
+  }
+}
@@ -0,0 +1,620 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Archive of the PatientRecords of seen patients, partitioned by time into immutable segment
+ * files, so that old history costs disk space rather than heap.<BR/>
+ * <BR/>
+ * Seen patients are appended to an in-memory tail covering the current hour. When a patient is
+ * seen in a later hour, the tail is sealed into a segment file holding its records sorted by case
+ * number and time, in the fixed-size layout of PatientRecordCodec followed by the time the patient
+ * was seen. The footer of a segment samples the case number of every INDEX_INTERVAL-th record,
+ * and only this sparse index and the time range of each segment stay in memory. Looking a case
+ * number up skips the segments outside the requested time range and those whose case numbers
+ * cannot match, then reads a single run of records from each remaining segment.<BR/>
+ * <BR/>
+ * Compaction merges the segments of every day that ended into one daily segment, and deletes the
+ * segments older than the retention period. It can run from a background thread started with
+ * startCompaction(); merging is done without blocking appends and lookups. A segment is written
+ * to a temporary file and then moved into place, and a daily segment supersedes the hourly
+ * segments it merged when the archive is reopened after a crash, so records are never lost nor
+ * duplicated. All the public operations of this class are thread-safe.
+ *
+ */
+public class SeenRecordArchive implements AutoCloseable {
+
+  /**
+   * Length of the time partitions of the tail, in milliseconds
+   */
+  public static final long HOUR_MILLIS = 3_600_000;
+
+  /**
+   * Length of the time partitions of the compacted segments, in milliseconds
+   */
+  public static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+  /**
+   * Number of records between two samples of the sparse index of a segment
+   */
+  public static final int INDEX_INTERVAL = 64;
+
+  private static final int MAGIC = 0x50435331; // "PCS1"
+  private static final int HEADER_BYTES = 48; // see writeSegment()
+  private static final int ENTRY_BYTES = PatientRecordCodec.RECORD_BYTES + 8; // record, seen time
+  private static final String SUFFIX = ".seg";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final int SEALED = 0; // level of a segment sealed from the tail
+  private static final int MERGED = 1; // level of a segment written by compaction
+
+  private final Path directory; // directory holding the segment files
+  private final long retentionMillis; // age after which segments are deleted
+  private final ArrayList<Segment> segments; // sealed segments, by time range
+  private final ArrayList<Entry> tail; // records of the current hour, not sealed yet
+  private final Object compactionLock; // held by the compaction running, if any
+  private long tailHour = Long.MIN_VALUE; // hour since the epoch covered by the tail
+  private long nextGeneration; // generation of the next segment written
+  private int compactionFailures; // number of background compactions that failed
+  private Thread compactor; // background thread started by startCompaction(), if any
+  private boolean closed; // whether close() was called
+
+  /**
+   * One archived record and the time its patient was seen
+   */
+  private static class Entry {
+    private final PatientRecord record;
+    private final long seenMillis;
+
+    private Entry(PatientRecord record, long seenMillis) {
+      this.record = record;
+      this.seenMillis = seenMillis;
+    }
+  }
+
+  /**
+   * One immutable segment file, and the part of it kept in memory
+   */
+  private static class Segment {
+    private final Path path;
+    private final FileChannel channel; // open for reading
+    private final long from; // time range of the segment, from inclusive
+    private final long to; // to exclusive
+    private final long generation; // order in which the segments were written
+    private final int level; // SEALED or MERGED
+    private final int count; // number of records
+    private final int minCase; // smallest case number
+    private final int maxCase; // largest case number
+    private final int[] samples; // case number of every INDEX_INTERVAL-th record
+
+    private Segment(Path path, FileChannel channel, ByteBuffer header, int[] samples) {
+      this.path = path;
+      this.channel = channel;
+      header.getInt(); // magic, already checked
+      this.count = header.getInt();
+      this.from = header.getLong();
+      this.to = header.getLong();
+      this.generation = header.getLong();
+      this.level = header.getInt();
+      this.minCase = header.getInt();
+      this.maxCase = header.getInt();
+      this.samples = samples;
+    }
+  }
+
+  /**
+   * Opens the archive stored in the given directory, creating the directory if needed. Only the
+   * headers and sparse indexes of the segments are read.
+   *
+   * @param directory       directory of the segment files
+   * @param retentionMillis age in milliseconds after which records are deleted by compaction
+   * @throws IOException              if the directory or a segment cannot be read
+   * @throws IllegalArgumentException if retentionMillis is not positive
+   */
+  public SeenRecordArchive(Path directory, long retentionMillis) throws IOException {
+    if (retentionMillis <= 0) {
+      throw new IllegalArgumentException("Error! The retention must be positive");
+    }
+    this.directory = directory;
+    this.retentionMillis = retentionMillis;
+    this.segments = new ArrayList<Segment>();
+    this.tail = new ArrayList<Entry>();
+    this.compactionLock = new Object();
+    Files.createDirectories(directory);
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TEMPORARY_SUFFIX)) {
+          Files.delete(file); // a segment whose writing was interrupted
+        } else if (name.endsWith(SUFFIX)) {
+          Segment segment = openSegment(file);
+          this.segments.add(segment);
+          this.nextGeneration = Math.max(this.nextGeneration, segment.generation + 1);
+        }
+      }
+    } catch (IOException e) {
+      for (Segment segment : this.segments) {
+        segment.channel.close(); // the caller may go on without this archive
+      }
+      throw e;
+    }
+
+    // Drop the segments a merged segment already holds, left by a compaction that crashed
+    Iterator<Segment> it = this.segments.iterator();
+    while (it.hasNext()) {
+      Segment segment = it.next();
+      for (Segment other : this.segments) {
+        if (other.level == MERGED && other.generation > segment.generation
+            && other.from <= segment.from && segment.to <= other.to) {
+          segment.channel.close();
+          Files.delete(segment.path);
+          it.remove();
+          break;
+        }
+      }
+    }
+    this.segments.sort(Comparator.comparingLong((Segment s) -> s.from)
+        .thenComparingLong(s -> s.generation));
+  }
+
+  /**
+   * Archives the given seen PatientRecord, seen now
+   *
+   * @param p seen PatientRecord
+   * @throws IOException if sealing the previous hour failed
+   */
+  public void append(PatientRecord p) throws IOException {
+    this.append(p, System.currentTimeMillis());
+  }
+
+  /**
+   * Archives the given seen PatientRecord, seen at the given time. Records must be appended in
+   * time order: one seen before the hour of the tail is archived in that hour.
+   *
+   * @param p          seen PatientRecord
+   * @param seenMillis time the patient was seen, in milliseconds since the epoch
+   * @throws IOException           if sealing the previous hour failed
+   * @throws IllegalStateException if this archive is closed
+   */
+  public synchronized void append(PatientRecord p, long seenMillis) throws IOException {
+    this.ensureOpen();
+    long hour = Math.floorDiv(seenMillis, HOUR_MILLIS);
+    if (hour > this.tailHour) {
+      this.seal();
+      this.tailHour = hour;
+    }
+    this.tail.add(new Entry(p, seenMillis));
+  }
+
+  /**
+   * Seals the records of the tail into a segment file now, rather than when the hour ends
+   *
+   * @throws IOException if the segment cannot be written
+   */
+  public synchronized void flush() throws IOException {
+    this.ensureOpen();
+    this.seal();
+  }
+
+  /**
+   * Returns every archived visit of the patients having the given case number
+   *
+   * @param caseNumber CASE_NUMBER to look up
+   * @return the archived PatientRecords having this case number, in the order they were seen
+   * @throws IOException if a segment cannot be read
+   */
+  public List<PatientRecord> find(int caseNumber) throws IOException {
+    return this.find(caseNumber, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns the archived visits of the patients having the given case number, seen during the
+   * given time range
+   *
+   * @param caseNumber CASE_NUMBER to look up
+   * @param fromMillis start of the time range, inclusive, in milliseconds since the epoch
+   * @param toMillis   end of the time range, exclusive, in milliseconds since the epoch
+   * @return the matching archived PatientRecords, in the order they were seen
+   * @throws IOException           if a segment cannot be read
+   * @throws IllegalStateException if this archive is closed
+   */
+  public synchronized List<PatientRecord> find(int caseNumber, long fromMillis, long toMillis)
+      throws IOException {
+    this.ensureOpen();
+    ArrayList<Entry> found = new ArrayList<Entry>();
+    for (Segment segment : this.segments) {
+      if (segment.to > fromMillis && segment.from < toMillis && caseNumber >= segment.minCase
+          && caseNumber <= segment.maxCase) {
+        search(segment, caseNumber, fromMillis, toMillis, found);
+      }
+    }
+    for (Entry entry : this.tail) {
+      if (entry.record.CASE_NUMBER == caseNumber && entry.seenMillis >= fromMillis
+          && entry.seenMillis < toMillis) {
+        found.add(entry);
+      }
+    }
+    found.sort(Comparator.comparingLong(e -> e.seenMillis));
+    ArrayList<PatientRecord> records = new ArrayList<PatientRecord>(found.size());
+    for (Entry entry : found) {
+      records.add(entry.record);
+    }
+    return records;
+  }
+
+  /**
+   * Returns the number of archived records
+   *
+   * @return the number of records in the segments and in the tail
+   */
+  public synchronized long size() {
+    long size = this.tail.size();
+    for (Segment segment : this.segments) {
+      size += segment.count;
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of segment files of this archive
+   *
+   * @return the number of sealed segments
+   */
+  public synchronized int segmentCount() {
+    return this.segments.size();
+  }
+
+  /**
+   * Returns the memory taken by the sparse indexes of the segments, which is all that archived
+   * records cost on the heap once sealed
+   *
+   * @return the size of the sparse indexes in bytes
+   */
+  public synchronized long indexBytes() {
+    long bytes = 0;
+    for (Segment segment : this.segments) {
+      bytes += 4L * segment.samples.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Deletes the segments older than the retention period, then merges the segments of each day
+   * that ended before the given time into one segment per day. Merging reads and writes the
+   * segments without blocking appends and lookups; only swapping the merged segment in does.
+   *
+   * @param nowMillis current time, in milliseconds since the epoch
+   * @return the number of segment files removed, expired or merged into others
+   * @throws IOException if a segment cannot be read, written or deleted
+   */
+  public int compact(long nowMillis) throws IOException {
+    synchronized (this.compactionLock) {
+      ArrayList<ArrayList<Segment>> days = new ArrayList<ArrayList<Segment>>();
+      int removed = 0;
+      synchronized (this) {
+        if (this.closed) {
+          return 0;
+        }
+        Iterator<Segment> it = this.segments.iterator();
+        while (it.hasNext()) {
+          Segment segment = it.next();
+          if (segment.to <= nowMillis - this.retentionMillis) {
+            it.remove();
+            this.delete(segment);
+            removed++;
+          }
+        }
+
+        // Group the segments of each day that ended, in order of time
+        ArrayList<Segment> day = new ArrayList<Segment>();
+        for (Segment segment : this.segments) {
+          long dayIndex = Math.floorDiv(segment.from, DAY_MILLIS);
+          if (!day.isEmpty() && Math.floorDiv(day.get(0).from, DAY_MILLIS) != dayIndex) {
+            days.add(day);
+            day = new ArrayList<Segment>();
+          }
+          if (Math.floorDiv(segment.to - 1, DAY_MILLIS) == dayIndex
+              && (dayIndex + 1) * DAY_MILLIS <= nowMillis) {
+            day.add(segment);
+          }
+        }
+        days.add(day);
+      }
+
+      for (ArrayList<Segment> day : days) {
+        if (day.size() > 1) {
+          removed += this.merge(day);
+        }
+      }
+      return removed;
+    }
+  }
+
+  /**
+   * Starts a daemon thread compacting this archive at the given interval. Does nothing if the
+   * thread is already running. A failed compaction is counted and retried at the next interval.
+   *
+   * @param intervalMillis interval between two compactions, in milliseconds
+   */
+  public synchronized void startCompaction(long intervalMillis) {
+    if (this.compactor != null || this.closed) {
+      return;
+    }
+    this.compactor = new Thread(() -> {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          Thread.sleep(intervalMillis);
+          try {
+            this.compact(System.currentTimeMillis());
+          } catch (IOException e) {
+            synchronized (this) {
+              this.compactionFailures++;
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        // close() was called
+      }
+    }, "archive-compactor");
+    this.compactor.setDaemon(true);
+    this.compactor.start();
+  }
+
+  /**
+   * Returns the number of background compactions that failed
+   *
+   * @return the number of failed compactions
+   */
+  public synchronized int compactionFailures() {
+    return this.compactionFailures;
+  }
+
+  /**
+   * Stops the compaction thread, seals the tail and closes the segment files. Does nothing if
+   * this archive is already closed.
+   *
+   * @throws IOException if the tail cannot be sealed
+   */
+  @Override
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      thread = this.compactor;
+      this.compactor = null;
+    }
+    if (thread != null) {
+      thread.interrupt();
+      synchronized (this.compactionLock) {
+        // wait for a compaction in progress to finish
+      }
+    }
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      try {
+        this.seal();
+      } finally {
+        this.closed = true;
+        for (Segment segment : this.segments) {
+          segment.channel.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Throws an IllegalStateException if this archive is closed
+   */
+  private void ensureOpen() {
+    if (this.closed) {
+      throw new IllegalStateException("Error! The archive is closed");
+    }
+  }
+
+  /**
+   * Writes the records of the tail into a new segment covering the hour of the tail, and empties
+   * the tail
+   */
+  private void seal() throws IOException {
+    if (this.tail.isEmpty()) {
+      return;
+    }
+    long from = this.tailHour * HOUR_MILLIS;
+    this.segments.add(this.writeSegment(this.tail, from, from + HOUR_MILLIS,
+        this.nextGeneration++, SEALED));
+    this.tail.clear();
+  }
+
+  /**
+   * Merges the given segments of one day into a single segment, then swaps it in
+   *
+   * @return the number of segments removed
+   */
+  private int merge(ArrayList<Segment> day) throws IOException {
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    for (Segment segment : day) {
+      readAll(segment, entries);
+    }
+    long dayStart = Math.floorDiv(day.get(0).from, DAY_MILLIS) * DAY_MILLIS;
+    long generation;
+    synchronized (this) {
+      generation = this.nextGeneration++;
+    }
+    Segment merged = this.writeSegment(entries, dayStart, dayStart + DAY_MILLIS, generation,
+        MERGED);
+
+    synchronized (this) {
+      if (this.closed) {
+        merged.channel.close(); // the merged segment supersedes the others on reopening
+        return 0;
+      }
+      this.segments.removeAll(day);
+      this.segments.add(merged);
+      this.segments.sort(Comparator.comparingLong((Segment s) -> s.from)
+          .thenComparingLong(s -> s.generation));
+      for (Segment segment : day) {
+        this.delete(segment);
+      }
+    }
+    return day.size();
+  }
+
+  /**
+   * Closes and deletes the file of the given segment, which was removed from the list
+   */
+  private void delete(Segment segment) throws IOException {
+    segment.channel.close();
+    Files.deleteIfExists(segment.path);
+  }
+
+  /**
+   * Sorts the given entries by case number and time, writes them into a new segment file through
+   * a temporary file, and opens it. A segment file holds:
+   * <ul>
+   * <li>a HEADER_BYTES header: magic, number of records, time range, generation, level, smallest
+   * and largest case numbers, and 4 reserved bytes</li>
+   * <li>the records, ENTRY_BYTES each: the PatientRecordCodec layout, then the time seen</li>
+   * <li>the sparse index: the case number of every INDEX_INTERVAL-th record</li>
+   * </ul>
+   */
+  private Segment writeSegment(List<Entry> entries, long from, long to, long generation,
+      int level) throws IOException {
+    entries.sort(Comparator.comparingInt((Entry e) -> e.record.CASE_NUMBER)
+        .thenComparingLong(e -> e.seenMillis));
+    int count = entries.size();
+    int samples = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+    long length = HEADER_BYTES + (long) count * ENTRY_BYTES + 4L * samples;
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Error! Segment too large: " + count + " records");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) length);
+    buffer.putInt(MAGIC).putInt(count).putLong(from).putLong(to).putLong(generation)
+        .putInt(level).putInt(entries.get(0).record.CASE_NUMBER)
+        .putInt(entries.get(count - 1).record.CASE_NUMBER).putInt(0);
+    for (Entry entry : entries) {
+      PatientRecordCodec.encode(entry.record, buffer);
+      buffer.putLong(entry.seenMillis);
+    }
+    for (int i = 0; i < count; i += INDEX_INTERVAL) {
+      buffer.putInt(entries.get(i).record.CASE_NUMBER);
+    }
+    buffer.flip();
+
+    Path path = this.directory.resolve("seen-" + from + "-" + to + "-" + generation + SUFFIX);
+    Path temporary = this.directory.resolve(path.getFileName() + TEMPORARY_SUFFIX);
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+    return openSegment(path);
+  }
+
+  /**
+   * Opens the given segment file and reads its header and sparse index
+   */
+  private static Segment openSegment(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer header = read(channel, 0, HEADER_BYTES);
+      int count = header.getInt(4);
+      if (header.getInt(0) != MAGIC || count <= 0
+          || channel.size() != HEADER_BYTES + (long) count * ENTRY_BYTES
+              + 4L * ((count + INDEX_INTERVAL - 1) / INDEX_INTERVAL)) {
+        throw new IOException("Error! Corrupt segment " + path);
+      }
+      int[] samples = new int[(count + INDEX_INTERVAL - 1) / INDEX_INTERVAL];
+      read(channel, HEADER_BYTES + (long) count * ENTRY_BYTES, 4 * samples.length).asIntBuffer()
+          .get(samples);
+      return new Segment(path, channel, header, samples);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the records of the given case number and time range from the given segment, using its
+   * sparse index to read only the run of records that may hold that case number
+   */
+  private static void search(Segment segment, int caseNumber, long fromMillis, long toMillis,
+      List<Entry> found) throws IOException {
+    // The run starts in the block before the first sample not below the case number, and ends
+    // before the first sample above it
+    int first = lowerBound(segment.samples, caseNumber);
+    int end = lowerBound(segment.samples, caseNumber + 1);
+    int start = Math.max(0, first - 1) * INDEX_INTERVAL;
+    int stop = (int) Math.min(segment.count, (long) end * INDEX_INTERVAL);
+    ByteBuffer run = read(segment.channel, HEADER_BYTES + (long) start * ENTRY_BYTES,
+        (stop - start) * ENTRY_BYTES);
+    while (run.hasRemaining()) {
+      int position = run.position();
+      if (run.getInt(position) != caseNumber) {
+        run.position(position + ENTRY_BYTES);
+        continue;
+      }
+      PatientRecord p = PatientRecordCodec.decode(run);
+      long seenMillis = run.getLong();
+      if (seenMillis >= fromMillis && seenMillis < toMillis) {
+        found.add(new Entry(p, seenMillis));
+      }
+    }
+  }
+
+  /**
+   * Reads every record of the given segment
+   */
+  private static void readAll(Segment segment, List<Entry> entries) throws IOException {
+    ByteBuffer records =
+        read(segment.channel, HEADER_BYTES, segment.count * ENTRY_BYTES);
+    while (records.hasRemaining()) {
+      PatientRecord p = PatientRecordCodec.decode(records);
+      entries.add(new Entry(p, records.getLong()));
+    }
+  }
+
+  /**
+   * Returns the index of the first sample greater than or equal to the given case number
+   */
+  private static int lowerBound(int[] samples, int caseNumber) {
+    int low = 0;
+    int high = samples.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (samples[middle] < caseNumber) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Reads the given number of bytes of the given channel, from the given position
+   */
+  private static ByteBuffer read(FileChannel channel, long position, int bytes)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(bytes);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Error! Truncated segment");
+      }
+    }
+    return buffer.flip();
+  }
+}
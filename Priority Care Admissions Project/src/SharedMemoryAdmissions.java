@@ -0,0 +1,665 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Priority queue of PatientRecords stored in a memory-mapped file, so that several local
+ * processes, such as the kiosks, the clinician app and the reporting job, can admit and dispatch
+ * patients against one queue at memory speed, without a server in between.<BR/>
+ * <BR/>
+ * The file starts with a header of HEADER_BYTES bytes, followed by an array min-heap of
+ * ENTRY_BYTES-byte entries: the priority key of a record, then the record encoded by
+ * PatientRecordCodec. The header holds:
+ * <ul>
+ * <li>a magic number identifying the layout, written last when the file is created;</li>
+ * <li>the capacity of the queue;</li>
+ * <li>the lock word: 0 when free, otherwise the process id of the owner;</li>
+ * <li>the size of the queue;</li>
+ * <li>the arrival sequence, shared by all the processes to order their admissions;</li>
+ * <li>a one-entry journal: a state word, a saved size and a saved entry.</li>
+ * </ul>
+ * Every operation takes the lock word with an atomic compare-and-set through a VarHandle on the
+ * mapped region, and releases it with a release store, so the plain reads and writes of the heap
+ * done under the lock are visible to the next owner, whichever process it runs in. Threads of one
+ * process using the same instance also synchronize on it, so they do not spin against each
+ * other.<BR/>
+ * <BR/>
+ * As orders of arrival are only unique within one JVM, PatientRecords are ordered by triage level,
+ * then by the shared arrival sequence at their admission, which is the PriorityPolicy.STANDARD
+ * order across all the processes. Records are copies: the PatientRecords returned are decoded
+ * from the file, and keep the case number, age, gender and triage level of the admitted ones,
+ * while their order of arrival is the shared arrival sequence at their admission. That order is
+ * unique across the processes, and is the one cancel() takes.<BR/>
+ * <BR/>
+ * An entry spans several words, so a process dying in the middle of moving one would leave it
+ * torn or duplicated. Before overwriting an entry that is still needed, a process saves it in the
+ * journal, then records whether the entry must be restored (undo) or written to its destination
+ * (redo) if the move is interrupted. A process that dies while holding the lock is detected by
+ * the others, which take the lock over, replay the journal, then rebuild the heap over the
+ * entries they find, in linear time.
+ *
+ */
+public class SharedMemoryAdmissions implements AdmissionsQueue, AutoCloseable {
+
+  /**
+   * Number of bytes of the header of the file
+   */
+  public static final int HEADER_BYTES = 64;
+  /**
+   * Number of bytes of an entry of the heap: a priority key and an encoded PatientRecord
+   */
+  public static final int ENTRY_BYTES = 8 + PatientRecordCodec.RECORD_BYTES;
+
+  // layout of the header
+  private static final int MAGIC = 0x50434131; // "PCA1"
+  private static final int MAGIC_OFFSET = 0;
+  private static final int CAPACITY_OFFSET = 4;
+  private static final int LOCK_OFFSET = 8;
+  private static final int SIZE_OFFSET = 12;
+  private static final int SEQUENCE_OFFSET = 16;
+  // layout of the journal in the header, package-private so that tests can craft a crash
+  static final int JOURNAL_OFFSET = 24; // 0, index + 1 to undo, or -(index + 1) to redo
+  static final int JOURNAL_SIZE_OFFSET = 28; // size of the heap restored by an undo
+  static final int JOURNAL_ENTRY_OFFSET = 32; // copy of the entry to restore or write
+  // offset of the order of arrival in an entry, after the priority key and the case number
+  private static final int ARRIVAL_FIELD = 12;
+
+  // number of failed attempts to take the lock before yielding, then before parking
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 200;
+  // time parked between two attempts to take the lock once spinning and yielding failed
+  private static final long PARK_NANOS = 50_000;
+  // number of failed attempts between two checks that the owner of the lock is still alive
+  private static final int OWNER_CHECK_TRIES = 1 << 10;
+
+  private static final VarHandle INT =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+  private static final VarHandle LONG =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  private final FileChannel channel; // channel of the mapped file
+  private final MappedByteBuffer buffer; // mapped header and heap
+  private final ByteBuffer codec; // view of the buffer positioned for PatientRecordCodec
+  private final int capacity; // maximum number of PatientRecords the file can hold
+  private final int owner; // value of the lock word while this process holds the lock
+
+  /**
+   * Opens the shared queue stored in the given file, creating it with the given capacity if it
+   * does not exist yet
+   *
+   * @param file     file holding the queue
+   * @param capacity capacity of the queue, only used if the file is created
+   * @throws IllegalArgumentException with a descriptive error message if the capacity is not a
+   *                                  positive integer, or too large to be mapped
+   * @throws IOException              if the file cannot be created or mapped, or does not hold a
+   *                                  shared queue
+   */
+  public SharedMemoryAdmissions(Path file, int capacity)
+      throws IllegalArgumentException, IOException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Error! You need to input a capacity greater than 0");
+    }
+    if (capacity > (Integer.MAX_VALUE - HEADER_BYTES) / ENTRY_BYTES) {
+      throw new IllegalArgumentException("Error! The capacity is too large to be mapped");
+    }
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      // The file lock only serializes the creation of the file between processes
+      int mappedCapacity;
+      FileLock creation = this.channel.lock();
+      try {
+        mappedCapacity = this.channel.size() == 0 ? capacity : this.readCapacity();
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+            HEADER_BYTES + (long) mappedCapacity * ENTRY_BYTES);
+        this.buffer.order(ByteOrder.nativeOrder());
+        if ((int) INT.getVolatile(this.buffer, MAGIC_OFFSET) != MAGIC) {
+          this.buffer.putInt(CAPACITY_OFFSET, mappedCapacity);
+          this.buffer.putInt(SIZE_OFFSET, 0);
+          this.buffer.putLong(SEQUENCE_OFFSET, 0);
+          this.buffer.putInt(JOURNAL_OFFSET, 0);
+          INT.setVolatile(this.buffer, LOCK_OFFSET, 0);
+          INT.setVolatile(this.buffer, MAGIC_OFFSET, MAGIC); // the layout is now initialized
+        }
+      } finally {
+        creation.release();
+      }
+      this.capacity = mappedCapacity;
+      this.codec = this.buffer.duplicate().order(ByteOrder.nativeOrder());
+      this.owner = (int) ProcessHandle.current().pid();
+    } catch (IOException | RuntimeException e) {
+      this.channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the capacity from the header of an existing file
+   *
+   * @throws IOException if the file does not hold a shared queue
+   */
+  private int readCapacity() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+    if (this.channel.read(header, 0) < HEADER_BYTES || header.getInt(MAGIC_OFFSET) != MAGIC) {
+      throw new IOException("Error! Not a shared admissions queue file");
+    }
+    int stored = header.getInt(CAPACITY_OFFSET);
+    if (stored <= 0 || this.channel.size() < HEADER_BYTES + (long) stored * ENTRY_BYTES) {
+      throw new IOException("Error! Truncated shared admissions queue file");
+    }
+    return stored;
+  }
+
+  /**
+   * Returns the number of admissions to this queue so far, by all the processes
+   *
+   * @return the shared arrival sequence
+   */
+  public long arrivalSequence() {
+    return (long) LONG.getVolatile(this.buffer, SEQUENCE_OFFSET);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  @Override
+  public int size() {
+    return (int) INT.getVolatile(this.buffer, SIZE_OFFSET);
+  }
+
+  @Override
+  public int capacity() {
+    return this.capacity;
+  }
+
+  @Override
+  public synchronized void clear() {
+    this.lock();
+    try {
+      this.setSize(0);
+    } finally {
+      this.unlock();
+    }
+  }
+
+  @Override
+  public PatientRecord peek() throws NoSuchElementException {
+    PatientRecord best = this.peekOrNull();
+    if (best == null) {
+      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+    }
+    return best;
+  }
+
+  @Override
+  public synchronized PatientRecord peekOrNull() {
+    this.lock();
+    try {
+      return this.getSize() == 0 ? null : this.decode(0);
+    } finally {
+      this.unlock();
+    }
+  }
+
+  @Override
+  public synchronized void addPatient(PatientRecord p)
+      throws NullPointerException, IllegalStateException {
+    if (p == null) {
+      throw new NullPointerException();
+    }
+    this.lock();
+    try {
+      int size = this.getSize();
+      if (size >= this.capacity) {
+        throw new IllegalStateException("Warning: Full Admissions Queue!");
+      }
+      this.write(size, this.nextKey(p), p);
+      this.setSize(size + 1);
+      this.percolateUp(size);
+    } finally {
+      this.unlock();
+    }
+  }
+
+  @Override
+  public synchronized AdmissionStatus offer(PatientRecord p) {
+    if (p == null || this.size() >= this.capacity) {
+      return AdmissionStatus.REJECTED;
+    }
+    try {
+      this.addPatient(p);
+      return AdmissionStatus.ADMITTED;
+    } catch (IllegalStateException e) {
+      return AdmissionStatus.REJECTED; // another process filled the queue meanwhile
+    }
+  }
+
+  /**
+   * Adds all the given PatientRecords to this queue at once, in the order of the array, so they
+   * take consecutive values of the arrival sequence. A few records are percolated up one by one;
+   * otherwise, they are appended and the whole heap is rebuilt with a linear heapify.
+   */
+  @Override
+  public synchronized void addAll(PatientRecord[] records)
+      throws NullPointerException, IllegalStateException {
+    for (PatientRecord p : records) {
+      if (p == null) {
+        throw new NullPointerException();
+      }
+    }
+    this.lock();
+    try {
+      int size = this.getSize();
+      if (size + records.length > this.capacity) {
+        throw new IllegalStateException("Warning: Full Admissions Queue!");
+      }
+      int total = size + records.length;
+      boolean siftEach = (long) records.length * (32 - Integer.numberOfLeadingZeros(total)) < total;
+      for (PatientRecord p : records) {
+        this.write(size, this.nextKey(p), p);
+        this.setSize(++size);
+        if (siftEach) {
+          this.percolateUp(size - 1);
+        }
+      }
+      if (!siftEach) {
+        this.heapify(size);
+      }
+    } finally {
+      this.unlock();
+    }
+  }
+
+  @Override
+  public PatientRecord removeBestRecord() throws NoSuchElementException {
+    PatientRecord best = this.poll();
+    if (best == null) {
+      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+    }
+    return best;
+  }
+
+  @Override
+  public synchronized PatientRecord poll() {
+    this.lock();
+    try {
+      int size = this.getSize();
+      if (size == 0) {
+        return null;
+      }
+      PatientRecord best = this.decode(0);
+      this.removeAt(0, size);
+      return best;
+    } finally {
+      this.unlock();
+    }
+  }
+
+  /**
+   * Cancels the waiting PatientRecord having the given order of arrival, which is the shared
+   * arrival sequence at its admission, as returned by peek(), poll() or toArray(). Finding it takes
+   * a linear scan of the heap, as the shared file holds no index.
+   */
+  @Override
+  public synchronized boolean cancel(int arrivalOrder) {
+    this.lock();
+    try {
+      int size = this.getSize();
+      for (int i = 0; i < size; i++) {
+        if (this.buffer.getInt(offset(i) + ARRIVAL_FIELD) == arrivalOrder) {
+          this.removeAt(i, size);
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      this.unlock();
+    }
+  }
+
+  @Override
+  public synchronized PatientRecord[] toArray() {
+    this.lock();
+    try {
+      PatientRecord[] records = new PatientRecord[this.getSize()];
+      for (int i = 0; i < records.length; i++) {
+        records[i] = this.decode(i);
+      }
+      return records;
+    } finally {
+      this.unlock();
+    }
+  }
+
+  @Override
+  public StringBuilder formatTo(StringBuilder sb) {
+    for (PatientRecord p : this.sortedRecords()) {
+      p.formatTo(sb).append('\n');
+    }
+    return sb;
+  }
+
+  @Override
+  public void writeTo(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+    for (PatientRecord p : this.sortedRecords()) {
+      PatientRecord.writeLine(p, buffer, out);
+    }
+    PatientRecord.flush(buffer, out);
+  }
+
+  /**
+   * Returns a String representing this shared queue, where each PatientRecord is listed on a
+   * separate line, in order from smallest to greatest
+   *
+   * @return a String representing this queue, and an empty String "" if this queue is empty
+   */
+  @Override
+  public String toString() {
+    return this.formatTo(new StringBuilder()).toString();
+  }
+
+  /**
+   * Closes the file of this queue. The mapping itself is released when the buffer is garbage
+   * collected; the queue stays in the file for the other processes.
+   *
+   * @throws IOException if closing the file fails
+   */
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+
+  /**
+   * Takes a consistent copy of the waiting PatientRecords, sorted by priority, while holding the
+   * lock only for the copy
+   */
+  private PatientRecord[] sortedRecords() {
+    long[] keys;
+    PatientRecord[] records;
+    synchronized (this) {
+      this.lock();
+      try {
+        int size = this.getSize();
+        keys = new long[size];
+        records = new PatientRecord[size];
+        for (int i = 0; i < size; i++) {
+          keys[i] = this.buffer.getLong(offset(i));
+          records[i] = this.decode(i);
+        }
+      } finally {
+        this.unlock();
+      }
+    }
+    Integer[] order = new Integer[records.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+    PatientRecord[] sorted = new PatientRecord[records.length];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = records[order[i]];
+    }
+    return sorted;
+  }
+
+  /**
+   * Takes the lock word of the file: spins, then yields, then parks between attempts. If the
+   * owner of the lock is a process that no longer runs, takes the lock over and repairs the heap,
+   * which the dead owner may have left half-updated.
+   */
+  private void lock() {
+    int tries = 0;
+    while (!INT.compareAndSet(this.buffer, LOCK_OFFSET, 0, this.owner)) {
+      tries++;
+      if (tries < SPIN_TRIES) {
+        Thread.onSpinWait();
+      } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+      if (tries % OWNER_CHECK_TRIES == 0) {
+        int current = (int) INT.getVolatile(this.buffer, LOCK_OFFSET);
+        if (current != 0 && !ProcessHandle.of(current).map(ProcessHandle::isAlive).orElse(false)
+            && INT.compareAndSet(this.buffer, LOCK_OFFSET, current, this.owner)) {
+          this.recover();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Repairs the heap left by a dead owner of the lock: completes or rolls back the entry move
+   * recorded in the journal, then rebuilds the heap over the entries. The caller must hold the
+   * lock.
+   */
+  private void recover() {
+    int journal = this.buffer.getInt(JOURNAL_OFFSET);
+    if (journal > 0 && journal <= this.capacity) {
+      this.restore(journal - 1); // undo: the entry was being overwritten
+      this.setSize(this.buffer.getInt(JOURNAL_SIZE_OFFSET));
+    } else if (journal < 0 && journal >= -this.capacity) {
+      this.restore(-journal - 1); // redo: the saved entry was being written to its destination
+    }
+    this.setJournal(0);
+    int size = Math.max(0, Math.min(this.capacity, this.getSize()));
+    this.setSize(size);
+    this.heapify(size);
+  }
+
+  /**
+   * Releases the lock word, publishing the changes made under the lock to its next owner
+   */
+  private void unlock() {
+    INT.setRelease(this.buffer, LOCK_OFFSET, 0);
+  }
+
+  /**
+   * Returns the size stored in the header. The caller must hold the lock.
+   */
+  private int getSize() {
+    return this.buffer.getInt(SIZE_OFFSET);
+  }
+
+  /**
+   * Stores the size in the header. The caller must hold the lock.
+   */
+  private void setSize(int size) {
+    INT.setRelease(this.buffer, SIZE_OFFSET, size); // size() reads it without the lock
+  }
+
+  /**
+   * Computes the priority key of a PatientRecord being admitted, from its triage level and the
+   * next value of the shared arrival sequence. The caller must hold the lock.
+   */
+  private long nextKey(PatientRecord p) {
+    long sequence = this.buffer.getLong(SEQUENCE_OFFSET) + 1;
+    this.buffer.putLong(SEQUENCE_OFFSET, sequence);
+    return ((long) p.getTriage().ordinal() << 33) | (sequence & 0x1FFFFFFFFL);
+  }
+
+  /**
+   * Returns the offset in the file of the entry at the given index of the heap
+   */
+  private static int offset(int index) {
+    return HEADER_BYTES + index * ENTRY_BYTES;
+  }
+
+  /**
+   * Writes an entry at the given index of the heap. The order of arrival stored is the low 32 bits
+   * of the arrival sequence in the key, which is unique across the processes.
+   */
+  private void write(int index, long key, PatientRecord p) {
+    this.buffer.putLong(offset(index), key);
+    this.codec.position(offset(index) + 8);
+    PatientRecordCodec.encode(p, this.codec);
+    this.buffer.putInt(offset(index) + ARRIVAL_FIELD, (int) key);
+  }
+
+  /**
+   * Decodes the PatientRecord of the entry at the given index of the heap
+   */
+  private PatientRecord decode(int index) {
+    this.codec.position(offset(index) + 8);
+    return PatientRecordCodec.decode(this.codec);
+  }
+
+  /**
+   * Removes the entry at the given index of a heap of the given size, by moving the last entry in
+   * its place and percolating it up or down
+   */
+  private void removeAt(int index, int size) {
+    int last = size - 1;
+    if (index != last) {
+      this.save(index);
+      this.setJournal(index + 1); // undo: restore the removed entry and the size
+      this.copy(last, index);
+      this.setSize(last);
+      this.setJournal(0);
+    } else {
+      this.setSize(last);
+    }
+    if (index < last) {
+      this.percolateDown(index, last);
+      this.percolateUp(index);
+    }
+  }
+
+  /**
+   * Moves the entry at index i up the heap until its parent has a smaller key
+   */
+  private void percolateUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (this.key(parent) <= this.key(i)) {
+        return;
+      }
+      this.swap(i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   * Moves the entry at index i down a heap of the given size until its children have larger keys
+   */
+  private void percolateDown(int i, int size) {
+    while (true) {
+      int smallest = i;
+      int left = 2 * i + 1;
+      if (left < size && this.key(left) < this.key(smallest)) {
+        smallest = left;
+      }
+      if (left + 1 < size && this.key(left + 1) < this.key(smallest)) {
+        smallest = left + 1;
+      }
+      if (smallest == i) {
+        return;
+      }
+      this.swap(i, smallest);
+      i = smallest;
+    }
+  }
+
+  /**
+   * Restores the min-heap invariant over the first size entries in linear time
+   */
+  private void heapify(int size) {
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      this.percolateDown(i, size);
+    }
+  }
+
+  /**
+   * Returns the priority key of the entry at the given index
+   */
+  private long key(int index) {
+    return this.buffer.getLong(offset(index));
+  }
+
+  /**
+   * Copies the entry at index from over the entry at index to
+   */
+  private void copy(int from, int to) {
+    for (int b = 0; b < ENTRY_BYTES; b += 8) {
+      this.buffer.putLong(offset(to) + b, this.buffer.getLong(offset(from) + b));
+    }
+  }
+
+  /**
+   * Swaps the entries at the given indexes through the journal, so that a process dying in the
+   * middle of the swap leaves a state the next owner of the lock can repair
+   */
+  private void swap(int i, int j) {
+    this.save(i);
+    this.setJournal(i + 1); // undo: entry i may be partly overwritten, entry j is intact
+    this.copy(j, i);
+    this.setJournal(-(j + 1)); // redo: entry i now holds entry j, which may be partly overwritten
+    this.restore(j);
+    this.setJournal(0);
+  }
+
+  /**
+   * Saves the entry at the given index, and the current size, in the journal
+   */
+  private void save(int index) {
+    for (int b = 0; b < ENTRY_BYTES; b += 8) {
+      this.buffer.putLong(JOURNAL_ENTRY_OFFSET + b, this.buffer.getLong(offset(index) + b));
+    }
+    this.buffer.putInt(JOURNAL_SIZE_OFFSET, this.getSize());
+  }
+
+  /**
+   * Writes the entry saved in the journal at the given index
+   */
+  private void restore(int index) {
+    for (int b = 0; b < ENTRY_BYTES; b += 8) {
+      this.buffer.putLong(offset(index) + b, this.buffer.getLong(JOURNAL_ENTRY_OFFSET + b));
+    }
+  }
+
+  /**
+   * Stores the state word of the journal, after the writes it describes
+   */
+  private void setJournal(int state) {
+    INT.setRelease(this.buffer, JOURNAL_OFFSET, state);
+  }
+
+  /**
+   * Admits patients to a shared queue from the command line, for instance from a kiosk process.
+   * {@code java SharedMemoryAdmissions <file> <capacity> <count> <RED/YELLOW/GREEN>} admits count
+   * patients of the given triage level, then prints the size of the queue.
+   *
+   * @param args file, capacity, number of patients and triage level
+   * @throws IOException if the file cannot be opened
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4) {
+      System.out.println("Usage: java SharedMemoryAdmissions <file> <capacity> <count> "
+          + "<RED/YELLOW/GREEN>");
+      return;
+    }
+    TriageLevel triage = TriageLevel.valueOf(args[3].toUpperCase());
+    try (SharedMemoryAdmissions queue =
+        new SharedMemoryAdmissions(Paths.get(args[0]), Integer.parseInt(args[1]))) {
+      for (int i = Integer.parseInt(args[2]); i > 0; i--) {
+        queue.addPatient(new PatientRecord('X', 30, triage));
+      }
+      System.out.println(queue.size());
+    }
+  }
+}
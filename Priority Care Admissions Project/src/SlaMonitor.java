@@ -0,0 +1,285 @@
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the maximum target wait of every triage level and reports the waiting patients of a
+ * PriorityCareAdmissions queue who exceed it.<BR/>
+ * <BR/>
+ * The deadline of a patient is its monotonic arrival time plus the target wait of its triage
+ * level. Patients of a triage level share the same target, so their deadlines follow their arrival
+ * times. Each triage level therefore keeps a FIFO of deadlines, and an admission in arrival order
+ * is appended to it in O(1) amortized time, whatever the size of the queue. Melded, imported or
+ * re-admitted records may however have arrived before the last patient of their level: these rare
+ * out-of-order records go to a small min-heap on arrival time, beside the FIFO, at O(log k) for k
+ * such records. Checking for breaches only looks at the heads of the FIFOs and the roots of the
+ * heaps. Patients who were dispatched or cancelled before their deadline are dropped silently when
+ * they reach the head.<BR/>
+ * <BR/>
+ * Breaches can be checked explicitly with poll(), or by a background thread started with start()
+ * that sleeps until the earliest pending deadline.
+ *
+ */
+public class SlaMonitor {
+
+  /**
+   * Callback notified when a waiting patient exceeds the target wait of their triage level
+   */
+  @FunctionalInterface
+  public interface BreachListener {
+    /**
+     * Called once for every patient still waiting past their deadline. Called without holding
+     * the lock of the queue or of the monitor.
+     * 
+     * @param p           the waiting patient
+     * @param waitedNanos how long the patient has been waiting, in nanoseconds
+     */
+    void onBreach(PatientRecord p, long waitedNanos);
+  }
+
+  private static final TriageLevel[] TRIAGE_LEVELS = TriageLevel.values();
+  // within a triage level, deadlines are in the order of the arrival times
+  private static final Comparator<PatientRecord> BY_DEADLINE =
+      Comparator.comparingLong(PatientRecord::getArrivalNanos);
+
+  private final long[] targetNanos; // maximum target wait per TriageLevel.ordinal()
+  // per-triage FIFO of the patients admitted in arrival order, earliest deadline first
+  private final ArrayDeque<PatientRecord>[] deadlines;
+  // per-triage min-heap of the patients admitted after a later arrival of their level
+  private final PriorityQueue<PatientRecord>[] outOfOrder;
+  private final Set<PatientRecord> tracked; // patients currently held in a FIFO or a heap
+  private final BreachListener listener; // notified of every breach
+  private PriorityCareAdmissions queue; // queue whose waiting patients are monitored
+  private Thread worker; // background thread started by start(), if any
+
+  /**
+   * Creates a new SlaMonitor
+   * 
+   * @param targets  maximum target wait of each triage level, in milliseconds; levels missing from
+   *                 the map are not monitored
+   * @param listener callback notified of every breach
+   * @throws NullPointerException if targets or listener is null
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public SlaMonitor(Map<TriageLevel, Long> targets, BreachListener listener) {
+    if (listener == null) {
+      throw new NullPointerException();
+    }
+    this.targetNanos = new long[TRIAGE_LEVELS.length];
+    this.deadlines = (ArrayDeque<PatientRecord>[]) new ArrayDeque[TRIAGE_LEVELS.length];
+    this.outOfOrder = (PriorityQueue<PatientRecord>[]) new PriorityQueue[TRIAGE_LEVELS.length];
+    EnumMap<TriageLevel, Long> copy = new EnumMap<TriageLevel, Long>(targets);
+    for (TriageLevel level : TRIAGE_LEVELS) {
+      Long target = copy.get(level);
+      this.targetNanos[level.ordinal()] =
+          target == null ? -1 : TimeUnit.MILLISECONDS.toNanos(target);
+      this.deadlines[level.ordinal()] = new ArrayDeque<PatientRecord>();
+      this.outOfOrder[level.ordinal()] = new PriorityQueue<PatientRecord>(BY_DEADLINE);
+    }
+    this.tracked = Collections.newSetFromMap(new IdentityHashMap<PatientRecord, Boolean>());
+    this.listener = listener;
+  }
+
+  /**
+   * Attaches this monitor to the given queue. Called by PriorityCareAdmissions.setSlaMonitor().
+   * 
+   * @param queue queue whose waiting patients are monitored
+   */
+  synchronized void attach(PriorityCareAdmissions queue) {
+    this.queue = queue;
+    this.cleared();
+  }
+
+  /**
+   * Registers the deadline of a newly admitted patient, or of a patient returned to the queue
+   * after a claim was released or expired. A patient whose deadline is still registered is not
+   * registered twice. Called by the queue while holding its lock.
+   * 
+   * @param p the admitted patient
+   */
+  synchronized void admitted(PatientRecord p) {
+    int level = p.getTriage().ordinal();
+    if (this.targetNanos[level] < 0 || !this.tracked.add(p)) {
+      return;
+    }
+    this.add(level, p);
+    if (this.head(level) == p) {
+      this.notifyAll(); // the earliest deadline moved closer
+    }
+  }
+
+  /**
+   * Appends the deadline of the given patient to the FIFO of the given level if the patient did
+   * not arrive before its last patient, and adds it to the out-of-order heap otherwise
+   */
+  private void add(int level, PatientRecord p) {
+    PatientRecord last = this.deadlines[level].peekLast();
+    if (last == null || last.getArrivalNanos() - p.getArrivalNanos() <= 0) {
+      this.deadlines[level].addLast(p);
+    } else {
+      this.outOfOrder[level].add(p);
+    }
+  }
+
+  /**
+   * Returns the patient having the earliest deadline of the given level
+   * 
+   * @return the earlier of the head of the FIFO and the root of the heap, or null if both are
+   *         empty
+   */
+  private PatientRecord head(int level) {
+    PatientRecord first = this.deadlines[level].peekFirst();
+    PatientRecord root = this.outOfOrder[level].peek();
+    if (first == null) {
+      return root;
+    }
+    return root == null || first.getArrivalNanos() - root.getArrivalNanos() <= 0 ? first : root;
+  }
+
+  /**
+   * Returns the number of deadlines registered out of arrival order, which cost more than O(1)
+   * 
+   * @return the number of patients held in the out-of-order heaps
+   */
+  synchronized int outOfOrderCount() {
+    int count = 0;
+    for (PriorityQueue<PatientRecord> heap : this.outOfOrder) {
+      count += heap.size();
+    }
+    return count;
+  }
+
+  /**
+   * Moves the deadlines of the given re-triaged patients to their new triage levels.
+   * Called by the queue while holding its lock.
+   * 
+   * @param moved the patients whose triage level changed
+   */
+  synchronized void retriaged(PatientRecord[] moved) {
+    Set<PatientRecord> movedSet =
+        Collections.newSetFromMap(new IdentityHashMap<PatientRecord, Boolean>(moved.length * 2));
+    Collections.addAll(movedSet, moved);
+    for (int level = 0; level < this.deadlines.length; level++) {
+      this.deadlines[level].removeIf(movedSet::contains);
+      this.outOfOrder[level].removeIf(movedSet::contains);
+    }
+    this.tracked.removeAll(movedSet);
+    for (PatientRecord p : moved) {
+      int level = p.getTriage().ordinal();
+      if (this.targetNanos[level] >= 0 && this.tracked.add(p)) {
+        this.add(level, p);
+      }
+    }
+    this.notifyAll(); // the earliest deadline may have moved closer
+  }
+
+  /**
+   * Forgets every registered deadline. Called by the queue when it is cleared.
+   */
+  synchronized void cleared() {
+    for (int level = 0; level < this.deadlines.length; level++) {
+      this.deadlines[level].clear();
+      this.outOfOrder[level].clear();
+    }
+    this.tracked.clear();
+  }
+
+  /**
+   * Reports every patient whose deadline is at or before the given time and who is still waiting
+   * in the queue
+   * 
+   * @param nowNanos current value of System.nanoTime()
+   * @return the number of breaches reported
+   */
+  public int poll(long nowNanos) {
+    int breaches = 0;
+    for (int level = 0; level < this.deadlines.length; level++) {
+      PatientRecord p;
+      while ((p = this.nextDue(level, nowNanos)) != null) {
+        if (this.queue != null && this.queue.isWaiting(p)) {
+          this.listener.onBreach(p, nowNanos - p.getArrivalNanos());
+          breaches++;
+        }
+      }
+    }
+    return breaches;
+  }
+
+  /**
+   * Starts a daemon thread reporting breaches as soon as they happen. Does nothing if the thread
+   * is already running.
+   */
+  public synchronized void start() {
+    if (this.worker != null) {
+      return;
+    }
+    this.worker = new Thread(this::run, "sla-monitor");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Stops the thread started by start(), if any
+   */
+  public synchronized void stop() {
+    if (this.worker != null) {
+      this.worker.interrupt();
+      this.worker = null;
+    }
+  }
+
+  /**
+   * Removes and returns the patient having the earliest deadline of the given level if that
+   * deadline has passed
+   * 
+   * @return the patient, or null if no deadline of this level is registered or due
+   */
+  private synchronized PatientRecord nextDue(int level, long nowNanos) {
+    PatientRecord head = this.head(level);
+    if (head == null || head.getArrivalNanos() + this.targetNanos[level] - nowNanos > 0) {
+      return null;
+    }
+    this.tracked.remove(head);
+    if (this.deadlines[level].peekFirst() == head) {
+      this.deadlines[level].pollFirst();
+    } else {
+      this.outOfOrder[level].poll();
+    }
+    return head;
+  }
+
+  /**
+   * Body of the background thread: waits until the earliest pending deadline, then polls
+   */
+  private void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        this.poll(System.nanoTime());
+        synchronized (this) {
+          long waitNanos = Long.MAX_VALUE;
+          long now = System.nanoTime();
+          for (int level = 0; level < this.deadlines.length; level++) {
+            PatientRecord head = this.head(level);
+            if (head != null) {
+              waitNanos =
+                  Math.min(waitNanos, head.getArrivalNanos() + this.targetNanos[level] - now);
+            }
+          }
+          if (waitNanos == Long.MAX_VALUE) {
+            this.wait();
+          } else if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // stop() was called
+    }
+  }
+}
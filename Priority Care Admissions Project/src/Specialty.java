@@ -0,0 +1,78 @@
+import java.util.function.Predicate;
+
+/**
+ * A clinician specialty, defined by the PatientRecords it is eligible to see. A
+ * PriorityCareAdmissions queue dispatches the best eligible patient of a specialty with
+ * removeBestEligible(), using a sub-heap it keeps for that specialty.<BR/>
+ * <BR/>
+ * Eligibility may only depend on the age, the gender and the triage level of a patient, which
+ * are the only fields the queue tracks changes of. Two specialties are the same only if they are
+ * the same object, so custom specialties should be created once and reused.
+ *
+ */
+public final class Specialty {
+
+  /**
+   * Pediatric clinicians see patients under 18
+   */
+  public static final Specialty PEDIATRIC = new Specialty("PEDIATRIC", p -> p.getAge() < 18);
+
+  /**
+   * Trauma teams only see RED patients
+   */
+  public static final Specialty TRAUMA =
+      new Specialty("TRAUMA", p -> p.getTriage() == TriageLevel.RED);
+
+  /**
+   * Geriatric clinicians see patients aged 65 or more
+   */
+  public static final Specialty GERIATRIC = new Specialty("GERIATRIC", p -> p.getAge() >= 65);
+
+  private final String name; // name of this specialty
+  private final Predicate<PatientRecord> eligibility; // patients this specialty may see
+
+  /**
+   * Creates a new Specialty
+   *
+   * @param name        name of this specialty
+   * @param eligibility tells whether a patient may be seen by this specialty
+   * @throws NullPointerException if name or eligibility is null
+   */
+  public Specialty(String name, Predicate<PatientRecord> eligibility)
+      throws NullPointerException {
+    if (name == null || eligibility == null) {
+      throw new NullPointerException();
+    }
+    this.name = name;
+    this.eligibility = eligibility;
+  }
+
+  /**
+   * Returns the name of this specialty
+   *
+   * @return the name of this specialty
+   */
+  public String name() {
+    return this.name;
+  }
+
+  /**
+   * Checks whether the given patient may be seen by this specialty
+   *
+   * @param p a PatientRecord
+   * @return {@code true} if this specialty may see the patient
+   */
+  public boolean isEligible(PatientRecord p) {
+    return this.eligibility.test(p);
+  }
+
+  /**
+   * Returns the name of this specialty
+   *
+   * @return the name of this specialty
+   */
+  @Override
+  public String toString() {
+    return this.name;
+  }
+}
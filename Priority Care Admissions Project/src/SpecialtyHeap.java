@@ -0,0 +1,155 @@
+import java.util.Arrays;
+
+/**
+ * Array min-heap of the PatientRecords eligible for one Specialty, ordered by the priority keys
+ * the records got from the PriorityCareAdmissions queue they wait in. The records stay in the
+ * array-heap of that queue; this heap only holds references to them.<BR/>
+ * <BR/>
+ * Records leaving the queue are not removed from this heap: the queue discards them lazily, when
+ * they reach the root, and rebuilds this heap from its waiting records once stale entries
+ * outnumber them. This class is not thread-safe.
+ *
+ */
+public class SpecialtyHeap {
+  private static final int MIN_LENGTH = 16; // smallest array
+
+  private final Specialty specialty; // specialty whose eligible records are held
+  private PatientRecord[] heap; // array min-heap of the priority keys
+  private int size; // number of entries, stale ones included
+
+  /**
+   * Creates a new empty SpecialtyHeap
+   *
+   * @param specialty Specialty whose eligible records this heap holds
+   */
+  public SpecialtyHeap(Specialty specialty) {
+    this.specialty = specialty;
+    this.heap = new PatientRecord[MIN_LENGTH];
+  }
+
+  /**
+   * Returns the specialty of this heap
+   *
+   * @return the Specialty whose eligible records this heap holds
+   */
+  public Specialty specialty() {
+    return this.specialty;
+  }
+
+  /**
+   * Returns the number of entries of this heap
+   *
+   * @return the number of records pushed and not popped, stale ones included
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Adds the given record if it is eligible for the specialty of this heap, in O(log n) time
+   *
+   * @param p PatientRecord whose priority key is computed
+   * @return {@code true} if the record was added
+   */
+  public boolean offer(PatientRecord p) {
+    if (!this.specialty.isEligible(p)) {
+      return false;
+    }
+    if (this.size == this.heap.length) {
+      this.heap = Arrays.copyOf(this.heap, 2 * this.heap.length);
+    }
+    int i = this.size++;
+    // Percolate the new record up
+    while (i > 0 && this.heap[(i - 1) / 2].priorityKey > p.priorityKey) {
+      this.heap[i] = this.heap[(i - 1) / 2];
+      i = (i - 1) / 2;
+    }
+    this.heap[i] = p;
+    return true;
+  }
+
+  /**
+   * Returns the record having the smallest priority key, without removing it
+   *
+   * @return the root of this heap, or null if it is empty
+   */
+  public PatientRecord peek() {
+    return this.size == 0 ? null : this.heap[0];
+  }
+
+  /**
+   * Removes and returns the record having the smallest priority key, in O(log n) time
+   *
+   * @return the former root of this heap, or null if it is empty
+   */
+  public PatientRecord poll() {
+    if (this.size == 0) {
+      return null;
+    }
+    PatientRecord root = this.heap[0];
+    PatientRecord last = this.heap[--this.size];
+    this.heap[this.size] = null;
+    if (this.size > 0) {
+      this.siftDown(0, last);
+    }
+    return root;
+  }
+
+  /**
+   * Replaces the entries of this heap with the eligible records among the given ones, in linear
+   * time
+   *
+   * @param records PatientRecords whose priority keys are computed
+   */
+  public void rebuild(Iterable<PatientRecord> records) {
+    Arrays.fill(this.heap, 0, this.size, null);
+    this.size = 0;
+    for (PatientRecord p : records) {
+      if (this.specialty.isEligible(p)) {
+        if (this.size == this.heap.length) {
+          this.heap = Arrays.copyOf(this.heap, 2 * this.heap.length);
+        }
+        this.heap[this.size++] = p;
+      }
+    }
+    if (this.heap.length > MIN_LENGTH && this.size < this.heap.length / 4) {
+      this.heap = Arrays.copyOf(this.heap, Math.max(MIN_LENGTH, 2 * this.size));
+    }
+    // Bottom-up heapify
+    for (int i = this.size / 2 - 1; i >= 0; i--) {
+      this.siftDown(i, this.heap[i]);
+    }
+  }
+
+  /**
+   * Removes all the entries of this heap
+   */
+  public void clear() {
+    if (this.heap.length > MIN_LENGTH) {
+      this.heap = new PatientRecord[MIN_LENGTH];
+    } else {
+      Arrays.fill(this.heap, 0, this.size, null);
+    }
+    this.size = 0;
+  }
+
+  /**
+   * Places the given record at index i or below, moving the smaller children up
+   */
+  private void siftDown(int i, PatientRecord p) {
+    int half = this.size / 2; // first index without children
+    while (i < half) {
+      int child = 2 * i + 1;
+      int right = child + 1;
+      if (right < this.size && this.heap[right].priorityKey < this.heap[child].priorityKey) {
+        child = right;
+      }
+      if (this.heap[child].priorityKey >= p.priorityKey) {
+        break;
+      }
+      this.heap[i] = this.heap[child];
+      i = child;
+    }
+    this.heap[i] = p;
+  }
+}
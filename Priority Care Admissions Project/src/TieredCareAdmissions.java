@@ -0,0 +1,403 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Priority queue of PatientRecords for mass-casualty events, able to hold far more patients than
+ * fit comfortably in the heap. The most urgent PatientRecords are kept in an in-memory
+ * PriorityCareAdmissions tier. When that tier fills up, or when the JVM heap runs low, all its
+ * GREEN PatientRecords (or YELLOW ones if there are no GREEN) are spilled, in arrival order, to a
+ * new segment file on disk. Segments are reloaded in bulk as the in-memory tier drains.<BR/>
+ * <BR/>
+ * Each segment is sorted, and only a small block of it is kept in memory, so the best waiting
+ * PatientRecord is always either the root of the in-memory tier or the head of one of the
+ * segments. peek() and removeBestRecord() compare those few candidates, which keeps them correct
+ * across tiers.<BR/>
+ * <BR/>
+ * A spilled PatientRecord keeps its case number, order of arrival, age, gender, triage level, seen
+ * flag, arrival time and readmission flags. Its patientId is not stored, and the record returned
+ * after a reload is a new object equal to, but not the same as, the one that was admitted.
+ *
+ */
+public class TieredCareAdmissions implements AutoCloseable {
+  // share of the maximum JVM heap above which the in-memory tier is spilled early
+  private static final double HEAP_PRESSURE_RATIO = 0.85;
+  // number of admissions between two checks of the JVM heap usage
+  private static final int HEAP_CHECK_INTERVAL = 1024;
+
+  private PriorityCareAdmissions memory; // in-memory tier holding the most urgent records
+  private int reloadThreshold; // the in-memory tier is refilled when its size drops below this
+  private Path spillDirectory; // directory where the segment files are created
+  private ArrayList<SpillSegment> segments; // on-disk segments that still hold waiting records
+  private long spilledSize; // number of waiting records stored in the segments
+  private int admissionsSinceHeapCheck; // admissions since the JVM heap usage was last checked
+
+  /**
+   * Creates a new empty TieredCareAdmissions queue
+   * 
+   * @param memoryCapacity maximum number of PatientRecords held in the in-memory tier
+   * @param spillDirectory existing directory where segment files will be created
+   * @throws IllegalArgumentException if memoryCapacity is not a positive integer
+   */
+  public TieredCareAdmissions(int memoryCapacity, Path spillDirectory) {
+    this.memory = new PriorityCareAdmissions(memoryCapacity);
+    this.reloadThreshold = Math.max(1, memoryCapacity / 4);
+    this.spillDirectory = spillDirectory;
+    this.segments = new ArrayList<SpillSegment>();
+  }
+
+  /**
+   * Checks whether this queue is empty
+   * 
+   * @return {@code true} if no PatientRecord is waiting in either tier
+   */
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  /**
+   * Returns the size of this queue
+   * 
+   * @return the total number of PatientRecords waiting in memory and on disk
+   */
+  public long size() {
+    return this.memory.size() + this.spilledSize;
+  }
+
+  /**
+   * Returns the number of PatientRecords currently spilled to disk
+   * 
+   * @return the number of PatientRecords waiting in the on-disk segments
+   */
+  public long spilledSize() {
+    return this.spilledSize;
+  }
+
+  /**
+   * Adds the given PatientRecord to this queue. If the in-memory tier is full, or the JVM heap is
+   * under pressure, its least urgent PatientRecords are spilled to disk first.
+   * 
+   * @param p PatientRecord to add
+   * @throws NullPointerException  if the given PatientRecord is null
+   * @throws IllegalStateException with the exact error message "Warning: Full Admissions Queue!"
+   *                               if the in-memory tier is full of RED PatientRecords
+   * @throws UncheckedIOException  if a segment file cannot be written
+   */
+  public void addPatient(PatientRecord p) {
+    if (p == null) {
+      throw new NullPointerException();
+    }
+
+    // Spill when the in-memory tier is full or the heap is running low
+    if (this.memory.size() == this.memory.capacity() || this.isHeapUnderPressure()) {
+      this.spill();
+    }
+    this.memory.addPatient(p);
+  }
+
+  /**
+   * Returns the PatientRecord having the highest priority across both tiers, without removing it
+   * 
+   * @return the best waiting PatientRecord
+   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
+   *                                if this queue is empty
+   */
+  public PatientRecord peek() {
+    SpillSegment segment = this.bestSegment();
+    if (segment != null && (this.memory.isEmpty()
+        || segment.head().compareTo(this.memory.peek()) < 0)) {
+      return segment.head();
+    }
+    return this.memory.peek();
+  }
+
+  /**
+   * Removes and returns the PatientRecord having the highest priority across both tiers. The
+   * in-memory tier is refilled from disk when it runs low.
+   * 
+   * @return the best waiting PatientRecord
+   * @throws NoSuchElementException with the exact error message "Warning: Empty Admissions Queue!"
+   *                                if this queue is empty
+   * @throws UncheckedIOException   if a segment file cannot be read
+   */
+  public PatientRecord removeBestRecord() {
+    PatientRecord best;
+    SpillSegment segment = this.bestSegment();
+
+    // Take the best record from disk only if it beats the root of the in-memory tier
+    if (segment != null && (this.memory.isEmpty()
+        || segment.head().compareTo(this.memory.peek()) < 0)) {
+      best = segment.head();
+      segment.advance();
+      this.spilledSize--;
+      if (segment.isExhausted()) {
+        this.segments.remove(segment);
+        segment.delete();
+      }
+    } else {
+      best = this.memory.removeBestRecord();
+    }
+
+    if (this.memory.size() < this.reloadThreshold && !this.segments.isEmpty()) {
+      this.reload();
+    }
+    return best;
+  }
+
+  /**
+   * Removes all the PatientRecords from this queue and deletes its segment files
+   */
+  public void clear() {
+    this.memory.clear();
+    for (SpillSegment segment : this.segments) {
+      segment.delete();
+    }
+    this.segments.clear();
+    this.spilledSize = 0;
+  }
+
+  /**
+   * Deletes the segment files of this queue. Same as clear().
+   */
+  @Override
+  public void close() {
+    this.clear();
+  }
+
+  /**
+   * Moves the GREEN PatientRecords of the in-memory tier, or the YELLOW ones if there are no
+   * GREEN, to a new sorted segment file.
+   */
+  private void spill() {
+    PatientRecord[] victims = this.memory.removeAll(TriageLevel.GREEN);
+    if (victims.length == 0) {
+      victims = this.memory.removeAll(TriageLevel.YELLOW);
+    }
+    if (victims.length == 0) {
+      return; // only RED records left: nothing may leave memory
+    }
+    Arrays.sort(victims); // same triage level, so this sorts them in arrival order
+
+    Path file = null;
+    ByteBuffer buffer =
+        ByteBuffer.allocateDirect(SpillSegment.BLOCK_RECORDS * SpillSegment.ENTRY_BYTES);
+    try {
+      // The file name is chosen, and the file created, atomically with owner-only permissions
+      // where supported, so another user of the directory cannot predict or pre-create it
+      file = Files.createTempFile(this.spillDirectory, "admissions-", ".seg");
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        for (PatientRecord p : victims) {
+          if (!buffer.hasRemaining()) {
+            PatientRecord.flush(buffer, channel);
+          }
+          SpillSegment.encode(p, buffer);
+        }
+        PatientRecord.flush(buffer, channel);
+      }
+    } catch (IOException e) {
+      this.memory.addAll(victims); // leave the queue as it was
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      throw new UncheckedIOException(e);
+    }
+    this.segments.add(new SpillSegment(file, victims.length));
+    this.spilledSize += victims.length;
+  }
+
+  /**
+   * Refills the in-memory tier in bulk, up to half its capacity, from the segment holding the best
+   * spilled PatientRecord
+   */
+  private void reload() {
+    SpillSegment segment = this.bestSegment();
+    int room = this.memory.capacity() / 2 - this.memory.size();
+    PatientRecord[] records = new PatientRecord[(int) Math.min(room, segment.remaining())];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = segment.head();
+      segment.advance();
+    }
+    this.memory.addAll(records);
+    this.spilledSize -= records.length;
+    if (segment.isExhausted()) {
+      this.segments.remove(segment);
+      segment.delete();
+    }
+  }
+
+  /**
+   * Returns the segment whose head is the best spilled PatientRecord
+   * 
+   * @return the segment with the smallest head, or null if nothing is spilled
+   */
+  private SpillSegment bestSegment() {
+    SpillSegment best = null;
+    for (SpillSegment segment : this.segments) {
+      if (best == null || segment.head().compareTo(best.head()) < 0) {
+        best = segment;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Checks, every HEAP_CHECK_INTERVAL admissions, whether the JVM heap usage is above
+   * HEAP_PRESSURE_RATIO of its maximum while the in-memory tier holds a meaningful share of the
+   * waiting records.
+   * 
+   * @return {@code true} if the in-memory tier should be spilled now
+   */
+  private boolean isHeapUnderPressure() {
+    if (++this.admissionsSinceHeapCheck < HEAP_CHECK_INTERVAL
+        || this.memory.size() < this.reloadThreshold) {
+      return false;
+    }
+    this.admissionsSinceHeapCheck = 0;
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    return used > runtime.maxMemory() * HEAP_PRESSURE_RATIO;
+  }
+
+  /**
+   * Sorted run of spilled PatientRecords stored in a file. Only one block of records is decoded in
+   * memory at a time.
+   */
+  private static class SpillSegment {
+    // number of records read from the file at once
+    private static final int BLOCK_RECORDS = 256;
+    // bytes taken by one record in the file: the codec layout, the arrival time and the
+    // readmission flags, padded to a multiple of 8
+    private static final int ENTRY_BYTES = PatientRecordCodec.RECORD_BYTES + 16;
+    // bits of the flags byte of an entry
+    private static final byte READMISSION_CHECKED = 1;
+    private static final byte LIKELY_READMISSION = 2;
+
+    private Path file; // file storing the encoded records
+    private long count; // total number of records in the file
+    private long next; // index in the file of the current head record
+    private PatientRecord[] block; // decoded block of records containing the head
+    private int blockPosition; // index of the head record in block
+    private int blockLength; // number of records decoded in block
+
+    /**
+     * Creates a segment over the given file of count encoded records
+     */
+    private SpillSegment(Path file, long count) {
+      this.file = file;
+      this.count = count;
+      this.block = new PatientRecord[BLOCK_RECORDS];
+    }
+
+    /**
+     * Writes the given record at the current position of the buffer, and advances the position by
+     * ENTRY_BYTES
+     */
+    private static void encode(PatientRecord p, ByteBuffer buffer) {
+      PatientRecordCodec.encode(p, buffer);
+      buffer.putLong(p.getArrivalNanos());
+      byte flags = 0;
+      if (p.isReadmissionChecked()) {
+        flags |= READMISSION_CHECKED;
+      }
+      if (p.isLikelyReadmission()) {
+        flags |= LIKELY_READMISSION;
+      }
+      buffer.put(flags);
+      buffer.position(buffer.position() + 7); // padding
+    }
+
+    /**
+     * Reads a record from the current position of the buffer, and advances the position by
+     * ENTRY_BYTES
+     */
+    private static PatientRecord decode(ByteBuffer buffer) {
+      PatientRecord p = PatientRecordCodec.decode(buffer);
+      p.setArrivalNanos(buffer.getLong());
+      byte flags = buffer.get();
+      if ((flags & READMISSION_CHECKED) != 0) {
+        p.flagReadmission((flags & LIKELY_READMISSION) != 0);
+      }
+      buffer.position(buffer.position() + 7); // padding
+      return p;
+    }
+
+    /**
+     * Returns the smallest record not yet removed from this segment
+     */
+    private PatientRecord head() {
+      if (this.blockPosition == this.blockLength) {
+        this.readBlock();
+      }
+      return this.block[this.blockPosition];
+    }
+
+    /**
+     * Drops the current head of this segment
+     */
+    private void advance() {
+      this.head(); // make sure the head is loaded
+      this.block[this.blockPosition++] = null;
+      this.next++;
+    }
+
+    /**
+     * Returns the number of records not yet removed from this segment
+     */
+    private long remaining() {
+      return this.count - this.next;
+    }
+
+    /**
+     * Checks whether all the records of this segment were removed
+     */
+    private boolean isExhausted() {
+      return this.next == this.count;
+    }
+
+    /**
+     * Decodes the next block of records from the file, starting at the current head
+     */
+    private void readBlock() {
+      int records = (int) Math.min(BLOCK_RECORDS, this.remaining());
+      ByteBuffer buffer = ByteBuffer.allocate(records * ENTRY_BYTES);
+      try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+        long position = this.next * ENTRY_BYTES;
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Truncated segment file " + this.file);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      buffer.flip();
+      for (int i = 0; i < records; i++) {
+        this.block[i] = decode(buffer);
+      }
+      this.blockPosition = 0;
+      this.blockLength = records;
+    }
+
+    /**
+     * Deletes the file of this segment
+     */
+    private void delete() {
+      try {
+        Files.deleteIfExists(this.file);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
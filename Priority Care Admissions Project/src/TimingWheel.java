@@ -0,0 +1,170 @@
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel tracking the deadlines of a large number of timeouts. Time is divided into
+ * ticks of a fixed length, and every timeout is stored in the slot of the wheel its deadline tick
+ * hashes to. Scheduling and cancelling a timeout take constant time, and advancing the wheel by
+ * one tick only visits the timeouts of one slot, whatever the total number of timeouts.<BR/>
+ * <BR/>
+ * This class is not thread-safe.
+ *
+ * @param <T> type of the items attached to the timeouts
+ */
+public class TimingWheel<T> {
+  private final long tickMillis; // length of a tick in milliseconds
+  private final Timeout<T>[] slots; // heads of the doubly linked lists of timeouts of each slot
+  private final int mask; // slots.length - 1, used to hash a tick to its slot
+  private long currentTick; // last tick processed by advanceTo()
+  private int size; // number of pending timeouts
+
+  /**
+   * Creates a new empty timing wheel
+   * 
+   * @param wheelSize  number of slots of the wheel, rounded up to a power of two
+   * @param tickMillis length of a tick in milliseconds
+   * @param nowMillis  current time in milliseconds, on the clock later given to advanceTo()
+   * @throws IllegalArgumentException if wheelSize or tickMillis is not positive
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TimingWheel(int wheelSize, long tickMillis, long nowMillis) {
+    if (wheelSize <= 0 || tickMillis <= 0) {
+      throw new IllegalArgumentException("Error! Wheel size and tick length must be positive");
+    }
+    int slotCount = Integer.highestOneBit(wheelSize);
+    if (slotCount < wheelSize) {
+      slotCount <<= 1;
+    }
+    this.slots = (Timeout<T>[]) new Timeout[slotCount];
+    this.mask = slotCount - 1;
+    this.tickMillis = tickMillis;
+    this.currentTick = nowMillis / tickMillis;
+  }
+
+  /**
+   * Returns the number of pending timeouts of this wheel
+   * 
+   * @return the number of timeouts scheduled and neither expired nor cancelled
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Schedules a timeout expiring at the given deadline. A deadline in the past expires on the next
+   * call to advanceTo().
+   * 
+   * @param item           item to attach to the timeout
+   * @param deadlineMillis time at which the timeout expires
+   * @return a handle that can be given to cancel()
+   */
+  public Timeout<T> schedule(T item, long deadlineMillis) {
+    long tick = Math.max(this.currentTick + 1, ceilDiv(deadlineMillis, this.tickMillis));
+    Timeout<T> timeout = new Timeout<T>(item, tick);
+    int slot = (int) (tick & this.mask);
+    timeout.next = this.slots[slot];
+    if (timeout.next != null) {
+      timeout.next.previous = timeout;
+    }
+    this.slots[slot] = timeout;
+    this.size++;
+    return timeout;
+  }
+
+  /**
+   * Cancels the given timeout, if it is still pending
+   * 
+   * @param timeout handle returned by schedule()
+   * @return {@code true} if the timeout was pending and is now cancelled
+   */
+  public boolean cancel(Timeout<T> timeout) {
+    if (timeout.expired) {
+      return false;
+    }
+    this.unlink(timeout);
+    return true;
+  }
+
+  /**
+   * Advances this wheel to the given time, expiring every pending timeout whose deadline has been
+   * reached. Each elapsed tick visits one slot; if more ticks than slots elapsed, every slot is
+   * visited once.
+   * 
+   * @param nowMillis current time in milliseconds
+   * @param onExpire  callback receiving the item of every expired timeout
+   * @return the number of expired timeouts
+   */
+  public int advanceTo(long nowMillis, Consumer<T> onExpire) {
+    long nowTick = nowMillis / this.tickMillis;
+    long lastTick = Math.min(nowTick, this.currentTick + this.slots.length);
+    int expired = 0;
+    for (long tick = this.currentTick + 1; tick <= lastTick; tick++) {
+      Timeout<T> timeout = this.slots[(int) (tick & this.mask)];
+      while (timeout != null) {
+        Timeout<T> next = timeout.next;
+        if (timeout.deadlineTick <= nowTick) {
+          this.unlink(timeout);
+          onExpire.accept(timeout.item);
+          expired++;
+        }
+        timeout = next;
+      }
+    }
+    this.currentTick = Math.max(this.currentTick, nowTick);
+    return expired;
+  }
+
+  /**
+   * Removes the given timeout from its slot and marks it as no longer pending
+   */
+  private void unlink(Timeout<T> timeout) {
+    if (timeout.previous != null) {
+      timeout.previous.next = timeout.next;
+    } else {
+      this.slots[(int) (timeout.deadlineTick & this.mask)] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.previous = timeout.previous;
+    }
+    timeout.previous = null;
+    timeout.next = null;
+    timeout.expired = true;
+    this.size--;
+  }
+
+  /**
+   * Divides and rounds towards positive infinity
+   */
+  private static long ceilDiv(long dividend, long divisor) {
+    return -Math.floorDiv(-dividend, divisor);
+  }
+
+  /**
+   * Handle of a timeout scheduled in a TimingWheel
+   *
+   * @param <T> type of the item attached to the timeout
+   */
+  public static class Timeout<T> {
+    private final T item; // item attached to this timeout
+    private final long deadlineTick; // tick at which this timeout expires
+    private Timeout<T> previous; // previous timeout in the same slot
+    private Timeout<T> next; // next timeout in the same slot
+    private boolean expired; // whether this timeout expired or was cancelled
+
+    /**
+     * Creates a timeout for the given item expiring at the given tick
+     */
+    private Timeout(T item, long deadlineTick) {
+      this.item = item;
+      this.deadlineTick = deadlineTick;
+    }
+
+    /**
+     * Accessor method for the item attached to this timeout
+     * 
+     * @return the item attached to this timeout
+     */
+    public T getItem() {
+      return this.item;
+    }
+  }
+}
@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Priority queue of PatientRecords made of one FIFO bucket per TriageLevel. As patients normally
+ * arrive in increasing order of arrival, appending each of them to the bucket of its triage level
+ * keeps every bucket sorted, and both admissions and dispatches take constant time, whatever the
+ * size of the queue. A PatientRecord older than the last one of its bucket, such as a record
+ * restored from disk, is still put at its correct position, by re-sorting its bucket.<BR/>
+ * <BR/>
+ * Like PriorityCareAdmissions, cancelled PatientRecords are left in their bucket and skipped
+ * lazily, and purged all at once when they make up too large a share of the stored records.<BR/>
+ * <BR/>
+ * All the public operations of this queue are thread-safe.
+ *
+ */
+public class TriageBucketAdmissions implements AdmissionsQueue {
+  // share of cancelled records in the buckets above which they are purged
+  private static final double CANCELLED_RATIO = 0.25;
+
+  private final ArrayList<ArrayDeque<PatientRecord>> buckets; // one FIFO per triage ordinal
+  private final int capacity; // maximum number of PatientRecords this queue can hold
+  private final HashMap<Integer, PatientRecord> waiting; // live PatientRecords by arrival order
+  private final Set<PatientRecord> cancelled; // cancelled PatientRecords still in a bucket
+  private int stored; // number of PatientRecords stored in the buckets, cancelled ones included
+
+  /**
+   * Creates a new empty TriageBucketAdmissions queue with the given capacity
+   *
+   * @param capacity Capacity of this TriageBucketAdmissions queue
+   * @throws IllegalArgumentException with a descriptive error message if the capacity is not a
+   *                                  positive integer
+   */
+  public TriageBucketAdmissions(int capacity) throws IllegalArgumentException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Error! You need to input a capacity greater than 0");
+    }
+    this.capacity = capacity;
+    this.buckets = new ArrayList<ArrayDeque<PatientRecord>>();
+    for (int i = 0; i < TriageLevel.values().length; i++) {
+      this.buckets.add(new ArrayDeque<PatientRecord>());
+    }
+    this.waiting = new HashMap<Integer, PatientRecord>();
+    this.cancelled = Collections.newSetFromMap(new IdentityHashMap<PatientRecord, Boolean>());
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  @Override
+  public synchronized int size() {
+    return this.stored - this.cancelled.size();
+  }
+
+  @Override
+  public synchronized int capacity() {
+    return this.capacity;
+  }
+
+  @Override
+  public synchronized void clear() {
+    for (ArrayDeque<PatientRecord> bucket : this.buckets) {
+      bucket.clear();
+    }
+    this.waiting.clear();
+    this.cancelled.clear();
+    this.stored = 0;
+  }
+
+  @Override
+  public synchronized PatientRecord peek() throws NoSuchElementException {
+    PatientRecord best = this.peekOrNull();
+    if (best == null) {
+      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+    }
+    return best;
+  }
+
+  @Override
+  public synchronized PatientRecord peekOrNull() {
+    ArrayDeque<PatientRecord> bucket = this.firstNonEmptyBucket();
+    return bucket == null ? null : bucket.peekFirst();
+  }
+
+  @Override
+  public synchronized void addPatient(PatientRecord p)
+      throws NullPointerException, IllegalStateException {
+    if (p == null) {
+      throw new NullPointerException();
+    }
+    if (this.isFull()) {
+      throw new IllegalStateException("Warning: Full Admissions Queue!");
+    }
+    if (this.append(p)) {
+      this.sort(this.buckets.get(p.getTriage().ordinal()));
+    }
+  }
+
+  @Override
+  public synchronized AdmissionStatus offer(PatientRecord p) {
+    if (p == null || this.isFull()) {
+      return AdmissionStatus.REJECTED;
+    }
+    this.addPatient(p);
+    return AdmissionStatus.ADMITTED;
+  }
+
+  /**
+   * Adds all the given PatientRecords to this queue at once. Each bucket receiving records out of
+   * order is sorted only once, after all the records are appended.
+   */
+  @Override
+  public synchronized void addAll(PatientRecord[] records)
+      throws NullPointerException, IllegalStateException {
+    for (PatientRecord p : records) {
+      if (p == null) {
+        throw new NullPointerException();
+      }
+    }
+    if (this.stored + records.length > this.capacity && !this.cancelled.isEmpty()) {
+      this.purgeCancelled();
+    }
+    if (this.stored + records.length > this.capacity) {
+      throw new IllegalStateException("Warning: Full Admissions Queue!");
+    }
+
+    boolean[] unsorted = new boolean[this.buckets.size()];
+    for (PatientRecord p : records) {
+      unsorted[p.getTriage().ordinal()] |= this.append(p);
+    }
+    for (int i = 0; i < unsorted.length; i++) {
+      if (unsorted[i]) {
+        this.sort(this.buckets.get(i));
+      }
+    }
+  }
+
+  @Override
+  public synchronized PatientRecord removeBestRecord() throws NoSuchElementException {
+    PatientRecord best = this.poll();
+    if (best == null) {
+      throw new NoSuchElementException("Warning: Empty Admissions Queue!");
+    }
+    return best;
+  }
+
+  @Override
+  public synchronized PatientRecord poll() {
+    ArrayDeque<PatientRecord> bucket = this.firstNonEmptyBucket();
+    if (bucket == null) {
+      return null;
+    }
+    PatientRecord best = bucket.pollFirst();
+    this.stored--;
+    this.waiting.remove(best.getArrivalOrder(), best);
+    return best;
+  }
+
+  @Override
+  public synchronized boolean cancel(int arrivalOrder) {
+    PatientRecord p = this.waiting.remove(arrivalOrder);
+    if (p == null) {
+      return false;
+    }
+    this.cancelled.add(p);
+    if (this.cancelled.size() > this.stored * CANCELLED_RATIO) {
+      this.purgeCancelled();
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized PatientRecord[] toArray() {
+    PatientRecord[] records = new PatientRecord[this.size()];
+    int count = 0;
+    for (ArrayDeque<PatientRecord> bucket : this.buckets) {
+      for (PatientRecord p : bucket) {
+        if (!this.cancelled.contains(p)) {
+          records[count++] = p;
+        }
+      }
+    }
+    return records;
+  }
+
+  @Override
+  public synchronized StringBuilder formatTo(StringBuilder sb) {
+    // The buckets are already in priority order: no need to drain a copy
+    for (ArrayDeque<PatientRecord> bucket : this.buckets) {
+      for (PatientRecord p : bucket) {
+        if (!this.cancelled.contains(p)) {
+          p.formatTo(sb).append('\n');
+        }
+      }
+    }
+    return sb;
+  }
+
+  @Override
+  public synchronized void writeTo(ByteBuffer buffer, WritableByteChannel out)
+      throws IOException {
+    for (ArrayDeque<PatientRecord> bucket : this.buckets) {
+      for (PatientRecord p : bucket) {
+        if (!this.cancelled.contains(p)) {
+          PatientRecord.writeLine(p, buffer, out);
+        }
+      }
+    }
+    PatientRecord.flush(buffer, out);
+  }
+
+  /**
+   * Returns a String representing this TriageBucketAdmissions queue, where each PatientRecord is
+   * listed on a separate line, in order from smallest to greatest
+   *
+   * @return a String representing this queue, and an empty String "" if this queue is empty
+   */
+  @Override
+  public synchronized String toString() {
+    return this.formatTo(new StringBuilder(this.size() * PatientRecord.MAX_FORMATTED_BYTES))
+        .toString();
+  }
+
+  /**
+   * Checks whether this queue is full, purging the cancelled records first if they take up room
+   */
+  private boolean isFull() {
+    if (this.stored >= this.capacity && !this.cancelled.isEmpty()) {
+      this.purgeCancelled();
+    }
+    return this.stored >= this.capacity;
+  }
+
+  /**
+   * Appends the given PatientRecord to the bucket of its triage level. The caller must make sure
+   * there is room for it.
+   *
+   * @param p PatientRecord to append
+   * @return {@code true} if p was appended out of order, so that its bucket must be sorted
+   */
+  private boolean append(PatientRecord p) {
+    ArrayDeque<PatientRecord> bucket = this.buckets.get(p.getTriage().ordinal());
+    boolean outOfOrder = !bucket.isEmpty() && p.compareTo(bucket.peekLast()) < 0;
+    bucket.addLast(p);
+    this.waiting.put(p.getArrivalOrder(), p);
+    this.stored++;
+    return outOfOrder;
+  }
+
+  /**
+   * Sorts the given bucket by PatientRecord.compareTo()
+   */
+  private void sort(ArrayDeque<PatientRecord> bucket) {
+    PatientRecord[] records = bucket.toArray(new PatientRecord[bucket.size()]);
+    Arrays.sort(records);
+    bucket.clear();
+    bucket.addAll(Arrays.asList(records));
+  }
+
+  /**
+   * Discards the cancelled records at the head of each bucket, and returns the first bucket that
+   * still has a live record at its head
+   *
+   * @return the bucket holding the PatientRecord having the highest priority, or null if this
+   *         queue is empty
+   */
+  private ArrayDeque<PatientRecord> firstNonEmptyBucket() {
+    for (ArrayDeque<PatientRecord> bucket : this.buckets) {
+      while (!bucket.isEmpty() && this.cancelled.remove(bucket.peekFirst())) {
+        bucket.pollFirst();
+        this.stored--;
+      }
+      if (!bucket.isEmpty()) {
+        return bucket;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes all the cancelled records from the buckets
+   */
+  private void purgeCancelled() {
+    for (ArrayDeque<PatientRecord> bucket : this.buckets) {
+      bucket.removeIf(this.cancelled::contains);
+    }
+    this.stored -= this.cancelled.size();
+    this.cancelled.clear();
+  }
+}